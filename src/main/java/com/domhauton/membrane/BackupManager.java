@@ -5,6 +5,9 @@ import com.domhauton.membrane.api.RestfulApiManager;
 import com.domhauton.membrane.config.Config;
 import com.domhauton.membrane.config.ConfigException;
 import com.domhauton.membrane.config.ConfigManager;
+import com.domhauton.membrane.config.items.FileWatcherConfig;
+import com.domhauton.membrane.config.items.StorageConfig;
+import com.domhauton.membrane.config.items.data.StorageVolume;
 import com.domhauton.membrane.config.items.data.WatchFolder;
 import com.domhauton.membrane.distributed.ContractManager;
 import com.domhauton.membrane.distributed.ContractManagerException;
@@ -13,13 +16,28 @@ import com.domhauton.membrane.network.NetworkException;
 import com.domhauton.membrane.network.NetworkManagerImpl;
 import com.domhauton.membrane.prospector.FileManager;
 import com.domhauton.membrane.prospector.FileManagerException;
+import com.domhauton.membrane.prospector.IngestCheckpoints;
+import com.domhauton.membrane.prospector.IoGovernor;
+import com.domhauton.membrane.prospector.StatCache;
+import com.domhauton.membrane.prospector.chunking.Chunker;
+import com.domhauton.membrane.prospector.chunking.FixedSizeChunker;
+import com.domhauton.membrane.prospector.chunking.GearChunker;
+import com.domhauton.membrane.shard.CachingShardStorage;
+import com.domhauton.membrane.shard.GroupCommitSync;
+import com.domhauton.membrane.shard.MultiVolumeShardStorage;
+import com.domhauton.membrane.shard.SegmentShardStorage;
+import com.domhauton.membrane.shard.ShardLayout;
+import com.domhauton.membrane.shard.ShardScrubber;
 import com.domhauton.membrane.shard.ShardStorage;
+import com.domhauton.membrane.shard.ShardStorageException;
 import com.domhauton.membrane.shard.ShardStorageImpl;
+import com.domhauton.membrane.shard.ShardStorageMigration;
 import com.domhauton.membrane.storage.FileEventLoggerImpl;
 import com.domhauton.membrane.storage.StorageManager;
 import com.domhauton.membrane.storage.StorageManagerException;
 import com.domhauton.membrane.storage.catalogue.JournalEntry;
 import com.domhauton.membrane.storage.catalogue.metadata.FileVersion;
+import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -37,14 +55,18 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Created by dominic on 23/01/17.
  */
 public class BackupManager implements Runnable, Closeable {
+  private final static int KB = 1024;
   private final static int MB = 1024 * 1024;
   private final static double PEER_LOCAL_STORAGE_RATIO = 0.20d;
   private final static double SOFT_STORAGE_CAP_RATIO = 0.80d;
+  private final static String STAT_CACHE_NAME = "stat-cache.dat";
+  private final static String INGEST_CHECKPOINTS_NAME = "ingest-checkpoints.dat";
 
   private final Config config;
   private final Path configPath;
@@ -61,6 +83,11 @@ public class BackupManager implements Runnable, Closeable {
   private final ScheduledExecutorService trimExecutor;
   private ShardStorage localShardStorage;
   private ShardStorage peerBlockStorage;
+  private MultiVolumeShardStorage localShardVolumes;
+  private MultiVolumeShardStorage peerBlockVolumes;
+  private ShardScrubber localShardScrubber;
+  private ShardScrubber peerBlockScrubber;
+  private GroupCommitSync groupCommitSync;
 
   BackupManager(Config config, Path configFilePath) {
     this(config, configFilePath, false);
@@ -77,26 +104,47 @@ public class BackupManager implements Runnable, Closeable {
     Path configDir = configPath.getParent();
     Path localShardStoragePath = Paths.get(config.getStorage().getLocalShardStorageDir());
     Path peerBlockStoragePath = Paths.get(config.getStorage().getPeerBlockStorageDir());
-    localShardStorage = new ShardStorageImpl(
-        localShardStoragePath,
-        getMaxLocalStorageSize());
-    peerBlockStorage = new ShardStorageImpl(
-        peerBlockStoragePath,
-        getMaxBlockStorageSize(),
-        Hashing.sha512());
+
+    if (config.getStorage().isDurableWrites()) {
+      groupCommitSync = new GroupCommitSync(config.getStorage().getSyncLatencyMillis(), TimeUnit.MILLISECONDS);
+    }
 
     try {
+      localShardVolumes = createVolumeShardStorage(localShardStoragePath, getBaseLocalStorageSize(),
+          config.getStorage().getLocalShardVolumes(), false);
+      localShardStorage = withReadCache(localShardVolumes);
+      peerBlockVolumes = createVolumeShardStorage(peerBlockStoragePath, getBaseBlockStorageSize(),
+          config.getStorage().getPeerBlockVolumes(), true);
+      peerBlockStorage = withReadCache(peerBlockVolumes);
+      long scrubBytesPerSecond = (long) config.getStorage().getScrubRateMBps() * MB;
+      localShardScrubber = new ShardScrubber("local", localShardStorage, scrubBytesPerSecond);
+      peerBlockScrubber = new ShardScrubber("peer block", peerBlockStorage, scrubBytesPerSecond);
 
       // Create the file manager (responsible for monitoring changes)
-      fileManager = new FileManager(new FileEventLoggerImpl(), localShardStorage, config.getFileWatcher().getChunkSizeMB());
+      FileWatcherConfig fileWatcherConfig = config.getFileWatcher();
+      fileManager = new FileManager(new FileEventLoggerImpl(), localShardStorage, createChunker(fileWatcherConfig),
+          fileWatcherConfig.getReadWorkers(),
+          fileWatcherConfig.getHashWorkers(),
+          fileWatcherConfig.getStoreWorkers(),
+          fileWatcherConfig.getIngestBufferMB());
+      fileManager.setIoGovernor(new IoGovernor(
+          (long) fileWatcherConfig.getIoLimitMBps() * MB,
+          fileWatcherConfig.getIoLimitReadsPerSecond(),
+          fileWatcherConfig.isAdaptiveIoLimit()));
+      fileManager.setPackFileMaxBytes(fileWatcherConfig.getPackFileMaxKB() * KB);
+      fileManager.setMaxDeltaChainLength(fileWatcherConfig.isDeltaEncoding() ? fileWatcherConfig.getMaxDeltaChainLength() : 0);
 
       // Create the local storage manager. Responsible for persisting files on the local machine.
-      localStorageManager = new StorageManager(configDir, localShardStorage);
+      localStorageManager = new StorageManager(configDir, localShardStorage, groupCommitSync);
 
       // If not in monitor mode connect the file manager to the storage manager.
 
       if (!monitorMode) {
         fileManager.setFileEventLogger(localStorageManager);
+        Path statCachePath = Paths.get(configDir.toString() + File.separator + STAT_CACHE_NAME);
+        fileManager.setStatCache(new StatCache(statCachePath, fileWatcherConfig.isSampledHashCheck()));
+        Path checkpointsPath = Paths.get(configDir.toString() + File.separator + INGEST_CHECKPOINTS_NAME);
+        fileManager.setIngestCheckpoints(new IngestCheckpoints(checkpointsPath));
       }
 
       // Start the rest API
@@ -134,21 +182,114 @@ public class BackupManager implements Runnable, Closeable {
         networkManager.setSearchForNewPublicPeers(config.getContractManager().isSearchForNewPeers());
       }
 
-    } catch (FileManagerException | StorageManagerException | RestfulApiException | NetworkException | ContractManagerException e) {
+    } catch (FileManagerException | StorageManagerException | RestfulApiException | NetworkException | ContractManagerException | ShardStorageException e) {
       logger.error("Failed to run membrane backup manager.");
       logger.error(e.getMessage());
       throw new IllegalArgumentException("Error starting up.", e);
     }
   }
 
+  /**
+   * Creates shard storage spread over the given path and any extra volumes. Volumes can be added and removed while
+   * running, so storage is always spread over volumes even if only the given path is configured.
+   *
+   * @param peerBlocks store peer blocks rather than local shards.
+   */
+  private MultiVolumeShardStorage createVolumeShardStorage(Path path, long maxStorageSize, List<StorageVolume> extraVolumes,
+                                                           boolean peerBlocks) throws ShardStorageException {
+    MultiVolumeShardStorage multiVolumeShardStorage = new MultiVolumeShardStorage(config.getStorage().getVolumeIoThreads());
+    multiVolumeShardStorage.addVolume(path, createDiskShardStorage(path, maxStorageSize, peerBlocks), maxStorageSize);
+    for (StorageVolume volume : extraVolumes) {
+      addVolume(multiVolumeShardStorage, volume, peerBlocks);
+    }
+    return multiVolumeShardStorage;
+  }
+
+  private void addVolume(MultiVolumeShardStorage multiVolumeShardStorage, StorageVolume volume, boolean peerBlocks)
+      throws ShardStorageException {
+    Path volumePath = Paths.get(volume.getDirectory());
+    long volumeSize = (long) volume.getCapMB() * MB;
+    ShardStorage volumeStorage = createDiskShardStorage(volumePath, volumeSize, peerBlocks);
+    try {
+      if (volume.isDraining()) {
+        multiVolumeShardStorage.addDrainingVolume(volumePath, volumeStorage);
+      } else {
+        multiVolumeShardStorage.addVolume(volumePath, volumeStorage, volumeSize);
+      }
+    } catch (ShardStorageException e) {
+      volumeStorage.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Reads are cached in memory if a read cache is configured.
+   */
+  private ShardStorage withReadCache(ShardStorage shardStorage) {
+    int readCacheMB = config.getStorage().getShardReadCacheMB();
+    return readCacheMB > 0 ? new CachingShardStorage(shardStorage, (long) readCacheMB * MB) : shardStorage;
+  }
+
+  /**
+   * Creates shard storage in the configured format. Shards stored as files are moved into segments if segments are
+   * configured.
+   */
+  private ShardStorage createDiskShardStorage(Path path, long maxStorageSize, boolean peerBlocks) throws ShardStorageException {
+    HashFunction hashFunction = peerBlocks ? Hashing.sha512() : Hashing.md5();
+    ShardStorageImpl fileShardStorage = new ShardStorageImpl(path, maxStorageSize, hashFunction);
+    // Peer blocks are encrypted so would never compress.
+    fileShardStorage.setCompressShards(!peerBlocks && config.getStorage().isCompressLocalShards());
+    fileShardStorage.setGroupCommitSync(groupCommitSync);
+    if (StorageConfig.FORMAT_SEGMENTS.equals(config.getStorage().getShardStorageFormat())) {
+      ShardStorage segmentShardStorage = new SegmentShardStorage(path, maxStorageSize, hashFunction);
+      ShardStorageMigration.migrate(fileShardStorage, segmentShardStorage);
+      return segmentShardStorage;
+    }
+    fileShardStorage.setLayout(ShardLayout.fanOut(
+        config.getStorage().getShardDirectoryLevels(),
+        config.getStorage().getShardDirectoryChars()));
+    fileShardStorage.startLayoutMigration(config.getStorage().getLayoutMigrationShardsPerSecond());
+    int reconcileMinutes = config.getStorage().getShardIndexReconcileMinutes();
+    if (reconcileMinutes > 0) {
+      fileShardStorage.startReconciliation(reconcileMinutes, TimeUnit.MINUTES);
+    }
+    return fileShardStorage;
+  }
+
+  private static Chunker createChunker(FileWatcherConfig fileWatcherConfig) {
+    if (fileWatcherConfig.isContentDefinedChunking()) {
+      return new GearChunker(
+          fileWatcherConfig.getMinChunkSizeKB() * KB,
+          fileWatcherConfig.getAvgChunkSizeKB() * KB,
+          fileWatcherConfig.getMaxChunkSizeKB() * KB);
+    } else {
+      return new FixedSizeChunker(fileWatcherConfig.getChunkSizeMB() * MB);
+    }
+  }
+
   public long getMaxBlockStorageSize() {
-    return (long) ((double) config.getStorage().getStorageCapMB() * (double) MB * (1.0 - PEER_LOCAL_STORAGE_RATIO));
+    return getBaseBlockStorageSize() + getVolumeStorageSize(config.getStorage().getPeerBlockVolumes());
   }
 
   public long getMaxLocalStorageSize() {
+    return getBaseLocalStorageSize() + getVolumeStorageSize(config.getStorage().getLocalShardVolumes());
+  }
+
+  private long getBaseBlockStorageSize() {
+    return (long) ((double) config.getStorage().getStorageCapMB() * (double) MB * (1.0 - PEER_LOCAL_STORAGE_RATIO));
+  }
+
+  private long getBaseLocalStorageSize() {
     return (long) ((double) config.getStorage().getStorageCapMB() * (double) MB * PEER_LOCAL_STORAGE_RATIO);
   }
 
+  private static long getVolumeStorageSize(List<StorageVolume> volumes) {
+    return volumes.stream()
+        .filter(volume -> !volume.isDraining())
+        .mapToLong(volume -> (long) volume.getCapMB() * MB)
+        .sum();
+  }
+
   /**
    * Start backup processes
    */
@@ -157,13 +298,20 @@ public class BackupManager implements Runnable, Closeable {
     loadWatchFoldersToProspector();
     fileManager.runScanners(
         config.getFileWatcher().getFileRescanInterval(),
-        config.getFileWatcher().getFolderRescanInterval());
+        config.getFileWatcher().getFolderRescanInterval(),
+        config.getFileWatcher().getSettleMillis(),
+        config.getFileWatcher().getFullRescanIntervalHours());
     networkManager.run();
     if (!monitorMode) { // No need to trim storage in Monitor Mode
       trimExecutor.scheduleWithFixedDelay(this::trimStorage,
               1,
           config.getStorage().getGcIntervalMinutes(),
               TimeUnit.MINUTES);
+      int scrubIntervalHours = config.getStorage().getScrubIntervalHours();
+      if (scrubIntervalHours > 0) {
+        localShardScrubber.start(scrubIntervalHours, TimeUnit.HOURS);
+        peerBlockScrubber.start(scrubIntervalHours, TimeUnit.HOURS);
+      }
     }
     if (contractManager != null) {
       contractManager.run();
@@ -211,8 +359,8 @@ public class BackupManager implements Runnable, Closeable {
   private void loadWatchFoldersToProspector() {
     List<WatchFolder> watchFolders = config.getFileWatcher().getFolders();
     logger.info("Adding {} watch folders from config to listener", watchFolders.size());
+    // Existing files are found by the full sweep the scanners run at start.
     watchFolders.forEach(fileManager::addWatchFolder);
-    fileManager.fullFileScanSweep();
   }
 
   private void loadStorageMappingToProspector() {
@@ -226,7 +374,7 @@ public class BackupManager implements Runnable, Closeable {
   /**
    * Adds a watch folder to the file manager and persists to config
    * @param watchFolder new watchfolder
-   * @throws IllegalArgumentException If folder already exists.
+   * @throws IllegalArgumentException If folder already exists or has an invalid include or exclude rule.
    * @throws ConfigException If unable to persist config.
    */
   public void addWatchFolder(WatchFolder watchFolder) throws IllegalArgumentException, ConfigException {
@@ -250,6 +398,55 @@ public class BackupManager implements Runnable, Closeable {
     ConfigManager.saveConfig(configPath, config);
   }
 
+  /**
+   * Adds a volume to spread local shards or peer blocks over and persists it to config. Shards that belong on it are
+   * moved to it in the background.
+   *
+   * @param peerBlocks add the volume to peer block storage rather than local shard storage.
+   * @throws IllegalArgumentException If the volume already exists or cannot be opened.
+   * @throws ConfigException If unable to persist config.
+   */
+  public void addStorageVolume(StorageVolume storageVolume, boolean peerBlocks) throws IllegalArgumentException, ConfigException {
+    logger.info("Adding new storage volume");
+    List<StorageVolume> configuredVolumes = getConfiguredVolumes(peerBlocks);
+    if (configuredVolumes.stream().anyMatch(x -> x.getDirectory().equals(storageVolume.getDirectory()))) {
+      logger.warn("Attempted to add existing storage volume.");
+      throw new IllegalArgumentException("Storage volume already exists!");
+    }
+    try {
+      addVolume(peerBlocks ? peerBlockVolumes : localShardVolumes, storageVolume, peerBlocks);
+    } catch (ShardStorageException e) {
+      throw new IllegalArgumentException("Could not open storage volume. " + e.getMessage(), e);
+    }
+    configuredVolumes.add(storageVolume);
+    ConfigManager.saveConfig(configPath, config);
+  }
+
+  /**
+   * Drains the volume of shards in the background and persists it to config as draining. It is closed once empty, and
+   * can then be dropped from config.
+   *
+   * @param peerBlocks remove the volume from peer block storage rather than local shard storage.
+   * @throws IllegalArgumentException If the volume does not exist or is already draining.
+   * @throws ConfigException If unable to persist config.
+   */
+  public void removeStorageVolume(String directory, boolean peerBlocks) throws IllegalArgumentException, ConfigException {
+    logger.warn("Draining existing storage volume");
+    List<StorageVolume> configuredVolumes = getConfiguredVolumes(peerBlocks);
+    StorageVolume storageVolume = configuredVolumes.stream()
+        .filter(x -> x.getDirectory().equals(directory) && !x.isDraining())
+        .findFirst()
+        .orElseThrow(() -> new IllegalArgumentException("Storage volume does not exist!"));
+    (peerBlocks ? peerBlockVolumes : localShardVolumes).removeVolume(Paths.get(directory));
+    configuredVolumes.set(configuredVolumes.indexOf(storageVolume),
+        new StorageVolume(directory, storageVolume.getCapMB(), true));
+    ConfigManager.saveConfig(configPath, config);
+  }
+
+  private List<StorageVolume> getConfiguredVolumes(boolean peerBlocks) {
+    return peerBlocks ? config.getStorage().getPeerBlockVolumes() : config.getStorage().getLocalShardVolumes();
+  }
+
   public Path getConfigPath() {
     return configPath;
   }
@@ -264,6 +461,18 @@ public class BackupManager implements Runnable, Closeable {
     return fileManager.getCurrentlyWatchedFolders().stream().map(Path::toString).collect(Collectors.toSet());
   }
 
+  public int getIngestQueueDepth() {
+    return fileManager.getIngestQueueDepth();
+  }
+
+  public long getIngestThrottledMillis() {
+    return fileManager.getIngestThrottledMillis();
+  }
+
+  public double getIngestRateScale() {
+    return fileManager.getIngestRateScale();
+  }
+
   /* Storage Info Getters */
 
   public Set<String> getWatchedFiles() {
@@ -285,6 +494,39 @@ public class BackupManager implements Runnable, Closeable {
     return peerBlockStorage.getStorageSize();
   }
 
+  public long getReadCacheHits() {
+    return getReadCaches().mapToLong(CachingShardStorage::getHits).sum();
+  }
+
+  public long getReadCacheMisses() {
+    return getReadCaches().mapToLong(CachingShardStorage::getMisses).sum();
+  }
+
+  public long getReadCacheEvictions() {
+    return getReadCaches().mapToLong(CachingShardStorage::getEvictions).sum();
+  }
+
+  public long getReadCacheSize() {
+    return getReadCaches().mapToLong(CachingShardStorage::getCacheBytes).sum();
+  }
+
+  public long getShardsScrubbed() {
+    return Stream.of(localShardScrubber, peerBlockScrubber).mapToLong(ShardScrubber::getShardsScrubbed).sum();
+  }
+
+  public long getCorruptShards() {
+    return Stream.of(localShardScrubber, peerBlockScrubber).mapToLong(ShardScrubber::getCorruptShards).sum();
+  }
+
+  /**
+   * @return the read caches of local shards and peer blocks. Empty if reads are not cached.
+   */
+  private Stream<CachingShardStorage> getReadCaches() {
+    return Stream.of(localShardStorage, peerBlockStorage)
+        .filter(CachingShardStorage.class::isInstance)
+        .map(CachingShardStorage.class::cast);
+  }
+
   /* Networking Info Getters */
 
   public boolean isNetworkingEnabled() {
@@ -381,6 +623,16 @@ public class BackupManager implements Runnable, Closeable {
 
     logger.info("Shutdown - Stopping Watcher.");
     fileManager.stopScanners();
+    logger.info("Shutdown - Stopping Shard Scrubbers.");
+    localShardScrubber.close();
+    peerBlockScrubber.close();
+    logger.info("Shutdown - Closing Shard Storage.");
+    localShardStorage.close();
+    peerBlockStorage.close();
+    if (groupCommitSync != null) {
+      logger.info("Shutdown - Stopping Group Sync.");
+      groupCommitSync.close();
+    }
     logger.info("Shutdown - Stopping Restful Interface.");
     restfulApiManager.close();
     logger.info("Shutdown - Complete");
@@ -3,6 +3,7 @@ package com.domhauton.membrane.api;
 import com.domhauton.membrane.BackupManager;
 import com.domhauton.membrane.MembraneBuild;
 import com.domhauton.membrane.api.requests.FileID;
+import com.domhauton.membrane.api.requests.StorageVolumeChange;
 import com.domhauton.membrane.api.requests.WatchFolderChange;
 import com.domhauton.membrane.api.responses.*;
 import com.domhauton.membrane.config.ConfigException;
@@ -74,6 +75,7 @@ public class RestfulApiManager implements Closeable {
     router.get("/status/watch_folder").handler(this::getConfiguredWatchFolders);
 
     router.post("/configure/watch_folder").blockingHandler(this::modifyWatchFolder);
+    router.post("/configure/storage_volume").blockingHandler(this::modifyStorageVolume);
     router.post("/request/cleanup").blockingHandler(this::putRequestCleanup);
     router.post("/request/reconstruct").blockingHandler(this::reconstructFile);
 
@@ -130,7 +132,10 @@ public class RestfulApiManager implements Closeable {
   void getFileWatcherStatus(RoutingContext routingContext) {
     Set<String> watchedFolders = backupManager.getWatchedFolders();
     Set<String> watchedFiles = backupManager.getWatchedFiles();
-    FileManagerStatus fileManagerStatus = new FileManagerStatus(watchedFolders, watchedFiles);
+    FileManagerStatus fileManagerStatus = new FileManagerStatus(watchedFolders, watchedFiles,
+        backupManager.getIngestQueueDepth(),
+        backupManager.getIngestThrottledMillis(),
+        backupManager.getIngestRateScale());
     logger.info("Sending file watcher status to {}", routingContext.request().remoteAddress().host());
     sendObject(routingContext, fileManagerStatus);
   }
@@ -151,7 +156,13 @@ public class RestfulApiManager implements Closeable {
         backupManager.getMaxLocalStorageSize(),
         backupManager.getPeerStorageSize(),
         backupManager.getMaxBlockStorageSize(),
-        backupManager.getMaxBlockStorageSize());
+        backupManager.getMaxBlockStorageSize(),
+        backupManager.getReadCacheHits(),
+        backupManager.getReadCacheMisses(),
+        backupManager.getReadCacheEvictions(),
+        backupManager.getReadCacheSize(),
+        backupManager.getShardsScrubbed(),
+        backupManager.getCorruptShards());
     logger.info("Sending storage status to {}", routingContext.request().remoteAddress().host());
     sendObject(routingContext, storageManagerStatus);
   }
@@ -231,6 +242,36 @@ public class RestfulApiManager implements Closeable {
     }
   }
 
+  void modifyStorageVolume(RoutingContext routingContext) {
+    Path configPath = backupManager.getConfigPath();
+    try {
+      final StorageVolumeChange storageVolumeChange = Json.decodeValue(routingContext.getBodyAsString(), StorageVolumeChange.class);
+      boolean peerBlocks = storageVolumeChange.getStorage() == StorageVolumeChange.Storage.PEER_BLOCKS;
+      if (storageVolumeChange.getStorageVolume() == null || storageVolumeChange.getStorage() == null) {
+        logger.warn("Received invalid modify storage volume request: {}", routingContext.getBodyAsString());
+        routingContext.response().setStatusCode(400).end("Invalid request.");
+      } else if (storageVolumeChange.getType() == StorageVolumeChange.Type.ADD) {
+        backupManager.addStorageVolume(storageVolumeChange.getStorageVolume(), peerBlocks);
+        logger.info("Successfully added storage volume.");
+        routingContext.response().setStatusCode(200).end("Added and persisted successfully.");
+      } else if (storageVolumeChange.getType() == StorageVolumeChange.Type.REMOVE) {
+        backupManager.removeStorageVolume(storageVolumeChange.getStorageVolume().getDirectory(), peerBlocks);
+        logger.info("Successfully started draining storage volume.");
+        routingContext.response().setStatusCode(200).end("Draining and persisted successfully.");
+      } else {
+        logger.warn("Received invalid modify storage volume request: {}", routingContext.getBodyAsString());
+        routingContext.response().setStatusCode(400).end("Invalid request.");
+      }
+    } catch (ConfigException e) {
+      routingContext.response().setStatusCode(304).end("Chance complete but failed to persist to: " + configPath.toString() + "Error: " + e.getMessage());
+    } catch (IllegalArgumentException e) {
+      routingContext.response().setStatusCode(400).end("Could not perform. Error: " + e.getMessage());
+    } catch (DecodeException e) {
+      logger.warn("Failed to decode body. {}", e.getMessage());
+      routingContext.response().setStatusCode(400).end("Failed to decode request. Error: " + e.getMessage());
+    }
+  }
+
   void putRequestCleanup(RoutingContext routingContext) {
     try {
       backupManager.trimStorageAttempt();
@@ -246,7 +287,7 @@ public class RestfulApiManager implements Closeable {
       final FileID fileID = Json.decodeValue(routingContext.getBodyAsString(), FileID.class);
       List<JournalEntry> fileHistory = backupManager.getFileHistory(Paths.get(fileID.getFilepath()));
       List<FileHistoryEntry> fileHistoryEntries = fileHistory.stream()
-          .map(x -> new FileHistoryEntry(x.getShardInfo().getModificationDateTime(), x.getShardInfo().getMD5HashList(), x.getShardInfo().getTotalSize(), x.getFileOperation().equals(FileOperation.REMOVE)))
+          .map(x -> new FileHistoryEntry(x.getShardInfo().getModificationDateTime(), x.getShardInfo().getShardIds(), x.getShardInfo().getTotalSize(), x.getFileOperation().equals(FileOperation.REMOVE)))
           .collect(Collectors.toList());
       MembraneFileHistory membraneFileHistory = new MembraneFileHistory(fileHistoryEntries, fileID.getFilepath());
       sendObject(routingContext, membraneFileHistory);
@@ -0,0 +1,40 @@
+package com.domhauton.membrane.api.requests;
+
+import com.domhauton.membrane.config.items.data.StorageVolume;
+
+/**
+ * Created by dominic on 06/11/17.
+ */
+public class StorageVolumeChange {
+  private Type type;
+  private Storage storage;
+  private StorageVolume storageVolume;
+
+  private StorageVolumeChange() {} // For Jackson
+
+  public StorageVolumeChange(Type type, Storage storage, StorageVolume storageVolume) {
+    this.type = type;
+    this.storage = storage;
+    this.storageVolume = storageVolume;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public Storage getStorage() {
+    return storage;
+  }
+
+  public StorageVolume getStorageVolume() {
+    return storageVolume;
+  }
+
+  public enum Type {
+    ADD, REMOVE
+  }
+
+  public enum Storage {
+    LOCAL_SHARDS, PEER_BLOCKS
+  }
+}
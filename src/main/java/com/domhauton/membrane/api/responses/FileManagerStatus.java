@@ -8,10 +8,21 @@ import java.util.Set;
 public class FileManagerStatus implements MembraneResponse {
   private final Set<String> trackedFolders;
   private final Set<String> trackedFiles;
+  private final int ingestQueueDepth;
+  private final long ingestThrottledMillis;
+  private final double ingestRateScale;
 
   public FileManagerStatus(Set<String> trackedFolders, Set<String> trackedFiles) {
+    this(trackedFolders, trackedFiles, 0, 0L, 1.0);
+  }
+
+  public FileManagerStatus(Set<String> trackedFolders, Set<String> trackedFiles, int ingestQueueDepth,
+                           long ingestThrottledMillis, double ingestRateScale) {
     this.trackedFolders = trackedFolders;
     this.trackedFiles = trackedFiles;
+    this.ingestQueueDepth = ingestQueueDepth;
+    this.ingestThrottledMillis = ingestThrottledMillis;
+    this.ingestRateScale = ingestRateScale;
   }
 
   public Set<String> getTrackedFolders() {
@@ -21,4 +32,16 @@ public class FileManagerStatus implements MembraneResponse {
   public Set<String> getTrackedFiles() {
     return trackedFiles;
   }
+
+  public int getIngestQueueDepth() {
+    return ingestQueueDepth;
+  }
+
+  public long getIngestThrottledMillis() {
+    return ingestThrottledMillis;
+  }
+
+  public double getIngestRateScale() {
+    return ingestRateScale;
+  }
 }
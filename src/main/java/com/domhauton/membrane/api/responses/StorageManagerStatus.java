@@ -15,8 +15,23 @@ public class StorageManagerStatus implements MembraneResponse {
   private final long peerBlockStorageSize;
   private final long targetPeerBlockStorageSize;
   private final long maxPeerBlockStorageSize;
+  private final long readCacheHits;
+  private final long readCacheMisses;
+  private final long readCacheEvictions;
+  private final long readCacheSize;
+  private final long shardsScrubbed;
+  private final long corruptShards;
 
   public StorageManagerStatus(Set<Path> currentFiles, Set<Path> referencedFiles, long localShardStorageSize, long targetLocalShardStorageSize, long maxLocalShardStorageSize, long peerBlockStorageSize, long targetPeerBlockStorageSize, long maxPeerBlockStorageSize) {
+    this(currentFiles, referencedFiles, localShardStorageSize, targetLocalShardStorageSize, maxLocalShardStorageSize,
+        peerBlockStorageSize, targetPeerBlockStorageSize, maxPeerBlockStorageSize, 0L, 0L, 0L, 0L, 0L, 0L);
+  }
+
+  public StorageManagerStatus(Set<Path> currentFiles, Set<Path> referencedFiles, long localShardStorageSize,
+                              long targetLocalShardStorageSize, long maxLocalShardStorageSize,
+                              long peerBlockStorageSize, long targetPeerBlockStorageSize, long maxPeerBlockStorageSize,
+                              long readCacheHits, long readCacheMisses, long readCacheEvictions, long readCacheSize,
+                              long shardsScrubbed, long corruptShards) {
     this.currentFiles = currentFiles;
     this.referencedFiles = referencedFiles;
     this.localShardStorageSize = localShardStorageSize;
@@ -25,6 +40,12 @@ public class StorageManagerStatus implements MembraneResponse {
     this.peerBlockStorageSize = peerBlockStorageSize;
     this.targetPeerBlockStorageSize = targetPeerBlockStorageSize;
     this.maxPeerBlockStorageSize = maxPeerBlockStorageSize;
+    this.readCacheHits = readCacheHits;
+    this.readCacheMisses = readCacheMisses;
+    this.readCacheEvictions = readCacheEvictions;
+    this.readCacheSize = readCacheSize;
+    this.shardsScrubbed = shardsScrubbed;
+    this.corruptShards = corruptShards;
   }
 
   public Set<Path> getCurrentFiles() {
@@ -58,4 +79,28 @@ public class StorageManagerStatus implements MembraneResponse {
   public long getMaxPeerBlockStorageSize() {
     return maxPeerBlockStorageSize;
   }
+
+  public long getReadCacheHits() {
+    return readCacheHits;
+  }
+
+  public long getReadCacheMisses() {
+    return readCacheMisses;
+  }
+
+  public long getReadCacheEvictions() {
+    return readCacheEvictions;
+  }
+
+  public long getReadCacheSize() {
+    return readCacheSize;
+  }
+
+  public long getShardsScrubbed() {
+    return shardsScrubbed;
+  }
+
+  public long getCorruptShards() {
+    return corruptShards;
+  }
 }
@@ -14,8 +14,26 @@ public class FileWatcherConfig {
   private List<WatchFolder> folders;
   private int fileRescanInterval;
   private int folderRescanInterval;
+  private int fullRescanIntervalHours;
+  private boolean contentDefinedChunking;
+  private int minChunkSizeKB;
+  private int avgChunkSizeKB;
+  private int maxChunkSizeKB;
+  private int readWorkers;
+  private int hashWorkers;
+  private int storeWorkers;
+  private int ingestBufferMB;
+  private boolean sampledHashCheck;
+  private int settleMillis;
+  private int ioLimitMBps;
+  private int ioLimitReadsPerSecond;
+  private boolean adaptiveIoLimit;
+  private int packFileMaxKB;
+  private boolean deltaEncoding;
+  private int maxDeltaChainLength;
 
   public FileWatcherConfig(int chunkSizeMB, List<WatchFolder> folders, int fileRescanInterval, int folderRescanInterval) {
+    this();
     this.chunkSizeMB = chunkSizeMB;
     this.folders = folders;
     this.fileRescanInterval = fileRescanInterval;
@@ -27,6 +45,23 @@ public class FileWatcherConfig {
     chunkSizeMB = 4;
     fileRescanInterval = 20;
     folderRescanInterval = 120;
+    fullRescanIntervalHours = 24;
+    contentDefinedChunking = false;
+    minChunkSizeKB = 256;
+    avgChunkSizeKB = 1024;
+    maxChunkSizeKB = 4096;
+    readWorkers = 2;
+    hashWorkers = 4;
+    storeWorkers = 2;
+    ingestBufferMB = 256;
+    sampledHashCheck = false;
+    settleMillis = 250;
+    ioLimitMBps = 0;
+    ioLimitReadsPerSecond = 0;
+    adaptiveIoLimit = true;
+    packFileMaxKB = 16;
+    deltaEncoding = false;
+    maxDeltaChainLength = 4;
   }
 
   public int getChunkSizeMB() {
@@ -45,6 +80,101 @@ public class FileWatcherConfig {
     return folderRescanInterval;
   }
 
+  /**
+   * Hours between walks of every watch folder to reconcile changes missed by events. 0 to only walk at start.
+   */
+  public int getFullRescanIntervalHours() {
+    return fullRescanIntervalHours;
+  }
+
+  public boolean isContentDefinedChunking() {
+    return contentDefinedChunking;
+  }
+
+  public int getMinChunkSizeKB() {
+    return minChunkSizeKB;
+  }
+
+  public int getAvgChunkSizeKB() {
+    return avgChunkSizeKB;
+  }
+
+  public int getMaxChunkSizeKB() {
+    return maxChunkSizeKB;
+  }
+
+  public int getReadWorkers() {
+    return readWorkers;
+  }
+
+  public int getHashWorkers() {
+    return hashWorkers;
+  }
+
+  public int getStoreWorkers() {
+    return storeWorkers;
+  }
+
+  public int getIngestBufferMB() {
+    return ingestBufferMB;
+  }
+
+  /**
+   * If true, a file with an unchanged size whose times changed is trusted if a sample of its data is unchanged.
+   */
+  public boolean isSampledHashCheck() {
+    return sampledHashCheck;
+  }
+
+  /**
+   * Milliseconds a changed file must stay unchanged before it is backed up.
+   */
+  public int getSettleMillis() {
+    return settleMillis;
+  }
+
+  /**
+   * Maximum MB per second read for ingestion. 0 for unlimited.
+   */
+  public int getIoLimitMBps() {
+    return ioLimitMBps;
+  }
+
+  /**
+   * Maximum chunk reads per second for ingestion. 0 for unlimited.
+   */
+  public int getIoLimitReadsPerSecond() {
+    return ioLimitReadsPerSecond;
+  }
+
+  /**
+   * If true, the IO limits are lowered while the host is under load or IO pressure.
+   */
+  public boolean isAdaptiveIoLimit() {
+    return adaptiveIoLimit;
+  }
+
+  /**
+   * Files up to this size are packed together into shared shards. 0 to store every file in its own shards.
+   */
+  public int getPackFileMaxKB() {
+    return packFileMaxKB;
+  }
+
+  /**
+   * If true, changed parts of files are stored as deltas against the previous version instead of in full.
+   */
+  public boolean isDeltaEncoding() {
+    return deltaEncoding;
+  }
+
+  /**
+   * Most deltas applied on top of each other to restore a file. A longer chain saves space but restores slower.
+   */
+  public int getMaxDeltaChainLength() {
+    return maxDeltaChainLength;
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) return true;
@@ -55,6 +185,23 @@ public class FileWatcherConfig {
     return chunkSizeMB == that.chunkSizeMB &&
             fileRescanInterval == that.fileRescanInterval &&
             folderRescanInterval == that.folderRescanInterval &&
+            fullRescanIntervalHours == that.fullRescanIntervalHours &&
+            contentDefinedChunking == that.contentDefinedChunking &&
+            minChunkSizeKB == that.minChunkSizeKB &&
+            avgChunkSizeKB == that.avgChunkSizeKB &&
+            maxChunkSizeKB == that.maxChunkSizeKB &&
+            readWorkers == that.readWorkers &&
+            hashWorkers == that.hashWorkers &&
+            storeWorkers == that.storeWorkers &&
+            ingestBufferMB == that.ingestBufferMB &&
+            sampledHashCheck == that.sampledHashCheck &&
+            settleMillis == that.settleMillis &&
+            ioLimitMBps == that.ioLimitMBps &&
+            ioLimitReadsPerSecond == that.ioLimitReadsPerSecond &&
+            adaptiveIoLimit == that.adaptiveIoLimit &&
+            packFileMaxKB == that.packFileMaxKB &&
+            deltaEncoding == that.deltaEncoding &&
+            maxDeltaChainLength == that.maxDeltaChainLength &&
             (folders != null ? folders.equals(that.folders) : that.folders == null);
   }
 }
@@ -1,22 +1,57 @@
 package com.domhauton.membrane.config.items;
 
+import com.domhauton.membrane.config.items.data.StorageVolume;
+
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created by Dominic Hauton on 18/02/17.
  */
 @SuppressWarnings("CanBeFinal")
 public class StorageConfig {
+  public static final String FORMAT_FILES = "files";
+  public static final String FORMAT_SEGMENTS = "segments";
+
   private String localShardStorageDir;
   private String peerBlockStorageDir;
   private int gcIntervalMinutes;
   private int storageCapMB;
+  private String shardStorageFormat;
+  private int shardIndexReconcileMinutes;
+  private int shardReadCacheMB;
+  private int scrubIntervalHours;
+  private int scrubRateMBps;
+  private boolean compressLocalShards;
+  private boolean durableWrites;
+  private int syncLatencyMillis;
+  private List<StorageVolume> localShardVolumes;
+  private List<StorageVolume> peerBlockVolumes;
+  private int volumeIoThreads;
+  private int shardDirectoryLevels;
+  private int shardDirectoryChars;
+  private int layoutMigrationShardsPerSecond;
 
   public StorageConfig() {
     this.localShardStorageDir = System.getProperty("user.home") + File.separator + ".membrane" + File.separator + "localShards";
     this.peerBlockStorageDir = System.getProperty("user.home") + File.separator + ".membrane" + File.separator + "peerBlocks";
     this.gcIntervalMinutes = 20;
     this.storageCapMB = 4096;
+    this.shardStorageFormat = FORMAT_FILES;
+    this.shardIndexReconcileMinutes = 0;
+    this.shardReadCacheMB = 0;
+    this.scrubIntervalHours = 24;
+    this.scrubRateMBps = 4;
+    this.compressLocalShards = true;
+    this.durableWrites = true;
+    this.syncLatencyMillis = 5;
+    this.localShardVolumes = new ArrayList<>();
+    this.peerBlockVolumes = new ArrayList<>();
+    this.volumeIoThreads = 2;
+    this.shardDirectoryLevels = 2;
+    this.shardDirectoryChars = 2;
+    this.layoutMigrationShardsPerSecond = 500;
   }
 
   public StorageConfig(String localShardStorageDir, String peerBlockStorageDir, int gcIntervalMinutes, int storageCapMB) {
@@ -24,6 +59,20 @@ public class StorageConfig {
     this.peerBlockStorageDir = peerBlockStorageDir;
     this.gcIntervalMinutes = gcIntervalMinutes;
     this.storageCapMB = storageCapMB;
+    this.shardStorageFormat = FORMAT_FILES;
+    this.shardIndexReconcileMinutes = 0;
+    this.shardReadCacheMB = 0;
+    this.scrubIntervalHours = 24;
+    this.scrubRateMBps = 4;
+    this.compressLocalShards = true;
+    this.durableWrites = true;
+    this.syncLatencyMillis = 5;
+    this.localShardVolumes = new ArrayList<>();
+    this.peerBlockVolumes = new ArrayList<>();
+    this.volumeIoThreads = 2;
+    this.shardDirectoryLevels = 2;
+    this.shardDirectoryChars = 2;
+    this.layoutMigrationShardsPerSecond = 500;
   }
 
   public String getLocalShardStorageDir() {
@@ -42,6 +91,106 @@ public class StorageConfig {
     return storageCapMB;
   }
 
+  /**
+   * How shards are laid out on disk. "files" stores each shard in its own file. "segments" appends shards to large
+   * segment files, and migrates any shards stored as files on start up.
+   */
+  public String getShardStorageFormat() {
+    return shardStorageFormat;
+  }
+
+  /**
+   * Minutes between walks of the shard files to correct the shard index. 0 to never walk after start up.
+   */
+  public int getShardIndexReconcileMinutes() {
+    return shardIndexReconcileMinutes;
+  }
+
+  /**
+   * Megabytes of memory used to cache recently read shards, for each of the local shard and peer block storage. 0 to
+   * read every shard from disk.
+   */
+  public int getShardReadCacheMB() {
+    return shardReadCacheMB;
+  }
+
+  /**
+   * Hours between background checks of every stored shard against its hash. 0 to never check.
+   */
+  public int getScrubIntervalHours() {
+    return scrubIntervalHours;
+  }
+
+  /**
+   * Maximum megabytes per second read by the background shard check. 0 for unlimited.
+   */
+  public int getScrubRateMBps() {
+    return scrubRateMBps;
+  }
+
+  /**
+   * Compress local shards with LZ4 when stored as files. Shards that do not compress are stored as they are.
+   */
+  public boolean isCompressLocalShards() {
+    return compressLocalShards;
+  }
+
+  /**
+   * Sync shards and the journal to disk so they survive a crash or power loss, rather than leaving it to the OS.
+   */
+  public boolean isDurableWrites() {
+    return durableWrites;
+  }
+
+  /**
+   * Longest a write waits for other writes to sync with it. Higher values sync more writes together for less disk time.
+   */
+  public int getSyncLatencyMillis() {
+    return syncLatencyMillis;
+  }
+
+  /**
+   * Extra volumes to spread local shards over, each with its own cap. Used alongside the local shard storage dir.
+   */
+  public List<StorageVolume> getLocalShardVolumes() {
+    return localShardVolumes;
+  }
+
+  /**
+   * Extra volumes to spread peer blocks over, each with its own cap. Used alongside the peer block storage dir.
+   */
+  public List<StorageVolume> getPeerBlockVolumes() {
+    return peerBlockVolumes;
+  }
+
+  /**
+   * Concurrent reads and writes on each volume when shards are spread over several volumes.
+   */
+  public int getVolumeIoThreads() {
+    return volumeIoThreads;
+  }
+
+  /**
+   * Directories above each shard file. Shards stored in another layout are moved in the background on start up.
+   */
+  public int getShardDirectoryLevels() {
+    return shardDirectoryLevels;
+  }
+
+  /**
+   * Id characters naming each shard directory. 2 gives 256 directories per level.
+   */
+  public int getShardDirectoryChars() {
+    return shardDirectoryChars;
+  }
+
+  /**
+   * Maximum shards moved per second when moving shards to a new directory layout. 0 for unlimited.
+   */
+  public int getLayoutMigrationShardsPerSecond() {
+    return layoutMigrationShardsPerSecond;
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) return true;
@@ -51,6 +200,20 @@ public class StorageConfig {
 
     return gcIntervalMinutes == that.gcIntervalMinutes &&
         storageCapMB == that.storageCapMB &&
+        shardIndexReconcileMinutes == that.shardIndexReconcileMinutes &&
+        shardReadCacheMB == that.shardReadCacheMB &&
+        scrubIntervalHours == that.scrubIntervalHours &&
+        scrubRateMBps == that.scrubRateMBps &&
+        compressLocalShards == that.compressLocalShards &&
+        durableWrites == that.durableWrites &&
+        syncLatencyMillis == that.syncLatencyMillis &&
+        volumeIoThreads == that.volumeIoThreads &&
+        shardDirectoryLevels == that.shardDirectoryLevels &&
+        shardDirectoryChars == that.shardDirectoryChars &&
+        layoutMigrationShardsPerSecond == that.layoutMigrationShardsPerSecond &&
+        (localShardVolumes != null ? localShardVolumes.equals(that.localShardVolumes) : that.localShardVolumes == null) &&
+        (peerBlockVolumes != null ? peerBlockVolumes.equals(that.peerBlockVolumes) : that.peerBlockVolumes == null) &&
+        (shardStorageFormat != null ? shardStorageFormat.equals(that.shardStorageFormat) : that.shardStorageFormat == null) &&
         (localShardStorageDir != null ? localShardStorageDir.equals(that.localShardStorageDir) : that.localShardStorageDir == null);
   }
 }
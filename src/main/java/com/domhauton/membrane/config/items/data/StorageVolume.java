@@ -0,0 +1,58 @@
+package com.domhauton.membrane.config.items.data;
+
+import com.google.common.base.Objects;
+
+/**
+ * Created by dominic on 04/11/17.
+ * <p>
+ * An extra directory, usually on its own disk, to spread shards over.
+ */
+public class StorageVolume {
+  private String directory;
+  private int capMB;
+  private boolean draining;
+
+  private StorageVolume() {
+  } // Used for jackson loading
+
+  public StorageVolume(String directory, int capMB) {
+    this(directory, capMB, false);
+  }
+
+  /**
+   * @param draining move all shards off the volume so it can be removed. Once it is empty it can be dropped from the
+   *                 config.
+   */
+  public StorageVolume(String directory, int capMB, boolean draining) {
+    this.directory = directory;
+    this.capMB = capMB;
+    this.draining = draining;
+  }
+
+  public String getDirectory() {
+    return directory;
+  }
+
+  public int getCapMB() {
+    return capMB;
+  }
+
+  public boolean isDraining() {
+    return draining;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    StorageVolume that = (StorageVolume) o;
+    return capMB == that.capMB &&
+        draining == that.draining &&
+        Objects.equal(directory, that.directory);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(directory, capMB, draining);
+  }
+}
@@ -2,19 +2,41 @@ package com.domhauton.membrane.config.items.data;
 
 import com.google.common.base.Objects;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Created by dominic on 25/01/17.
+ * <p>
+ * Include and exclude rules are globs, or regexes if prefixed with "regex:". A glob without a separator matches any
+ * single file or directory name, such as "node_modules" or "*.tmp". A glob with separators matches the trailing
+ * names of a path, such as ".git/objects". Regexes match the whole absolute path.
  */
 public class WatchFolder {
   private String directory;
   private Boolean recursive;
+  private List<String> include;
+  private List<String> exclude;
 
   private WatchFolder() {
+    include = new ArrayList<>();
+    exclude = new ArrayList<>();
   } // Used for jackson loading
 
   public WatchFolder(String directory, Boolean recursive) {
+    this(directory, recursive, new ArrayList<>(), new ArrayList<>());
+  }
+
+  /**
+   * @param include if not empty, only files matching one of these rules are backed up.
+   * @param exclude files and directories matching any of these rules are skipped. Excluded directories are not
+   *                entered.
+   */
+  public WatchFolder(String directory, Boolean recursive, List<String> include, List<String> exclude) {
     this.directory = directory;
     this.recursive = recursive;
+    this.include = include;
+    this.exclude = exclude;
   }
 
   public String getDirectory() {
@@ -25,17 +47,27 @@ public class WatchFolder {
     return recursive;
   }
 
+  public List<String> getInclude() {
+    return include;
+  }
+
+  public List<String> getExclude() {
+    return exclude;
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) return true;
     if (o == null || getClass() != o.getClass()) return false;
     WatchFolder that = (WatchFolder) o;
     return Objects.equal(directory, that.directory) &&
-            Objects.equal(recursive, that.recursive);
+            Objects.equal(recursive, that.recursive) &&
+            Objects.equal(include, that.include) &&
+            Objects.equal(exclude, that.exclude);
   }
 
   @Override
   public int hashCode() {
-    return Objects.hashCode(directory, recursive);
+    return Objects.hashCode(directory, recursive, include, exclude);
   }
 }
@@ -24,6 +24,8 @@ import org.joda.time.DateTime;
 import org.joda.time.DateTimeConstants;
 import org.joda.time.Minutes;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.Executors;
@@ -531,9 +533,11 @@ public class ContractManagerImpl implements ContractManager {
           if (new String(evidenceRequest.getSalt()).equals(BlockLedger.PROOF_TYPE.EMPTY.toString())) {
             return new EvidenceResponse(evidenceRequest.getBlockId(), evidenceRequest.getEvidenceType(), new byte[0]);
           } else {
-            byte[] hashBytes = peerShardStorage.retrieveShard(evidenceRequest.getBlockId());
-            byte[] saltedHash = BlockLedger.getHMAC(evidenceRequest.getSalt(), hashBytes).getBytes();
-            return new EvidenceResponse(evidenceRequest.getBlockId(), evidenceRequest.getEvidenceType(), saltedHash);
+            // Streamed so blocks are hashed without being held in memory.
+            try (InputStream blockData = peerShardStorage.openShard(evidenceRequest.getBlockId())) {
+              byte[] saltedHash = BlockLedger.getHMAC(evidenceRequest.getSalt(), blockData).getBytes();
+              return new EvidenceResponse(evidenceRequest.getBlockId(), evidenceRequest.getEvidenceType(), saltedHash);
+            }
           }
         case DELETE_BLOCK:
           logger.debug("Processing delete request for block [{}]", evidenceRequest.getBlockId());
@@ -544,7 +548,7 @@ public class ContractManagerImpl implements ContractManager {
           logger.error("Could not find match for Evidence Type: {}. Ignoring.", evidenceRequest.getEvidenceType());
           return null;
       }
-    } catch (ShardStorageException | ContractStoreException e) {
+    } catch (ShardStorageException | ContractStoreException | IOException e) {
       return null;
     }
   }
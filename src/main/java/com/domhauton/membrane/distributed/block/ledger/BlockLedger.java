@@ -17,6 +17,7 @@ import org.joda.time.Hours;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -37,6 +38,7 @@ public class BlockLedger implements Runnable, Closeable {
   private static final int SALT_LENGTH = 256;
   private final static int PERSIST_UPDATE_RATE_SEC = 120;
   private static final int HMAC_SIZE = 512;
+  private static final int HMAC_BUFFER_SIZE = 64 * 1024;
 
   private final Logger logger = LogManager.getLogger();
   private final ObjectMapper objectMapper = new ObjectMapper(new YAMLFactory());
@@ -193,6 +195,22 @@ public class BlockLedger implements Runnable, Closeable {
     return new String(retHash);
   }
 
+  /**
+   * Streaming version of {@link #getHMAC(byte[], byte[])}, so large blocks are never held in memory.
+   */
+  public static String getHMAC(byte[] salt, InputStream blockData) throws IOException {
+    HMac hmac = new HMac(new KeccakDigest(HMAC_SIZE));
+    KeyParameter keyParameter = new KeyParameter(salt);
+    hmac.init(keyParameter);
+    byte[] buffer = new byte[HMAC_BUFFER_SIZE];
+    for (int count = blockData.read(buffer); count >= 0; count = blockData.read(buffer)) {
+      hmac.update(buffer, 0, count);
+    }
+    byte[] retHash = new byte[HMAC_SIZE];
+    hmac.doFinal(retHash, 0);
+    return new String(retHash);
+  }
+
   private synchronized List<BlockInfo> readBlockInfos(Path path) throws BlockLedgerException {
     try {
       logger.info("Reading block info from file. [{}]", path);
@@ -0,0 +1,39 @@
+package com.domhauton.membrane.prospector;
+
+import com.domhauton.membrane.storage.catalogue.metadata.MD5HashLengthPair;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Created by dominic on 28/10/17.
+ * <p>
+ * The chunks of the previous version of a file, indexed by where they start so the chunk covering any position of
+ * the new version is found with a binary search.
+ */
+class DeltaBase {
+  private final List<MD5HashLengthPair> md5HashLengthPairs;
+  private final long[] offsets;
+
+  DeltaBase(List<MD5HashLengthPair> md5HashLengthPairs) {
+    this.md5HashLengthPairs = new ArrayList<>(md5HashLengthPairs);
+    this.offsets = new long[md5HashLengthPairs.size() + 1];
+    for (int i = 0; i < md5HashLengthPairs.size(); i++) {
+      offsets[i + 1] = offsets[i] + md5HashLengthPairs.get(i).getLength();
+    }
+  }
+
+  /**
+   * @return the chunk of the previous version covering the offset. Empty if the previous version was shorter.
+   */
+  Optional<MD5HashLengthPair> find(long offset) {
+    int index = Arrays.binarySearch(offsets, offset);
+    // A miss gives the insertion point. The chunk covering the offset starts just before it.
+    index = index < 0 ? -index - 2 : index;
+    return index >= 0 && index < md5HashLengthPairs.size() ?
+        Optional.of(md5HashLengthPairs.get(index)) :
+        Optional.empty();
+  }
+}
@@ -0,0 +1,240 @@
+package com.domhauton.membrane.prospector;
+
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Created by dominic on 21/10/17.
+ * <p>
+ * Path trie of the watched directories and the files last seen in each of them.
+ * <p>
+ * Kept up to date by watch events and sweeps so lookups never need to touch the file system.
+ */
+class DirectoryTree {
+  static final long UNKNOWN_MODIFIED = -1L;
+
+  private final Map<String, Node> roots;
+  private int watchedCount;
+
+  DirectoryTree() {
+    roots = new HashMap<>();
+    watchedCount = 0;
+  }
+
+  /**
+   * Marks the directory as watched.
+   */
+  synchronized void addDirectory(Path directory) {
+    Node node = getOrCreate(directory);
+    if (!node.watched) {
+      node.watched = true;
+      watchedCount++;
+    }
+  }
+
+  /**
+   * Removes the directory and everything recorded below it.
+   *
+   * @return every watched directory that was removed.
+   */
+  synchronized Set<Path> removeDirectory(Path directory) {
+    Set<Path> removedDirectories = new HashSet<>();
+    Node node = find(directory);
+    if (node != null) {
+      collect(node, removedDirectories, null);
+      watchedCount -= removedDirectories.size();
+      node.children.clear();
+      node.files.clear();
+      node.watched = false;
+      node.listedModifiedMillis = UNKNOWN_MODIFIED;
+      prune(directory);
+    }
+    return removedDirectories;
+  }
+
+  synchronized boolean isWatched(Path directory) {
+    Node node = find(directory);
+    return node != null && node.watched;
+  }
+
+  /**
+   * @return true if the path was recorded as a directory. It may be a parent of a watched directory.
+   */
+  synchronized boolean isKnownDirectory(Path path) {
+    return find(path) != null;
+  }
+
+  synchronized Set<Path> getWatchedDirectories() {
+    Set<Path> retSet = new HashSet<>(watchedCount);
+    roots.values().forEach(x -> collect(x, retSet, null));
+    return retSet;
+  }
+
+  synchronized int getWatchedCount() {
+    return watchedCount;
+  }
+
+  /**
+   * Records the file if its parent directory is watched.
+   *
+   * @return true if the file was not already recorded.
+   */
+  synchronized boolean addFile(Path file) {
+    Node node = find(file.getParent());
+    return node != null && node.watched && node.files.add(file.getFileName().toString());
+  }
+
+  /**
+   * @return true if the file was recorded.
+   */
+  synchronized boolean removeFile(Path file) {
+    Node node = find(file.getParent());
+    return node != null && node.files.remove(file.getFileName().toString());
+  }
+
+  /**
+   * Replaces the recorded files of a watched directory with those found in a sweep.
+   */
+  synchronized void setFiles(Path directory, Collection<Path> files) {
+    setFiles(directory, files, UNKNOWN_MODIFIED);
+  }
+
+  /**
+   * Replaces the recorded files of a watched directory with those found in a sweep.
+   *
+   * @param listedModifiedMillis modify time of the directory when it was listed. If it is still the same no entries
+   *                             have been added or removed since.
+   */
+  synchronized void setFiles(Path directory, Collection<Path> files, long listedModifiedMillis) {
+    Node node = find(directory);
+    if (node != null && node.watched) {
+      node.files.clear();
+      files.forEach(x -> node.files.add(x.getFileName().toString()));
+      node.listedModifiedMillis = listedModifiedMillis;
+    }
+  }
+
+  /**
+   * @return modify time of the directory when it was last listed, or UNKNOWN_MODIFIED.
+   */
+  synchronized long getListedModifiedMillis(Path directory) {
+    Node node = find(directory);
+    return node == null ? UNKNOWN_MODIFIED : node.listedModifiedMillis;
+  }
+
+  /**
+   * @return the files recorded directly in the directory.
+   */
+  synchronized Set<Path> getFiles(Path directory) {
+    Node node = find(directory);
+    return node == null ? Collections.emptySet() : node.files.stream()
+        .map(node.path::resolve)
+        .collect(Collectors.toSet());
+  }
+
+  /**
+   * @return the directories recorded directly below the directory.
+   */
+  synchronized Set<Path> getChildDirectories(Path directory) {
+    Node node = find(directory);
+    return node == null ? Collections.emptySet() : node.children.values().stream()
+        .map(x -> x.path)
+        .collect(Collectors.toSet());
+  }
+
+  /**
+   * @return every file recorded in or below the given directory.
+   */
+  synchronized Set<Path> getFilesBelow(Path directory) {
+    Set<Path> retSet = new HashSet<>();
+    Node node = find(directory);
+    if (node != null) {
+      collect(node, null, retSet);
+    }
+    return retSet;
+  }
+
+  private Node getOrCreate(Path directory) {
+    Path root = directory.getRoot();
+    String rootKey = root == null ? "" : root.toString();
+    Node node = roots.computeIfAbsent(rootKey, x -> new Node(root));
+    for (Path section : directory) {
+      final Node parent = node;
+      node = parent.children.computeIfAbsent(section.toString(), x -> new Node(parent.resolve(section)));
+    }
+    return node;
+  }
+
+  private Node find(Path directory) {
+    if (directory == null) {
+      return null;
+    }
+    Path root = directory.getRoot();
+    Node node = roots.get(root == null ? "" : root.toString());
+    for (Iterator<Path> it = directory.iterator(); node != null && it.hasNext(); ) {
+      node = node.children.get(it.next().toString());
+    }
+    return node;
+  }
+
+  /**
+   * Removes empty unwatched nodes from the given directory upwards.
+   */
+  private void prune(Path directory) {
+    for (Path current = directory; current != null; current = current.getParent()) {
+      Node node = find(current);
+      if (node == null || node.watched || !node.children.isEmpty() || !node.files.isEmpty()) {
+        return;
+      }
+      Path parent = current.getParent();
+      if (parent == null) {
+        Path root = current.getRoot();
+        roots.remove(root == null ? "" : root.toString());
+        return;
+      }
+      Node parentNode = find(parent);
+      if (parentNode != null && current.getFileName() != null) {
+        parentNode.children.remove(current.getFileName().toString());
+      }
+    }
+  }
+
+  /**
+   * Adds all watched directories and/or files below the node to the given sets. Null sets are skipped.
+   */
+  private static void collect(Node start, Set<Path> directories, Set<Path> files) {
+    Deque<Node> toVisit = new ArrayDeque<>();
+    toVisit.push(start);
+    while (!toVisit.isEmpty()) {
+      Node node = toVisit.pop();
+      if (directories != null && node.watched) {
+        directories.add(node.path);
+      }
+      if (files != null) {
+        node.files.forEach(x -> files.add(node.path.resolve(x)));
+      }
+      node.children.values().forEach(toVisit::push);
+    }
+  }
+
+  private static class Node {
+    private final Path path;
+    private final Map<String, Node> children;
+    private final Set<String> files;
+    private boolean watched;
+    private long listedModifiedMillis;
+
+    Node(Path path) {
+      this.path = path;
+      this.children = new HashMap<>();
+      this.files = new HashSet<>();
+      this.watched = false;
+      this.listedModifiedMillis = UNKNOWN_MODIFIED;
+    }
+
+    Path resolve(Path section) {
+      return path == null ? section : path.resolve(section);
+    }
+  }
+}
@@ -1,25 +1,30 @@
 package com.domhauton.membrane.prospector;
 
 import com.domhauton.membrane.config.items.data.WatchFolder;
+import com.domhauton.membrane.prospector.chunking.Chunker;
+import com.domhauton.membrane.prospector.chunking.FixedSizeChunker;
+import com.domhauton.membrane.prospector.metadata.FileIdentity;
 import com.domhauton.membrane.prospector.metadata.FileMetadata;
 import com.domhauton.membrane.prospector.metadata.FileMetadataBuilder;
 import com.domhauton.membrane.shard.ShardStorage;
 import com.domhauton.membrane.shard.ShardStorageException;
+import com.domhauton.membrane.storage.DeltaCodec;
 import com.domhauton.membrane.storage.FileEventLogger;
 import com.domhauton.membrane.storage.StorageManager;
 import com.domhauton.membrane.storage.StorageManagerException;
 import com.domhauton.membrane.storage.catalogue.metadata.MD5HashLengthPair;
+import com.google.common.hash.Hashing;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.joda.time.DateTime;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -29,32 +34,68 @@ import java.util.stream.Collectors;
  * Created by dominic on 26/01/17.
  */
 public class FileManager {
+  private static final int DEFAULT_READ_WORKERS = 2;
+  private static final int DEFAULT_HASH_WORKERS = 4;
+  private static final int DEFAULT_STORE_WORKERS = 2;
+  private static final int DEFAULT_INGEST_BUFFER_MB = 256;
+  private static final int DEFAULT_SETTLE_MILLIS = 250;
+  private static final int SETTLE_TICKS_PER_WINDOW = 2;
+  private static final long SMALL_FILE_BYTES = 1024 * 1024;
+  private static final long RECENT_MODIFICATION_MILLIS = TimeUnit.MINUTES.toMillis(10);
+  private static final long MOVE_SOURCE_RETENTION_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
   private final Logger logger;
   private final Prospector prospector;
   private final Map<String, FileMetadata> managedFiles;
-  private final int chunkSizeMB;
+  private final IngestPipeline ingestPipeline;
+  private final MoveTracker moveTracker;
 
-  private Set<Path> queuedAdditions;
+  private final Set<Path> queuedAdditions;
+  private volatile StatCache statCache;
+  private volatile IngestCheckpoints ingestCheckpoints;
 
   private final ScheduledExecutorService scanExecutor;
-  private FileEventLogger fileEventLogger;
-  private ShardStorage shardStorage;
+  private volatile SettleQueue settleQueue;
+  private volatile Thread watcherThread;
+  private volatile FileEventLogger fileEventLogger;
+  private volatile ShardStorage shardStorage;
 
   public FileManager(FileEventLogger fileEventLogger, ShardStorage shardStorage, int chunkSizeMB) throws FileManagerException {
+    this(fileEventLogger, shardStorage, new FixedSizeChunker(chunkSizeMB * 1024 * 1024));
+  }
+
+  public FileManager(FileEventLogger fileEventLogger, ShardStorage shardStorage, Chunker chunker) throws FileManagerException {
+    this(fileEventLogger, shardStorage, chunker,
+        DEFAULT_READ_WORKERS, DEFAULT_HASH_WORKERS, DEFAULT_STORE_WORKERS, DEFAULT_INGEST_BUFFER_MB);
+  }
+
+  /**
+   * @param readWorkers   threads reading files from disk
+   * @param hashWorkers   threads hashing chunks
+   * @param storeWorkers  threads writing chunks to shard storage
+   * @param ingestBufferMB maximum chunk data held between pipeline stages
+   */
+  public FileManager(FileEventLogger fileEventLogger, ShardStorage shardStorage, Chunker chunker,
+                     int readWorkers, int hashWorkers, int storeWorkers, int ingestBufferMB) throws FileManagerException {
     logger = LogManager.getLogger();
-    this.chunkSizeMB = chunkSizeMB;
     try {
       prospector = new Prospector();
     } catch (IOException e) {
       logger.error("Unable to start Prospector.");
       throw new FileManagerException("Failed to start prospector due to IO exception on watcher.");
     }
-    this.managedFiles = new HashMap<>();
+    this.managedFiles = new ConcurrentHashMap<>();
     this.fileEventLogger = fileEventLogger;
     this.shardStorage = shardStorage;
 
-    queuedAdditions = new HashSet<>();
+    queuedAdditions = ConcurrentHashMap.newKeySet();
+    moveTracker = new MoveTracker(MOVE_SOURCE_RETENTION_MILLIS);
+    statCache = new StatCache();
+    ingestCheckpoints = new IngestCheckpoints();
     scanExecutor = Executors.newSingleThreadScheduledExecutor();
+    ingestPipeline = new IngestPipeline(chunker, new FileManagerIngestHandler(),
+        readWorkers, hashWorkers, storeWorkers, ingestBufferMB);
+    ingestPipeline.start();
   }
 
   /**
@@ -64,15 +105,58 @@ public class FileManager {
    * @param folderRescanFrequency seconds
    */
   public void runScanners(int fileRescanFrequency, int folderRescanFrequency) {
-    scanExecutor.scheduleWithFixedDelay(this::checkFileChanges, 0, fileRescanFrequency, TimeUnit.SECONDS);
-    scanExecutor.scheduleWithFixedDelay(this::fullFileScanSweep, 0, folderRescanFrequency, TimeUnit.SECONDS);
+    runScanners(fileRescanFrequency, folderRescanFrequency, DEFAULT_SETTLE_MILLIS);
+  }
+
+  /**
+   * Run file scanner loops at given rates. Watch events are received as they happen and files are ingested once
+   * they have not changed for the settle window. The full sweep runs once at start.
+   *
+   * @param fileRescanFrequency   seconds between retries of failed files
+   * @param folderRescanFrequency seconds between sweeps of folders changed since they were listed
+   * @param settleMillis          milliseconds a file must be unchanged before it is ingested
+   */
+  public void runScanners(int fileRescanFrequency, int folderRescanFrequency, int settleMillis) {
+    runScanners(fileRescanFrequency, folderRescanFrequency, settleMillis, 0);
+  }
+
+  /**
+   * Run file scanner loops at given rates. Files are discovered from watch events and from the directory tree, which
+   * is swept for folders whose modify time changed. Walking every watch folder is left to the rare full sweep, which
+   * catches anything both missed, such as file content changed without an event.
+   *
+   * @param fileRescanFrequency   seconds between retries of failed files
+   * @param folderRescanFrequency seconds between sweeps of folders changed since they were listed
+   * @param settleMillis          milliseconds a file must be unchanged before it is ingested
+   * @param fullRescanHours       hours between full sweeps after the one at start. 0 to only sweep at start.
+   */
+  public void runScanners(int fileRescanFrequency, int folderRescanFrequency, int settleMillis, int fullRescanHours) {
+    settleQueue = new SettleQueue(settleMillis);
+    watcherThread = new Thread(this::watchForChanges, "membrane-watcher");
+    watcherThread.setDaemon(true);
+    watcherThread.start();
+    long settleTickMillis = Math.max(1, settleMillis / SETTLE_TICKS_PER_WINDOW);
+    scanExecutor.scheduleWithFixedDelay(this::ingestSettledChanges, settleTickMillis, settleTickMillis, TimeUnit.MILLISECONDS);
+    scanExecutor.scheduleWithFixedDelay(this::retryQueuedFiles, fileRescanFrequency, fileRescanFrequency, TimeUnit.SECONDS);
+    scanExecutor.scheduleWithFixedDelay(this::changedFolderSweep, folderRescanFrequency, folderRescanFrequency, TimeUnit.SECONDS);
+    if (fullRescanHours > 0) {
+      scanExecutor.scheduleWithFixedDelay(this::fullFileScanSweep, 0, fullRescanHours, TimeUnit.HOURS);
+    } else {
+      scanExecutor.execute(this::fullFileScanSweep);
+    }
   }
 
   /**
    * Stop all scanners for graceful shutdown.
    */
   public void stopScanners() {
+    if (watcherThread != null) {
+      watcherThread.interrupt();
+    }
+    prospector.close();
     scanExecutor.shutdown();
+    ingestPipeline.stop();
+    statCache.save();
   }
 
   public void setFileEventLogger(StorageManager fileEventLogger) {
@@ -83,6 +167,22 @@ public class FileManager {
     this.shardStorage = shardStorage;
   }
 
+  /**
+   * Use the given persisted stat cache to avoid re-reading unchanged files.
+   */
+  public void setStatCache(StatCache statCache) {
+    this.statCache = statCache;
+  }
+
+  /**
+   * Use the given persisted checkpoints to resume ingestion of large files after a restart. Shards stored for
+   * unfinished files are protected from garbage collection until ingestion finishes.
+   */
+  public void setIngestCheckpoints(IngestCheckpoints ingestCheckpoints) {
+    this.ingestCheckpoints = ingestCheckpoints;
+    ingestCheckpoints.getReferencedShards().forEach(fileEventLogger::protectShard);
+  }
+
   /**
    * Add file to manager manually.
    *
@@ -117,64 +217,239 @@ public class FileManager {
   void checkFileChanges() {
     logger.debug("Checking for File changes.");
     ProspectorChangeSet pcs = prospector.checkChanges();
-    Set<Path> retryPaths = queuedAdditions;
-    queuedAdditions = new HashSet<>();
+    applyChanges(takeQueuedFiles(), pcs);
+  }
+
+  /**
+   * Receives watch events as they happen and queues them until the files settle. Runs until interrupted.
+   */
+  private void watchForChanges() {
+    logger.info("File watcher started.");
+    while (!Thread.currentThread().isInterrupted()) {
+      try {
+        settleQueue.offer(prospector.awaitChanges(), System.currentTimeMillis());
+      } catch (InterruptedException | ClosedWatchServiceException e) {
+        break;
+      } catch (RuntimeException e) {
+        logger.error("Error while handling watch events. {}", e.getMessage());
+      }
+    }
+    logger.info("File watcher stopped.");
+  }
 
-    retryPaths.forEach(this::addFile);
-    pcs.getChangedFiles().forEach(this::addFile);
+  /**
+   * Ingests files that stopped changing.
+   */
+  private void ingestSettledChanges() {
+    try {
+      ProspectorChangeSet pcs = settleQueue.pollSettled(System.currentTimeMillis());
+      if (!pcs.getChangedFiles().isEmpty() || !pcs.getRemovedFiles().isEmpty() ||
+          !pcs.getOverflowedFolders().isEmpty() || pcs.hasOverflown()) {
+        applyChanges(Collections.emptySet(), pcs);
+      }
+    } catch (RuntimeException e) {
+      logger.error("Error while ingesting settled files. {}", e.getMessage());
+    }
+  }
+
+  /**
+   * Ingests entries added to or removed from watched folders without an event.
+   */
+  void changedFolderSweep() {
+    try {
+      ProspectorChangeSet pcs = prospector.sweepChangedFolders();
+      if (!pcs.getChangedFiles().isEmpty() || !pcs.getRemovedFiles().isEmpty()) {
+        logger.debug("Folder sweep found {} changed and {} removed files.",
+            pcs.getChangedFiles().size(), pcs.getRemovedFiles().size());
+        applyChanges(Collections.emptySet(), pcs);
+      }
+    } catch (RuntimeException e) {
+      logger.error("Error while sweeping changed folders. {}", e.getMessage());
+    }
+  }
+
+  /**
+   * Retries files that previously failed to be stored.
+   */
+  private void retryQueuedFiles() {
+    Set<Path> retryPaths = takeQueuedFiles();
+    if (!retryPaths.isEmpty()) {
+      logger.debug("Retrying {} queued files.", retryPaths.size());
+      applyChanges(retryPaths, new ProspectorChangeSet());
+    }
+  }
+
+  private Set<Path> takeQueuedFiles() {
+    Set<Path> retryPaths = new HashSet<>(queuedAdditions);
+    queuedAdditions.removeAll(retryPaths);
+    return retryPaths;
+  }
+
+  private void applyChanges(Set<Path> retryPaths, ProspectorChangeSet pcs) {
+    Set<Path> changedPaths = new HashSet<>(retryPaths);
+    changedPaths.addAll(pcs.getChangedFiles());
+    addFiles(changedPaths);
+    awaitIngestion();
     pcs.getRemovedFiles().forEach(this::removeFile);
+    moveTracker.purge(System.currentTimeMillis());
     if (pcs.hasOverflown()) {
       fullFileScanSweep();
+    } else {
+      pcs.getOverflowedFolders().forEach(this::rescanOverflowedFolder);
     }
+    statCache.save();
+  }
+
+  /**
+   * Catches up on a folder that lost events. Unchanged files are skipped on their modify time so are not re-read.
+   */
+  private void rescanOverflowedFolder(Path folder) {
+    logger.info("Rescanning [{}] after watch event overflow.", folder);
+    ProspectorChangeSet pcs = prospector.rescanOverflowedFolder(folder);
+    addFiles(pcs.getChangedFiles());
+    awaitIngestion();
+    pcs.getRemovedFiles().forEach(this::removeFile);
   }
 
   /**
-   * Scans folders for existing files.
+   * Walks every watch folder for existing files and checks each one. Reconciles anything events and folder sweeps
+   * missed, so only needed at start and rarely after.
    */
   public void fullFileScanSweep() {
     logger.debug("Running full file scan.");
     Collection<Path> folders = prospector.rediscoverFolders();
     Set<Path> existingFiles = folders.stream()
             .peek(x -> logger.debug("Checking folder for existing files: [{}]", x))
-            .map(Path::toFile)
-            .map(File::listFiles)
-            .flatMap(Arrays::stream)
-            .map(File::toPath)
-            .filter(x -> !Files.isDirectory(x))
+            .flatMap(x -> prospector.rescanFolder(x).stream())
             .collect(Collectors.toSet());
     logger.debug("Existing files: {}", existingFiles);
-    Set<Path> missingFiles = managedFiles.keySet().stream()
+    // Files outside watched folders or missing from them are both absent from the existing files.
+    Set<Path> lostPaths = managedFiles.keySet().stream()
             .map(Paths::get)
-            .filter(x -> folders.stream().anyMatch(folder -> x.getParent().equals(folder)))
             .filter(x -> !existingFiles.contains(x))
             .collect(Collectors.toSet());
-    Set<Path> orphanedPaths = managedFiles.keySet().stream()
-            .filter(x -> folders.stream().noneMatch(folder -> Paths.get(x).getParent().equals(folder)))
-            .map(Paths::get)
-            .collect(Collectors.toSet());
-    orphanedPaths.addAll(missingFiles);
-    logger.debug("Lost files: {}", orphanedPaths);
-    orphanedPaths.forEach(this::removeFile);
-    existingFiles.forEach(this::addFile);
+    logger.debug("Lost files: {}", lostPaths);
+    lostPaths.forEach(this::removeFile);
+    addFiles(existingFiles);
+    awaitIngestion();
+    statCache.save();
+  }
+
+  /**
+   * Processes possibly updated files. Files that need reading are sent for ingestion small or recently modified
+   * first, so large cold files don't hold up quick backups.
+   *
+   * @param paths paths to check
+   */
+  private void addFiles(Collection<Path> paths) {
+    List<Map.Entry<Path, FileIdentity>> changedFiles = new ArrayList<>();
+    for (Path path : paths) {
+      FileIdentity fileIdentity = checkFile(path);
+      if (fileIdentity != null) {
+        changedFiles.add(new AbstractMap.SimpleImmutableEntry<>(path, fileIdentity));
+      }
+    }
+    long recentSince = System.currentTimeMillis() - RECENT_MODIFICATION_MILLIS;
+    changedFiles.sort(Comparator
+        .comparing((Map.Entry<Path, FileIdentity> x) -> !isPriority(x.getValue(), recentSince))
+        .thenComparingLong(x -> x.getValue().getSize()));
+    changedFiles.forEach(x -> fileChanged(x.getKey(), x.getValue()));
+  }
+
+  private static boolean isPriority(FileIdentity fileIdentity, long recentSince) {
+    return fileIdentity.getSize() <= SMALL_FILE_BYTES || fileIdentity.getModifiedMillis() >= recentSince;
   }
 
   /**
-   * Processes a possibly updated file.
+   * Checks a possibly updated file.
    *
    * @param path path to check
+   * @return the identity of the file if it must be read. Null otherwise.
    */
-  private void addFile(Path path) {
+  private FileIdentity checkFile(Path path) {
     logger.info("File Addition Detected: [{}]", path);
-    File file = path.toFile();
-    long lastModified = file.lastModified();
+    FileIdentity fileIdentity;
+    try {
+      fileIdentity = FileIdentity.read(path);
+    } catch (IOException e) {
+      logger.debug("Ignoring update for file that could not be read. [{}]", path.toString());
+      return null;
+    }
     FileMetadata fileMetadata = managedFiles.getOrDefault(path.toString(), null);
-    if (fileMetadata != null && lastModified == fileMetadata.getModifiedTime().getMillis()) {
+    if (fileMetadata != null && fileIdentity.getModifiedMillis() == fileMetadata.getModifiedTime().getMillis()) {
       logger.debug("Update not required. Modify time same for [{}]", path.toString());
-    } else if (path.toFile().length() == 0) {
+    } else if (fileIdentity.getSize() == 0) {
       logger.debug("Ignoring update for file of size 0B. [{}]", path.toString());
-    } else {
-      fileChanged(path);
+    } else if (!restoreFromStatCache(path, fileIdentity) && !restoreMovedFile(path, fileIdentity)) {
+      return fileIdentity;
+    }
+    return null;
+  }
+
+  /**
+   * Records a file that was moved or renamed from another managed path without reading it. Its shards are reused
+   * as they are.
+   *
+   * @return true if the file did not need to be read.
+   */
+  private boolean restoreMovedFile(Path path, FileIdentity fileIdentity) {
+    Optional<FileMetadata> movedMetadata = moveTracker.findMoved(path, fileIdentity, System.currentTimeMillis());
+    if (!movedMetadata.isPresent() || !protectStoredShards(movedMetadata.get().getMd5HashLengthPairs())) {
+      return false;
     }
+    logger.info("Detected moved file. Reusing stored shards for [{}]", path);
+    try {
+      recordFile(path, movedMetadata.get());
+      statCache.put(path, fileIdentity, null, movedMetadata.get().getMd5HashLengthPairs());
+      moveTracker.track(path, fileIdentity, movedMetadata.get());
+    } catch (StorageManagerException e) {
+      logger.error("Error while logging moved file. File re-queued. [{}]", path);
+      queuedAdditions.add(path);
+    }
+    return true;
+  }
+
+  /**
+   * Protects the given shards from garbage collection.
+   *
+   * @return true if all of the shards are still stored.
+   */
+  private boolean protectStoredShards(List<MD5HashLengthPair> md5HashLengthPairs) {
+    // Protect before checking so garbage collection cannot remove the shards in between.
+    md5HashLengthPairs.stream()
+        .flatMap(x -> x.getShardIds().stream())
+        .forEach(fileEventLogger::protectShard);
+    return md5HashLengthPairs.stream()
+        .flatMap(x -> x.getShardIds().stream())
+        .allMatch(shardStorage::hasShard);
+  }
+
+  /**
+   * Records a file the stat cache shows is unchanged without reading it. All of its shards must still be stored.
+   *
+   * @return true if the file did not need to be read.
+   */
+  private boolean restoreFromStatCache(Path path, FileIdentity fileIdentity) {
+    Optional<List<MD5HashLengthPair>> cachedShards = statCache.lookup(path, fileIdentity);
+    if (!cachedShards.isPresent()) {
+      return false;
+    }
+    if (!protectStoredShards(cachedShards.get())) {
+      logger.debug("Stat cache hit but shards missing. Re-reading [{}]", path);
+      return false;
+    }
+    FileMetadata fileMetadata = new FileMetadataBuilder(new DateTime(fileIdentity.getModifiedMillis()))
+        .addShardData(cachedShards.get())
+        .build();
+    try {
+      recordFile(path, fileMetadata);
+      statCache.refresh(path, fileIdentity);
+      moveTracker.track(path, fileIdentity, fileMetadata);
+    } catch (StorageManagerException e) {
+      logger.error("Error while logging unchanged file. File re-queued. [{}]", path);
+      queuedAdditions.add(path);
+    }
+    return true;
   }
 
   /**
@@ -184,7 +459,15 @@ public class FileManager {
    */
   private void removeFile(Path path) {
     logger.info("File Removal Detected: [{}]", path);
-    managedFiles.remove(path.toString());
+    FileMetadata fileMetadata = managedFiles.remove(path.toString());
+    Optional<FileIdentity> fileIdentity = statCache.getIdentity(path);
+    if (fileMetadata != null && fileIdentity.isPresent()) {
+      // Files moved while not running were never tracked. The stat cache still knows their identity.
+      moveTracker.track(path, fileIdentity.get(), fileMetadata);
+    }
+    moveTracker.removed(path, System.currentTimeMillis());
+    statCache.remove(path);
+    ingestCheckpoints.remove(path);
     try {
       fileEventLogger.removeFile(path, DateTime.now());
     } catch (Exception e) {
@@ -194,59 +477,111 @@ public class FileManager {
   }
 
   /**
-   * Checks if the data in a file has been changed and notifies storage managers if true.
+   * Sends a changed file for ingestion. The storage managers are notified once it has been read if data changed.
    *
-   * @param path Path of changed file.
+   * @param path         Path of changed file.
+   * @param fileIdentity Identity of the file before reading.
    */
-  private void fileChanged(Path path) {
-    File file = path.toFile();
-    byte[] buffer = new byte[chunkSizeMB * 1024 * 1024];
-    DateTime fileLastModified = new DateTime(file.lastModified());
-    FileMetadata cachedMetadata = managedFiles.get(path.toString());
+  private void fileChanged(Path path, FileIdentity fileIdentity) {
+    DateTime fileLastModified = new DateTime(fileIdentity.getModifiedMillis());
 
-    logger.trace("File size of [{}] is {}MB", path::toString, () -> ((float) file.length()) / (1024 * 1024));
-
-    try (
-            FileInputStream inputStream = new FileInputStream(file)
-    ) {
-      FileMetadataBuilder fileMetadataBuilder = new FileMetadataBuilder(fileLastModified);
-      for (int chunkSize = inputStream.read(buffer); chunkSize != -1; chunkSize = inputStream.read(buffer)) {
-        byte[] tailoredArray;
-        if (buffer.length != chunkSize) {
-          tailoredArray = Arrays.copyOf(buffer, chunkSize);
-        } else {
-          tailoredArray = buffer;
-        }
-        String chunkMD5Hash = fileMetadataBuilder.addHashData(tailoredArray);
-        // Check if chunk has changed
-
-        final int currentChunkSize = chunkSize;
-        logger.trace("Chunk {} from file [{}] of size {}MB sent to storage.",
-                () -> chunkMD5Hash,
-                path::toString,
-                () -> ((float) currentChunkSize) / (1024 * 1024));
-        fileEventLogger.protectShard(chunkMD5Hash);
-        shardStorage.storeShard(chunkMD5Hash, tailoredArray);
-      }
-      FileMetadata newFileMetadata = fileMetadataBuilder.build();
-
-      boolean hasFileChanged = cachedMetadata == null ||
-              !cachedMetadata.getModifiedTime().equals(newFileMetadata.getModifiedTime()) ||
-              !cachedMetadata.getMd5HashLengthPairs().equals(newFileMetadata.getMd5HashLengthPairs());
-
-      // If there was a change update the storage managers.
-      if (hasFileChanged) {
-        logger.info("Change detected in [{}]. Adding file to storage.", path);
-        fileEventLogger.addFile(newFileMetadata.getMd5HashLengthPairs(), fileLastModified, path);
-        managedFiles.put(path.toString(), newFileMetadata);
-      } else {
-        logger.debug("File rescanned but no changed detected [{}].", path);
+    logger.trace("File size of [{}] is {}MB", path::toString, () -> ((float) fileIdentity.getSize()) / (1024 * 1024));
+
+    String sampleHash = null;
+    if (statCache.isSampledHashCheck()) {
+      try {
+        sampleHash = StatCache.sampleHash(path, fileIdentity.getSize());
+      } catch (IOException e) {
+        logger.debug("Could not sample file [{}]. {}", path, e.getMessage());
       }
-    } catch (IOException e) {
-      logger.error("Error while reading from file [{}]. Ignoring file.", path);
-    } catch (StorageManagerException | ShardStorageException e) {
+    }
+
+    IngestTask ingestTask = new IngestTask(path, fileLastModified, fileIdentity, sampleHash);
+    List<MD5HashLengthPair> checkpoint = findCheckpoint(path, fileIdentity);
+    ingestTask.setPrefix(checkpoint.isEmpty() ? findAppendedPrefix(path, fileIdentity) : checkpoint);
+    FileMetadata previousMetadata = managedFiles.get(path.toString());
+    if (previousMetadata != null) {
+      ingestTask.setDeltaBase(new DeltaBase(previousMetadata.getMd5HashLengthPairs()));
+    }
+    try {
+      ingestPipeline.submit(ingestTask);
+    } catch (InterruptedException e) {
+      logger.warn("Interrupted while queueing file for ingestion. File re-queued. [{}]", path);
       queuedAdditions.add(path);
-      logger.error("Error while storing shard of file. File re-queued. [{}]", path);
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Finds the chunks stored before an earlier ingestion of the file was interrupted.
+   *
+   * @return the stored chunks. Empty if there is no checkpoint for the file as it is now.
+   */
+  private List<MD5HashLengthPair> findCheckpoint(Path path, FileIdentity fileIdentity) {
+    Optional<List<MD5HashLengthPair>> checkpoint = ingestCheckpoints.lookup(path, fileIdentity);
+    if (!checkpoint.isPresent() || !protectStoredShards(checkpoint.get())) {
+      return Collections.emptyList();
+    }
+    logger.info("Resuming interrupted ingestion of [{}] after {}B.", path,
+        checkpoint.get().stream().mapToLong(MD5HashLengthPair::getLength).sum());
+    return checkpoint.get();
+  }
+
+  /**
+   * Finds the chunks of the previous version of a file that should be unchanged if it was only appended to. The last
+   * chunk is excluded as it was cut short by the old end of file. The pipeline spot checks the prefix before use.
+   *
+   * @return the unchanged chunks. Empty if the file may have been rewritten.
+   */
+  private List<MD5HashLengthPair> findAppendedPrefix(Path path, FileIdentity fileIdentity) {
+    FileMetadata fileMetadata = managedFiles.get(path.toString());
+    if (fileMetadata == null || fileMetadata.getMd5HashLengthPairs().size() < 2) {
+      return Collections.emptyList();
+    }
+    List<MD5HashLengthPair> md5HashLengthPairs = fileMetadata.getMd5HashLengthPairs();
+    long previousSize = md5HashLengthPairs.stream().mapToLong(MD5HashLengthPair::getLength).sum();
+    boolean replaced = statCache.getIdentity(path)
+        .map(x -> !x.isSameFile(fileIdentity))
+        .orElse(false);
+    if (fileIdentity.getSize() <= previousSize || replaced) {
+      return Collections.emptyList();
+    }
+    List<MD5HashLengthPair> prefix = md5HashLengthPairs.subList(0, md5HashLengthPairs.size() - 1);
+    if (!protectStoredShards(prefix)) {
+      return Collections.emptyList();
+    }
+    logger.debug("File [{}] grew from {}B to {}B. Trying to read only the tail.", path, previousSize, fileIdentity.getSize());
+    return prefix;
+  }
+
+  /**
+   * Checks if the data in a file has been changed and notifies storage managers if true.
+   */
+  private synchronized void recordFile(Path path, FileMetadata newFileMetadata) throws StorageManagerException {
+    FileMetadata cachedMetadata = managedFiles.get(path.toString());
+    boolean hasFileChanged = cachedMetadata == null ||
+            !cachedMetadata.getModifiedTime().equals(newFileMetadata.getModifiedTime()) ||
+            !cachedMetadata.getMd5HashLengthPairs().equals(newFileMetadata.getMd5HashLengthPairs());
+
+    // If there was a change update the storage managers.
+    if (hasFileChanged) {
+      logger.info("Change detected in [{}]. Adding file to storage.", path);
+      fileEventLogger.addFile(newFileMetadata.getMd5HashLengthPairs(), newFileMetadata.getModifiedTime(), path);
+      managedFiles.put(path.toString(), newFileMetadata);
+    } else {
+      logger.debug("File rescanned but no changed detected [{}].", path);
+    }
+  }
+
+  /**
+   * Waits for all files sent for ingestion to be stored or re-queued.
+   */
+  private void awaitIngestion() {
+    try {
+      ingestPipeline.awaitIdle();
+    } catch (InterruptedException e) {
+      logger.warn("Interrupted while waiting for file ingestion.");
+      Thread.currentThread().interrupt();
     }
   }
 
@@ -254,10 +589,113 @@ public class FileManager {
    * Returns every folder currently watched. Including sub-folders
    */
   public Set<Path> getCurrentlyWatchedFolders() {
-    return new HashSet<>(prospector.getWatchedFolders());
+    return prospector.getWatchedFolders();
   }
 
   public Set<String> getCurrentlyWatchedFiles() {
     return managedFiles.keySet();
   }
+
+  public int getIngestQueueDepth() {
+    return ingestPipeline.getQueueDepth();
+  }
+
+  /**
+   * Limits the rate files are read at for ingestion.
+   */
+  public void setIoGovernor(IoGovernor ioGovernor) {
+    ingestPipeline.setIoGovernor(ioGovernor);
+  }
+
+  /**
+   * Packs files up to the given size together into shared shards. 0 to disable.
+   */
+  public void setPackFileMaxBytes(int packFileMaxBytes) {
+    ingestPipeline.setPackFileMaxBytes(packFileMaxBytes);
+  }
+
+  /**
+   * Stores changed chunks of files as deltas against their previous version, applying at most the given number of
+   * deltas to rebuild any chunk. 0 to disable.
+   */
+  public void setMaxDeltaChainLength(int maxDeltaChainLength) {
+    ingestPipeline.setMaxDeltaChainLength(maxDeltaChainLength);
+  }
+
+  public long getIngestThrottledMillis() {
+    return ingestPipeline.getIoGovernor().getThrottledMillis();
+  }
+
+  public double getIngestRateScale() {
+    return ingestPipeline.getIoGovernor().getScale();
+  }
+
+  private class FileManagerIngestHandler implements IngestPipeline.IngestHandler {
+    @Override
+    public void storeChunk(String md5Hash, ByteBuffer data) throws ShardStorageException {
+      fileEventLogger.protectShard(md5Hash);
+      shardStorage.storeShard(md5Hash, data);
+    }
+
+    /**
+     * Only worth it if the delta is less than half the size of the chunk. Chunks already stored are never deltas, as
+     * storing them again is free. Unchanged chunks keep the delta they were stored as.
+     */
+    @Override
+    public Optional<MD5HashLengthPair> storeDelta(String md5Hash, ByteBuffer data, MD5HashLengthPair base)
+        throws ShardStorageException {
+      if (base.isDelta() && base.getContentHash().equals(md5Hash) && protectStoredShards(Collections.singletonList(base))) {
+        return Optional.of(base);
+      } else if (shardStorage.hasShard(md5Hash) || base.getContentHash().equals(md5Hash)) {
+        return Optional.empty();
+      }
+      // Protect before reading so garbage collection cannot remove the base in between.
+      base.getShardIds().forEach(fileEventLogger::protectShard);
+      byte[] baseData;
+      try {
+        baseData = DeltaCodec.retrieve(shardStorage, base);
+      } catch (ShardStorageException e) {
+        logger.debug("Delta base unavailable. Storing chunk whole. {}", e.getMessage());
+        return Optional.empty();
+      }
+      byte[] target = new byte[data.remaining()];
+      data.duplicate().get(target);
+      byte[] delta = DeltaCodec.encode(baseData, target);
+      if (delta.length * 2 > target.length) {
+        return Optional.empty();
+      }
+      String deltaHash = Hashing.md5().hashBytes(delta).toString();
+      fileEventLogger.protectShard(deltaHash);
+      shardStorage.storeShard(deltaHash, delta);
+      logger.trace("Stored chunk {} as {}B delta against {}", md5Hash, delta.length, base.getShardId());
+      return Optional.of(MD5HashLengthPair.delta(md5Hash, deltaHash, base, target.length));
+    }
+
+    @Override
+    public void fileIngested(IngestTask ingestTask, FileMetadata newFileMetadata) throws StorageManagerException {
+      recordFile(ingestTask.getPath(), newFileMetadata);
+      ingestCheckpoints.remove(ingestTask.getPath());
+      if (ingestTask.getFileIdentity() != null) {
+        statCache.put(ingestTask.getPath(), ingestTask.getFileIdentity(), ingestTask.getSampleHash(),
+            newFileMetadata.getMd5HashLengthPairs());
+        moveTracker.track(ingestTask.getPath(), ingestTask.getFileIdentity(), newFileMetadata);
+      }
+    }
+
+    @Override
+    public void checkpoint(IngestTask ingestTask, List<MD5HashLengthPair> md5HashLengthPairs) {
+      synchronized (ingestCheckpoints) {
+        // A file that finished in the meantime already had its checkpoint removed.
+        if (ingestTask.isInProgress()) {
+          logger.debug("Ingest checkpoint for [{}] at {} chunks.", ingestTask.getPath(), md5HashLengthPairs.size());
+          ingestCheckpoints.record(ingestTask.getPath(), ingestTask.getFileIdentity(), md5HashLengthPairs);
+        }
+      }
+    }
+
+    @Override
+    public void retry(Path path) {
+      queuedAdditions.add(path);
+    }
+  }
 }
@@ -0,0 +1,176 @@
+package com.domhauton.membrane.prospector;
+
+import com.domhauton.membrane.prospector.metadata.FileIdentity;
+import com.domhauton.membrane.storage.catalogue.metadata.MD5HashLengthPair;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Created by dominic on 26/10/17.
+ * <p>
+ * Remembers how far the ingestion of large files got, so a restart resumes from the last checkpoint instead of
+ * reading the file from the start. A checkpoint is only used while the file keeps the identity it had when
+ * ingestion started.
+ * <p>
+ * Checkpoints are written as they are recorded. They are rare as each covers a large part of a file.
+ */
+public class IngestCheckpoints {
+  private static final int FORMAT_VERSION = 1;
+
+  private final Logger logger = LogManager.getLogger();
+  private final Path checkpointPath;
+  private final Map<String, Checkpoint> checkpoints;
+
+  /**
+   * Creates in-memory checkpoints that are never persisted.
+   */
+  IngestCheckpoints() {
+    this(null);
+  }
+
+  /**
+   * @param checkpointPath where the checkpoints are persisted. Loaded immediately if it exists.
+   */
+  public IngestCheckpoints(Path checkpointPath) {
+    this.checkpointPath = checkpointPath;
+    this.checkpoints = new HashMap<>();
+    if (checkpointPath != null && checkpointPath.toFile().exists()) {
+      load();
+    }
+  }
+
+  synchronized int size() {
+    return checkpoints.size();
+  }
+
+  /**
+   * Finds the chunks already stored for the file. A checkpoint for a file that has since changed is dropped.
+   *
+   * @return the stored chunks from the start of the file, or empty if ingestion must start from the beginning.
+   */
+  synchronized Optional<List<MD5HashLengthPair>> lookup(Path path, FileIdentity identity) {
+    Checkpoint checkpoint = checkpoints.get(path.toString());
+    if (checkpoint == null) {
+      return Optional.empty();
+    } else if (!checkpoint.identity.equals(identity)) {
+      logger.debug("File changed since ingest checkpoint. Dropping checkpoint for [{}]", path);
+      remove(path);
+      return Optional.empty();
+    }
+    return Optional.of(checkpoint.md5HashLengthPairs);
+  }
+
+  /**
+   * Records the chunks stored so far for a file being ingested.
+   */
+  synchronized void record(Path path, FileIdentity identity, List<MD5HashLengthPair> md5HashLengthPairs) {
+    checkpoints.put(path.toString(), new Checkpoint(identity, new ArrayList<>(md5HashLengthPairs)));
+    save();
+  }
+
+  synchronized void remove(Path path) {
+    if (checkpoints.remove(path.toString()) != null) {
+      save();
+    }
+  }
+
+  /**
+   * @return the shards referenced by any checkpoint. They must be kept until ingestion finishes.
+   */
+  synchronized Set<String> getReferencedShards() {
+    Set<String> shards = new HashSet<>();
+    for (Checkpoint checkpoint : checkpoints.values()) {
+      checkpoint.md5HashLengthPairs.stream()
+          .forEach(x -> shards.addAll(x.getShardIds()));
+    }
+    return shards;
+  }
+
+  /**
+   * Written to a temp file first so a crash never leaves partial checkpoints.
+   */
+  private void save() {
+    if (checkpointPath == null) {
+      return;
+    }
+    Path tempPath = Paths.get(checkpointPath.toString() + ".tmp");
+    try {
+      Files.createDirectories(checkpointPath.toAbsolutePath().getParent());
+      try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempPath.toFile())))) {
+        output.writeInt(FORMAT_VERSION);
+        output.writeInt(checkpoints.size());
+        for (Map.Entry<String, Checkpoint> entry : checkpoints.entrySet()) {
+          writeCheckpoint(output, entry.getKey(), entry.getValue());
+        }
+      }
+      Files.move(tempPath, checkpointPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      logger.debug("Saved {} ingest checkpoints to [{}]", checkpoints.size(), checkpointPath);
+    } catch (IOException e) {
+      logger.error("Failed to save ingest checkpoints to [{}]. {}", checkpointPath, e.getMessage());
+    }
+  }
+
+  /**
+   * Unreadable checkpoints are dropped. It only costs reading the affected files from the start.
+   */
+  private void load() {
+    try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpointPath.toFile())))) {
+      int version = input.readInt();
+      if (version != FORMAT_VERSION) {
+        logger.warn("Ignoring ingest checkpoints with unknown version {} at [{}]", version, checkpointPath);
+        return;
+      }
+      int count = input.readInt();
+      for (int i = 0; i < count; i++) {
+        readCheckpoint(input);
+      }
+      logger.info("Loaded {} ingest checkpoints from [{}]", checkpoints.size(), checkpointPath);
+    } catch (IOException e) {
+      logger.warn("Failed to load ingest checkpoints from [{}]. Starting empty. {}", checkpointPath, e.getMessage());
+      checkpoints.clear();
+    }
+  }
+
+  private static void writeCheckpoint(DataOutputStream output, String path, Checkpoint checkpoint) throws IOException {
+    output.writeUTF(path);
+    output.writeLong(checkpoint.identity.getDevice());
+    output.writeLong(checkpoint.identity.getInode());
+    output.writeLong(checkpoint.identity.getSize());
+    output.writeLong(checkpoint.identity.getModifiedMillis());
+    output.writeLong(checkpoint.identity.getChangedMillis());
+    output.writeInt(checkpoint.md5HashLengthPairs.size());
+    for (MD5HashLengthPair md5HashLengthPair : checkpoint.md5HashLengthPairs) {
+      output.writeUTF(md5HashLengthPair.getMd5Hash());
+      output.writeInt(md5HashLengthPair.getLength());
+    }
+  }
+
+  private void readCheckpoint(DataInputStream input) throws IOException {
+    String path = input.readUTF();
+    FileIdentity identity = new FileIdentity(input.readLong(), input.readLong(), input.readLong(), input.readLong(),
+        input.readLong());
+    int pairCount = input.readInt();
+    List<MD5HashLengthPair> md5HashLengthPairs = new ArrayList<>(pairCount);
+    for (int i = 0; i < pairCount; i++) {
+      md5HashLengthPairs.add(new MD5HashLengthPair(input.readUTF(), input.readInt()));
+    }
+    checkpoints.put(path, new Checkpoint(identity, md5HashLengthPairs));
+  }
+
+  private static class Checkpoint {
+    private final FileIdentity identity;
+    private final List<MD5HashLengthPair> md5HashLengthPairs;
+
+    Checkpoint(FileIdentity identity, List<MD5HashLengthPair> md5HashLengthPairs) {
+      this.identity = identity;
+      this.md5HashLengthPairs = md5HashLengthPairs;
+    }
+  }
+}
@@ -0,0 +1,55 @@
+package com.domhauton.membrane.prospector;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Created by dominic on 18/10/17.
+ */
+class IngestChunk {
+  private final IngestTask ingestTask;
+  private final int index;
+  private final long offset;
+  private final ByteBuffer data;
+  private String md5Hash;
+
+  IngestChunk(IngestTask ingestTask, int index, long offset, ByteBuffer data) {
+    this.ingestTask = ingestTask;
+    this.index = index;
+    this.offset = offset;
+    this.data = data;
+  }
+
+  IngestTask getIngestTask() {
+    return ingestTask;
+  }
+
+  int getIndex() {
+    return index;
+  }
+
+  /**
+   * @return the position of the chunk in the file.
+   */
+  long getOffset() {
+    return offset;
+  }
+
+  /**
+   * @return the chunk data between position and limit. Callers must not move the position.
+   */
+  ByteBuffer getData() {
+    return data;
+  }
+
+  int getLength() {
+    return data.remaining();
+  }
+
+  String getMd5Hash() {
+    return md5Hash;
+  }
+
+  void setMd5Hash(String md5Hash) {
+    this.md5Hash = md5Hash;
+  }
+}
@@ -0,0 +1,545 @@
+package com.domhauton.membrane.prospector;
+
+import com.domhauton.membrane.prospector.chunking.ChunkReader;
+import com.domhauton.membrane.prospector.chunking.Chunker;
+import com.domhauton.membrane.prospector.chunking.MappedChunkReader;
+import com.domhauton.membrane.prospector.metadata.FileMetadata;
+import com.domhauton.membrane.prospector.metadata.FileMetadataBuilder;
+import com.domhauton.membrane.shard.ShardStorageException;
+import com.domhauton.membrane.storage.StorageManagerException;
+import com.domhauton.membrane.storage.catalogue.metadata.MD5HashLengthPair;
+import com.google.common.hash.Hashing;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Created by dominic on 18/10/17.
+ * <p>
+ * Staged file ingestion. Files are read, their chunks hashed and stored by separate worker pools, then logged in order
+ * of completion by a single thread. Chunk data held in the pipeline is capped, so a fast reader waits for the
+ * hashing and storing stages to catch up.
+ * <p>
+ * Chunks of only zero bytes, such as preallocated space or sparse holes, are recorded as zero runs without being
+ * hashed or stored.
+ * <p>
+ * Every checkpoint interval of a file stored, the chunks stored so far are passed to the handler so ingestion can be
+ * resumed after a restart.
+ * <p>
+ * If enabled, small files are packed together and stored as a single shard. Their files are logged once the pack is
+ * stored, when it is full or the pipeline has nothing else left to do.
+ * <p>
+ * If delta encoding is enabled, a changed chunk of a file that was ingested before is offered to the handler as a
+ * delta against the chunk of the previous version at the same position. Chains of deltas are capped so rebuilding a
+ * chunk never applies more than the maximum delta chain length of deltas.
+ */
+class IngestPipeline {
+  private static final int KB = 1024;
+  private static final int QUEUE_SIZE_PER_WORKER = 4;
+  private static final long MAPPED_READ_THRESHOLD = 16 * KB * KB;
+  private static final long DEFAULT_CHECKPOINT_INTERVAL_BYTES = 256L * KB * KB;
+  private static final int PACK_SIZE = KB * KB;
+
+  private final Logger logger = LogManager.getLogger();
+  private final Chunker chunker;
+  private final IngestHandler ingestHandler;
+
+  private final Semaphore bufferPermitsKB;
+  private final int maxBufferKB;
+  private final Set<Path> inFlight;
+  private volatile IoGovernor ioGovernor;
+  private volatile long checkpointIntervalBytes;
+  private volatile int packFileMaxBytes;
+  private volatile int maxDeltaChainLength;
+  private final SmallFilePacker smallFilePacker;
+
+  private final PipelineStage<IngestTask> readStage;
+  private final PipelineStage<IngestChunk> hashStage;
+  private final PipelineStage<IngestChunk> storeStage;
+  private final PipelineStage<IngestTask> logStage;
+
+  IngestPipeline(Chunker chunker, IngestHandler ingestHandler, int readWorkers, int hashWorkers, int storeWorkers, int bufferMB) {
+    this.chunker = chunker;
+    this.ingestHandler = ingestHandler;
+    this.maxBufferKB = Math.max(1, bufferMB) * KB;
+    this.bufferPermitsKB = new Semaphore(maxBufferKB);
+    this.inFlight = ConcurrentHashMap.newKeySet();
+    this.ioGovernor = IoGovernor.unlimited();
+    this.checkpointIntervalBytes = DEFAULT_CHECKPOINT_INTERVAL_BYTES;
+    this.packFileMaxBytes = 0;
+    this.maxDeltaChainLength = 0;
+    this.smallFilePacker = new SmallFilePacker(PACK_SIZE);
+
+    readStage = new PipelineStage<>("read", readWorkers, readWorkers * QUEUE_SIZE_PER_WORKER, this::readFile);
+    hashStage = new PipelineStage<>("hash", hashWorkers, hashWorkers * QUEUE_SIZE_PER_WORKER, this::hashChunk);
+    storeStage = new PipelineStage<>("store", storeWorkers, storeWorkers * QUEUE_SIZE_PER_WORKER, this::storeChunk);
+    logStage = new PipelineStage<>("log", 1, QUEUE_SIZE_PER_WORKER, this::logFile);
+  }
+
+  void start() {
+    logStage.start();
+    storeStage.start();
+    hashStage.start();
+    readStage.start();
+  }
+
+  void stop() {
+    readStage.stop();
+    storePack();
+    hashStage.stop();
+    storeStage.stop();
+    logStage.stop();
+  }
+
+  /**
+   * Queues the file for ingestion. Blocks while the pipeline is full.
+   *
+   * @return false if the file is already being ingested.
+   */
+  boolean submit(IngestTask ingestTask) throws InterruptedException {
+    if (!inFlight.add(ingestTask.getPath())) {
+      logger.debug("File already being ingested. Skipping [{}]", ingestTask.getPath());
+      return false;
+    }
+    readStage.submit(ingestTask);
+    return true;
+  }
+
+  /**
+   * Blocks until every submitted file has been logged or abandoned.
+   */
+  void awaitIdle() throws InterruptedException {
+    while (true) {
+      synchronized (inFlight) {
+        while (!inFlight.isEmpty() && inFlight.size() > smallFilePacker.getWaitingFiles()) {
+          inFlight.wait();
+        }
+        if (inFlight.isEmpty()) {
+          return;
+        }
+      }
+      // Only files waiting for a pack are left. Store it rather than wait for it to fill.
+      storePack();
+    }
+  }
+
+  int getQueueDepth() {
+    return inFlight.size();
+  }
+
+  void setIoGovernor(IoGovernor ioGovernor) {
+    this.ioGovernor = ioGovernor;
+  }
+
+  IoGovernor getIoGovernor() {
+    return ioGovernor;
+  }
+
+  void setCheckpointIntervalBytes(long checkpointIntervalBytes) {
+    this.checkpointIntervalBytes = checkpointIntervalBytes;
+  }
+
+  /**
+   * @param packFileMaxBytes files up to this size are packed together. 0 to disable packing.
+   */
+  void setPackFileMaxBytes(int packFileMaxBytes) {
+    this.packFileMaxBytes = packFileMaxBytes;
+  }
+
+  /**
+   * @param maxDeltaChainLength most deltas applied to rebuild a chunk. 0 to disable delta encoding.
+   */
+  void setMaxDeltaChainLength(int maxDeltaChainLength) {
+    this.maxDeltaChainLength = maxDeltaChainLength;
+  }
+
+  private void readFile(IngestTask ingestTask) {
+    Path path = ingestTask.getPath();
+    try {
+      if (!ingestTask.getPrefix().isEmpty() && !prefixUnchanged(ingestTask)) {
+        logger.debug("Spot check failed for appended file. Reading in full [{}]", path);
+        ingestTask.setPrefix(Collections.emptyList());
+      }
+      long startOffset = ingestTask.getPrefixLength();
+      long fileLength = path.toFile().length();
+      if (startOffset == 0L && fileLength <= packFileMaxBytes) {
+        readPackedFile(ingestTask);
+      } else if (fileLength - startOffset >= MAPPED_READ_THRESHOLD) {
+        readMappedFile(ingestTask, startOffset);
+      } else {
+        readSmallFile(ingestTask, startOffset);
+      }
+    } catch (IOException e) {
+      logger.error("Error while reading from file [{}]. Ignoring file.", path);
+      ingestTask.fail(false);
+    } catch (InternalError e) {
+      // Raised when a mapped file is truncated while being read.
+      logger.warn("File changed size while being read [{}]. Re-queueing.", path);
+      ingestTask.fail(true);
+    } catch (InterruptedException e) {
+      logger.warn("Interrupted while reading file [{}]. Re-queueing.", path);
+      ingestTask.fail(true);
+      Thread.currentThread().interrupt();
+    } catch (RuntimeException | Error e) {
+      logger.error("Unexpected error while reading file [{}]. Ignoring file. {}", path, e.toString());
+      ingestTask.fail(false);
+    }
+    onStateChange(ingestTask, ingestTask.readFinished());
+  }
+
+  /**
+   * Large files are memory mapped so chunks are hashed and stored without being copied onto the heap.
+   */
+  private void readMappedFile(IngestTask ingestTask, long startOffset) throws IOException, InterruptedException {
+    try (
+        MappedChunkReader chunkReader = new MappedChunkReader(ingestTask.getPath(), chunker, startOffset)
+    ) {
+      for (ByteBuffer chunk = chunkReader.nextChunk(); chunk != null && !ingestTask.hasFailed(); chunk = chunkReader.nextChunk()) {
+        submitChunk(ingestTask, chunk);
+      }
+    }
+  }
+
+  private void readSmallFile(IngestTask ingestTask, long startOffset) throws IOException, InterruptedException {
+    try (
+        FileChannel fileChannel = FileChannel.open(ingestTask.getPath(), StandardOpenOption.READ);
+        ChunkReader chunkReader = new ChunkReader(Channels.newInputStream(fileChannel.position(startOffset)), chunker)
+    ) {
+      for (byte[] chunk = chunkReader.nextChunk(); chunk != null && !ingestTask.hasFailed(); chunk = chunkReader.nextChunk()) {
+        submitChunk(ingestTask, ByteBuffer.wrap(chunk));
+      }
+    }
+  }
+
+  /**
+   * Reads a small file whole and adds it to the current pack. Files that grew past the packing limit since they were
+   * checked are read as usual.
+   */
+  private void readPackedFile(IngestTask ingestTask) throws IOException, InterruptedException {
+    int maxBytes = packFileMaxBytes;
+    ByteBuffer buffer = ByteBuffer.allocate(maxBytes + 1);
+    try (FileChannel fileChannel = FileChannel.open(ingestTask.getPath(), StandardOpenOption.READ)) {
+      while (buffer.hasRemaining() && fileChannel.read(buffer) >= 0) {
+        // Keep reading until the buffer is full or the file ends.
+      }
+    }
+    if (!buffer.hasRemaining()) {
+      readSmallFile(ingestTask, 0L);
+      return;
+    }
+    buffer.flip();
+    ioGovernor.acquire(buffer.remaining());
+    IngestChunk ingestChunk = ingestTask.newChunk(buffer);
+    if (isAllZero(buffer)) {
+      chunkStored(ingestTask, ingestChunk.getIndex(), MD5HashLengthPair.zeros(ingestChunk.getLength()));
+      return;
+    }
+    byte[] data = new byte[buffer.remaining()];
+    buffer.get(data);
+    Optional<SmallFilePacker.Pack> fullPack = smallFilePacker.add(ingestChunk, data);
+    if (fullPack.isPresent()) {
+      storePack(fullPack.get());
+    } else {
+      synchronized (inFlight) {
+        inFlight.notifyAll();
+      }
+    }
+  }
+
+  private void storePack() {
+    smallFilePacker.drain().ifPresent(this::storePack);
+  }
+
+  /**
+   * Stores a pack as one shard, then finishes each file in it with a reference into the pack.
+   */
+  private void storePack(SmallFilePacker.Pack pack) {
+    String packHash = Hashing.md5().hashBytes(pack.getData()).toString();
+    boolean stored;
+    try {
+      logger.debug("Storing pack {} of {} files. {}KB", packHash, pack.getPackedFiles().size(), pack.getData().length / KB);
+      ingestHandler.storeChunk(packHash, ByteBuffer.wrap(pack.getData()));
+      stored = true;
+    } catch (ShardStorageException | RuntimeException | Error e) {
+      logger.error("Error while storing pack of {} files. Files re-queued. {}", pack.getPackedFiles().size(), e.getMessage());
+      stored = false;
+    }
+    for (SmallFilePacker.PackedFile packedFile : pack.getPackedFiles()) {
+      IngestTask ingestTask = packedFile.getIngestChunk().getIngestTask();
+      int index = packedFile.getIngestChunk().getIndex();
+      if (stored) {
+        chunkStored(ingestTask, index, MD5HashLengthPair.packed(packHash, packedFile.getOffset(), packedFile.getLength()));
+      } else {
+        ingestTask.fail(true);
+        onStateChange(ingestTask, ingestTask.chunkFinished(index, null));
+      }
+    }
+  }
+
+  /**
+   * Re-hashes the first and last chunks of the prefix. If both match the file is assumed to have only been appended
+   * to, so the rest of the prefix is not read.
+   */
+  private boolean prefixUnchanged(IngestTask ingestTask) throws IOException, InterruptedException {
+    List<MD5HashLengthPair> prefix = ingestTask.getPrefix();
+    long lastChunkOffset = ingestTask.getPrefixLength() - prefix.get(prefix.size() - 1).getLength();
+    try (FileChannel fileChannel = FileChannel.open(ingestTask.getPath(), StandardOpenOption.READ)) {
+      return fileChannel.size() >= ingestTask.getPrefixLength() &&
+          chunkMatches(fileChannel, 0L, prefix.get(0)) &&
+          (prefix.size() == 1 || chunkMatches(fileChannel, lastChunkOffset, prefix.get(prefix.size() - 1)));
+    }
+  }
+
+  private boolean chunkMatches(FileChannel fileChannel, long offset, MD5HashLengthPair md5HashLengthPair)
+      throws IOException, InterruptedException {
+    ioGovernor.acquire(md5HashLengthPair.getLength());
+    ByteBuffer buffer = ByteBuffer.allocate(md5HashLengthPair.getLength());
+    while (buffer.hasRemaining() && fileChannel.read(buffer, offset + buffer.position()) > 0) {
+      // Keep reading until the chunk is full or the file ends.
+    }
+    buffer.flip();
+    if (buffer.remaining() != md5HashLengthPair.getLength()) {
+      return false;
+    }
+    return md5HashLengthPair.isZeros() ?
+        isAllZero(buffer) :
+        Hashing.md5().hashBytes(buffer).toString().equals(md5HashLengthPair.getContentHash());
+  }
+
+  private void submitChunk(IngestTask ingestTask, ByteBuffer chunk) throws InterruptedException {
+    ioGovernor.acquire(chunk.remaining());
+    if (isAllZero(chunk)) {
+      IngestChunk ingestChunk = ingestTask.newChunk(chunk);
+      chunkStored(ingestTask, ingestChunk.getIndex(), MD5HashLengthPair.zeros(ingestChunk.getLength()));
+      return;
+    }
+    bufferPermitsKB.acquire(getPermits(chunk.remaining()));
+    hashStage.submit(ingestTask.newChunk(chunk));
+  }
+
+  /**
+   * Checks eight bytes at a time. Stops at the first non-zero byte, so chunks with data cost almost nothing.
+   */
+  static boolean isAllZero(ByteBuffer chunk) {
+    ByteBuffer data = chunk.duplicate();
+    while (data.remaining() >= Long.BYTES) {
+      if (data.getLong() != 0L) {
+        return false;
+      }
+    }
+    while (data.hasRemaining()) {
+      if (data.get() != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void hashChunk(IngestChunk ingestChunk) {
+    if (ingestChunk.getIngestTask().hasFailed()) {
+      dropChunk(ingestChunk);
+    } else {
+      try {
+        ingestChunk.setMd5Hash(Hashing.md5().hashBytes(ingestChunk.getData().duplicate()).toString());
+      } catch (InternalError e) {
+        // Raised when a mapped file is truncated while being read.
+        logger.warn("File changed size while being hashed [{}]. Re-queueing.", ingestChunk.getIngestTask().getPath());
+        ingestChunk.getIngestTask().fail(true);
+        dropChunk(ingestChunk);
+        return;
+      } catch (RuntimeException | Error e) {
+        logger.error("Unexpected error while hashing chunk of file [{}]. Ignoring file. {}",
+            ingestChunk.getIngestTask().getPath(), e.toString());
+        ingestChunk.getIngestTask().fail(false);
+        dropChunk(ingestChunk);
+        return;
+      }
+      try {
+        storeStage.submit(ingestChunk);
+      } catch (InterruptedException e) {
+        ingestChunk.getIngestTask().fail(true);
+        dropChunk(ingestChunk);
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Chunks of the same file are stored concurrently. A chunk already past the failure check when its file fails is
+   * still stored, and is collected with other unreferenced shards.
+   */
+  private void storeChunk(IngestChunk ingestChunk) {
+    IngestTask ingestTask = ingestChunk.getIngestTask();
+    if (ingestTask.hasFailed()) {
+      dropChunk(ingestChunk);
+      return;
+    }
+    MD5HashLengthPair md5HashLengthPair;
+    try {
+      logger.trace("Chunk {} from file [{}] of size {}MB sent to storage.",
+          ingestChunk::getMd5Hash,
+          ingestTask::getPath,
+          () -> ((float) ingestChunk.getLength()) / (1024 * 1024));
+      Optional<MD5HashLengthPair> deltaBase = findDeltaBase(ingestChunk);
+      Optional<MD5HashLengthPair> delta = deltaBase.isPresent() ?
+          ingestHandler.storeDelta(ingestChunk.getMd5Hash(), ingestChunk.getData(), deltaBase.get()) :
+          Optional.empty();
+      if (delta.isPresent()) {
+        md5HashLengthPair = delta.get();
+      } else {
+        ingestHandler.storeChunk(ingestChunk.getMd5Hash(), ingestChunk.getData());
+        md5HashLengthPair = new MD5HashLengthPair(ingestChunk.getMd5Hash(), ingestChunk.getLength());
+      }
+    } catch (ShardStorageException e) {
+      logger.error("Error while storing shard of file. File re-queued. [{}]", ingestTask.getPath());
+      ingestTask.fail(true);
+      dropChunk(ingestChunk);
+      return;
+    } catch (InternalError e) {
+      // Raised when a mapped file is truncated while being read.
+      logger.warn("File changed size while being stored [{}]. Re-queueing.", ingestTask.getPath());
+      ingestTask.fail(true);
+      dropChunk(ingestChunk);
+      return;
+    } catch (RuntimeException | Error e) {
+      logger.error("Unexpected error while storing shard of file. Ignoring file. [{}] {}", ingestTask.getPath(), e.toString());
+      ingestTask.fail(false);
+      dropChunk(ingestChunk);
+      return;
+    }
+    bufferPermitsKB.release(getPermits(ingestChunk.getLength()));
+    chunkStored(ingestTask, ingestChunk.getIndex(), md5HashLengthPair);
+  }
+
+  /**
+   * Finds the chunk of the previous version of the file at the same position. Zero runs and packed data are never
+   * used as a base, nor are changed deltas already at the maximum chain length.
+   *
+   * @return the chunk to store a delta against. Empty if the chunk should be stored whole.
+   */
+  private Optional<MD5HashLengthPair> findDeltaBase(IngestChunk ingestChunk) {
+    int maxChainLength = maxDeltaChainLength;
+    DeltaBase deltaBase = ingestChunk.getIngestTask().getDeltaBase();
+    if (maxChainLength <= 0 || deltaBase == null) {
+      return Optional.empty();
+    }
+    return deltaBase.find(ingestChunk.getOffset())
+        .filter(x -> !x.isZeros() && !x.isPacked())
+        .filter(x -> x.getDeltaChainLength() < maxChainLength || x.getContentHash().equals(ingestChunk.getMd5Hash()));
+  }
+
+  private void chunkStored(IngestTask ingestTask, int index, MD5HashLengthPair md5HashLengthPair) {
+    IngestTask.State state = ingestTask.chunkFinished(index, md5HashLengthPair);
+    if (state == IngestTask.State.IN_PROGRESS && ingestTask.getFileIdentity() != null) {
+      try {
+        ingestTask.takeCheckpoint(checkpointIntervalBytes)
+            .ifPresent(x -> ingestHandler.checkpoint(ingestTask, x));
+      } catch (RuntimeException e) {
+        // Only costs a resume point. The file is still ingested.
+        logger.warn("Failed to checkpoint file [{}]. {}", ingestTask.getPath(), e.toString());
+      }
+    }
+    onStateChange(ingestTask, state);
+  }
+
+  private void logFile(IngestTask ingestTask) {
+    FileMetadata fileMetadata = new FileMetadataBuilder(ingestTask.getModifiedTime())
+        .addShardData(ingestTask.getMd5HashLengthPairs())
+        .build();
+    try {
+      ingestHandler.fileIngested(ingestTask, fileMetadata);
+      finish(ingestTask.getPath());
+    } catch (StorageManagerException e) {
+      logger.error("Error while logging file. File re-queued. [{}]", ingestTask.getPath());
+      ingestTask.fail(true);
+      abandon(ingestTask);
+    } catch (RuntimeException | Error e) {
+      logger.error("Unexpected error while logging file. Ignoring file. [{}] {}", ingestTask.getPath(), e.toString());
+      ingestTask.fail(false);
+      abandon(ingestTask);
+    }
+  }
+
+  private void dropChunk(IngestChunk ingestChunk) {
+    bufferPermitsKB.release(getPermits(ingestChunk.getLength()));
+    IngestTask ingestTask = ingestChunk.getIngestTask();
+    onStateChange(ingestTask, ingestTask.chunkFinished(ingestChunk.getIndex(), null));
+  }
+
+  private void onStateChange(IngestTask ingestTask, IngestTask.State state) {
+    switch (state) {
+      case COMPLETE:
+        try {
+          logStage.submit(ingestTask);
+        } catch (InterruptedException e) {
+          ingestTask.fail(true);
+          abandon(ingestTask);
+          Thread.currentThread().interrupt();
+        }
+        break;
+      case ABANDONED:
+        abandon(ingestTask);
+        break;
+      case IN_PROGRESS:
+      default:
+        break;
+    }
+  }
+
+  private void abandon(IngestTask ingestTask) {
+    try {
+      if (ingestTask.shouldRetry()) {
+        ingestHandler.retry(ingestTask.getPath());
+      }
+    } finally {
+      finish(ingestTask.getPath());
+    }
+  }
+
+  private void finish(Path path) {
+    synchronized (inFlight) {
+      inFlight.remove(path);
+      inFlight.notifyAll();
+    }
+  }
+
+  /**
+   * Chunks larger than the whole buffer take all of it, rather than waiting forever.
+   */
+  private int getPermits(int chunkLength) {
+    return Math.min(maxBufferKB, (chunkLength + KB - 1) / KB);
+  }
+
+  interface IngestHandler {
+    void storeChunk(String md5Hash, ByteBuffer data) throws ShardStorageException;
+
+    /**
+     * Stores a chunk as a delta against a chunk of the previous version of the file.
+     *
+     * @return the stored delta. Empty if the chunk should be stored whole instead.
+     */
+    Optional<MD5HashLengthPair> storeDelta(String md5Hash, ByteBuffer data, MD5HashLengthPair base)
+        throws ShardStorageException;
+
+    void fileIngested(IngestTask ingestTask, FileMetadata fileMetadata) throws StorageManagerException;
+
+    /**
+     * Called with the chunks stored so far while a large file is being ingested.
+     */
+    void checkpoint(IngestTask ingestTask, List<MD5HashLengthPair> md5HashLengthPairs);
+
+    void retry(Path path);
+  }
+}
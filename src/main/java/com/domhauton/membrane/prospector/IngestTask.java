@@ -0,0 +1,192 @@
+package com.domhauton.membrane.prospector;
+
+import com.domhauton.membrane.prospector.metadata.FileIdentity;
+import com.domhauton.membrane.storage.catalogue.metadata.MD5HashLengthPair;
+import org.joda.time.DateTime;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Created by dominic on 18/10/17.
+ * <p>
+ * Tracks the chunks of a single file as they move through the ingest pipeline.
+ */
+class IngestTask {
+  enum State {IN_PROGRESS, COMPLETE, ABANDONED}
+
+  private final Path path;
+  private final DateTime modifiedTime;
+  private final FileIdentity fileIdentity;
+  private final String sampleHash;
+  private final List<MD5HashLengthPair> md5HashLengthPairs;
+  private List<MD5HashLengthPair> prefix;
+  private DeltaBase deltaBase;
+  private long nextChunkOffset;
+  private int chunksSubmitted;
+  private int chunksFinished;
+  private int contiguousChunks;
+  private long contiguousBytes;
+  private long checkpointedBytes;
+  private boolean readComplete;
+  private boolean failed;
+  private boolean retry;
+
+  IngestTask(Path path, DateTime modifiedTime) {
+    this(path, modifiedTime, null, null);
+  }
+
+  /**
+   * @param fileIdentity identity of the file before it was read. Null if unknown.
+   * @param sampleHash   sampled hash of the file before it was read. Null if not taken.
+   */
+  IngestTask(Path path, DateTime modifiedTime, FileIdentity fileIdentity, String sampleHash) {
+    this.path = path;
+    this.modifiedTime = modifiedTime;
+    this.fileIdentity = fileIdentity;
+    this.sampleHash = sampleHash;
+    this.md5HashLengthPairs = new ArrayList<>();
+    this.prefix = Collections.emptyList();
+    deltaBase = null;
+    nextChunkOffset = 0L;
+    chunksSubmitted = 0;
+    chunksFinished = 0;
+    contiguousChunks = 0;
+    contiguousBytes = 0L;
+    checkpointedBytes = 0L;
+    readComplete = false;
+    failed = false;
+    retry = false;
+  }
+
+  Path getPath() {
+    return path;
+  }
+
+  DateTime getModifiedTime() {
+    return modifiedTime;
+  }
+
+  FileIdentity getFileIdentity() {
+    return fileIdentity;
+  }
+
+  String getSampleHash() {
+    return sampleHash;
+  }
+
+  /**
+   * Chunks of the start of the file known to be unchanged. Only the rest of the file is read.
+   */
+  synchronized void setPrefix(List<MD5HashLengthPair> prefix) {
+    this.prefix = new ArrayList<>(prefix);
+    this.nextChunkOffset = getPrefixLength();
+  }
+
+  synchronized List<MD5HashLengthPair> getPrefix() {
+    return prefix;
+  }
+
+  /**
+   * @return the bytes covered by the prefix.
+   */
+  synchronized long getPrefixLength() {
+    return prefix.stream().mapToLong(MD5HashLengthPair::getLength).sum();
+  }
+
+  /**
+   * Chunks of the previous version of the file that changed chunks may be stored as deltas against.
+   */
+  synchronized void setDeltaBase(DeltaBase deltaBase) {
+    this.deltaBase = deltaBase;
+  }
+
+  /**
+   * @return the previous version of the file. Null if there is none.
+   */
+  synchronized DeltaBase getDeltaBase() {
+    return deltaBase;
+  }
+
+  synchronized IngestChunk newChunk(ByteBuffer data) {
+    md5HashLengthPairs.add(null);
+    IngestChunk ingestChunk = new IngestChunk(this, chunksSubmitted++, nextChunkOffset, data);
+    nextChunkOffset += data.remaining();
+    return ingestChunk;
+  }
+
+  /**
+   * Marks a chunk as finished.
+   *
+   * @param md5HashLengthPair the stored chunk. Null if the chunk was dropped.
+   */
+  synchronized State chunkFinished(int index, MD5HashLengthPair md5HashLengthPair) {
+    md5HashLengthPairs.set(index, md5HashLengthPair);
+    chunksFinished++;
+    while (contiguousChunks < md5HashLengthPairs.size() && md5HashLengthPairs.get(contiguousChunks) != null) {
+      contiguousBytes += md5HashLengthPairs.get(contiguousChunks++).getLength();
+    }
+    return getState();
+  }
+
+  /**
+   * Takes a checkpoint if enough of the file was stored since the last one. Only chunks stored without gaps from the
+   * start of the file are included.
+   *
+   * @param intervalBytes bytes that must be stored between checkpoints.
+   * @return the stored chunks from the start of the file, including the prefix. Empty if no checkpoint is due.
+   */
+  synchronized Optional<List<MD5HashLengthPair>> takeCheckpoint(long intervalBytes) {
+    if (failed || contiguousBytes - checkpointedBytes < intervalBytes) {
+      return Optional.empty();
+    }
+    checkpointedBytes = contiguousBytes;
+    List<MD5HashLengthPair> checkpoint = new ArrayList<>(prefix);
+    checkpoint.addAll(md5HashLengthPairs.subList(0, contiguousChunks));
+    return Optional.of(checkpoint);
+  }
+
+  synchronized boolean isInProgress() {
+    return getState() == State.IN_PROGRESS;
+  }
+
+  synchronized State readFinished() {
+    readComplete = true;
+    return getState();
+  }
+
+  /**
+   * Stops the file from being logged once all outstanding chunks are finished.
+   *
+   * @param retry true if the file should be re-queued for another attempt.
+   */
+  synchronized void fail(boolean retry) {
+    this.retry |= retry && !failed;
+    failed = true;
+  }
+
+  synchronized boolean hasFailed() {
+    return failed;
+  }
+
+  synchronized boolean shouldRetry() {
+    return retry;
+  }
+
+  synchronized List<MD5HashLengthPair> getMd5HashLengthPairs() {
+    List<MD5HashLengthPair> retList = new ArrayList<>(prefix);
+    retList.addAll(md5HashLengthPairs);
+    return retList;
+  }
+
+  private State getState() {
+    if (!readComplete || chunksFinished < chunksSubmitted) {
+      return State.IN_PROGRESS;
+    }
+    return failed ? State.ABANDONED : State.COMPLETE;
+  }
+}
@@ -0,0 +1,194 @@
+package com.domhauton.membrane.prospector;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by dominic on 23/10/17.
+ * <p>
+ * Token bucket limiting the bytes and reads per second of background ingestion. Each bucket holds up to a second of
+ * its rate.
+ * <p>
+ * If adaptive, the rates are scaled down while the host is busy. Load is taken from /proc/loadavg per core and IO
+ * pressure from /proc/pressure/io when they exist.
+ */
+public class IoGovernor {
+  private static final Path LOAD_AVG_PATH = Paths.get("/proc/loadavg");
+  private static final Path IO_PRESSURE_PATH = Paths.get("/proc/pressure/io");
+  private static final long LOAD_SAMPLE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private static final double BUSY_LOAD_PER_CORE = 0.75;
+  private static final double BUSY_IO_PRESSURE = 5.0;
+  private static final double MIN_SCALE = 0.1;
+
+  private final Logger logger = LogManager.getLogger();
+  private final long bytesPerSecond;
+  private final long readsPerSecond;
+  private final boolean adaptive;
+  private final int cores;
+
+  private double byteTokens;
+  private double readTokens;
+  private long lastRefillNanos;
+  private long lastLoadSampleNanos;
+  private volatile double scale;
+  private final AtomicLong throttledNanos;
+
+  /**
+   * @param bytesPerSecond maximum bytes read per second. 0 for unlimited.
+   * @param readsPerSecond maximum chunk reads per second. 0 for unlimited.
+   * @param adaptive       if true, rates are reduced while the host is busy.
+   */
+  public IoGovernor(long bytesPerSecond, long readsPerSecond, boolean adaptive) {
+    this.bytesPerSecond = Math.max(0L, bytesPerSecond);
+    this.readsPerSecond = Math.max(0L, readsPerSecond);
+    this.adaptive = adaptive;
+    this.cores = Runtime.getRuntime().availableProcessors();
+    this.byteTokens = this.bytesPerSecond;
+    this.readTokens = this.readsPerSecond;
+    this.lastRefillNanos = System.nanoTime();
+    this.lastLoadSampleNanos = lastRefillNanos - LOAD_SAMPLE_INTERVAL_NANOS;
+    this.scale = 1.0;
+    this.throttledNanos = new AtomicLong(0L);
+  }
+
+  /**
+   * Creates a governor that never throttles.
+   */
+  static IoGovernor unlimited() {
+    return new IoGovernor(0L, 0L, false);
+  }
+
+  /**
+   * Blocks until the read of the given number of bytes is allowed. Reads larger than the bucket are let through once
+   * the bucket is full, taking it into debt.
+   */
+  void acquire(int bytes) throws InterruptedException {
+    if (bytesPerSecond == 0L && readsPerSecond == 0L) {
+      return;
+    }
+    long waitNanos;
+    synchronized (this) {
+      long now = System.nanoTime();
+      sampleLoad(now);
+      refill(now);
+      waitNanos = Math.max(
+          waitNanos(byteTokens, Math.min(bytes, bytesPerSecond), bytesPerSecond),
+          waitNanos(readTokens, 1, readsPerSecond));
+      // Take the tokens now so later callers queue behind this one.
+      byteTokens -= bytesPerSecond == 0L ? 0 : bytes;
+      readTokens -= readsPerSecond == 0L ? 0 : 1;
+    }
+    if (waitNanos > 0) {
+      throttledNanos.addAndGet(waitNanos);
+      TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+  }
+
+  /**
+   * @return total time ingestion has spent waiting for the governor.
+   */
+  public long getThrottledMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(throttledNanos.get());
+  }
+
+  /**
+   * @return the fraction of the configured rates currently allowed.
+   */
+  public double getScale() {
+    return scale;
+  }
+
+  private long waitNanos(double tokens, long required, long rate) {
+    if (rate == 0L || tokens >= required) {
+      return 0L;
+    }
+    return (long) ((required - tokens) * TimeUnit.SECONDS.toNanos(1) / (rate * scale));
+  }
+
+  private void refill(long now) {
+    double elapsedSeconds = (now - lastRefillNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+    lastRefillNanos = now;
+    byteTokens = Math.min(bytesPerSecond, byteTokens + elapsedSeconds * bytesPerSecond * scale);
+    readTokens = Math.min(readsPerSecond, readTokens + elapsedSeconds * readsPerSecond * scale);
+  }
+
+  private void sampleLoad(long now) {
+    if (!adaptive || now - lastLoadSampleNanos < LOAD_SAMPLE_INTERVAL_NANOS) {
+      return;
+    }
+    lastLoadSampleNanos = now;
+    double newScale = scaleFor(readLoadPerCore(), readIoPressure());
+    if (newScale != scale) {
+      logger.debug("Ingest IO rate scaled to {}%", (int) (newScale * 100));
+      scale = newScale;
+    }
+  }
+
+  private double readLoadPerCore() {
+    try {
+      List<String> lines = Files.readAllLines(LOAD_AVG_PATH, StandardCharsets.UTF_8);
+      return lines.isEmpty() ? 0.0 : parseLoadAverage(lines.get(0)) / cores;
+    } catch (IOException | SecurityException e) {
+      return 0.0;
+    }
+  }
+
+  private double readIoPressure() {
+    try {
+      return parseIoPressure(Files.readAllLines(IO_PRESSURE_PATH, StandardCharsets.UTF_8));
+    } catch (IOException | SecurityException e) {
+      return 0.0;
+    }
+  }
+
+  /**
+   * @param loadPerCore one minute load average per core
+   * @param ioPressure  percentage of time some tasks stalled on IO over the last 10 seconds
+   * @return the fraction of the configured rates to allow.
+   */
+  static double scaleFor(double loadPerCore, double ioPressure) {
+    double loadScale = loadPerCore > BUSY_LOAD_PER_CORE ? BUSY_LOAD_PER_CORE / loadPerCore : 1.0;
+    double pressureScale = ioPressure > BUSY_IO_PRESSURE ? BUSY_IO_PRESSURE / ioPressure : 1.0;
+    return Math.max(MIN_SCALE, Math.min(loadScale, pressureScale));
+  }
+
+  /**
+   * @return the one minute load average from a /proc/loadavg line.
+   */
+  static double parseLoadAverage(String line) {
+    try {
+      return Double.parseDouble(line.trim().split("\\s+")[0]);
+    } catch (NumberFormatException e) {
+      return 0.0;
+    }
+  }
+
+  /**
+   * @return the some avg10 value from /proc/pressure/io.
+   */
+  static double parseIoPressure(List<String> lines) {
+    for (String line : lines) {
+      if (line.startsWith("some")) {
+        for (String field : line.split("\\s+")) {
+          if (field.startsWith("avg10=")) {
+            try {
+              return Double.parseDouble(field.substring("avg10=".length()));
+            } catch (NumberFormatException e) {
+              return 0.0;
+            }
+          }
+        }
+      }
+    }
+    return 0.0;
+  }
+}
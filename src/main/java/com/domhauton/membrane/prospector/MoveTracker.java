@@ -0,0 +1,99 @@
+package com.domhauton.membrane.prospector;
+
+import com.domhauton.membrane.prospector.metadata.FileIdentity;
+import com.domhauton.membrane.prospector.metadata.FileMetadata;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Created by dominic on 24/10/17.
+ * <p>
+ * Indexes managed files by device, inode, size and modify time so a moved or renamed file can be recognised
+ * without reading it. The change time is ignored as a rename updates it.
+ * <p>
+ * Removed files are remembered for a short while as the removal of the old path may be handled before the addition
+ * of the new one.
+ */
+class MoveTracker {
+  private final long removedRetentionMillis;
+  private final Map<FileIdentity, TrackedFile> byIdentity;
+  private final Map<String, FileIdentity> byPath;
+
+  MoveTracker(long removedRetentionMillis) {
+    this.removedRetentionMillis = removedRetentionMillis;
+    this.byIdentity = new HashMap<>();
+    this.byPath = new HashMap<>();
+  }
+
+  /**
+   * Records the identity of a file that has just been stored.
+   */
+  synchronized void track(Path path, FileIdentity fileIdentity, FileMetadata fileMetadata) {
+    if (!fileIdentity.hasInode()) {
+      return;
+    }
+    FileIdentity key = fileIdentity.withoutChangeTime();
+    FileIdentity previousKey = byPath.put(path.toString(), key);
+    if (previousKey != null && !previousKey.equals(key)) {
+      byIdentity.remove(previousKey);
+    }
+    byIdentity.put(key, new TrackedFile(path.toString(), fileMetadata));
+  }
+
+  /**
+   * Marks the file at the path as removed. It can still be found as the source of a move until it expires.
+   */
+  synchronized void removed(Path path, long nowMillis) {
+    FileIdentity key = byPath.remove(path.toString());
+    TrackedFile trackedFile = key == null ? null : byIdentity.get(key);
+    if (trackedFile != null && trackedFile.path.equals(path.toString())) {
+      trackedFile.removedMillis = nowMillis;
+    }
+  }
+
+  /**
+   * Finds a stored file at another path with the same identity.
+   *
+   * @return the metadata of the stored file. Empty if none match.
+   */
+  synchronized Optional<FileMetadata> findMoved(Path path, FileIdentity fileIdentity, long nowMillis) {
+    if (!fileIdentity.hasInode()) {
+      return Optional.empty();
+    }
+    TrackedFile trackedFile = byIdentity.get(fileIdentity.withoutChangeTime());
+    if (trackedFile == null || trackedFile.path.equals(path.toString()) || trackedFile.isExpired(nowMillis)) {
+      return Optional.empty();
+    }
+    return Optional.of(trackedFile.fileMetadata);
+  }
+
+  /**
+   * Forgets removed files older than the retention period.
+   */
+  synchronized void purge(long nowMillis) {
+    byIdentity.values().removeIf(x -> x.isExpired(nowMillis));
+  }
+
+  synchronized int size() {
+    return byIdentity.size();
+  }
+
+  private class TrackedFile {
+    private final String path;
+    private final FileMetadata fileMetadata;
+    private long removedMillis;
+
+    TrackedFile(String path, FileMetadata fileMetadata) {
+      this.path = path;
+      this.fileMetadata = fileMetadata;
+      this.removedMillis = -1L;
+    }
+
+    boolean isExpired(long nowMillis) {
+      return removedMillis >= 0 && nowMillis - removedMillis > removedRetentionMillis;
+    }
+  }
+}
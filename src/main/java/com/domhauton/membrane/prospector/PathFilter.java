@@ -0,0 +1,158 @@
+package com.domhauton.membrane.prospector;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Created by dominic on 25/10/17.
+ * <p>
+ * A set of glob and regex rules compiled once so a path is checked against all of them in a few lookups.
+ * <p>
+ * Literal names are a hash lookup. Wildcard names, multi-name globs and regexes are each merged into a single pattern.
+ */
+class PathFilter {
+  private static final String REGEX_PREFIX = "regex:";
+  private static final String GLOB_SEP = "/";
+  private static final String SEP = FileSystems.getDefault().getSeparator();
+
+  private final Set<String> literalNames;
+  private final Pattern namePattern;
+  private final Pattern suffixPattern;
+  private final Pattern pathPattern;
+
+  /**
+   * @throws IllegalArgumentException if a rule is not a valid glob or regex.
+   */
+  PathFilter(Collection<String> rules) {
+    literalNames = new HashSet<>();
+    List<String> nameRegexes = new ArrayList<>();
+    List<String> suffixRegexes = new ArrayList<>();
+    List<String> pathRegexes = new ArrayList<>();
+    if (rules != null) {
+      for (String rule : rules) {
+        if (rule.startsWith(REGEX_PREFIX)) {
+          pathRegexes.add(rule.substring(REGEX_PREFIX.length()));
+        } else if (rule.contains(GLOB_SEP)) {
+          suffixRegexes.add(globToRegex(trimSeparators(rule)));
+        } else if (isLiteral(rule)) {
+          literalNames.add(rule);
+        } else {
+          nameRegexes.add(globToRegex(rule));
+        }
+      }
+    }
+    namePattern = compile(nameRegexes, "", "");
+    suffixPattern = compile(suffixRegexes, "(?:^|" + Pattern.quote(SEP) + ")", "$");
+    pathPattern = compile(pathRegexes, "", "");
+  }
+
+  boolean isEmpty() {
+    return literalNames.isEmpty() && namePattern == null && suffixPattern == null && pathPattern == null;
+  }
+
+  /**
+   * @return true if any rule matches the path.
+   */
+  boolean matches(Path path) {
+    Path fileName = path.getFileName();
+    if (fileName != null) {
+      String name = fileName.toString();
+      if (literalNames.contains(name) || (namePattern != null && namePattern.matcher(name).matches())) {
+        return true;
+      }
+    }
+    String fullPath = path.toString();
+    return (suffixPattern != null && suffixPattern.matcher(fullPath).find()) ||
+        (pathPattern != null && pathPattern.matcher(fullPath).matches());
+  }
+
+  private static Pattern compile(List<String> regexes, String prefix, String suffix) {
+    if (regexes.isEmpty()) {
+      return null;
+    }
+    try {
+      return Pattern.compile(prefix + "(?:" + String.join("|", regexes) + ")" + suffix);
+    } catch (PatternSyntaxException e) {
+      throw new IllegalArgumentException("Invalid path rule. " + e.getDescription());
+    }
+  }
+
+  private static boolean isLiteral(String glob) {
+    return glob.chars().noneMatch(x -> x == '*' || x == '?' || x == '[' || x == '{');
+  }
+
+  private static String trimSeparators(String glob) {
+    int start = 0;
+    int end = glob.length();
+    while (start < end && glob.startsWith(GLOB_SEP, start)) {
+      start++;
+    }
+    while (end > start && glob.startsWith(GLOB_SEP, end - 1)) {
+      end--;
+    }
+    return glob.substring(start, end);
+  }
+
+  /**
+   * Converts a glob to a regex. "*" and "?" stay within a name, "**" crosses names, "{a,b}" is either alternative and
+   * "[...]" is a character class.
+   */
+  static String globToRegex(String glob) {
+    String sep = Pattern.quote(SEP);
+    String notSep = "[^" + (SEP.equals("\\") ? "\\\\" : SEP) + "]";
+    StringBuilder regex = new StringBuilder();
+    boolean inGroup = false;
+    for (int i = 0; i < glob.length(); i++) {
+      char c = glob.charAt(i);
+      switch (c) {
+        case '*':
+          if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+            regex.append(".*");
+            i++;
+          } else {
+            regex.append(notSep).append('*');
+          }
+          break;
+        case '?':
+          regex.append(notSep);
+          break;
+        case '[':
+          int close = glob.indexOf(']', i + 1);
+          if (close < 0) {
+            throw new IllegalArgumentException("Unclosed [ in path rule " + glob);
+          }
+          String characters = glob.substring(i + 1, close).replace("\\", "\\\\");
+          regex.append('[').append(characters.startsWith("!") ? "^" + characters.substring(1) : characters).append(']');
+          i = close;
+          break;
+        case '{':
+          regex.append("(?:");
+          inGroup = true;
+          break;
+        case '}':
+          regex.append(inGroup ? ")" : "\\}");
+          inGroup = false;
+          break;
+        case ',':
+          regex.append(inGroup ? "|" : ",");
+          break;
+        case '/':
+          regex.append(sep);
+          break;
+        default:
+          regex.append(Pattern.quote(String.valueOf(c)));
+      }
+    }
+    if (inGroup) {
+      throw new IllegalArgumentException("Unclosed { in path rule " + glob);
+    }
+    return regex.toString();
+  }
+}
@@ -0,0 +1,73 @@
+package com.domhauton.membrane.prospector;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * Created by dominic on 18/10/17.
+ * <p>
+ * A fixed set of worker threads consuming from a bounded queue. Submitting to a full stage blocks the submitter.
+ * <p>
+ * Handlers must finish or fail every item they take, whatever they throw. Workers survive any failure of a handler.
+ */
+class PipelineStage<T> {
+  private final Logger logger = LogManager.getLogger();
+  private final String name;
+  private final BlockingQueue<T> queue;
+  private final List<Thread> workers;
+  private final Consumer<T> handler;
+
+  PipelineStage(String name, int workerCount, int queueSize, Consumer<T> handler) {
+    if (workerCount <= 0) {
+      throw new IllegalArgumentException("Stage " + name + " requires at least one worker. Was " + workerCount);
+    }
+    this.name = name;
+    this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+    this.handler = handler;
+    this.workers = new LinkedList<>();
+    for (int i = 0; i < workerCount; i++) {
+      Thread worker = new Thread(this::work, "membrane-ingest-" + name + "-" + i);
+      worker.setDaemon(true);
+      workers.add(worker);
+    }
+  }
+
+  void start() {
+    workers.forEach(Thread::start);
+  }
+
+  /**
+   * Queues the item for processing. Blocks while the stage is full.
+   */
+  void submit(T item) throws InterruptedException {
+    queue.put(item);
+  }
+
+  int getQueueDepth() {
+    return queue.size();
+  }
+
+  void stop() {
+    workers.forEach(Thread::interrupt);
+  }
+
+  private void work() {
+    while (!Thread.currentThread().isInterrupted()) {
+      try {
+        handler.accept(queue.take());
+      } catch (InterruptedException e) {
+        logger.debug("Ingest stage {} worker stopping.", name);
+        Thread.currentThread().interrupt();
+      } catch (Throwable e) {
+        // Handlers settle their own items. Anything escaping them must not shrink the stage.
+        logger.error("Ingest stage {} worker failed to process item. {}", name, e.toString());
+      }
+    }
+  }
+}
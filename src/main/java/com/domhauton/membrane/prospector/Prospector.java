@@ -7,13 +7,13 @@ import org.apache.commons.collections4.CollectionUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
 import static java.nio.file.StandardWatchEventKinds.*;
 
@@ -23,43 +23,189 @@ import static java.nio.file.StandardWatchEventKinds.*;
 class Prospector {
   private final static String SEP = java.nio.file.FileSystems.getDefault().getSeparator();
   private final static int MAX_UPDATES = 1000;
+  private final static long MTIME_GRANULARITY_MILLIS = 2000L;
 
   private final Logger logger;
 
   private final WatchService watchService;
   private final BiMap<WatchKey, Path> keys;
-  private final Set<WatchFolder> watchFolders;
-
+  private final Map<WatchFolder, WatchFolderMatcher> watchFolders;
+  private final DirectoryTree directoryTree;
 
   Prospector() throws IOException {
     logger = LogManager.getLogger();
     watchService = FileSystems.getDefault().newWatchService();
     keys = HashBiMap.create();
-    watchFolders = new HashSet<>();
+    watchFolders = new HashMap<>();
+    directoryTree = new DirectoryTree();
   }
 
-  Set<Path> rediscoverFolders() {
-    Set<Path> allFolders = getWatchedFolders();
-    Collection<Path> newFolders = CollectionUtils.subtract(allFolders, keys.values());
-    Collection<Path> removedFolders = CollectionUtils.subtract(keys.values(), allFolders);
+  /**
+   * Walks every watch folder to find new and removed directories. The directory tree is updated to match.
+   */
+  synchronized Set<Path> rediscoverFolders() {
+    Set<Path> allFolders = watchFolders.values().stream()
+            .flatMap(x -> findMatchingFolders(x).stream())
+            .collect(Collectors.toSet());
+    Set<Path> knownFolders = directoryTree.getWatchedDirectories();
+    Collection<Path> newFolders = CollectionUtils.subtract(allFolders, knownFolders);
+    Collection<Path> removedFolders = CollectionUtils.subtract(knownFolders, allFolders);
     newFolders.stream()
             .peek(x -> logger.trace("Found new folder {}", x))
-            .forEach(this::registerPath);
+            .forEach(this::watchDirectory);
     removedFolders.stream()
             .peek(x -> logger.trace("Removing old folder"))
-            .map(x -> keys.inverse().get(x))
-            .peek(keys::remove)
-            .forEach(WatchKey::cancel);
+            .forEach(this::unwatchDirectory);
     return new HashSet<>(allFolders);
   }
 
+  /**
+   * Returns the directories currently watched. Does not touch the file system.
+   */
   public Set<Path> getWatchedFolders() {
-    return watchFolders.stream()
-            .flatMap(x -> findMatchingFolders(x).stream())
+    return directoryTree.getWatchedDirectories();
+  }
+
+  /**
+   * Lists the files in a watched folder and records them in the directory tree.
+   *
+   * @return the files in the folder. Empty if it could not be read.
+   */
+  Set<Path> rescanFolder(Path folder) {
+    long listedModifiedMillis = trustedModifiedMillis(folder);
+    File[] files = folder.toFile().listFiles();
+    Set<Path> retSet = files == null ? Collections.emptySet() : Arrays.stream(files)
+            .map(File::toPath)
+            .filter(x -> !Files.isDirectory(x) && acceptsFile(x))
             .collect(Collectors.toSet());
+    directoryTree.setFiles(folder, retSet, listedModifiedMillis);
+    return retSet;
   }
 
-  public ProspectorChangeSet checkChanges() {
+  /**
+   * Rescans a single folder whose events were lost to an overflow. The folder is only re-listed if its modify time
+   * changed since it was last listed. Otherwise no entries were added or removed and the recorded files are used.
+   *
+   * @return every file in the folder to be checked for changes, and files that were removed.
+   */
+  synchronized ProspectorChangeSet rescanOverflowedFolder(Path folder) {
+    ProspectorChangeSet pcs = new ProspectorChangeSet();
+    if (!directoryTree.isWatched(folder)) {
+      return pcs;
+    }
+    long modifiedMillis = trustedModifiedMillis(folder);
+    if (!Files.isDirectory(folder)) {
+      logger.debug("Overflowed folder no longer exists [{}]", folder);
+      directoryTree.getFilesBelow(folder).forEach(pcs::addRemoval);
+      unwatchDirectory(folder);
+      return pcs;
+    }
+    if (isListedUnchanged(folder, modifiedMillis)) {
+      Set<Path> knownFiles = directoryTree.getFiles(folder);
+      logger.debug("Overflowed folder unchanged since listing. Checking {} known files in [{}]", knownFiles.size(), folder);
+      knownFiles.forEach(pcs::addChange);
+      return pcs;
+    }
+    relistFolder(folder, modifiedMillis, pcs);
+    return pcs;
+  }
+
+  /**
+   * Re-lists the watched folders whose modify time changed since they were last listed, to catch entries added or
+   * removed without an event. Driven by the directory tree, so unchanged folders cost one stat and watch folders are
+   * never walked. Changes to the content of existing files are left to events and the full sweep.
+   *
+   * @return files in re-listed folders to be checked for changes, and files that were removed.
+   */
+  synchronized ProspectorChangeSet sweepChangedFolders() {
+    ProspectorChangeSet pcs = new ProspectorChangeSet();
+    for (Path folder : directoryTree.getWatchedDirectories()) {
+      // Re-listing a parent may have dropped the folder already.
+      if (!directoryTree.isWatched(folder)) {
+        continue;
+      }
+      long modifiedMillis = trustedModifiedMillis(folder);
+      if (!Files.isDirectory(folder)) {
+        logger.debug("Watched folder no longer exists [{}]", folder);
+        directoryTree.getFilesBelow(folder).forEach(pcs::addRemoval);
+        unwatchDirectory(folder);
+      } else if (!isListedUnchanged(folder, modifiedMillis)) {
+        relistFolder(folder, modifiedMillis, pcs);
+      }
+    }
+    return pcs;
+  }
+
+  private boolean isListedUnchanged(Path folder, long modifiedMillis) {
+    return modifiedMillis != DirectoryTree.UNKNOWN_MODIFIED &&
+        modifiedMillis == directoryTree.getListedModifiedMillis(folder);
+  }
+
+  /**
+   * Lists the folder and records what changed against the directory tree. New directories are watched and lost ones
+   * dropped.
+   */
+  private void relistFolder(Path folder, long modifiedMillis, ProspectorChangeSet pcs) {
+    Set<Path> knownFiles = directoryTree.getFiles(folder);
+    File[] entries = folder.toFile().listFiles();
+    if (entries == null) {
+      logger.warn("Could not list folder [{}]", folder);
+      return;
+    }
+    Set<Path> listedFiles = new HashSet<>();
+    Set<Path> listedDirectories = new HashSet<>();
+    for (File entry : entries) {
+      if (entry.isDirectory()) {
+        listedDirectories.add(entry.toPath());
+      } else if (acceptsFile(entry.toPath())) {
+        listedFiles.add(entry.toPath());
+      }
+    }
+    listedFiles.forEach(pcs::addChange);
+    knownFiles.stream()
+            .filter(x -> !listedFiles.contains(x))
+            .forEach(pcs::addRemoval);
+    directoryTree.setFiles(folder, listedFiles, modifiedMillis);
+
+    for (Path childDirectory : directoryTree.getChildDirectories(folder)) {
+      if (!listedDirectories.contains(childDirectory)) {
+        logger.trace("Overflowed folder lost directory [{}]", childDirectory);
+        directoryTree.getFilesBelow(childDirectory).forEach(pcs::addRemoval);
+        unwatchDirectory(childDirectory);
+      }
+    }
+    listedDirectories.stream()
+            .filter(x -> !directoryTree.isWatched(x) && matchesWatchFolder(x))
+            .forEach(x -> discoverNewDirectory(x, pcs));
+    logger.debug("Folder [{}] re-listed. {} files, {} removed.", folder, listedFiles.size(), pcs.getRemovedFiles().size());
+  }
+
+  /**
+   * Reads the modify time of a directory before listing it. Times too close to now are not trusted as an entry
+   * could be added in the same tick of a coarse file system clock after the listing.
+   *
+   * @return the modify time, or UNKNOWN_MODIFIED if it can't be trusted.
+   */
+  private long trustedModifiedMillis(Path folder) {
+    try {
+      long modifiedMillis = Files.getLastModifiedTime(folder).toMillis();
+      return System.currentTimeMillis() - modifiedMillis > MTIME_GRANULARITY_MILLIS ? modifiedMillis : DirectoryTree.UNKNOWN_MODIFIED;
+    } catch (IOException e) {
+      return DirectoryTree.UNKNOWN_MODIFIED;
+    }
+  }
+
+  /**
+   * @return true if the file is in a watched directory.
+   */
+  boolean isInWatchedFolder(Path file) {
+    return directoryTree.isWatched(file.getParent());
+  }
+
+  /**
+   * Collects the changes the file system has already reported. Does not block.
+   */
+  public synchronized ProspectorChangeSet checkChanges() {
     ProspectorChangeSet pcs = new ProspectorChangeSet();
     for (int i = 0; i < MAX_UPDATES; i++) {
       WatchKey key = null;
@@ -73,49 +219,173 @@ class Prospector {
         logger.debug("{} file updates in {} watch instances detected.", pcs.getChangedFiles().size() + pcs.getRemovedFiles().size(), i);
         return pcs;
       }
+      processKey(key, pcs);
+    }
+    logger.debug("Exceeded {} updates during sweep", MAX_UPDATES);
+    return pcs;
+  }
 
-      Path basePath = keys.getOrDefault(key, null);
+  /**
+   * Blocks until the file system reports a change, then collects every change already reported with it.
+   *
+   * @throws InterruptedException if interrupted while waiting.
+   * @throws ClosedWatchServiceException if the prospector was closed.
+   */
+  ProspectorChangeSet awaitChanges() throws InterruptedException {
+    WatchKey firstKey = watchService.take();
+    synchronized (this) {
+      ProspectorChangeSet pcs = new ProspectorChangeSet();
+      processKey(firstKey, pcs);
+      WatchKey key;
+      for (int i = 1; i < MAX_UPDATES && (key = watchService.poll()) != null; i++) {
+        processKey(key, pcs);
+      }
+      return pcs;
+    }
+  }
 
-      for (WatchEvent<?> event : key.pollEvents()) {
-        WatchEvent.Kind kind = event.kind();
-        if (StandardWatchEventKinds.OVERFLOW == kind) {
-          logger.error("Missed events due to overflow. Full re-scan advised.");
-          pcs.setOverflow();
+  /**
+   * Stops watching. Wakes any thread waiting for changes.
+   */
+  void close() {
+    try {
+      watchService.close();
+    } catch (IOException e) {
+      logger.warn("Failed to close watch service. {}", e.getMessage());
+    }
+  }
+
+  private void processKey(WatchKey key, ProspectorChangeSet pcs) {
+    Path basePath = keys.getOrDefault(key, null);
+    if (basePath == null) {
+      // Key was cancelled after the event was queued.
+      key.pollEvents();
+      return;
+    }
+
+    for (WatchEvent<?> event : key.pollEvents()) {
+      WatchEvent.Kind kind = event.kind();
+      if (StandardWatchEventKinds.OVERFLOW == kind) {
+        logger.warn("Missed events due to overflow. Rescan of [{}] required.", basePath);
+        pcs.addOverflow(basePath);
+      } else {
+        WatchEvent<Path> ev = cast(event);
+        Path path = ev.context();
+        Path fullPath = Paths.get(basePath.toString() + SEP + path.toString());
+        if (kind == StandardWatchEventKinds.ENTRY_DELETE && directoryTree.isKnownDirectory(fullPath)) {
+          logger.trace("Prospector detected directory removal at [{}]", fullPath);
+          directoryTree.getFilesBelow(fullPath).forEach(pcs::addRemoval);
+          directoryTree.removeDirectory(fullPath).forEach(this::cancelKey);
+        } else if (Files.isDirectory(fullPath)) {
+          if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+            discoverNewDirectory(fullPath, pcs);
+          }
+        } else if (!acceptsFile(fullPath)) {
+          logger.trace("Prospector ignoring excluded file {} at [{}]", kind, fullPath);
         } else {
-          WatchEvent<Path> ev = cast(event);
-          Path path = ev.context();
-          Path fullPath = Paths.get(basePath.toString() + SEP + path.toString());
-          if (!Files.isDirectory(fullPath)) {
-            logger.trace("Prospector detected file {} at [{}]", kind, fullPath);
-            if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
-              pcs.addRemoval(fullPath);
-            } else {
-              pcs.addChange(fullPath);
-            }
+          logger.trace("Prospector detected file {} at [{}]", kind, fullPath);
+          if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+            directoryTree.removeFile(fullPath);
+            pcs.addRemoval(fullPath);
+          } else {
+            directoryTree.addFile(fullPath);
+            pcs.addChange(fullPath);
           }
         }
       }
+    }
 
-      boolean valid = key.reset();
-      if (!valid) {
-        logger.info("Watch Service key for {} invalid. No longer monitoring.", basePath);
-        keys.remove(key);
-      }
+    boolean valid = key.reset();
+    if (!valid) {
+      logger.info("Watch Service key for {} invalid. No longer monitoring.", basePath);
+      keys.remove(key);
+      directoryTree.removeDirectory(basePath).forEach(this::cancelKey);
     }
-    logger.debug("Exceeded {} updates during sweep", MAX_UPDATES);
-    return pcs;
   }
 
-  Set<Path> addWatchFolder(WatchFolder watchFolder) {
+  /**
+   * @throws IllegalArgumentException if an include or exclude rule of the watch folder is invalid.
+   */
+  synchronized Set<Path> addWatchFolder(WatchFolder watchFolder) {
     logger.info("Adding watch folder: {}", watchFolder.getDirectory());
-    watchFolders.add(watchFolder);
-    Set<Path> matchingFolders = findMatchingFolders(watchFolder);
-    matchingFolders.forEach(this::registerPath);
+    WatchFolderMatcher matcher = new WatchFolderMatcher(watchFolder);
+    watchFolders.put(watchFolder, matcher);
+    Set<Path> matchingFolders = findMatchingFolders(matcher);
+    matchingFolders.forEach(this::watchDirectory);
     return matchingFolders;
   }
 
-  void removeWatchFolder(WatchFolder watchFolder) {
+  /**
+   * Stops watching directories that no longer match any watch folder.
+   */
+  synchronized void removeWatchFolder(WatchFolder watchFolder) {
     watchFolders.remove(watchFolder);
+    directoryTree.getWatchedDirectories().stream()
+            .filter(x -> !matchesWatchFolder(x))
+            .forEach(this::unwatchDirectory);
+  }
+
+  /**
+   * Watches a directory created since the last sweep, and anything already created inside it.
+   */
+  private void discoverNewDirectory(Path directory, ProspectorChangeSet pcs) {
+    try {
+      Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+          if (watchFolders.values().stream().noneMatch(x -> x.shouldEnter(dir))) {
+            return FileVisitResult.SKIP_SUBTREE;
+          }
+          if (matchesWatchFolder(dir) && !directoryTree.isWatched(dir)) {
+            logger.trace("Found new folder {}", dir);
+            watchDirectory(dir);
+          }
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+          if (acceptsFile(file) && directoryTree.addFile(file)) {
+            pcs.addChange(file);
+          }
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    } catch (IOException e) {
+      logger.warn("Failed to scan new directory [{}]. It will be found in the next sweep.", directory);
+    }
+  }
+
+  private boolean matchesWatchFolder(Path directory) {
+    return watchFolders.values().stream().anyMatch(x -> x.matchesDirectory(directory));
+  }
+
+  /**
+   * @return true if a watch folder matching the parent directory of the file accepts it.
+   */
+  private boolean acceptsFile(Path file) {
+    Path directory = file.getParent();
+    return directory != null && watchFolders.values().stream()
+            .anyMatch(x -> x.matchesDirectory(directory) && x.acceptsFile(file));
+  }
+
+  private void watchDirectory(Path directory) {
+    if (!keys.containsValue(directory)) {
+      registerPath(directory);
+    }
+    directoryTree.addDirectory(directory);
+  }
+
+  private void unwatchDirectory(Path directory) {
+    directoryTree.removeDirectory(directory).forEach(this::cancelKey);
+    cancelKey(directory);
+  }
+
+  private void cancelKey(Path directory) {
+    WatchKey watchKey = keys.inverse().remove(directory);
+    if (watchKey != null) {
+      watchKey.cancel();
+    }
   }
 
   private Optional<WatchKey> registerPath(Path path) {
@@ -130,15 +400,8 @@ class Prospector {
     }
   }
 
-  private Set<Path> findMatchingFolders(final WatchFolder watchFolder) {
-    final Path searchRoot = Paths.get(findRoot(watchFolder.getDirectory()));
-    String[] splitPattern = watchFolder.getDirectory().split(SEP);
-    Set<Path> matchingFolders = findMatchingFolders(searchRoot, splitPattern, watchFolder.getRecursive());
-    logger.trace("Found {} directories matching {}", matchingFolders.size(), watchFolder.getDirectory());
-    return matchingFolders;
-  }
-
-  private Set<Path> findMatchingFolders(final Path searchRoot, final String[] pattern, final boolean recursive) {
+  private Set<Path> findMatchingFolders(final WatchFolderMatcher matcher) {
+    final Path searchRoot = matcher.getSearchRoot();
     final Set<Path> retSet = new HashSet<>();
     if (searchRoot.toFile().exists()) {
       try {
@@ -146,50 +409,25 @@ class Prospector {
           @Override
           public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
             logger.trace("Checking if should be watched [{}]", dir.toString());
-            String[] splitDir = dir.toString().split(SEP);
-            if (directoriesMatch(pattern, splitDir, recursive)) {
-              retSet.add(dir);
-            }
-            if (!recursive && splitDir.length > pattern.length) { // Don't go too deep
+            if (!matcher.shouldEnter(dir)) { // Excluded or too deep
               return FileVisitResult.SKIP_SUBTREE;
-            } else {
-              return FileVisitResult.CONTINUE;
             }
+            if (matcher.matchesDirectory(dir)) {
+              retSet.add(dir);
+            }
+            return FileVisitResult.CONTINUE;
           }
         });
       } catch (IOException e) {
-        logger.error("Could not find watchFolders matching [{}]. No access to root [{}].", searchRoot.toString());
+        logger.error("Could not find watchFolders matching [{}]. No access to root [{}].", matcher.getWatchFolder().getDirectory(), searchRoot);
       }
     } else {
       logger.debug("Skipping watch directory. Root folder does not exist. [{}]", searchRoot);
     }
+    logger.trace("Found {} directories matching {}", retSet.size(), matcher.getWatchFolder().getDirectory());
     return retSet;
   }
 
-  private String findRoot(String dir) {
-    String[] splitPattern = dir.split(SEP);
-    List<String> folderList = new LinkedList<>();
-    for (String section : splitPattern) {
-      if (section.equals("*")) {
-        break;
-      } else {
-        folderList.add(section);
-      }
-    }
-    return String.join(SEP, folderList);
-  }
-
-  private boolean directoriesMatch(String[] splitPattern, String[] splitDirectory, boolean recursive) {
-    boolean notRecursiveAndLengthDiff = !recursive && splitPattern.length != splitDirectory.length;
-    boolean recursiveAndTooShort = recursive && splitDirectory.length < splitPattern.length;
-    if (notRecursiveAndLengthDiff || recursiveAndTooShort) {
-      return false;
-    }
-    // Match section by section now
-    return IntStream.range(0, splitPattern.length).boxed()
-            .allMatch(i -> !splitPattern[i].equals("*") || !splitDirectory[i].equalsIgnoreCase(splitPattern[i]));
-  }
-
   @SuppressWarnings("unchecked")
   private static <T> WatchEvent<T> cast(WatchEvent<?> event) {
     return (WatchEvent<T>) event;
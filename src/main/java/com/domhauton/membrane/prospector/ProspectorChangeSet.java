@@ -10,11 +10,13 @@ import java.util.Set;
 public class ProspectorChangeSet {
   private final Set<Path> changedFiles;
   private final Set<Path> removedFiles;
+  private final Set<Path> overflowedFolders;
   private boolean overflow;
 
   public ProspectorChangeSet() {
     changedFiles = new HashSet<>();
     removedFiles = new HashSet<>();
+    overflowedFolders = new HashSet<>();
     overflow = false;
   }
 
@@ -34,6 +36,20 @@ public class ProspectorChangeSet {
     return removedFiles;
   }
 
+  /**
+   * Marks a folder whose events were lost and must be rescanned.
+   */
+  public void addOverflow(Path folder) {
+    overflowedFolders.add(folder);
+  }
+
+  public Set<Path> getOverflowedFolders() {
+    return overflowedFolders;
+  }
+
+  /**
+   * Marks that events were lost from an unknown folder. Everything must be rescanned.
+   */
   public void setOverflow() {
     overflow = true;
   }
@@ -0,0 +1,127 @@
+package com.domhauton.membrane.prospector;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Created by dominic on 22/10/17.
+ * <p>
+ * Coalesces watch events per path and only releases a changed file once it has stopped changing.
+ * <p>
+ * A file settles when no event arrived for the settle window and its size and modify time are the same as when the
+ * last event arrived. Files that are still changing wait twice as long each time, up to 8x the window.
+ */
+class SettleQueue {
+  private static final int MAX_BACKOFF_SHIFT = 3;
+
+  private final Logger logger = LogManager.getLogger();
+  private final long settleMillis;
+  private final Map<Path, PendingChange> pendingChanges;
+  private final Set<Path> pendingRemovals;
+  private final Set<Path> overflowedFolders;
+  private boolean overflow;
+
+  SettleQueue(long settleMillis) {
+    this.settleMillis = settleMillis;
+    this.pendingChanges = new HashMap<>();
+    this.pendingRemovals = new HashSet<>();
+    this.overflowedFolders = new HashSet<>();
+    this.overflow = false;
+  }
+
+  /**
+   * Adds the watch events. Changes restart the settle window of their path. Removals are released on the next poll.
+   */
+  synchronized void offer(ProspectorChangeSet changeSet, long nowMillis) {
+    for (Path path : changeSet.getRemovedFiles()) {
+      pendingChanges.remove(path);
+      pendingRemovals.add(path);
+    }
+    for (Path path : changeSet.getChangedFiles()) {
+      pendingRemovals.remove(path);
+      PendingChange pendingChange = pendingChanges.computeIfAbsent(path, x -> new PendingChange());
+      pendingChange.deadlineMillis = nowMillis + window(pendingChange.deferrals);
+      pendingChange.observe(path);
+    }
+    overflowedFolders.addAll(changeSet.getOverflowedFolders());
+    overflow |= changeSet.hasOverflown();
+  }
+
+  /**
+   * Removes every settled change, all removals and all overflows from the queue. Repeated overflows of a folder are
+   * coalesced into one rescan.
+   */
+  synchronized ProspectorChangeSet pollSettled(long nowMillis) {
+    ProspectorChangeSet settled = new ProspectorChangeSet();
+    pendingRemovals.forEach(settled::addRemoval);
+    pendingRemovals.clear();
+    overflowedFolders.forEach(settled::addOverflow);
+    overflowedFolders.clear();
+    if (overflow) {
+      settled.setOverflow();
+      overflow = false;
+    }
+
+    Iterator<Map.Entry<Path, PendingChange>> it = pendingChanges.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<Path, PendingChange> entry = it.next();
+      PendingChange pendingChange = entry.getValue();
+      if (pendingChange.deadlineMillis > nowMillis) {
+        continue;
+      }
+      long lastSize = pendingChange.size;
+      long lastModifiedMillis = pendingChange.modifiedMillis;
+      if (!pendingChange.observe(entry.getKey())) {
+        logger.trace("Dropping pending change for missing file [{}]", entry.getKey());
+        it.remove();
+      } else if (pendingChange.size == lastSize && pendingChange.modifiedMillis == lastModifiedMillis) {
+        settled.addChange(entry.getKey());
+        it.remove();
+      } else {
+        pendingChange.deferrals++;
+        pendingChange.deadlineMillis = nowMillis + window(pendingChange.deferrals);
+        logger.trace("File still changing. Deferring [{}]", entry.getKey());
+      }
+    }
+    return settled;
+  }
+
+  synchronized int size() {
+    return pendingChanges.size() + pendingRemovals.size();
+  }
+
+  private long window(int deferrals) {
+    return settleMillis << Math.min(deferrals, MAX_BACKOFF_SHIFT);
+  }
+
+  private static class PendingChange {
+    private long deadlineMillis;
+    private long size = -1L;
+    private long modifiedMillis = -1L;
+    private int deferrals = 0;
+
+    /**
+     * @return false if the file could not be stat'd.
+     */
+    boolean observe(Path path) {
+      try {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        size = attributes.size();
+        modifiedMillis = attributes.lastModifiedTime().toMillis();
+        return true;
+      } catch (IOException e) {
+        return false;
+      }
+    }
+  }
+}
@@ -0,0 +1,102 @@
+package com.domhauton.membrane.prospector;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Created by dominic on 27/10/17.
+ * <p>
+ * Collects the data of small files into a single pack so many files cost one shard instead of one each.
+ */
+class SmallFilePacker {
+  private final int packSize;
+  private ByteArrayOutputStream packData;
+  private List<PackedFile> packedFiles;
+
+  /**
+   * @param packSize bytes after which a pack is complete.
+   */
+  SmallFilePacker(int packSize) {
+    this.packSize = packSize;
+    this.packData = new ByteArrayOutputStream(packSize);
+    this.packedFiles = new ArrayList<>();
+  }
+
+  /**
+   * Adds the data of a file to the current pack.
+   *
+   * @return the pack if it is now complete.
+   */
+  synchronized Optional<Pack> add(IngestChunk ingestChunk, byte[] data) {
+    packedFiles.add(new PackedFile(ingestChunk, packData.size(), data.length));
+    packData.write(data, 0, data.length);
+    return packData.size() >= packSize ? drain() : Optional.empty();
+  }
+
+  /**
+   * Takes the current pack, however full.
+   *
+   * @return the pack. Empty if no files are waiting.
+   */
+  synchronized Optional<Pack> drain() {
+    if (packedFiles.isEmpty()) {
+      return Optional.empty();
+    }
+    Pack pack = new Pack(packData.toByteArray(), packedFiles);
+    packData = new ByteArrayOutputStream(packSize);
+    packedFiles = new ArrayList<>();
+    return Optional.of(pack);
+  }
+
+  /**
+   * @return the number of files waiting for the current pack to be stored.
+   */
+  synchronized int getWaitingFiles() {
+    return packedFiles.size();
+  }
+
+  static class Pack {
+    private final byte[] data;
+    private final List<PackedFile> packedFiles;
+
+    Pack(byte[] data, List<PackedFile> packedFiles) {
+      this.data = data;
+      this.packedFiles = Collections.unmodifiableList(packedFiles);
+    }
+
+    byte[] getData() {
+      return data;
+    }
+
+    List<PackedFile> getPackedFiles() {
+      return packedFiles;
+    }
+  }
+
+  static class PackedFile {
+    private final IngestChunk ingestChunk;
+    private final int offset;
+    private final int length;
+
+    PackedFile(IngestChunk ingestChunk, int offset, int length) {
+      this.ingestChunk = ingestChunk;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    IngestChunk getIngestChunk() {
+      return ingestChunk;
+    }
+
+    int getOffset() {
+      return offset;
+    }
+
+    int getLength() {
+      return length;
+    }
+  }
+}
@@ -0,0 +1,243 @@
+package com.domhauton.membrane.prospector;
+
+import com.domhauton.membrane.prospector.metadata.FileIdentity;
+import com.domhauton.membrane.storage.catalogue.metadata.MD5HashLengthPair;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Created by dominic on 20/10/17.
+ * <p>
+ * Remembers the stat identity and shards of every ingested file, so a restart only re-reads files that were touched.
+ * <p>
+ * Files whose identity drifted without a size change (after a touch or restore) can optionally be confirmed with a
+ * sampled hash of a few small regions instead of a full read.
+ */
+public class StatCache {
+  private static final int FORMAT_VERSION = 1;
+  private static final int SAMPLE_SIZE = 4 * 1024;
+  private static final int SAMPLE_COUNT = 3;
+
+  private final Logger logger = LogManager.getLogger();
+  private final Path cachePath;
+  private final boolean sampledHashCheck;
+  private final Map<String, Entry> entries;
+  private final AtomicBoolean dirty;
+
+  /**
+   * Creates an in-memory cache that is never persisted.
+   */
+  StatCache() {
+    this(null, false);
+  }
+
+  /**
+   * @param cachePath        where the cache is persisted. Loaded immediately if it exists.
+   * @param sampledHashCheck if true, files that only changed times are confirmed with a sampled hash.
+   */
+  public StatCache(Path cachePath, boolean sampledHashCheck) {
+    this.cachePath = cachePath;
+    this.sampledHashCheck = sampledHashCheck;
+    this.entries = new ConcurrentHashMap<>();
+    this.dirty = new AtomicBoolean(false);
+    if (cachePath != null && cachePath.toFile().exists()) {
+      load();
+    }
+  }
+
+  boolean isSampledHashCheck() {
+    return sampledHashCheck;
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  /**
+   * Finds the shards of the file if it is known to be unchanged since it was cached.
+   *
+   * @param path     path of the file
+   * @param identity current identity of the file
+   * @return the shards of the file, or empty if it must be re-read.
+   */
+  Optional<List<MD5HashLengthPair>> lookup(Path path, FileIdentity identity) {
+    Entry entry = entries.get(path.toString());
+    if (entry == null || entry.identity.getSize() != identity.getSize()) {
+      return Optional.empty();
+    } else if (entry.identity.equals(identity)) {
+      logger.trace("Stat cache hit for [{}]", path);
+      return Optional.of(entry.md5HashLengthPairs);
+    } else if (sampledHashCheck && entry.sampleHash != null) {
+      try {
+        if (entry.sampleHash.equals(sampleHash(path, identity.getSize()))) {
+          logger.debug("Stat cache sampled hash match for touched file [{}]", path);
+          return Optional.of(entry.md5HashLengthPairs);
+        }
+      } catch (IOException e) {
+        logger.debug("Failed to sample [{}]. {}", path, e.getMessage());
+      }
+    }
+    return Optional.empty();
+  }
+
+  /**
+   * @return the identity of the file when it was cached.
+   */
+  Optional<FileIdentity> getIdentity(Path path) {
+    Entry entry = entries.get(path.toString());
+    return entry == null ? Optional.empty() : Optional.of(entry.identity);
+  }
+
+  /**
+   * Records the shards of the file as read when it had the given identity.
+   *
+   * @param sampleHash sampled hash of the file at that time. Null if not taken.
+   */
+  void put(Path path, FileIdentity identity, String sampleHash, List<MD5HashLengthPair> md5HashLengthPairs) {
+    entries.put(path.toString(), new Entry(identity, sampleHash, new ArrayList<>(md5HashLengthPairs)));
+    dirty.set(true);
+  }
+
+  /**
+   * Updates the identity of a cached file confirmed to be unchanged.
+   */
+  void refresh(Path path, FileIdentity identity) {
+    Entry entry = entries.get(path.toString());
+    if (entry != null && !entry.identity.equals(identity)) {
+      entries.put(path.toString(), new Entry(identity, entry.sampleHash, entry.md5HashLengthPairs));
+      dirty.set(true);
+    }
+  }
+
+  void remove(Path path) {
+    if (entries.remove(path.toString()) != null) {
+      dirty.set(true);
+    }
+  }
+
+  /**
+   * Writes the cache to disk if it changed since it was last written. Written to a temp file first so a crash never
+   * leaves a partial cache.
+   */
+  void save() {
+    if (cachePath == null || !dirty.getAndSet(false)) {
+      return;
+    }
+    Path tempPath = Paths.get(cachePath.toString() + ".tmp");
+    try {
+      Files.createDirectories(cachePath.toAbsolutePath().getParent());
+      Map<String, Entry> snapshot = new HashMap<>(entries);
+      try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempPath.toFile())))) {
+        output.writeInt(FORMAT_VERSION);
+        output.writeInt(snapshot.size());
+        for (Map.Entry<String, Entry> mapEntry : snapshot.entrySet()) {
+          writeEntry(output, mapEntry.getKey(), mapEntry.getValue());
+        }
+      }
+      Files.move(tempPath, cachePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      logger.debug("Saved {} stat cache entries to [{}]", snapshot.size(), cachePath);
+    } catch (IOException e) {
+      dirty.set(true);
+      logger.error("Failed to save stat cache to [{}]. {}", cachePath, e.getMessage());
+    }
+  }
+
+  /**
+   * Hashes a few small regions of the file spread from start to end.
+   */
+  static String sampleHash(Path path, long size) throws IOException {
+    Hasher hasher = Hashing.md5().newHasher().putLong(size);
+    ByteBuffer buffer = ByteBuffer.allocate(SAMPLE_SIZE);
+    try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+      for (int i = 0; i < SAMPLE_COUNT; i++) {
+        long offset = Math.max(0L, (size - SAMPLE_SIZE) * i / (SAMPLE_COUNT - 1));
+        buffer.clear();
+        while (buffer.hasRemaining() && fileChannel.read(buffer, offset + buffer.position()) > 0) {
+          // Keep reading until the sample is full or the file ends.
+        }
+        buffer.flip();
+        hasher.putBytes(buffer.array(), 0, buffer.limit());
+      }
+    }
+    return hasher.hash().toString();
+  }
+
+  /**
+   * A corrupt or unreadable cache is dropped. It only costs a re-read of the affected files.
+   */
+  private void load() {
+    try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(cachePath.toFile())))) {
+      int version = input.readInt();
+      if (version != FORMAT_VERSION) {
+        logger.warn("Ignoring stat cache with unknown version {} at [{}]", version, cachePath);
+        return;
+      }
+      int count = input.readInt();
+      for (int i = 0; i < count; i++) {
+        readEntry(input);
+      }
+      logger.info("Loaded {} stat cache entries from [{}]", entries.size(), cachePath);
+    } catch (IOException e) {
+      logger.warn("Failed to load stat cache from [{}]. Starting empty. {}", cachePath, e.getMessage());
+      entries.clear();
+    }
+  }
+
+  private static void writeEntry(DataOutputStream output, String path, Entry entry) throws IOException {
+    output.writeUTF(path);
+    output.writeLong(entry.identity.getDevice());
+    output.writeLong(entry.identity.getInode());
+    output.writeLong(entry.identity.getSize());
+    output.writeLong(entry.identity.getModifiedMillis());
+    output.writeLong(entry.identity.getChangedMillis());
+    output.writeUTF(entry.sampleHash == null ? "" : entry.sampleHash);
+    output.writeInt(entry.md5HashLengthPairs.size());
+    for (MD5HashLengthPair md5HashLengthPair : entry.md5HashLengthPairs) {
+      output.writeUTF(md5HashLengthPair.getMd5Hash());
+      output.writeInt(md5HashLengthPair.getLength());
+    }
+  }
+
+  private void readEntry(DataInputStream input) throws IOException {
+    String path = input.readUTF();
+    FileIdentity identity = new FileIdentity(input.readLong(), input.readLong(), input.readLong(), input.readLong(),
+        input.readLong());
+    String sampleHash = input.readUTF();
+    int pairCount = input.readInt();
+    List<MD5HashLengthPair> md5HashLengthPairs = new ArrayList<>(pairCount);
+    for (int i = 0; i < pairCount; i++) {
+      md5HashLengthPairs.add(new MD5HashLengthPair(input.readUTF(), input.readInt()));
+    }
+    entries.put(path, new Entry(identity, sampleHash.isEmpty() ? null : sampleHash, md5HashLengthPairs));
+  }
+
+  private static class Entry {
+    private final FileIdentity identity;
+    private final String sampleHash;
+    private final List<MD5HashLengthPair> md5HashLengthPairs;
+
+    Entry(FileIdentity identity, String sampleHash, List<MD5HashLengthPair> md5HashLengthPairs) {
+      this.identity = identity;
+      this.sampleHash = sampleHash;
+      this.md5HashLengthPairs = md5HashLengthPairs;
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package com.domhauton.membrane.prospector;
+
+import com.domhauton.membrane.config.items.data.WatchFolder;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Created by dominic on 25/10/17.
+ * <p>
+ * A watch folder with its directory pattern split and its include and exclude rules compiled, so directories and
+ * files can be checked during walks and for every event without re-parsing the configuration.
+ */
+class WatchFolderMatcher {
+  private static final String SEP = FileSystems.getDefault().getSeparator();
+  private static final String WILDCARD = "*";
+
+  private final WatchFolder watchFolder;
+  private final String[] pattern;
+  private final boolean recursive;
+  private final Path searchRoot;
+  private final PathFilter include;
+  private final PathFilter exclude;
+
+  /**
+   * @throws IllegalArgumentException if an include or exclude rule is invalid.
+   */
+  WatchFolderMatcher(WatchFolder watchFolder) {
+    this.watchFolder = watchFolder;
+    this.pattern = Arrays.stream(watchFolder.getDirectory().split(SEP))
+        .filter(x -> !x.isEmpty())
+        .toArray(String[]::new);
+    this.recursive = watchFolder.getRecursive() != null && watchFolder.getRecursive();
+    this.searchRoot = findRoot(watchFolder.getDirectory());
+    this.include = new PathFilter(watchFolder.getInclude());
+    this.exclude = new PathFilter(watchFolder.getExclude());
+  }
+
+  WatchFolder getWatchFolder() {
+    return watchFolder;
+  }
+
+  /**
+   * @return the deepest directory without wildcards that every matching directory is below.
+   */
+  Path getSearchRoot() {
+    return searchRoot;
+  }
+
+  /**
+   * Names are compared ignoring case.
+   *
+   * @return true if the directory matches the pattern and is not excluded.
+   */
+  boolean matchesDirectory(Path directory) {
+    int depth = directory.getNameCount();
+    if (recursive ? depth < pattern.length : depth != pattern.length) {
+      return false;
+    }
+    for (int i = 0; i < pattern.length; i++) {
+      if (!pattern[i].equals(WILDCARD) && !pattern[i].equalsIgnoreCase(directory.getName(i).toString())) {
+        return false;
+      }
+    }
+    return !exclude.matches(directory);
+  }
+
+  /**
+   * @return true if a walk should enter the directory to look for matching directories or files.
+   */
+  boolean shouldEnter(Path directory) {
+    return directory.startsWith(searchRoot) &&
+        (recursive || directory.getNameCount() <= pattern.length) &&
+        !exclude.matches(directory);
+  }
+
+  /**
+   * @return true if the file is not excluded and matches an include rule, if there are any.
+   */
+  boolean acceptsFile(Path file) {
+    return !exclude.matches(file) && (include.isEmpty() || include.matches(file));
+  }
+
+  private static Path findRoot(String directory) {
+    StringBuilder root = new StringBuilder(directory.startsWith(SEP) ? SEP : "");
+    for (String section : directory.split(SEP)) {
+      if (section.contains(WILDCARD)) {
+        break;
+      } else if (!section.isEmpty()) {
+        root.append(section).append(SEP);
+      }
+    }
+    return Paths.get(root.toString());
+  }
+}
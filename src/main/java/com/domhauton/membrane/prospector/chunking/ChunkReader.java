@@ -0,0 +1,74 @@
+package com.domhauton.membrane.prospector.chunking;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Created by dominic on 17/10/17.
+ * <p>
+ * Splits a stream into chunks using the boundaries given by a {@link Chunker}.
+ */
+public class ChunkReader implements Closeable {
+  private final InputStream inputStream;
+  private final Chunker chunker;
+  private final byte[] buffer;
+  private int start;
+  private int end;
+  private boolean endOfStream;
+
+  public ChunkReader(InputStream inputStream, Chunker chunker) {
+    this.inputStream = inputStream;
+    this.chunker = chunker;
+    this.buffer = new byte[chunker.getMaxChunkSize()];
+    start = 0;
+    end = 0;
+    endOfStream = false;
+  }
+
+  /**
+   * Reads the next chunk from the stream.
+   *
+   * @return the next chunk or null if the stream has been fully read.
+   * @throws IOException If the stream could not be read.
+   */
+  public byte[] nextChunk() throws IOException {
+    fillBuffer();
+    if (start == end) {
+      return null;
+    }
+    int chunkLength = chunker.nextChunkLength(ByteBuffer.wrap(buffer, start, end - start));
+    byte[] chunk = Arrays.copyOfRange(buffer, start, start + chunkLength);
+    start += chunkLength;
+    return chunk;
+  }
+
+  /**
+   * Moves unprocessed data to the front of the buffer and tops it up from the stream.
+   */
+  private void fillBuffer() throws IOException {
+    if (endOfStream || end - start == buffer.length) {
+      return;
+    }
+    if (start > 0) {
+      System.arraycopy(buffer, start, buffer, 0, end - start);
+      end -= start;
+      start = 0;
+    }
+    while (end < buffer.length) {
+      int read = inputStream.read(buffer, end, buffer.length - end);
+      if (read == -1) {
+        endOfStream = true;
+        return;
+      }
+      end += read;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    inputStream.close();
+  }
+}
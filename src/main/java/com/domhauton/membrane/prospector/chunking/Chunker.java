@@ -0,0 +1,24 @@
+package com.domhauton.membrane.prospector.chunking;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Created by dominic on 17/10/17.
+ * <p>
+ * Decides where a file is cut into shards.
+ */
+public interface Chunker {
+  /**
+   * Finds the length of the chunk starting at the position of the given data.
+   *
+   * @param data unprocessed file data between position and limit. Contains at least {@link #getMaxChunkSize()} bytes
+   *             unless the end of the file has been reached.
+   * @return length of the next chunk. Never more than the remaining data.
+   */
+  int nextChunkLength(ByteBuffer data);
+
+  /**
+   * @return the largest chunk this chunker will ever produce in bytes.
+   */
+  int getMaxChunkSize();
+}
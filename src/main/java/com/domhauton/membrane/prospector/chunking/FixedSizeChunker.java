@@ -0,0 +1,29 @@
+package com.domhauton.membrane.prospector.chunking;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Created by dominic on 17/10/17.
+ * <p>
+ * Cuts files into equally sized chunks. Only the last chunk of a file may be smaller.
+ */
+public class FixedSizeChunker implements Chunker {
+  private final int chunkSize;
+
+  public FixedSizeChunker(int chunkSize) {
+    if (chunkSize <= 0) {
+      throw new IllegalArgumentException("Chunk size must be positive. Was " + chunkSize);
+    }
+    this.chunkSize = chunkSize;
+  }
+
+  @Override
+  public int nextChunkLength(ByteBuffer data) {
+    return Math.min(data.remaining(), chunkSize);
+  }
+
+  @Override
+  public int getMaxChunkSize() {
+    return chunkSize;
+  }
+}
@@ -0,0 +1,91 @@
+package com.domhauton.membrane.prospector.chunking;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Created by dominic on 17/10/17.
+ * <p>
+ * Content defined chunker using a FastCDC style Gear rolling hash.
+ * <p>
+ * Boundaries depend only on the last 64 bytes seen, so an edit only moves the boundaries around the changed region.
+ * Normalised chunking uses a stricter mask before the average size and a looser one after it to keep chunk sizes
+ * close to the average.
+ */
+public class GearChunker implements Chunker {
+  // Fixed seed. Changing this changes every boundary and invalidates de-duplication against stored shards.
+  private static final long GEAR_SEED = 0x6d656d6272616e65L;
+  private static final long[] GEAR = generateGearTable();
+  private static final int NORMALISATION_LEVEL = 2;
+
+  private final int minChunkSize;
+  private final int avgChunkSize;
+  private final int maxChunkSize;
+  private final long maskSmall;
+  private final long maskLarge;
+
+  /**
+   * @param minChunkSize no boundary is placed before this many bytes.
+   * @param avgChunkSize the target chunk size. Rounded up to a power of two for the hash mask.
+   * @param maxChunkSize a boundary is always placed after this many bytes.
+   */
+  public GearChunker(int minChunkSize, int avgChunkSize, int maxChunkSize) {
+    if (minChunkSize <= 0 || minChunkSize > avgChunkSize || avgChunkSize > maxChunkSize) {
+      throw new IllegalArgumentException("Chunk sizes must satisfy 0 < min <= avg <= max. Were "
+          + minChunkSize + ", " + avgChunkSize + ", " + maxChunkSize);
+    }
+    this.minChunkSize = minChunkSize;
+    this.avgChunkSize = avgChunkSize;
+    this.maxChunkSize = maxChunkSize;
+    int maskBits = 32 - Integer.numberOfLeadingZeros(avgChunkSize - 1);
+    maskSmall = highBitMask(Math.min(63, maskBits + NORMALISATION_LEVEL));
+    maskLarge = highBitMask(Math.max(1, maskBits - NORMALISATION_LEVEL));
+  }
+
+  @Override
+  public int nextChunkLength(ByteBuffer data) {
+    int remaining = data.remaining();
+    if (remaining <= minChunkSize) {
+      return remaining;
+    }
+    int base = data.position();
+    int end = Math.min(remaining, maxChunkSize);
+    int normal = Math.min(end, avgChunkSize);
+    long hash = 0L;
+    int i = minChunkSize;
+    for (; i < normal; i++) {
+      hash = (hash << 1) + GEAR[data.get(base + i) & 0xff];
+      if ((hash & maskSmall) == 0) {
+        return i + 1;
+      }
+    }
+    for (; i < end; i++) {
+      hash = (hash << 1) + GEAR[data.get(base + i) & 0xff];
+      if ((hash & maskLarge) == 0) {
+        return i + 1;
+      }
+    }
+    return end;
+  }
+
+  @Override
+  public int getMaxChunkSize() {
+    return maxChunkSize;
+  }
+
+  /**
+   * Gear hash bits shift left, so only the high bits depend on the whole 64 byte window.
+   */
+  private static long highBitMask(int bits) {
+    return ((1L << bits) - 1) << (Long.SIZE - bits);
+  }
+
+  private static long[] generateGearTable() {
+    Random random = new Random(GEAR_SEED);
+    long[] table = new long[256];
+    for (int i = 0; i < table.length; i++) {
+      table[i] = random.nextLong();
+    }
+    return table;
+  }
+}
@@ -0,0 +1,88 @@
+package com.domhauton.membrane.prospector.chunking;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Created by dominic on 19/10/17.
+ * <p>
+ * Splits a file into chunks using the boundaries given by a {@link Chunker} without copying it onto the heap.
+ * <p>
+ * The file is mapped a window at a time. Returned chunks are read-only views of the mapped window and stay valid after
+ * the reader is closed.
+ */
+public class MappedChunkReader implements Closeable {
+  private static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+  private final FileChannel fileChannel;
+  private final Chunker chunker;
+  private final long fileSize;
+  private final int windowSize;
+  private final long startOffset;
+  private MappedByteBuffer window;
+  private long windowStart;
+
+  public MappedChunkReader(Path path, Chunker chunker) throws IOException {
+    this(path, chunker, 0L);
+  }
+
+  /**
+   * @param startOffset position in the file of the first chunk. Must be a chunk boundary.
+   */
+  public MappedChunkReader(Path path, Chunker chunker, long startOffset) throws IOException {
+    this(path, chunker, startOffset, DEFAULT_WINDOW_SIZE);
+  }
+
+  /**
+   * @param windowSize bytes mapped at once. Raised to the max chunk size if smaller.
+   */
+  MappedChunkReader(Path path, Chunker chunker, long startOffset, int windowSize) throws IOException {
+    this.fileChannel = FileChannel.open(path, StandardOpenOption.READ);
+    this.chunker = chunker;
+    this.fileSize = fileChannel.size();
+    this.windowSize = Math.max(windowSize, chunker.getMaxChunkSize());
+    this.startOffset = startOffset;
+    window = null;
+    windowStart = 0L;
+  }
+
+  /**
+   * Reads the next chunk from the file.
+   *
+   * @return a read-only view of the next chunk or null if the file has been fully read.
+   * @throws IOException If the file could not be mapped.
+   */
+  public ByteBuffer nextChunk() throws IOException {
+    long position = window == null ? startOffset : windowStart + window.position();
+    if (position >= fileSize) {
+      return null;
+    }
+    if (window == null || (window.remaining() < chunker.getMaxChunkSize() && windowStart + window.limit() < fileSize)) {
+      mapWindow(position);
+    }
+    int chunkLength = chunker.nextChunkLength(window);
+    ByteBuffer chunk = window.slice();
+    chunk.limit(chunkLength);
+    window.position(window.position() + chunkLength);
+    return chunk.asReadOnlyBuffer();
+  }
+
+  /**
+   * Maps the next window of the file starting at the given position.
+   */
+  private void mapWindow(long position) throws IOException {
+    long mapSize = Math.min(windowSize, fileSize - position);
+    window = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, mapSize);
+    windowStart = position;
+  }
+
+  @Override
+  public void close() throws IOException {
+    fileChannel.close();
+  }
+}
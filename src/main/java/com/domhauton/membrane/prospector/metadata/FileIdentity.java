@@ -0,0 +1,128 @@
+package com.domhauton.membrane.prospector.metadata;
+
+import com.google.common.base.Objects;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+
+/**
+ * Created by dominic on 20/10/17.
+ * <p>
+ * The stat information of a file on disk. If two identities are equal the file has not been touched in between.
+ * <p>
+ * Device and inode numbers are only available on unix file systems. Elsewhere they are 0 and the identity falls back
+ * to size and times.
+ */
+public class FileIdentity {
+  private static final String UNIX_ATTRIBUTES = "unix:dev,ino,size,lastModifiedTime,ctime";
+
+  private final long device;
+  private final long inode;
+  private final long size;
+  private final long modifiedMillis;
+  private final long changedMillis;
+
+  public FileIdentity(long device, long inode, long size, long modifiedMillis, long changedMillis) {
+    this.device = device;
+    this.inode = inode;
+    this.size = size;
+    this.modifiedMillis = modifiedMillis;
+    this.changedMillis = changedMillis;
+  }
+
+  /**
+   * Reads the current identity of the file at the given path.
+   *
+   * @throws IOException If the file could not be stat'd.
+   */
+  public static FileIdentity read(Path path) throws IOException {
+    try {
+      Map<String, Object> attributes = Files.readAttributes(path, UNIX_ATTRIBUTES);
+      return new FileIdentity(
+          ((Number) attributes.get("dev")).longValue(),
+          ((Number) attributes.get("ino")).longValue(),
+          ((Number) attributes.get("size")).longValue(),
+          ((FileTime) attributes.get("lastModifiedTime")).toMillis(),
+          ((FileTime) attributes.get("ctime")).toMillis());
+    } catch (UnsupportedOperationException | IllegalArgumentException e) {
+      BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+      return new FileIdentity(0L, 0L,
+          attributes.size(),
+          attributes.lastModifiedTime().toMillis(),
+          attributes.lastModifiedTime().toMillis());
+    }
+  }
+
+  public long getDevice() {
+    return device;
+  }
+
+  public long getInode() {
+    return inode;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public long getModifiedMillis() {
+    return modifiedMillis;
+  }
+
+  public long getChangedMillis() {
+    return changedMillis;
+  }
+
+  /**
+   * @return false if the file system did not provide device and inode numbers.
+   */
+  public boolean hasInode() {
+    return device != 0L || inode != 0L;
+  }
+
+  /**
+   * @return this identity with the change time cleared. It stays the same when the file is renamed or moved.
+   */
+  public FileIdentity withoutChangeTime() {
+    return new FileIdentity(device, inode, size, modifiedMillis, 0L);
+  }
+
+  /**
+   * @return true if both identities refer to the same inode. Always true if inodes are unavailable.
+   */
+  public boolean isSameFile(FileIdentity that) {
+    return device == that.device && inode == that.inode;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    FileIdentity that = (FileIdentity) o;
+    return device == that.device &&
+        inode == that.inode &&
+        size == that.size &&
+        modifiedMillis == that.modifiedMillis &&
+        changedMillis == that.changedMillis;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(device, inode, size, modifiedMillis, changedMillis);
+  }
+
+  @Override
+  public String toString() {
+    return "FileIdentity{" +
+        "device=" + device +
+        ", inode=" + inode +
+        ", size=" + size +
+        ", modifiedMillis=" + modifiedMillis +
+        ", changedMillis=" + changedMillis +
+        '}';
+  }
+}
@@ -0,0 +1,64 @@
+package com.domhauton.membrane.shard;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Created by dominic on 06/11/17.
+ * <p>
+ * Streams the remaining bytes of a buffer without copying them first. The buffer's position is moved as it is read,
+ * so each stream should be given its own duplicate.
+ */
+class ByteBufferInputStream extends InputStream {
+  private final ByteBuffer buffer;
+  private int mark;
+
+  ByteBufferInputStream(ByteBuffer buffer) {
+    this.buffer = buffer;
+    this.mark = buffer.position();
+  }
+
+  @Override
+  public int read() {
+    return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+  }
+
+  @Override
+  public int read(byte[] bytes, int offset, int length) {
+    if (length == 0) {
+      return 0;
+    } else if (!buffer.hasRemaining()) {
+      return -1;
+    }
+    int readLength = Math.min(length, buffer.remaining());
+    buffer.get(bytes, offset, readLength);
+    return readLength;
+  }
+
+  @Override
+  public long skip(long length) {
+    int skipLength = (int) Math.max(0L, Math.min(length, buffer.remaining()));
+    buffer.position(buffer.position() + skipLength);
+    return skipLength;
+  }
+
+  @Override
+  public int available() {
+    return buffer.remaining();
+  }
+
+  @Override
+  public boolean markSupported() {
+    return true;
+  }
+
+  @Override
+  public synchronized void mark(int readLimit) {
+    mark = buffer.position();
+  }
+
+  @Override
+  public synchronized void reset() {
+    buffer.position(mark);
+  }
+}
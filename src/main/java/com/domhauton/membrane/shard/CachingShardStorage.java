@@ -0,0 +1,212 @@
+package com.domhauton.membrane.shard;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by dominic on 30/10/17.
+ * <p>
+ * Keeps recently read shards in memory outside of the heap, so shards read again while restoring files or packing
+ * blocks are not read from disk and hashed again. Shards are only verified by the underlying storage when first read.
+ * <p>
+ * The least recently read shards are evicted once the cache is full. A shard is only cached the second time it is
+ * missed, so a single pass over many shards does not flush the shards that are read repeatedly.
+ */
+public class CachingShardStorage implements ShardStorage {
+  private static final int DOORKEEPER_ENTRIES_PER_MB = 64;
+
+  private final Logger logger = LogManager.getLogger();
+  private final ShardStorage shardStorage;
+  private final long maxCacheBytes;
+  private final LinkedHashMap<String, ByteBuffer> cache;
+  private final LinkedHashMap<String, Boolean> doorkeeper;
+  private final int maxDoorkeeperEntries;
+  private long cacheBytes;
+
+  private final AtomicLong hits;
+  private final AtomicLong misses;
+  private final AtomicLong evictions;
+
+  /**
+   * @param shardStorage  storage to cache reads of.
+   * @param maxCacheBytes bytes of shard data held in memory.
+   */
+  public CachingShardStorage(ShardStorage shardStorage, long maxCacheBytes) {
+    this.shardStorage = shardStorage;
+    this.maxCacheBytes = maxCacheBytes;
+    this.cache = new LinkedHashMap<>(16, 0.75f, true);
+    this.doorkeeper = new LinkedHashMap<>(16, 0.75f, true);
+    this.maxDoorkeeperEntries = (int) Math.max(DOORKEEPER_ENTRIES_PER_MB, maxCacheBytes / (1024 * 1024) * DOORKEEPER_ENTRIES_PER_MB);
+    this.cacheBytes = 0L;
+    this.hits = new AtomicLong(0L);
+    this.misses = new AtomicLong(0L);
+    this.evictions = new AtomicLong(0L);
+  }
+
+  @Override
+  public void storeShard(String shardId, byte[] data) throws ShardStorageException {
+    shardStorage.storeShard(shardId, data);
+  }
+
+  @Override
+  public void storeShard(String shardId, ByteBuffer data) throws ShardStorageException {
+    shardStorage.storeShard(shardId, data);
+  }
+
+  @Override
+  public void storeShard(String shardId, ReadableByteChannel data, long length) throws ShardStorageException {
+    shardStorage.storeShard(shardId, data, length);
+  }
+
+  @Override
+  public byte[] retrieveShard(String shardId) throws ShardStorageException {
+    ByteBuffer cached = getCached(shardId);
+    if (cached != null) {
+      byte[] data = new byte[cached.remaining()];
+      cached.get(data);
+      return data;
+    }
+    misses.incrementAndGet();
+    byte[] data = shardStorage.retrieveShard(shardId);
+    admit(shardId, data);
+    return data;
+  }
+
+  /**
+   * Streamed reads are served from the cache but never admitted to it, as they are used for shards too large to hold.
+   * Cached shards are streamed straight from their off-heap buffer without a copy on the heap.
+   */
+  @Override
+  public InputStream openShard(String shardId) throws ShardStorageException {
+    ByteBuffer cached = getCached(shardId);
+    if (cached != null) {
+      return new ByteBufferInputStream(cached);
+    }
+    misses.incrementAndGet();
+    return shardStorage.openShard(shardId);
+  }
+
+  @Override
+  public boolean verifyShard(String shardId) throws ShardStorageException {
+    boolean valid = shardStorage.verifyShard(shardId);
+    if (!valid) {
+      invalidate(shardId);
+    }
+    return valid;
+  }
+
+  @Override
+  public boolean hasShard(String shardId) {
+    return shardStorage.hasShard(shardId);
+  }
+
+  @Override
+  public long getShardSize(String shardId) throws ShardStorageException {
+    return shardStorage.getShardSize(shardId);
+  }
+
+  @Override
+  public long removeShard(String shardId) throws ShardStorageException {
+    invalidate(shardId);
+    return shardStorage.removeShard(shardId);
+  }
+
+  @Override
+  public Set<String> listShardIds() {
+    return shardStorage.listShardIds();
+  }
+
+  @Override
+  public long getStorageSize() {
+    return shardStorage.getStorageSize();
+  }
+
+  @Override
+  public void close() {
+    logger.info("Shard read cache closing. {} hits. {} misses. {} evictions.", getHits(), getMisses(), getEvictions());
+    synchronized (this) {
+      cache.clear();
+      doorkeeper.clear();
+      cacheBytes = 0L;
+    }
+    shardStorage.close();
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  public synchronized long getCacheBytes() {
+    return cacheBytes;
+  }
+
+  /**
+   * An evicted shard stays readable through buffers already handed out until they are no longer used.
+   *
+   * @return a read-only view of the cached shard with its own position, or null if not cached.
+   */
+  private ByteBuffer getCached(String shardId) {
+    ByteBuffer cached;
+    synchronized (this) {
+      cached = cache.get(shardId);
+    }
+    if (cached == null) {
+      return null;
+    }
+    hits.incrementAndGet();
+    return cached.duplicate();
+  }
+
+  /**
+   * Caches the shard if it was missed recently. Otherwise only remembers the miss.
+   */
+  private synchronized void admit(String shardId, byte[] data) {
+    if (data.length > maxCacheBytes || cache.containsKey(shardId)) {
+      return;
+    }
+    if (doorkeeper.remove(shardId) == null) {
+      doorkeeper.put(shardId, Boolean.TRUE);
+      if (doorkeeper.size() > maxDoorkeeperEntries) {
+        Iterator<String> oldest = doorkeeper.keySet().iterator();
+        oldest.next();
+        oldest.remove();
+      }
+      return;
+    }
+    Iterator<Map.Entry<String, ByteBuffer>> lru = cache.entrySet().iterator();
+    while (cacheBytes + data.length > maxCacheBytes && lru.hasNext()) {
+      cacheBytes -= lru.next().getValue().capacity();
+      lru.remove();
+      evictions.incrementAndGet();
+    }
+    ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+    buffer.put(data).flip();
+    cache.put(shardId, buffer.asReadOnlyBuffer());
+    cacheBytes += data.length;
+  }
+
+  private synchronized void invalidate(String shardId) {
+    ByteBuffer removed = cache.remove(shardId);
+    if (removed != null) {
+      cacheBytes -= removed.capacity();
+    }
+    doorkeeper.remove(shardId);
+  }
+}
@@ -0,0 +1,14 @@
+package com.domhauton.membrane.shard;
+
+import java.io.IOException;
+
+/**
+ * Created by dominic on 09/11/17.
+ * <p>
+ * Thrown while streaming a shard whose stored data cannot be decoded, as opposed to a failure to read the file.
+ */
+class CorruptShardException extends IOException {
+  CorruptShardException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,214 @@
+package com.domhauton.membrane.shard;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by dominic on 03/11/17.
+ * <p>
+ * Batches fsyncs from many writers. The first request of a batch waits up to the latency budget for others to join,
+ * then the whole batch is synced together, so concurrent writers share the cost of each sync.
+ * <p>
+ * Within a batch directories are synced before files. A journal appended after its shards were renamed into place is
+ * therefore never durable before the renames are.
+ */
+public class GroupCommitSync {
+  private final Logger logger = LogManager.getLogger();
+  private final long latencyNanos;
+  private final Object lock;
+  private final Thread syncThread;
+  private List<SyncRequest> pendingFiles;
+  private Set<Path> pendingDirectories;
+  private boolean closed;
+
+  /**
+   * @param latency longest a sync request waits for others to batch with.
+   */
+  public GroupCommitSync(long latency, TimeUnit timeUnit) {
+    this.latencyNanos = timeUnit.toNanos(latency);
+    this.lock = new Object();
+    this.pendingFiles = new ArrayList<>();
+    this.pendingDirectories = new LinkedHashSet<>();
+    this.closed = false;
+    this.syncThread = new Thread(this::runSyncs, "membrane-group-sync");
+    this.syncThread.setDaemon(true);
+    this.syncThread.start();
+  }
+
+  /**
+   * Blocks until the file's data is durable.
+   *
+   * @throws IOException if the sync failed or the syncer is closed.
+   */
+  public void syncFile(FileChannel fileChannel) throws IOException {
+    SyncRequest request = request(fileChannel, null);
+    synchronized (lock) {
+      try {
+        while (!request.done) {
+          lock.wait();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting for sync.");
+      }
+    }
+    if (request.error != null) {
+      throw request.error;
+    }
+  }
+
+  /**
+   * Queues the file's data to be synced with the next batch without waiting. Used where losing the last moments of
+   * writes on a crash is acceptable, such as journal appends.
+   */
+  public void syncFileLater(FileChannel fileChannel) {
+    try {
+      request(fileChannel, null);
+    } catch (IOException e) {
+      logger.warn("Could not queue file sync. {}", e.getMessage());
+    }
+  }
+
+  /**
+   * Blocks until renames and new entries in the directory are durable.
+   *
+   * @throws IOException if the syncer is closed.
+   */
+  public void syncDirectory(Path directory) throws IOException {
+    SyncRequest request = request(null, directory);
+    synchronized (lock) {
+      try {
+        while (!request.done) {
+          lock.wait();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting for sync.");
+      }
+    }
+  }
+
+  /**
+   * Syncs everything pending and stops the sync thread.
+   */
+  public void close() {
+    synchronized (lock) {
+      closed = true;
+      lock.notifyAll();
+    }
+    try {
+      syncThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private SyncRequest request(FileChannel fileChannel, Path directory) throws IOException {
+    SyncRequest request = new SyncRequest(fileChannel);
+    synchronized (lock) {
+      if (closed) {
+        throw new IOException("Group sync closed.");
+      }
+      if (directory != null) {
+        pendingDirectories.add(directory);
+      }
+      pendingFiles.add(request);
+      lock.notifyAll();
+    }
+    return request;
+  }
+
+  private void runSyncs() {
+    while (true) {
+      List<SyncRequest> batchFiles;
+      Set<Path> batchDirectories;
+      synchronized (lock) {
+        try {
+          while (pendingFiles.isEmpty() && !closed) {
+            lock.wait();
+          }
+          if (!closed) {
+            // Let other writers join the batch.
+            long deadline = System.nanoTime() + latencyNanos;
+            for (long wait = latencyNanos; wait > 0 && !closed; wait = deadline - System.nanoTime()) {
+              TimeUnit.NANOSECONDS.timedWait(lock, wait);
+            }
+          }
+        } catch (InterruptedException e) {
+          closed = true;
+        }
+        if (pendingFiles.isEmpty()) {
+          return;
+        }
+        batchFiles = pendingFiles;
+        batchDirectories = pendingDirectories;
+        pendingFiles = new ArrayList<>();
+        pendingDirectories = new LinkedHashSet<>();
+      }
+      for (Path directory : batchDirectories) {
+        syncDirectoryNow(directory);
+      }
+      // Each file is synced once however many writes to it joined the batch.
+      Map<FileChannel, IOException> syncedFiles = new IdentityHashMap<>();
+      for (SyncRequest request : batchFiles) {
+        if (request.fileChannel != null) {
+          if (!syncedFiles.containsKey(request.fileChannel)) {
+            syncedFiles.put(request.fileChannel, syncFileNow(request.fileChannel));
+          }
+          request.error = syncedFiles.get(request.fileChannel);
+        }
+      }
+      synchronized (lock) {
+        batchFiles.forEach(request -> request.done = true);
+        lock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * @return the failure, or null if synced.
+   */
+  private static IOException syncFileNow(FileChannel fileChannel) {
+    try {
+      fileChannel.force(true);
+      return null;
+    } catch (IOException e) {
+      return e;
+    }
+  }
+
+  /**
+   * Not every platform allows a directory to be opened for sync. Failures are logged and ignored.
+   */
+  private void syncDirectoryNow(Path directory) {
+    try (FileChannel directoryChannel = FileChannel.open(directory, StandardOpenOption.READ)) {
+      directoryChannel.force(true);
+    } catch (IOException e) {
+      logger.debug("Could not sync directory [{}]. {}", directory, e.getMessage());
+    }
+  }
+
+  private static class SyncRequest {
+    private final FileChannel fileChannel;
+    private boolean done;
+    private IOException error;
+
+    SyncRequest(FileChannel fileChannel) {
+      this.fileChannel = fileChannel;
+      this.done = false;
+    }
+  }
+}
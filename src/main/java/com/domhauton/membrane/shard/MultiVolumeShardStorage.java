@@ -0,0 +1,468 @@
+package com.domhauton.membrane.shard;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Striped;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Collectors;
+
+/**
+ * Created by dominic on 04/11/17.
+ * <p>
+ * Spreads shards over several volumes, such as one directory on each disk, so capacity and I/O are not bound by one
+ * disk. Each shard is placed by weighted rendezvous hashing of its id, so adding or removing a volume only moves the
+ * shards that belong on it. A volume's weight is its quota alone, so placement is the same on every start whatever
+ * the free space on its disk. Volumes are keyed by name, so a volume must keep its name and quota to keep its shards
+ * in place. A volume whose disk fills before its quota fails its stores, which fall through to the next volume.
+ * <p>
+ * Each volume has its own queue of I/O threads, bounding the work given to each disk while all disks work in parallel.
+ * <p>
+ * Volumes can be added and removed while running. Shards are then moved to where they belong in the background.
+ * Removed volumes are drained of shards before they are closed, and serve reads until then.
+ */
+public class MultiVolumeShardStorage implements ShardStorage {
+  private static final int SHARD_LOCK_STRIPES = 64;
+
+  private final Logger logger = LogManager.getLogger();
+  private final HashFunction placementHash;
+  private final int ioThreadsPerVolume;
+  private final List<Volume> volumes;
+  private final Striped<Lock> shardLocks;
+  private final ExecutorService rebalanceExecutor;
+  private final AtomicBoolean rebalancePending;
+  private final AtomicInteger volumeCount;
+
+  /**
+   * @param ioThreadsPerVolume concurrent reads and writes on each volume.
+   */
+  public MultiVolumeShardStorage(int ioThreadsPerVolume) {
+    this.placementHash = Hashing.murmur3_128();
+    this.ioThreadsPerVolume = Math.max(1, ioThreadsPerVolume);
+    this.volumes = new CopyOnWriteArrayList<>();
+    this.shardLocks = Striped.lock(SHARD_LOCK_STRIPES);
+    this.rebalanceExecutor = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "membrane-volume-rebalance");
+      thread.setDaemon(true);
+      thread.setPriority(Thread.MIN_PRIORITY);
+      return thread;
+    });
+    this.rebalancePending = new AtomicBoolean(false);
+    this.volumeCount = new AtomicInteger(0);
+  }
+
+  /**
+   * Adds a volume. Shards that now belong on it are moved to it in the background.
+   *
+   * @param path         directory of the volume's storage. Names the volume.
+   * @param shardStorage storage of the volume. Closed by this storage.
+   * @param quota        bytes the volume may hold.
+   * @throws ShardStorageException if a volume with the same path was already added.
+   */
+  public void addVolume(Path path, ShardStorage shardStorage, long quota) throws ShardStorageException {
+    addVolume(path, shardStorage, quota, false);
+  }
+
+  /**
+   * Adds a volume to be drained. Its shards are readable until moved to the other volumes, then it is closed. Used to
+   * retire a volume that still holds shards.
+   */
+  public void addDrainingVolume(Path path, ShardStorage shardStorage) throws ShardStorageException {
+    addVolume(path, shardStorage, 0L, true);
+  }
+
+  /**
+   * Stops storing shards on the volume and moves its shards to the others in the background. The volume is closed
+   * once empty. Its shards stay on it while the other volumes have no space for them.
+   *
+   * @return false if there is no such volume.
+   */
+  public boolean removeVolume(Path path) {
+    Optional<Volume> volume = volumes.stream().filter(v -> v.name.equals(path.toString())).findFirst();
+    volume.ifPresent(v -> {
+      logger.info("Draining shard volume [{}] of {} shards.", v.name, v.shardStorage.listShardIds().size());
+      v.draining = true;
+      requestRebalance();
+    });
+    return volume.isPresent();
+  }
+
+  /**
+   * @return paths of volumes, including those being drained.
+   */
+  public List<String> getVolumeNames() {
+    return volumes.stream().map(volume -> volume.name).collect(Collectors.toList());
+  }
+
+  @Override
+  public void storeShard(String shardId, byte[] data) throws ShardStorageException {
+    storeShard(shardId, ByteBuffer.wrap(data));
+  }
+
+  @Override
+  public void storeShard(String shardId, ByteBuffer data) throws ShardStorageException {
+    store(shardId, data.remaining(), true, volume -> volume.shardStorage.storeShard(shardId, data));
+  }
+
+  @Override
+  public void storeShard(String shardId, ReadableByteChannel data, long length) throws ShardStorageException {
+    store(shardId, length, false, volume -> volume.shardStorage.storeShard(shardId, data, length));
+  }
+
+  /**
+   * Stores on the first volume in placement order with space for the shard.
+   *
+   * @param retryable try the next volume if one fails. Not possible once data has been read from a channel.
+   */
+  private void store(String shardId, long length, boolean retryable, VolumeWriter volumeWriter) throws ShardStorageException {
+    Lock shardLock = shardLocks.get(shardId);
+    shardLock.lock();
+    try {
+      if (locate(shardId) != null) {
+        return;
+      }
+      ShardStorageException lastFailure = null;
+      for (Volume volume : placement(shardId)) {
+        if (volume.freeSpace() < length) {
+          continue;
+        }
+        try {
+          runOn(volume, () -> {
+            volumeWriter.write(volume);
+            return null;
+          });
+          return;
+        } catch (ShardStorageException e) {
+          logger.warn("Could not store shard [{}] on volume [{}]. {}", shardId, volume.name, e.getMessage());
+          if (!retryable) {
+            throw e;
+          }
+          lastFailure = e;
+        }
+      }
+      throw lastFailure != null ? lastFailure :
+          new ShardStorageException("Not enough space on any volume to store shard. " + shardId);
+    } finally {
+      shardLock.unlock();
+    }
+  }
+
+  @Override
+  public byte[] retrieveShard(String shardId) throws ShardStorageException {
+    Volume volume = locateOrThrow(shardId);
+    return runOn(volume, () -> volume.shardStorage.retrieveShard(shardId));
+  }
+
+  /**
+   * Opened on the caller's thread, as the shard is read by the caller.
+   */
+  @Override
+  public InputStream openShard(String shardId) throws ShardStorageException {
+    return locateOrThrow(shardId).shardStorage.openShard(shardId);
+  }
+
+  @Override
+  public ReadableByteChannel openShardChannel(String shardId) throws ShardStorageException {
+    return locateOrThrow(shardId).shardStorage.openShardChannel(shardId);
+  }
+
+  @Override
+  public boolean verifyShard(String shardId) throws ShardStorageException {
+    Volume volume = locateOrThrow(shardId);
+    return runOn(volume, () -> volume.shardStorage.verifyShard(shardId));
+  }
+
+  @Override
+  public boolean hasShard(String shardId) {
+    return locate(shardId) != null;
+  }
+
+  @Override
+  public long getShardSize(String shardId) throws ShardStorageException {
+    return locateOrThrow(shardId).shardStorage.getShardSize(shardId);
+  }
+
+  /**
+   * Removed from every volume holding it, in case a move between volumes was interrupted.
+   */
+  @Override
+  public long removeShard(String shardId) throws ShardStorageException {
+    Lock shardLock = shardLocks.get(shardId);
+    shardLock.lock();
+    try {
+      long removed = 0L;
+      boolean found = false;
+      for (Volume volume : volumes) {
+        if (volume.shardStorage.hasShard(shardId)) {
+          found = true;
+          removed = Math.max(removed, volume.shardStorage.removeShard(shardId));
+        }
+      }
+      if (!found) {
+        throw new ShardStorageException("Shard not found. " + shardId);
+      }
+      return removed;
+    } finally {
+      shardLock.unlock();
+    }
+  }
+
+  @Override
+  public Set<String> listShardIds() {
+    Set<String> shardIds = new HashSet<>();
+    volumes.forEach(volume -> shardIds.addAll(volume.shardStorage.listShardIds()));
+    return shardIds;
+  }
+
+  @Override
+  public long getStorageSize() {
+    return volumes.stream().mapToLong(volume -> volume.shardStorage.getStorageSize()).sum();
+  }
+
+  @Override
+  public void close() {
+    rebalanceExecutor.shutdownNow();
+    for (Volume volume : volumes) {
+      volume.close();
+    }
+    volumes.clear();
+  }
+
+  /**
+   * Moves every shard not on the volume it belongs on, and closes drained volumes.
+   *
+   * @return number of shards moved.
+   */
+  public int rebalance() {
+    int moved = 0;
+    for (Volume source : volumes) {
+      for (String shardId : source.shardStorage.listShardIds()) {
+        if (Thread.currentThread().isInterrupted()) {
+          return moved;
+        }
+        try {
+          moved += move(shardId, source) ? 1 : 0;
+        } catch (ShardStorageException e) {
+          logger.warn("Could not move shard [{}] from volume [{}]. {}", shardId, source.name, e.getMessage());
+        }
+      }
+      if (source.draining) {
+        if (source.shardStorage.listShardIds().isEmpty()) {
+          logger.info("Shard volume [{}] drained. Closing.", source.name);
+          volumes.remove(source);
+          source.close();
+        } else {
+          logger.warn("Shard volume [{}] still holds {} shards. Not enough space on other volumes.",
+              source.name, source.shardStorage.listShardIds().size());
+        }
+      }
+    }
+    if (moved > 0) {
+      logger.info("Moved {} shards between volumes.", moved);
+    }
+    return moved;
+  }
+
+  /**
+   * Moves the shard to the first volume in placement order with space for it, if that volume comes before the source.
+   * The shard is stored on the target before it is removed from the source, so it is always readable.
+   */
+  private boolean move(String shardId, Volume source) throws ShardStorageException {
+    Lock shardLock = shardLocks.get(shardId);
+    shardLock.lock();
+    try {
+      if (!source.shardStorage.hasShard(shardId)) {
+        return false;
+      }
+      long length = source.shardStorage.getShardSize(shardId);
+      for (Volume target : placement(shardId)) {
+        if (target == source) {
+          return false;
+        }
+        if (target.freeSpace() >= length) {
+          if (!target.shardStorage.hasShard(shardId)) {
+            byte[] data = runOn(source, () -> source.shardStorage.retrieveShard(shardId));
+            runOn(target, () -> {
+              target.shardStorage.storeShard(shardId, data);
+              return null;
+            });
+          }
+          source.shardStorage.removeShard(shardId);
+          return true;
+        }
+      }
+      return false;
+    } finally {
+      shardLock.unlock();
+    }
+  }
+
+  private void addVolume(Path path, ShardStorage shardStorage, long quota, boolean draining) throws ShardStorageException {
+    if (volumes.stream().anyMatch(volume -> volume.name.equals(path.toString()))) {
+      throw new ShardStorageException("Shard volume already added. " + path);
+    }
+    Volume volume = new Volume(path.toString(), shardStorage, quota, Math.max(1L, quota), ioThreadsPerVolume,
+        volumeCount.getAndIncrement());
+    volume.draining = draining;
+    volumes.add(volume);
+    if (draining) {
+      logger.info("Added shard volume [{}] to drain.", volume.name);
+    } else {
+      logger.info("Added shard volume [{}]. Quota {}MB.", volume.name, quota / (1024 * 1024));
+    }
+    requestRebalance();
+  }
+
+  /**
+   * @return volumes accepting shards, ordered by where the shard belongs.
+   */
+  private List<Volume> placement(String shardId) {
+    List<Volume> placement = new ArrayList<>();
+    for (Volume volume : volumes) {
+      if (!volume.draining) {
+        placement.add(volume);
+      }
+    }
+    placement.sort(Comparator.comparingDouble((Volume volume) -> score(volume, shardId)).reversed());
+    return placement;
+  }
+
+  /**
+   * Weighted rendezvous score. Each volume wins a share of shards in proportion to its weight.
+   */
+  private double score(Volume volume, String shardId) {
+    long hash = placementHash.newHasher()
+        .putString(volume.name, StandardCharsets.UTF_8)
+        .putString(shardId, StandardCharsets.UTF_8)
+        .hash().asLong();
+    // Top 53 bits as a double strictly between 0 and 1.
+    double unit = ((hash >>> 11) + 0.5d) / (double) (1L << 53);
+    return -volume.weight / Math.log(unit);
+  }
+
+  private Volume locate(String shardId) {
+    for (Volume volume : placement(shardId)) {
+      if (volume.shardStorage.hasShard(shardId)) {
+        return volume;
+      }
+    }
+    for (Volume volume : volumes) {
+      if (volume.draining && volume.shardStorage.hasShard(shardId)) {
+        return volume;
+      }
+    }
+    return null;
+  }
+
+  private Volume locateOrThrow(String shardId) throws ShardStorageException {
+    Volume volume = locate(shardId);
+    if (volume == null) {
+      throw new ShardStorageException("Shard not found. " + shardId);
+    }
+    return volume;
+  }
+
+  private void requestRebalance() {
+    if (rebalancePending.compareAndSet(false, true)) {
+      try {
+        rebalanceExecutor.submit(() -> {
+          rebalancePending.set(false);
+          try {
+            rebalance();
+          } catch (RuntimeException e) {
+            logger.error("Shard volume rebalance failed. {}", e.getMessage());
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        rebalancePending.set(false);
+      }
+    }
+  }
+
+  /**
+   * Runs the call on the volume's I/O queue and waits for it.
+   */
+  private static <T> T runOn(Volume volume, VolumeCall<T> call) throws ShardStorageException {
+    Future<T> future;
+    try {
+      future = volume.ioQueue.submit(call::call);
+    } catch (RejectedExecutionException e) {
+      throw new ShardStorageException("Shard volume closed. " + volume.name);
+    }
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new ShardStorageException("Interrupted waiting for shard volume. " + volume.name);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof ShardStorageException) {
+        throw (ShardStorageException) e.getCause();
+      }
+      throw new ShardStorageException("Shard volume failed. " + volume.name + ". " + e.getCause().getMessage(), e.getCause());
+    }
+  }
+
+  @FunctionalInterface
+  private interface VolumeCall<T> {
+    T call() throws ShardStorageException;
+  }
+
+  @FunctionalInterface
+  private interface VolumeWriter {
+    void write(Volume volume) throws ShardStorageException;
+  }
+
+  private static class Volume {
+    private final String name;
+    private final ShardStorage shardStorage;
+    private final long quota;
+    private final double weight;
+    private final ExecutorService ioQueue;
+    private volatile boolean draining;
+
+    Volume(String name, ShardStorage shardStorage, long quota, double weight, int ioThreads, int index) {
+      this.name = name;
+      this.shardStorage = shardStorage;
+      this.quota = quota;
+      this.weight = weight;
+      AtomicInteger threadCount = new AtomicInteger(0);
+      this.ioQueue = Executors.newFixedThreadPool(ioThreads, runnable -> {
+        Thread thread = new Thread(runnable, "membrane-volume-" + index + "-io-" + threadCount.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+      });
+      this.draining = false;
+    }
+
+    long freeSpace() {
+      return draining ? 0L : quota - shardStorage.getStorageSize();
+    }
+
+    void close() {
+      ioQueue.shutdown();
+      shardStorage.close();
+    }
+  }
+}
@@ -0,0 +1,797 @@
+package com.domhauton.membrane.shard;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+/**
+ * Created by dominic on 29/10/17.
+ * <p>
+ * Stores shards as records appended to large segment files, so storing, checking and removing a shard touch no
+ * directories and cost no inode operations. An in-memory index maps each shard to its record.
+ * <p>
+ * Removals append a tombstone record. Sealed segments that are mostly removed shards are compacted in the background
+ * by copying their live records to the end of the newest segment and deleting the old file.
+ * <p>
+ * The index is persisted whenever a segment is sealed, after compaction and on close. Segments are synced first, so
+ * the persisted index never covers records that are not on disk. On start up the persisted index is loaded and only
+ * records appended since are replayed. Every record carries a checksum, so a record torn by a crash is cut off the end
+ * of the newest segment.
+ * <p>
+ * Appends and compaction are serialised by their own lock and do their I/O outside the index lock, which is only held
+ * to update the index. Reads are never held up behind segment writes.
+ */
+public class SegmentShardStorage implements ShardStorage {
+  static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_EXTENSION = ".seg";
+  private static final String INDEX_NAME = "segment-index.dat";
+  private static final int INDEX_VERSION = 1;
+  private static final byte RECORD_PUT = 1;
+  private static final byte RECORD_DELETE = 2;
+  private static final double COMPACTION_GARBAGE_RATIO = 0.5d;
+  private static final long COMPACTION_INTERVAL_SECONDS = 60L;
+
+  private final Logger logger = LogManager.getLogger();
+  private final Path basePath;
+  private final long maxStorageSize;
+  private final long segmentSize;
+  private final HashFunction hashFunction;
+  private final Lock appendLock;
+  private final ReadWriteLock lock;
+  private final Map<String, Location> index;
+  private final TreeMap<Integer, Segment> segments;
+  private final ScheduledExecutorService compactionExecutor;
+  private volatile Segment activeSegment;
+  private int nextSegmentId;
+  private long storageSize;
+  private volatile boolean closed;
+
+  /**
+   * @param basePath Directory to store segments.
+   */
+  public SegmentShardStorage(Path basePath, long maxStorageSize) throws ShardStorageException {
+    this(basePath, maxStorageSize, Hashing.md5());
+  }
+
+  /**
+   * @param basePath Directory to store segments.
+   */
+  public SegmentShardStorage(Path basePath, long maxStorageSize, HashFunction hashFunction) throws ShardStorageException {
+    this(basePath, maxStorageSize, hashFunction, DEFAULT_SEGMENT_SIZE, true);
+  }
+
+  /**
+   * @param segmentSize       bytes after which a segment is sealed and a new one started.
+   * @param compactInBackground if false, segments are only compacted when compact is called.
+   */
+  SegmentShardStorage(Path basePath, long maxStorageSize, HashFunction hashFunction, long segmentSize,
+                      boolean compactInBackground) throws ShardStorageException {
+    this.basePath = basePath;
+    this.maxStorageSize = maxStorageSize;
+    this.segmentSize = segmentSize;
+    this.hashFunction = hashFunction;
+    this.appendLock = new ReentrantLock();
+    this.lock = new ReentrantReadWriteLock();
+    this.index = new HashMap<>();
+    this.segments = new TreeMap<>();
+    this.nextSegmentId = 0;
+    this.storageSize = 0L;
+    this.closed = false;
+    try {
+      Files.createDirectories(basePath);
+      recover();
+    } catch (IOException e) {
+      logger.error("Could not open segment storage in [{}]. {}", basePath, e.getMessage());
+      throw new ShardStorageException("Could not open segment storage. " + e.getMessage());
+    }
+    if (compactInBackground) {
+      compactionExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "membrane-segment-compactor");
+        thread.setDaemon(true);
+        return thread;
+      });
+      compactionExecutor.scheduleWithFixedDelay(this::compactQuietly,
+          COMPACTION_INTERVAL_SECONDS, COMPACTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    } else {
+      compactionExecutor = null;
+    }
+  }
+
+  @Override
+  public void storeShard(String shardId, byte[] data) throws ShardStorageException {
+    storeShard(shardId, ByteBuffer.wrap(data));
+  }
+
+  /**
+   * Appends the shard to the newest segment. Written straight from the buffer without copying to the heap.
+   *
+   * @param data The data to store. Position is not changed.
+   */
+  @Override
+  public void storeShard(String shardId, ByteBuffer data) throws ShardStorageException {
+    appendLock.lock();
+    try {
+      if (index.containsKey(shardId)) {
+        return;
+      }
+      int dataLength = data.remaining();
+      if (storageSize + dataLength > maxStorageSize) {
+        logger.warn("Not enough space to store shard [{}] of size {}MB. {}MB of {}MB stored",
+            shardId,
+            ((float) dataLength) / (1024 * 1024),
+            ((float) storageSize) / (1024 * 1024),
+            ((float) maxStorageSize) / (1024 * 1024));
+        throw new ShardStorageException("Not enough space to store shard. " + shardId);
+      }
+      appendPut(shardId, data.duplicate());
+    } catch (IOException e) {
+      logger.error("Could not store shard [{}] at {}", shardId, e.getMessage());
+      throw new ShardStorageException("Could not store shard [" + shardId + "]. " + e.getMessage());
+    } finally {
+      appendLock.unlock();
+    }
+  }
+
+  /**
+   * Reads the shard from its segment and checks consistency with its hash. Reads run concurrently with each other and
+   * with appends. A read that loses a race with compaction finds the shard again in its new segment.
+   *
+   * @throws ShardStorageException If shard does not exist or is corrupt.
+   */
+  @Override
+  public byte[] retrieveShard(String shardId) throws ShardStorageException {
+    byte[] bytes = null;
+    while (bytes == null) {
+      Location location;
+      Segment segment;
+      lock.readLock().lock();
+      try {
+        location = index.get(shardId);
+        if (location == null) {
+          throw new ShardStorageException("Shard " + shardId + " not found.");
+        }
+        segment = segments.get(location.segmentId);
+      } finally {
+        lock.readLock().unlock();
+      }
+      try {
+        bytes = segment.read(location.dataOffset, location.dataLength);
+      } catch (ClosedChannelException e) {
+        if (e instanceof ClosedByInterruptException || !wasCompacted(segment)) {
+          logger.error("Could not retrieve shard [{}]. Segment closed.", shardId);
+          throw new ShardStorageException("Could not retrieve shard [" + shardId + "]. ", e);
+        }
+        // Compacted away while being read.
+      } catch (IOException e) {
+        logger.error("Could not retrieve shard [{}]. {}", shardId, e.getMessage());
+        throw new ShardStorageException("Could not retrieve shard [" + shardId + "]. ", e);
+      }
+    }
+    if (!hashFunction.hashBytes(bytes).toString().equalsIgnoreCase(shardId)) {
+      logger.error("Shard corrupted. Removing [{}]", shardId);
+      removeShard(shardId);
+      throw new ShardStorageException("Shard corrupted.");
+    }
+    return bytes;
+  }
+
+  /**
+   * Streams the shard from its own handle on the segment, so the segment stays readable if compaction removes it
+   * while the shard is being read.
+   *
+   * @throws ShardStorageException If shard does not exist.
+   */
+  @Override
+  public InputStream openShard(String shardId) throws ShardStorageException {
+    lock.readLock().lock();
+    try {
+      Location location = index.get(shardId);
+      if (location == null) {
+        throw new ShardStorageException("Shard " + shardId + " not found.");
+      }
+      FileChannel channel = FileChannel.open(segments.get(location.segmentId).path, StandardOpenOption.READ);
+      channel.position(location.dataOffset);
+      InputStream input = ByteStreams.limit(new BufferedInputStream(Channels.newInputStream(channel)), location.dataLength);
+      return new VerifiedShardInputStream(input, this, shardId, hashFunction, location.dataLength);
+    } catch (IOException e) {
+      logger.error("Could not open shard [{}]. {}", shardId, e.getMessage());
+      throw new ShardStorageException("Could not open shard [" + shardId + "]. ", e);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public boolean hasShard(String shardId) {
+    lock.readLock().lock();
+    try {
+      return index.containsKey(shardId);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public long getShardSize(String shardId) throws ShardStorageException {
+    lock.readLock().lock();
+    try {
+      Location location = index.get(shardId);
+      if (location == null) {
+        throw new ShardStorageException("Shard " + shardId + " not found.");
+      }
+      return location.dataLength;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Appends a tombstone for the shard. Its space is reclaimed when its segment is compacted.
+   *
+   * @return length of shard removed
+   */
+  @Override
+  public long removeShard(String shardId) throws ShardStorageException {
+    appendLock.lock();
+    try {
+      Location location = index.get(shardId);
+      if (location == null) {
+        throw new ShardStorageException("Could not remove shard: " + shardId + ". Not found.");
+      }
+      appendDelete(shardId);
+      return location.dataLength;
+    } catch (IOException e) {
+      logger.error("Failed to remove shard {}. {}", shardId, e.getMessage());
+      throw new ShardStorageException("Could not remove shard: " + shardId + ". " + e.getMessage());
+    } finally {
+      appendLock.unlock();
+    }
+  }
+
+  @Override
+  public Set<String> listShardIds() {
+    lock.readLock().lock();
+    try {
+      return new HashSet<>(index.keySet());
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return bytes of live shard data. Space held by removed shards until compaction is not included.
+   */
+  @Override
+  public long getStorageSize() {
+    lock.readLock().lock();
+    try {
+      return storageSize;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Stops background compaction and persists the index so the next start up replays nothing.
+   */
+  @Override
+  public void close() {
+    if (compactionExecutor != null) {
+      compactionExecutor.shutdown();
+    }
+    appendLock.lock();
+    try {
+      closed = true;
+      saveIndex();
+      for (Segment segment : segments.values()) {
+        segment.close();
+      }
+    } catch (IOException e) {
+      logger.error("Failed to close segment storage in [{}]. {}", basePath, e.getMessage());
+    } finally {
+      appendLock.unlock();
+    }
+  }
+
+  /**
+   * Compacts every sealed segment where at least half of the space is held by removed shards. Oldest first, so
+   * tombstones can be dropped once no older segment could hold the shards they remove.
+   *
+   * @return the number of segments compacted.
+   */
+  int compact() throws IOException {
+    List<Segment> candidates;
+    lock.readLock().lock();
+    try {
+      candidates = segments.values().stream()
+          .filter(x -> x != activeSegment)
+          .filter(x -> x.length - x.liveBytes >= x.length * COMPACTION_GARBAGE_RATIO)
+          .collect(Collectors.toList());
+    } finally {
+      lock.readLock().unlock();
+    }
+    for (Segment segment : candidates) {
+      compact(segment);
+    }
+    return candidates.size();
+  }
+
+  private void compactQuietly() {
+    try {
+      compact();
+    } catch (IOException | RuntimeException e) {
+      logger.error("Segment compaction failed in [{}]. {}", basePath, e.getMessage());
+    }
+  }
+
+  /**
+   * Sealed segments are never written to again, so they are scanned without holding any lock. Each live record is
+   * copied under the append lock, so storage stays usable while a segment is compacted.
+   */
+  private void compact(Segment segment) throws IOException {
+    logger.debug("Compacting segment {}. {}B of {}B live.", segment.id, segment.liveBytes, segment.length);
+    List<Record> records = scan(segment, 0L).records;
+    for (Record record : records) {
+      appendLock.lock();
+      try {
+        if (closed) {
+          return;
+        } else if (record.type == RECORD_PUT) {
+          Location location = index.get(record.shardId);
+          if (location != null && location.segmentId == segment.id && location.dataOffset == record.dataOffset) {
+            appendPut(record.shardId, ByteBuffer.wrap(segment.read(record.dataOffset, record.dataLength)));
+          }
+        } else if (!index.containsKey(record.shardId) && !segments.firstKey().equals(segment.id)) {
+          appendDelete(record.shardId);
+        }
+      } finally {
+        appendLock.unlock();
+      }
+    }
+    appendLock.lock();
+    try {
+      if (closed) {
+        return;
+      }
+      lock.writeLock().lock();
+      try {
+        segments.remove(segment.id);
+      } finally {
+        lock.writeLock().unlock();
+      }
+      saveIndex();
+      segment.close();
+      Files.delete(segment.path);
+    } finally {
+      appendLock.unlock();
+    }
+  }
+
+  private void appendPut(String shardId, ByteBuffer data) throws IOException {
+    int dataLength = data.remaining();
+    byte[] header = recordHeader(RECORD_PUT, shardId, dataLength);
+    CRC32 crc = new CRC32();
+    crc.update(header);
+    crc.update(data.duplicate());
+    Segment segment = getActiveSegment();
+    long recordOffset = segment.append(ByteBuffer.wrap(header), data, crcBuffer(crc));
+    long recordLength = segment.length - recordOffset;
+    lock.writeLock().lock();
+    try {
+      // Compaction moves live shards, so drop the old location first.
+      forget(shardId);
+      index.put(shardId, new Location(segment.id, recordOffset + header.length, dataLength, recordLength));
+      segment.liveBytes += recordLength;
+      storageSize += dataLength;
+    } finally {
+      lock.writeLock().unlock();
+    }
+    sealIfFull(segment);
+  }
+
+  private void appendDelete(String shardId) throws IOException {
+    byte[] header = recordHeader(RECORD_DELETE, shardId, 0);
+    CRC32 crc = new CRC32();
+    crc.update(header);
+    Segment segment = getActiveSegment();
+    segment.append(ByteBuffer.wrap(header), crcBuffer(crc));
+    lock.writeLock().lock();
+    try {
+      forget(shardId);
+    } finally {
+      lock.writeLock().unlock();
+    }
+    sealIfFull(segment);
+  }
+
+  private void forget(String shardId) {
+    Location location = index.remove(shardId);
+    if (location != null) {
+      Segment segment = segments.get(location.segmentId);
+      segment.liveBytes -= location.recordLength;
+      storageSize -= location.dataLength;
+    }
+  }
+
+  private Segment getActiveSegment() throws IOException {
+    if (activeSegment == null) {
+      int id = nextSegmentId++;
+      Segment segment = new Segment(id, basePath.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_EXTENSION)));
+      lock.writeLock().lock();
+      try {
+        segments.put(id, segment);
+      } finally {
+        lock.writeLock().unlock();
+      }
+      activeSegment = segment;
+    }
+    return activeSegment;
+  }
+
+  /**
+   * @return true if the segment was closed because it was compacted, rather than because storage was closed.
+   */
+  private boolean wasCompacted(Segment segment) {
+    lock.readLock().lock();
+    try {
+      return !closed && segments.get(segment.id) != segment;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private void sealIfFull(Segment segment) throws IOException {
+    if (segment.length >= segmentSize) {
+      logger.debug("Sealing segment {} at {}B.", segment.id, segment.length);
+      activeSegment = null;
+      saveIndex();
+    }
+  }
+
+  private static byte[] recordHeader(byte type, String shardId, int dataLength) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream output = new DataOutputStream(bytes)) {
+      output.writeByte(type);
+      output.writeUTF(shardId);
+      output.writeInt(dataLength);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static ByteBuffer crcBuffer(CRC32 crc) {
+    ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES);
+    buffer.putInt(0, (int) crc.getValue());
+    return buffer;
+  }
+
+  /**
+   * Loads the persisted index, then replays every record appended since it was saved. Segments compacted after the
+   * index was saved but not yet deleted are removed.
+   */
+  private void recover() throws IOException {
+    Map<Integer, Long> indexedLengths = loadIndex();
+    int indexedSegmentId = nextSegmentId;
+    List<Path> segmentPaths;
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(basePath, SEGMENT_PREFIX + "*" + SEGMENT_EXTENSION)) {
+      segmentPaths = new ArrayList<>();
+      stream.forEach(segmentPaths::add);
+    }
+    for (Path segmentPath : segmentPaths) {
+      String name = segmentPath.getFileName().toString();
+      int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_EXTENSION.length()));
+      if (id < indexedSegmentId && !indexedLengths.containsKey(id)) {
+        logger.info("Removing segment {} left over from compaction.", id);
+        Files.delete(segmentPath);
+      } else {
+        segments.put(id, new Segment(id, segmentPath));
+        nextSegmentId = Math.max(nextSegmentId, id + 1);
+      }
+    }
+    if (indexedLengths.keySet().stream().anyMatch(x -> !segments.containsKey(x))) {
+      logger.warn("Segment index does not match segments in [{}]. Rebuilding index.", basePath);
+      index.clear();
+      indexedLengths.clear();
+    }
+    for (Segment segment : segments.values()) {
+      long indexedLength = indexedLengths.getOrDefault(segment.id, 0L);
+      if (indexedLength > segment.length) {
+        indexedLengths.put(segment.id, recoverShortSegment(segment, indexedLength));
+      }
+    }
+    recountLiveBytes();
+    for (Segment segment : segments.values()) {
+      long replayFrom = indexedLengths.getOrDefault(segment.id, 0L);
+      if (replayFrom < segment.length) {
+        replay(segment, replayFrom, segment.id == segments.lastKey());
+      }
+    }
+    activeSegment = segments.isEmpty() || segments.lastEntry().getValue().length >= segmentSize ?
+        null : segments.lastEntry().getValue();
+    logger.info("Opened segment storage in [{}]. {} shards in {} segments.", basePath, index.size(), segments.size());
+  }
+
+  /**
+   * A segment shorter than the index says lost its tail in a crash. Shards indexed past the last valid record are
+   * dropped and the segment is cut back to that record.
+   *
+   * @return the length of the segment the index now covers.
+   */
+  private long recoverShortSegment(Segment segment, long indexedLength) throws IOException {
+    long validLength = scan(segment, 0L).validLength;
+    logger.warn("Segment {} ends at {}B before its indexed length of {}B. Recovering from last valid record at {}B.",
+        segment.id, segment.length, indexedLength, validLength);
+    index.values().removeIf(x -> x.segmentId == segment.id && x.dataOffset + x.dataLength + Integer.BYTES > validLength);
+    if (validLength < segment.length) {
+      segment.truncate(validLength);
+    }
+    return validLength;
+  }
+
+  private void replay(Segment segment, long offset, boolean newest) throws IOException {
+    logger.info("Replaying segment {} from {}B.", segment.id, offset);
+    ScanResult scanResult = scan(segment, offset);
+    for (Record record : scanResult.records) {
+      if (record.type == RECORD_PUT) {
+        forget(record.shardId);
+        index.put(record.shardId, new Location(segment.id, record.dataOffset, record.dataLength, record.recordLength));
+        segment.liveBytes += record.recordLength;
+        storageSize += record.dataLength;
+      } else {
+        forget(record.shardId);
+      }
+    }
+    if (scanResult.validLength < segment.length) {
+      if (newest) {
+        logger.warn("Truncating torn record at {}B of segment {}.", scanResult.validLength, segment.id);
+        segment.truncate(scanResult.validLength);
+      } else {
+        logger.error("Corrupt record at {}B of segment {}. Following records ignored.", scanResult.validLength, segment.id);
+      }
+    }
+  }
+
+  /**
+   * Reads records from the offset until the end of the segment or the first record that is torn or corrupt.
+   */
+  private static ScanResult scan(Segment segment, long offset) throws IOException {
+    ScanResult scanResult = new ScanResult(offset);
+    try (
+        FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ);
+        DataInputStream input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(offset))))
+    ) {
+      long position = offset;
+      while (position < segment.length) {
+        try {
+          byte type = input.readByte();
+          String shardId = input.readUTF();
+          int dataLength = input.readInt();
+          byte[] header = recordHeader(type, shardId, dataLength);
+          if ((type != RECORD_PUT && type != RECORD_DELETE) || dataLength < 0 ||
+              position + header.length + dataLength + Integer.BYTES > segment.length) {
+            break;
+          }
+          CRC32 crc = new CRC32();
+          crc.update(header);
+          byte[] buffer = new byte[Math.min(dataLength, 64 * 1024)];
+          for (int remaining = dataLength; remaining > 0; ) {
+            int read = Math.min(remaining, buffer.length);
+            input.readFully(buffer, 0, read);
+            crc.update(buffer, 0, read);
+            remaining -= read;
+          }
+          if (input.readInt() != (int) crc.getValue()) {
+            break;
+          }
+          long recordLength = header.length + dataLength + Integer.BYTES;
+          scanResult.records.add(new Record(type, shardId, position + header.length, dataLength, recordLength));
+          position += recordLength;
+          scanResult.validLength = position;
+        } catch (EOFException | UTFDataFormatException e) {
+          break;
+        }
+      }
+    }
+    return scanResult;
+  }
+
+  private void recountLiveBytes() {
+    storageSize = 0L;
+    segments.values().forEach(x -> x.liveBytes = 0L);
+    for (Location location : index.values()) {
+      segments.get(location.segmentId).liveBytes += location.recordLength;
+      storageSize += location.dataLength;
+    }
+  }
+
+  /**
+   * Written to a temp file first so a crash never leaves a partial index. Segments are synced before the index is
+   * written, and the index before it is renamed into place, so the index never covers records lost in a crash.
+   * <p>
+   * Called holding the append lock, so the index and segments do not change while being saved.
+   */
+  private void saveIndex() throws IOException {
+    for (Segment segment : segments.values()) {
+      segment.sync();
+    }
+    Path indexPath = basePath.resolve(INDEX_NAME);
+    Path tempPath = basePath.resolve(INDEX_NAME + ".tmp");
+    FileOutputStream fileOutput = new FileOutputStream(tempPath.toFile());
+    try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput))) {
+      output.writeInt(INDEX_VERSION);
+      output.writeInt(nextSegmentId);
+      output.writeInt(segments.size());
+      for (Segment segment : segments.values()) {
+        output.writeInt(segment.id);
+        output.writeLong(segment.length);
+      }
+      output.writeInt(index.size());
+      for (Map.Entry<String, Location> entry : index.entrySet()) {
+        output.writeUTF(entry.getKey());
+        output.writeInt(entry.getValue().segmentId);
+        output.writeLong(entry.getValue().dataOffset);
+        output.writeInt(entry.getValue().dataLength);
+        output.writeLong(entry.getValue().recordLength);
+      }
+      output.flush();
+      fileOutput.getFD().sync();
+    }
+    Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * An unreadable index is rebuilt from the segments.
+   *
+   * @return the length of each segment covered by the index.
+   */
+  private Map<Integer, Long> loadIndex() {
+    Map<Integer, Long> indexedLengths = new HashMap<>();
+    Path indexPath = basePath.resolve(INDEX_NAME);
+    if (!indexPath.toFile().exists()) {
+      return indexedLengths;
+    }
+    try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(indexPath.toFile())))) {
+      if (input.readInt() != INDEX_VERSION) {
+        throw new IOException("Unknown index version.");
+      }
+      nextSegmentId = input.readInt();
+      int segmentCount = input.readInt();
+      for (int i = 0; i < segmentCount; i++) {
+        indexedLengths.put(input.readInt(), input.readLong());
+      }
+      int shardCount = input.readInt();
+      for (int i = 0; i < shardCount; i++) {
+        index.put(input.readUTF(), new Location(input.readInt(), input.readLong(), input.readInt(), input.readLong()));
+      }
+    } catch (IOException e) {
+      logger.warn("Failed to load segment index from [{}]. Rebuilding from segments. {}", indexPath, e.getMessage());
+      nextSegmentId = 0;
+      index.clear();
+      indexedLengths.clear();
+    }
+    return indexedLengths;
+  }
+
+  private static class Segment {
+    private final int id;
+    private final Path path;
+    private final FileChannel channel;
+    private volatile long length;
+    private long liveBytes;
+    private boolean unsynced;
+
+    Segment(int id, Path path) throws IOException {
+      this.id = id;
+      this.path = path;
+      this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      this.length = channel.size();
+      this.liveBytes = 0L;
+      this.unsynced = false;
+    }
+
+    /**
+     * @return the offset the buffers were written at.
+     */
+    long append(ByteBuffer... buffers) throws IOException {
+      long offset = length;
+      long position = offset;
+      for (ByteBuffer buffer : buffers) {
+        while (buffer.hasRemaining()) {
+          position += channel.write(buffer, position);
+        }
+      }
+      length = position;
+      unsynced = true;
+      return offset;
+    }
+
+    /**
+     * Forces appended records to disk. Does nothing if none were appended since the last sync.
+     */
+    void sync() throws IOException {
+      if (unsynced) {
+        channel.force(false);
+        unsynced = false;
+      }
+    }
+
+    byte[] read(long offset, int length) throws IOException {
+      ByteBuffer buffer = ByteBuffer.allocate(length);
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, offset + buffer.position()) < 0) {
+          throw new EOFException("Segment " + id + " ends before shard.");
+        }
+      }
+      return buffer.array();
+    }
+
+    void truncate(long length) throws IOException {
+      channel.truncate(length);
+      this.length = length;
+    }
+
+    void close() throws IOException {
+      channel.close();
+    }
+  }
+
+  private static class Location {
+    private final int segmentId;
+    private final long dataOffset;
+    private final int dataLength;
+    private final long recordLength;
+
+    Location(int segmentId, long dataOffset, int dataLength, long recordLength) {
+      this.segmentId = segmentId;
+      this.dataOffset = dataOffset;
+      this.dataLength = dataLength;
+      this.recordLength = recordLength;
+    }
+  }
+
+  private static class Record {
+    private final byte type;
+    private final String shardId;
+    private final long dataOffset;
+    private final int dataLength;
+    private final long recordLength;
+
+    Record(byte type, String shardId, long dataOffset, int dataLength, long recordLength) {
+      this.type = type;
+      this.shardId = shardId;
+      this.dataOffset = dataOffset;
+      this.dataLength = dataLength;
+      this.recordLength = recordLength;
+    }
+  }
+
+  private static class ScanResult {
+    private final List<Record> records;
+    private long validLength;
+
+    ScanResult(long validLength) {
+      this.records = new ArrayList<>();
+      this.validLength = validLength;
+    }
+  }
+}
@@ -0,0 +1,211 @@
+package com.domhauton.membrane.shard;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Created by dominic on 02/11/17.
+ * <p>
+ * Compresses shards at rest with LZ4. Compressed shards start with a header of a magic number, the codec and the raw
+ * length. The raw data follows in blocks of up to 64KB, each compressed on its own and prefixed with its compressed
+ * length, so a shard can be decoded a block at a time. Shards that do not compress are stored raw with no header, as
+ * shards were before compression was added.
+ * <p>
+ * Raw data may start with anything, including the header, so the codec is never detected from the data. Storage
+ * records which shards are compressed and only decodes those.
+ */
+final class ShardCodec {
+  static final int HEADER_LENGTH = 9;
+  private static final byte[] MAGIC = {'M', 'E', 'M', 'Z'};
+  private static final byte CODEC_LZ4 = 1;
+  private static final int MIN_COMPRESS_LENGTH = 1024;
+  private static final int BLOCK_LENGTH = 64 * 1024;
+  private static final double MAX_COMPRESSED_RATIO = 0.9;
+  private static final int LZ4_MAX_RATIO = 255;
+  private static final LZ4Factory LZ_4_FACTORY = LZ4Factory.fastestInstance();
+  private static final int MAX_BLOCK_STORED_LENGTH = LZ_4_FACTORY.fastCompressor().maxCompressedLength(BLOCK_LENGTH);
+
+  private ShardCodec() {
+  }
+
+  /**
+   * The first block is checked before the rest are compressed, so data that does not compress, such as media or
+   * encrypted blocks, is not compressed in full.
+   *
+   * @param raw data between position and limit. Position is not changed.
+   * @return header and compressed blocks, or null if the data should be stored raw.
+   */
+  static ByteBuffer encode(ByteBuffer raw) {
+    int rawLength = raw.remaining();
+    if (rawLength < MIN_COMPRESS_LENGTH) {
+      return null;
+    }
+    LZ4Compressor compressor = LZ_4_FACTORY.fastCompressor();
+    int blockCount = (rawLength + BLOCK_LENGTH - 1) / BLOCK_LENGTH;
+    ByteBuffer encoded = ByteBuffer.allocate(HEADER_LENGTH + blockCount * (Integer.BYTES + MAX_BLOCK_STORED_LENGTH));
+    encoded.put(MAGIC).put(CODEC_LZ4).putInt(rawLength);
+    for (int offset = 0; offset < rawLength; offset += BLOCK_LENGTH) {
+      int blockLength = Math.min(BLOCK_LENGTH, rawLength - offset);
+      int blockStart = encoded.position() + Integer.BYTES;
+      int compressedLength = compressor.compress(raw, raw.position() + offset, blockLength, encoded, blockStart,
+          MAX_BLOCK_STORED_LENGTH);
+      if (offset == 0 && blockLength < rawLength && compressedLength > blockLength * MAX_COMPRESSED_RATIO) {
+        return null;
+      }
+      encoded.putInt(compressedLength);
+      encoded.position(blockStart + compressedLength);
+    }
+    if (encoded.position() > rawLength * MAX_COMPRESSED_RATIO) {
+      return null;
+    }
+    encoded.flip();
+    return encoded;
+  }
+
+  /**
+   * @param stored at least the start of a compressed shard.
+   * @return the raw length from the header, or -1 if the header is corrupt.
+   */
+  static int rawLength(byte[] stored) {
+    if (stored.length < HEADER_LENGTH || stored[MAGIC.length] != CODEC_LZ4) {
+      return -1;
+    }
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (stored[i] != MAGIC[i]) {
+        return -1;
+      }
+    }
+    return ByteBuffer.wrap(stored, MAGIC.length + 1, 4).getInt();
+  }
+
+  /**
+   * @param stored a whole compressed shard.
+   * @return the raw shard.
+   * @throws IOException if the compressed data is corrupt.
+   */
+  static byte[] decode(byte[] stored) throws IOException {
+    int rawLength = rawLength(stored);
+    if (rawLength < 0 || rawLength > (long) (stored.length - HEADER_LENGTH) * LZ4_MAX_RATIO + LZ4_MAX_RATIO) {
+      throw new CorruptShardException("Compressed shard header corrupt.");
+    }
+    byte[] raw = new byte[rawLength];
+    try (DataInputStream input = new DataInputStream(decoder(new ByteArrayInputStream(stored)))) {
+      input.readFully(raw);
+      if (input.read() >= 0) {
+        throw new CorruptShardException("Compressed shard length mismatch.");
+      }
+    }
+    return raw;
+  }
+
+  /**
+   * Holds one block at a time, however large the shard.
+   *
+   * @param stored a compressed shard, read from its start.
+   * @return the raw shard. Reads throw {@link CorruptShardException} if the compressed data is corrupt.
+   */
+  static InputStream decoder(InputStream stored) {
+    return new BlockDecoder(stored);
+  }
+
+  private static class BlockDecoder extends InputStream {
+    private final DataInputStream stored;
+    private final LZ4FastDecompressor decompressor;
+    private final byte[] compressedBlock;
+    private final byte[] block;
+    private int blockPosition;
+    private int blockLimit;
+    private long remaining;
+
+    BlockDecoder(InputStream stored) {
+      this.stored = new DataInputStream(stored);
+      this.decompressor = LZ_4_FACTORY.fastDecompressor();
+      this.compressedBlock = new byte[MAX_BLOCK_STORED_LENGTH];
+      this.block = new byte[BLOCK_LENGTH];
+      this.blockPosition = 0;
+      this.blockLimit = 0;
+      this.remaining = -1L;
+    }
+
+    @Override
+    public int read() throws IOException {
+      return nextBlock() ? block[blockPosition++] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      } else if (!nextBlock()) {
+        return -1;
+      }
+      int count = Math.min(length, blockLimit - blockPosition);
+      System.arraycopy(block, blockPosition, bytes, offset, count);
+      blockPosition += count;
+      return count;
+    }
+
+    @Override
+    public int available() {
+      return blockLimit - blockPosition;
+    }
+
+    @Override
+    public void close() throws IOException {
+      stored.close();
+    }
+
+    /**
+     * Decodes the next block once the current one is used up.
+     *
+     * @return false at the end of the shard.
+     */
+    private boolean nextBlock() throws IOException {
+      if (blockPosition < blockLimit) {
+        return true;
+      }
+      try {
+        if (remaining < 0) {
+          byte[] header = new byte[HEADER_LENGTH];
+          stored.readFully(header);
+          remaining = rawLength(header);
+          if (remaining < 0) {
+            throw new CorruptShardException("Compressed shard header corrupt.");
+          }
+        }
+        if (remaining == 0) {
+          if (stored.read() >= 0) {
+            throw new CorruptShardException("Compressed shard length mismatch.");
+          }
+          return false;
+        }
+        int blockLength = (int) Math.min(BLOCK_LENGTH, remaining);
+        int compressedLength = stored.readInt();
+        if (compressedLength <= 0 || compressedLength > MAX_BLOCK_STORED_LENGTH) {
+          throw new CorruptShardException("Compressed shard block length corrupt.");
+        }
+        stored.readFully(compressedBlock, 0, compressedLength);
+        if (decompressor.decompress(compressedBlock, 0, block, 0, blockLength) != compressedLength) {
+          throw new CorruptShardException("Compressed shard length mismatch.");
+        }
+        blockPosition = 0;
+        blockLimit = blockLength;
+        remaining -= blockLength;
+        return true;
+      } catch (EOFException e) {
+        throw new CorruptShardException("Compressed shard truncated.");
+      } catch (LZ4Exception e) {
+        throw new CorruptShardException("Compressed shard corrupt. " + e.getMessage());
+      }
+    }
+  }
+}
@@ -0,0 +1,109 @@
+package com.domhauton.membrane.shard;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Created by dominic on 05/11/17.
+ * <p>
+ * How shard files are laid out in directories. A fan-out layout nests each shard under a fixed number of directories
+ * named after the start of its id, such as "ab/cd/abcd...". The legacy layout splits the whole id into directories of
+ * five characters, which nests long ids such as SHA-512 block ids about 25 directories deep.
+ */
+public final class ShardLayout {
+  public static final ShardLayout LEGACY = new ShardLayout(-1, 5);
+
+  private final int levels;
+  private final int charsPerLevel;
+
+  private ShardLayout(int levels, int charsPerLevel) {
+    this.levels = levels;
+    this.charsPerLevel = charsPerLevel;
+  }
+
+  /**
+   * @param levels        directories above each shard. 0 to store every shard in one directory.
+   * @param charsPerLevel id characters naming each directory. 2 gives 256 directories per level for hex ids.
+   */
+  public static ShardLayout fanOut(int levels, int charsPerLevel) {
+    if (levels < 0 || charsPerLevel < 1) {
+      throw new IllegalArgumentException("Invalid shard layout. " + levels + " levels of " + charsPerLevel + " chars.");
+    }
+    return new ShardLayout(levels, charsPerLevel);
+  }
+
+  /**
+   * @param levels -1 for the legacy layout.
+   */
+  static ShardLayout of(int levels, int charsPerLevel) {
+    return levels < 0 ? LEGACY : fanOut(levels, charsPerLevel);
+  }
+
+  int getLevels() {
+    return levels;
+  }
+
+  int getCharsPerLevel() {
+    return charsPerLevel;
+  }
+
+  /**
+   * Ids too short for every level are nested in as many levels as they fill.
+   *
+   * @return the path the shard is stored at under the root.
+   */
+  Path getPath(Path root, String id, String extension) {
+    Path path = root;
+    if (levels < 0) {
+      while (id.length() > charsPerLevel) {
+        path = path.resolve(id.substring(0, charsPerLevel));
+        id = id.substring(charsPerLevel);
+      }
+      return path.resolve(id + extension);
+    }
+    for (int level = 0; level < levels && id.length() > (level + 1) * charsPerLevel; level++) {
+      path = path.resolve(id.substring(level * charsPerLevel, (level + 1) * charsPerLevel));
+    }
+    return path.resolve(id + extension);
+  }
+
+  /**
+   * Fan-out layouts name the file after the whole id, which starts with the directory names. The legacy layout splits
+   * the id over the directories and the file.
+   *
+   * @param relativePath path of the shard file under the root, without its extension.
+   * @return the ids the file could be stored under, in any layout.
+   */
+  static List<String> candidateIds(Path relativePath) {
+    StringBuilder directories = new StringBuilder();
+    for (int i = 0; i < relativePath.getNameCount() - 1; i++) {
+      directories.append(relativePath.getName(i).toString());
+    }
+    String fileName = relativePath.getFileName().toString();
+    List<String> candidates = new ArrayList<>();
+    if (directories.length() > 0 && fileName.startsWith(directories.toString())) {
+      candidates.add(fileName);
+    }
+    candidates.add(directories.append(fileName).toString());
+    return candidates;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    ShardLayout that = (ShardLayout) o;
+    return levels == that.levels && charsPerLevel == that.charsPerLevel;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * levels + charsPerLevel;
+  }
+
+  @Override
+  public String toString() {
+    return levels < 0 ? "legacy" : levels + " levels of " + charsPerLevel + " chars";
+  }
+}
@@ -0,0 +1,126 @@
+package com.domhauton.membrane.shard;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by dominic on 01/11/17.
+ * <p>
+ * Reads every stored shard in the background and checks it against its id, so shards that are rarely read do not rot
+ * unnoticed. Reads are paced to a byte rate to leave the disk to foreground work.
+ * <p>
+ * Corrupt shards are removed by the storage. Local shards removed this way are recovered from peers holding their
+ * blocks, as the next contract update with each peer asks for the blocks of missing shards to be sent back.
+ */
+public class ShardScrubber {
+  private final Logger logger = LogManager.getLogger();
+  private final String name;
+  private final ShardStorage shardStorage;
+  private final long bytesPerSecond;
+  private final AtomicLong shardsScrubbed;
+  private final AtomicLong corruptShards;
+  private ScheduledExecutorService scrubExecutor;
+
+  /**
+   * @param name           storage name used in logs.
+   * @param bytesPerSecond maximum bytes read per second. 0 for unlimited.
+   */
+  public ShardScrubber(String name, ShardStorage shardStorage, long bytesPerSecond) {
+    this.name = name;
+    this.shardStorage = shardStorage;
+    this.bytesPerSecond = Math.max(0L, bytesPerSecond);
+    this.shardsScrubbed = new AtomicLong(0L);
+    this.corruptShards = new AtomicLong(0L);
+  }
+
+  /**
+   * Scrubs the whole storage at the given interval, starting one interval from now.
+   */
+  public synchronized void start(long interval, TimeUnit timeUnit) {
+    if (scrubExecutor == null) {
+      scrubExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "membrane-shard-scrub");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+      });
+      scrubExecutor.scheduleWithFixedDelay(this::scrubQuietly, interval, interval, timeUnit);
+    }
+  }
+
+  /**
+   * Checks every shard once.
+   *
+   * @return number of corrupt shards found and removed.
+   * @throws InterruptedException if interrupted while pacing reads.
+   */
+  public int scrub() throws InterruptedException {
+    logger.info("Scrubbing {} shard storage.", name);
+    long startNanos = System.nanoTime();
+    long bytesRead = 0L;
+    int scrubbed = 0;
+    int corrupt = 0;
+    for (String shardId : shardStorage.listShardIds()) {
+      try {
+        long shardSize = shardStorage.getShardSize(shardId);
+        if (!shardStorage.verifyShard(shardId)) {
+          logger.warn("Scrub found corrupt shard [{}] in {} shard storage. Removed.", shardId, name);
+          corrupt++;
+        }
+        scrubbed++;
+        bytesRead += shardSize;
+      } catch (ShardStorageException e) {
+        // Removed since listing, or unreadable. Either way the next pass will see it again if it is still stored.
+        logger.debug("Scrub skipped shard [{}]. {}", shardId, e.getMessage());
+      }
+      pace(startNanos, bytesRead);
+    }
+    shardsScrubbed.addAndGet(scrubbed);
+    corruptShards.addAndGet(corrupt);
+    logger.info("Scrubbed {} shards ({}MB) of {} shard storage in {}s. {} corrupt.",
+        scrubbed, bytesRead / (1024 * 1024), name, TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos), corrupt);
+    return corrupt;
+  }
+
+  public long getShardsScrubbed() {
+    return shardsScrubbed.get();
+  }
+
+  public long getCorruptShards() {
+    return corruptShards.get();
+  }
+
+  public synchronized void close() {
+    if (scrubExecutor != null) {
+      scrubExecutor.shutdownNow();
+    }
+  }
+
+  private void scrubQuietly() {
+    try {
+      scrub();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (RuntimeException e) {
+      logger.error("Scrub of {} shard storage failed. {}", name, e.getMessage());
+    }
+  }
+
+  /**
+   * Sleeps until the bytes read so far are within the rate.
+   */
+  private void pace(long startNanos, long bytesRead) throws InterruptedException {
+    if (bytesPerSecond > 0L) {
+      long dueNanos = startNanos + (long) ((double) bytesRead / bytesPerSecond * TimeUnit.SECONDS.toNanos(1));
+      long waitNanos = dueNanos - System.nanoTime();
+      if (waitNanos > 0L) {
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+      }
+    }
+  }
+}
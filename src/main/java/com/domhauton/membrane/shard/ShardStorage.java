@@ -1,5 +1,11 @@
 package com.domhauton.membrane.shard;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.Set;
 
 /**
@@ -14,6 +20,44 @@ public interface ShardStorage {
    */
   void storeShard(String shardId, byte[] data) throws ShardStorageException;
 
+  /**
+   * Store the data between the position and limit of the given buffer. The buffer position is not changed.
+   *
+   * @param shardId The md5Hash of the data given
+   * @param data    The data to store. May be a direct or memory mapped buffer.
+   */
+  default void storeShard(String shardId, ByteBuffer data) throws ShardStorageException {
+    byte[] bytes = new byte[data.remaining()];
+    data.duplicate().get(bytes);
+    storeShard(shardId, bytes);
+  }
+
+  /**
+   * Store exactly length bytes read from the given channel, without holding the shard in memory.
+   *
+   * @param shardId The md5Hash of the data given
+   * @param data    The data to store. Read from its current position.
+   * @param length  Bytes to read from the channel.
+   * @throws ShardStorageException If the channel could not be read or ends early. Nothing is stored.
+   */
+  default void storeShard(String shardId, ReadableByteChannel data, long length) throws ShardStorageException {
+    if (length > Integer.MAX_VALUE) {
+      throw new ShardStorageException("Shard too large. " + shardId);
+    }
+    ByteBuffer buffer = ByteBuffer.allocate((int) length);
+    try {
+      while (buffer.hasRemaining()) {
+        if (data.read(buffer) < 0) {
+          throw new ShardStorageException("Shard data ended early. " + shardId);
+        }
+      }
+    } catch (IOException e) {
+      throw new ShardStorageException("Could not read shard data. " + shardId, e);
+    }
+    buffer.flip();
+    storeShard(shardId, buffer);
+  }
+
   /**
    * Retrieves a shard from storage and checks consistency
    *
@@ -23,6 +67,48 @@ public interface ShardStorage {
    */
   byte[] retrieveShard(String shardId) throws ShardStorageException;
 
+  /**
+   * Opens a shard for reading without holding it in memory. The shard is checked against its id as it is read, so the
+   * data must be read to the end before it is trusted. Reaching the end of a corrupt shard throws an IOException.
+   *
+   * @param shardId md5Hash of requested shard
+   * @return stream of the shard data. Must be closed.
+   * @throws ShardStorageException If cannot access shard or shard does not exist.
+   */
+  default InputStream openShard(String shardId) throws ShardStorageException {
+    return new ByteArrayInputStream(retrieveShard(shardId));
+  }
+
+  /**
+   * Channel version of {@link #openShard(String)}.
+   */
+  default ReadableByteChannel openShardChannel(String shardId) throws ShardStorageException {
+    return Channels.newChannel(openShard(shardId));
+  }
+
+  /**
+   * Reads the whole shard and checks it against its id, even if it was checked recently. A corrupt shard is removed.
+   *
+   * @param shardId md5Hash of shard to check
+   * @return false if the shard was corrupt.
+   * @throws ShardStorageException If cannot access shard or shard does not exist.
+   */
+  default boolean verifyShard(String shardId) throws ShardStorageException {
+    try (InputStream input = openShard(shardId)) {
+      byte[] buffer = new byte[64 * 1024];
+      while (input.read(buffer) >= 0) {
+        // Read to the end so the shard is checked.
+      }
+      return true;
+    } catch (IOException e) {
+      // Corrupt shards are removed as they are read. Anything else is a failure to read.
+      if (hasShard(shardId)) {
+        throw new ShardStorageException("Could not read shard " + shardId + ". " + e.getMessage());
+      }
+      return false;
+    }
+  }
+
   /**
    * Retrieves a shard from storage and checks consistency
    *
@@ -58,4 +144,10 @@ public interface ShardStorage {
    * Return the current storage size in bytes
    */
   long getStorageSize();
+
+  /**
+   * Persists any state held in memory. The storage must not be used afterwards.
+   */
+  default void close() {
+  }
 }
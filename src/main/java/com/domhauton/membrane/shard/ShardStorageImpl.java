@@ -2,30 +2,83 @@ package com.domhauton.membrane.shard;
 
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Striped;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Collectors;
 
 /**
  * Created by dominic on 30/01/17.
+ * <p>
+ * Shards are tracked in an in-memory index with a live byte count, so listing shards and checking storage size never
+ * walk the shard tree. The index is saved every thousand changes, after each reconciliation and on close, each time to
+ * a temp file renamed over the last. An index not saved by close may be missing the latest changes, so after a crash
+ * it is checked against the tree once it is loaded. Changes made to the tree behind the storage's back are picked up
+ * by the optional reconciliation walk.
+ * <p>
+ * The index also records the size and modified time each shard was last verified at. Reads of a shard that has not
+ * changed since skip hashing it again.
+ * <p>
+ * Shards may be compressed at rest. The storage size and quota count bytes on disk, while shard sizes are raw.
+ * Compressed shards are stored under their own file extension, so the codec is never guessed from the data.
+ * <p>
+ * Safe for many concurrent writers. Stores and removals of the same id are serialised by striped locks, and the quota
+ * is enforced by reserving space before each write.
+ * <p>
+ * The directory layout is configurable. The index records the layout each shard is stored in, so shards can be moved
+ * to a new layout a few at a time while the storage is in use.
  */
 public class ShardStorageImpl implements ShardStorage {
   private static final String FILE_EXTENSION = ".mem";
-  private static final int FOLDER_SPLIT_LEN = 5;
+  private static final String COMPRESSED_EXTENSION = ".memz";
+  private static final String TEMP_EXTENSION = ".tmp";
+  private static final String INDEX_NAME = "shard-index.dat";
+  private static final String INDEX_CLEAN_NAME = "shard-index.clean";
+  private static final int INDEX_SAVE_CHANGES = 1000;
+  private static final int INDEX_VERSION = 1;
+  private static final int SHARD_LOCK_STRIPES = 64;
 
   private final Logger logger = LogManager.getLogger();
   private final Path basePath;
-  private long currentStorageSize;
+  private final AtomicLong currentStorageSize;
+  private final AtomicLong allocatedStorageSize;
   private final long maxStorageSize;
   private final HashFunction hashFunction;
+  private final Map<String, ShardInfo> shardIndex;
+  private final Striped<Lock> shardLocks;
+  private final ReadWriteLock folderLock;
+  private final Lock indexSaveLock;
+  private final AtomicInteger unsavedChanges;
+  private volatile ScheduledExecutorService reconcileExecutor;
+  private volatile ExecutorService migrationExecutor;
+  private volatile ShardLayout layout;
+  private volatile boolean compressShards;
+  private volatile GroupCommitSync groupCommitSync;
 
   /**
    * @param basePath Directory to store shards.
@@ -41,7 +94,24 @@ public class ShardStorageImpl implements ShardStorage {
     this.basePath = basePath;
     this.maxStorageSize = maxStorageSize;
     this.hashFunction = hashFunction;
-    currentStorageSize = getStorageSize();
+    this.shardIndex = new ConcurrentHashMap<>();
+    this.currentStorageSize = new AtomicLong(0L);
+    this.allocatedStorageSize = new AtomicLong(0L);
+    this.shardLocks = Striped.lock(SHARD_LOCK_STRIPES);
+    this.folderLock = new ReentrantReadWriteLock();
+    this.indexSaveLock = new ReentrantLock();
+    this.unsavedChanges = new AtomicInteger(0);
+    this.compressShards = false;
+    this.layout = ShardLayout.LEGACY;
+    boolean closedCleanly = removeCleanMarker();
+    if (!loadIndex()) {
+      walkShards(true).forEach(this::track);
+      logger.info("Indexed {} shards in [{}].", shardIndex.size(), basePath);
+      unsavedChanges.set(0);
+    } else if (!closedCleanly) {
+      logger.info("Shard index in [{}] was not saved on close. Checking it against the shards.", basePath);
+      reconcile();
+    }
   }
 
   /**
@@ -51,70 +121,247 @@ public class ShardStorageImpl implements ShardStorage {
    * @param data    The data to store.
    */
   public void storeShard(String shardId, byte[] data) throws ShardStorageException {
-    Path filePath = getPath(basePath.toString(), shardId);
-    if (!filePath.toFile().exists()) {
-      if (currentStorageSize + data.length > maxStorageSize) {
-        currentStorageSize = getStorageSize(); // Refresh to ensure value is correct
-        if (currentStorageSize + data.length > maxStorageSize) {
-          logger.warn("Not enough space to store shard [{}] of size {}MB. {}MB of {}MB stored",
-              shardId,
-                  ((float) data.length) / (1024 * 1024),
-                  ((float) currentStorageSize) / (1024 * 1024),
-                  ((float) maxStorageSize) / (1024 * 1024));
-          throw new ShardStorageException("Not enough space to store shard. " + shardId);
+    storeShard(shardId, ByteBuffer.wrap(data));
+  }
+
+  /**
+   * If enabled, shards are compressed with LZ4 as they are stored. Shards stored either way are always readable.
+   */
+  public void setCompressShards(boolean compressShards) {
+    this.compressShards = compressShards;
+  }
+
+  /**
+   * New shards are stored in the given layout. Shards already stored stay where they are, and are still read from
+   * there, until moved by {@link #startLayoutMigration(int)}. The legacy layout is used if none is set.
+   */
+  public void setLayout(ShardLayout layout) {
+    this.layout = layout;
+  }
+
+  /**
+   * If set, each shard is synced to disk before it is renamed into place, and the rename is synced before the store
+   * returns. Syncs are batched with other writers. Without it shards are still renamed into place, so are never seen
+   * partially written, but may be lost on a crash.
+   */
+  public void setGroupCommitSync(GroupCommitSync groupCommitSync) {
+    this.groupCommitSync = groupCommitSync;
+  }
+
+  /**
+   * Store the data given under the given hash. Written straight from the buffer without copying to the heap, unless
+   * it is compressed.
+   *
+   * @param shardId The id of the data given
+   * @param data    The data to store. Position is not changed.
+   */
+  @Override
+  public void storeShard(String shardId, ByteBuffer data) throws ShardStorageException {
+    if (shardIndex.containsKey(shardId)) {
+      return;
+    }
+    ByteBuffer encoded = compressShards ? ShardCodec.encode(data) : null;
+    ByteBuffer stored = encoded != null ? encoded : data;
+    store(shardId, stored.remaining(), data.remaining(), encoded != null, fileChannel -> {
+      ByteBuffer source = stored.duplicate();
+      long written = 0L;
+      while (source.hasRemaining()) {
+        written += fileChannel.write(source);
+      }
+      return written;
+    });
+  }
+
+  /**
+   * Store length bytes from the channel. Copied by the file system where the channel allows it, so never compressed.
+   *
+   * @param shardId The id of the data given
+   * @param data    The data to store.
+   * @param length  Bytes to read from the channel.
+   */
+  @Override
+  public void storeShard(String shardId, ReadableByteChannel data, long length) throws ShardStorageException {
+    store(shardId, length, length, false, fileChannel -> {
+      long written = 0L;
+      while (written < length) {
+        long count = fileChannel.transferFrom(data, written, length - written);
+        if (count <= 0) {
+          break;
         }
+        written += count;
+      }
+      return written;
+    });
+  }
+
+  /**
+   * Stores of the same id are serialised and all but the first do nothing. Stores of different ids run concurrently.
+   * Space is reserved before writing, so concurrent stores can never exceed the quota between them.
+   * <p>
+   * Written to a temp file and renamed into place, so a crash never leaves a partial shard under its id.
+   *
+   * @param length    bytes written to disk.
+   * @param rawLength bytes of shard data before compression.
+   * @param compressed if the data written is compressed.
+   */
+  private void store(String shardId, long length, long rawLength, boolean compressed, ShardWriter shardWriter)
+      throws ShardStorageException {
+    Lock shardLock = shardLocks.get(shardId);
+    shardLock.lock();
+    try {
+      if (shardIndex.containsKey(shardId)) {
+        return;
+      }
+      if (!reserve(length)) {
+        logger.warn("Not enough space to store shard [{}] of size {}MB. {}MB of {}MB stored",
+            shardId,
+            ((float) length) / (1024 * 1024),
+            ((float) currentStorageSize.get()) / (1024 * 1024),
+            ((float) maxStorageSize) / (1024 * 1024));
+        throw new ShardStorageException("Not enough space to store shard. " + shardId);
       }
       try {
-        Files.createDirectories(filePath.getParent());
-        Files.write(filePath, data);
-        currentStorageSize += data.length;
+        ShardLayout storeLayout = layout;
+        Path filePath = storeLayout.getPath(basePath, shardId, compressed ? COMPRESSED_EXTENSION : FILE_EXTENSION);
+        Path tempPath = filePath.resolveSibling(filePath.getFileName() + TEMP_EXTENSION);
+        GroupCommitSync sync = groupCommitSync;
+        folderLock.readLock().lock();
+        try {
+          Files.createDirectories(filePath.getParent());
+          long written;
+          try (FileChannel fileChannel = FileChannel.open(tempPath,
+              StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            written = shardWriter.write(fileChannel);
+            if (written >= length && sync != null) {
+              sync.syncFile(fileChannel);
+            }
+          }
+          if (written < length) {
+            Files.deleteIfExists(tempPath);
+            throw new ShardStorageException("Shard data ended early. " + shardId);
+          }
+          Files.move(tempPath, filePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+          if (sync != null) {
+            sync.syncDirectory(filePath.getParent());
+          }
+        } catch (IOException e) {
+          Files.deleteIfExists(tempPath);
+          throw e;
+        } finally {
+          folderLock.readLock().unlock();
+        }
+        commit(shardId, new ShardInfo(length, rawLength, Files.getLastModifiedTime(filePath).toMillis(), false,
+            storeLayout, compressed));
       } catch (IOException e) {
         logger.error("Could not store shard [{}] at {}", shardId, e.getMessage());
         throw new ShardStorageException("Could not store shard [" + shardId + "]. " + e.getMessage());
+      } finally {
+        release(length);
       }
+    } finally {
+      shardLock.unlock();
     }
+    saveIndexIfDue();
   }
 
   /**
-   * Retrieves a shard from the directory and checks consistency with hash
+   * Retrieves a shard from the directory and checks consistency with hash. The hash is skipped if the shard was
+   * verified before and its size and modified time have not changed since.
    *
    * @param shardId   Hash of requested shard
    * @return data requested.
    * @throws ShardStorageException If cannot access shard, shard does not exist or file corrupt.
    */
   public byte[] retrieveShard(String shardId) throws ShardStorageException {
-    Path filePath = getPath(basePath.toString(), shardId);
+    ShardInfo shardInfo = shardIndex.get(shardId);
+    boolean compressed = shardInfo != null && shardInfo.compressed;
+    Path filePath = getPath(basePath, shardId, shardInfo);
     try {
+      BasicFileAttributes attributes = Files.readAttributes(filePath, BasicFileAttributes.class);
       byte[] bytes = Files.readAllBytes(filePath);
-      if (hashFunction.hashBytes(bytes).toString().equalsIgnoreCase(shardId)) {
-        return bytes;
+      if (bytes.length == attributes.size() && isVerifiedUnchanged(shardId, attributes)) {
+        return compressed ? ShardCodec.decode(bytes) : bytes;
+      }
+      byte[] raw = compressed ? decodeOrNull(bytes) : bytes;
+      if (raw != null && hashFunction.hashBytes(raw).toString().equalsIgnoreCase(shardId)) {
+        markVerified(shardId, attributes);
+        return raw;
       } else {
         logger.error("Shard corrupted. Removing [{}]", shardId);
         removeShard(shardId);
         throw new ShardStorageException("Shard corrupted.");
       }
     } catch (IOException e) {
+      if (!untrackIfMissing(shardId) && !shardPath(shardId).equals(filePath)) {
+        // Moved to a new layout while being read.
+        return retrieveShard(shardId);
+      }
       logger.error("Could not retrieve shard [{}]. {}", shardId, e.getMessage());
       throw new ShardStorageException("Could not retrieve shard [" + shardId + "]. ", e);
     }
   }
 
+  /**
+   * Opens the shard file for streaming. Checked against its hash as it is read, unless verified and unchanged.
+   *
+   * @throws ShardStorageException If the shard does not exist or cannot be opened.
+   */
+  @Override
+  public InputStream openShard(String shardId) throws ShardStorageException {
+    ShardInfo shardInfo = shardIndex.get(shardId);
+    Path filePath = getPath(basePath, shardId, shardInfo);
+    try {
+      BasicFileAttributes attributes = Files.readAttributes(filePath, BasicFileAttributes.class);
+      InputStream input = new BufferedInputStream(Channels.newInputStream(FileChannel.open(filePath, StandardOpenOption.READ)));
+      long rawLength = attributes.size();
+      if (shardInfo != null && shardInfo.compressed) {
+        // Decoded a block at a time. A corrupt block fails verification and removes the shard.
+        input = ShardCodec.decoder(input);
+        rawLength = shardInfo.rawSize;
+      }
+      if (isVerifiedUnchanged(shardId, attributes)) {
+        return input;
+      }
+      return new VerifiedShardInputStream(input, this, shardId, hashFunction, rawLength,
+          () -> markVerified(shardId, attributes));
+    } catch (IOException e) {
+      if (!untrackIfMissing(shardId) && !shardPath(shardId).equals(filePath)) {
+        // Moved to a new layout while being opened.
+        return openShard(shardId);
+      }
+      logger.error("Could not open shard [{}]. {}", shardId, e.getMessage());
+      throw new ShardStorageException("Could not open shard [" + shardId + "]. ", e);
+    }
+  }
+
+  /**
+   * Forgets any earlier verification so the whole shard is hashed again.
+   */
+  @Override
+  public boolean verifyShard(String shardId) throws ShardStorageException {
+    ShardInfo shardInfo = shardIndex.get(shardId);
+    if (shardInfo != null) {
+      shardInfo.verified = false;
+    }
+    return ShardStorage.super.verifyShard(shardId);
+  }
+
   @Override
   public boolean hasShard(String shardId) {
-    return getPath(basePath.toString(), shardId).toFile().exists();
+    return shardIndex.containsKey(shardId);
   }
 
   /**
    * Retrieves the size of a share from storage
    *
    * @param shardId id of requested shard
-   * @return size of requested shard in bytes. 0L if unknown.
+   * @return size of requested shard in bytes before compression.
    * @throws ShardStorageException If shard does not exist.
    */
   public long getShardSize(String shardId) throws ShardStorageException {
-    File shardFile = getPath(basePath.toString(), shardId).toFile();
-    if (shardFile.exists()) {
-      return shardFile.length();
+    ShardInfo shardInfo = shardIndex.get(shardId);
+    if (shardInfo != null) {
+      return shardInfo.rawSize;
     } else {
       throw new ShardStorageException("Shard " + shardId + " not found.");
     }
@@ -127,10 +374,36 @@ public class ShardStorageImpl implements ShardStorage {
    * @return length of shard removed
    */
   public long removeShard(String shardId) throws ShardStorageException {
-    Path filePath = getPath(basePath.toString(), shardId);
+    Lock shardLock = shardLocks.get(shardId);
+    shardLock.lock();
     try {
+      Path filePath = shardPath(shardId);
       long retLong = filePath.toFile().length();
-      Files.delete(filePath);
+      try {
+        Files.delete(filePath);
+      } finally {
+        if (!filePath.toFile().exists()) {
+          untrack(shardId);
+        }
+      }
+      removeEmptyFolders(filePath);
+      return retLong;
+    } catch (IOException e) {
+      logger.error("Failed to remove shard {}. {}", shardId, e.getMessage());
+      throw new ShardStorageException("Could not remove shard: " + shardId + ". " + e.getMessage());
+    } finally {
+      shardLock.unlock();
+      saveIndexIfDue();
+    }
+  }
+
+  /**
+   * Stores create folders while holding the read side of the folder lock, so a folder is never removed between a
+   * store creating it and writing into it.
+   */
+  private void removeEmptyFolders(Path filePath) throws IOException {
+    folderLock.writeLock().lock();
+    try {
       for (File folder = filePath.toFile().getParentFile(); !folder.toPath().equals(basePath); folder = folder.getParentFile()) {
         File[] files = folder.listFiles();
         if (files != null && files.length == 0) {
@@ -139,41 +412,16 @@ public class ShardStorageImpl implements ShardStorage {
           break;
         }
       }
-      currentStorageSize -= retLong;
-      return retLong;
-    } catch (IOException e) {
-      logger.error("Failed to remove shard {}. {}", shardId, e.getMessage());
-      throw new ShardStorageException("Could not remove shard: " + shardId + ". " + e.getMessage());
+    } finally {
+      folderLock.writeLock().unlock();
     }
   }
 
   /**
-   * Scans the root folder for shards.
-   *
-   * @return List of shard ids available for reading.
+   * @return the ids of all shards available for reading, from the index.
    */
   public Set<String> listShardIds() {
-    final Set<Path> memFiles = new HashSet<>();
-    if (basePath.toFile().exists()) {
-      try {
-        Files.walkFileTree(basePath, new SimpleFileVisitor<Path>() {
-          @Override
-          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-            if (file.toString().endsWith(FILE_EXTENSION)) {
-              memFiles.add(file);
-            }
-            return FileVisitResult.CONTINUE;
-          }
-        });
-      } catch (IOException e) {
-        logger.error("Could not find stored shards in [{}].", basePath.toString());
-      }
-    }
-    return memFiles.stream()
-            .map(Path::toString)
-            .map(x -> x.substring(basePath.toString().length(), x.length() - FILE_EXTENSION.length()))
-            .map(x -> x.replaceAll(File.separator, ""))
-            .collect(Collectors.toSet());
+    return new HashSet<>(shardIndex.keySet());
   }
 
   /**
@@ -181,40 +429,512 @@ public class ShardStorageImpl implements ShardStorage {
    *
    * @param rootPath path to the root folder.
    * @param id       The id to use as a folder chain.
-   * @return The path the shard should be stored under.
+   * @return The path the shard is stored under, in the layout it is stored in.
    */
   Path getPath(String rootPath, String id) {
-    StringBuilder currentDir = new StringBuilder().append(rootPath);
-    while (id.length() > FOLDER_SPLIT_LEN) {
-      currentDir.append(File.separator).append(id.substring(0, FOLDER_SPLIT_LEN));
-      id = id.substring(FOLDER_SPLIT_LEN);
+    return getPath(Paths.get(rootPath), id, shardIndex.get(id));
+  }
+
+  /**
+   * @param shardInfo index entry of the shard, or null if not stored.
+   */
+  private Path getPath(Path root, String id, ShardInfo shardInfo) {
+    return shardInfo != null ? shardInfo.getPath(root, id) : layout.getPath(root, id, FILE_EXTENSION);
+  }
+
+  private Path shardPath(String shardId) {
+    return getPath(basePath, shardId, shardIndex.get(shardId));
+  }
+
+  /**
+   * @return the bytes stored, from the live count.
+   */
+  public long getStorageSize() {
+    return currentStorageSize.get();
+  }
+
+  /**
+   * @return true if the shard was read back and matched its id since it was stored.
+   */
+  public boolean isVerified(String shardId) {
+    ShardInfo shardInfo = shardIndex.get(shardId);
+    return shardInfo != null && shardInfo.verified;
+  }
+
+  /**
+   * Walks the shard tree at the given interval to pick up shards added or removed behind the storage's back.
+   */
+  public void startReconciliation(long interval, TimeUnit timeUnit) {
+    if (reconcileExecutor == null) {
+      reconcileExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "membrane-shard-reconcile");
+        thread.setDaemon(true);
+        return thread;
+      });
+      reconcileExecutor.scheduleWithFixedDelay(this::reconcile, interval, interval, timeUnit);
+    }
+  }
+
+  /**
+   * Corrects the index against the shard tree, then saves it. Each difference is checked against the file again before
+   * it is applied, as shards may be stored or removed during the walk.
+   */
+  void reconcile() {
+    Map<String, ShardInfo> foundShards = walkShards(false);
+    int corrected = 0;
+    for (Map.Entry<String, ShardInfo> entry : foundShards.entrySet()) {
+      ShardInfo indexed = shardIndex.get(entry.getKey());
+      ShardInfo found = entry.getValue();
+      if ((indexed == null || indexed.size != found.size || !indexed.layout.equals(found.layout) ||
+          indexed.compressed != found.compressed) && found.getPath(basePath, entry.getKey()).toFile().exists()) {
+        track(entry.getKey(), entry.getValue());
+        corrected++;
+      }
+    }
+    for (String shardId : listShardIds()) {
+      if (!foundShards.containsKey(shardId) && untrackIfMissing(shardId)) {
+        corrected++;
+      }
+    }
+    if (corrected > 0) {
+      logger.warn("Corrected {} shard index entries in [{}].", corrected, basePath);
+    }
+    saveIndex(false);
+  }
+
+  /**
+   * Moves shards stored in other layouts into the current layout in the background, while the storage carries on
+   * serving reads and writes. Each move is a rename, and the index records the layout of every shard, so stopping part
+   * way is safe. The migration resumes from where it stopped when started again.
+   *
+   * @param shardsPerSecond maximum shards moved per second. 0 for unlimited.
+   */
+  public void startLayoutMigration(int shardsPerSecond) {
+    if (migrationExecutor == null) {
+      migrationExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "membrane-shard-layout-migration");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+      });
+      migrationExecutor.submit(() -> migrateLayout(shardsPerSecond));
+    }
+  }
+
+  /**
+   * @return number of shards moved into the current layout.
+   */
+  int migrateLayout(int shardsPerSecond) {
+    ShardLayout target = layout;
+    List<String> shardIds = shardIndex.entrySet().stream()
+        .filter(entry -> !entry.getValue().layout.equals(target))
+        .map(Map.Entry::getKey)
+        .collect(Collectors.toList());
+    if (shardIds.isEmpty()) {
+      return 0;
+    }
+    logger.info("Moving {} shards in [{}] to layout of {}.", shardIds.size(), basePath, target);
+    long startNanos = System.nanoTime();
+    int moved = 0;
+    try {
+      for (String shardId : shardIds) {
+        if (Thread.currentThread().isInterrupted()) {
+          break;
+        }
+        try {
+          moved += moveToLayout(shardId, target) ? 1 : 0;
+        } catch (IOException e) {
+          logger.warn("Could not move shard [{}] to new layout. {}", shardId, e.getMessage());
+        }
+        if (shardsPerSecond > 0) {
+          long waitNanos = startNanos + TimeUnit.SECONDS.toNanos(moved) / shardsPerSecond - System.nanoTime();
+          if (waitNanos > 0L) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    logger.info("Moved {} of {} shards in [{}] to layout of {}.", moved, shardIds.size(), basePath, target);
+    return moved;
+  }
+
+  /**
+   * Renames the shard into the target layout. Readers that lose the race with the rename find the shard again.
+   *
+   * @return false if the shard was removed or already moved.
+   */
+  private boolean moveToLayout(String shardId, ShardLayout target) throws IOException {
+    Lock shardLock = shardLocks.get(shardId);
+    shardLock.lock();
+    try {
+      ShardInfo shardInfo = shardIndex.get(shardId);
+      if (shardInfo == null || shardInfo.layout.equals(target)) {
+        return false;
+      }
+      Path source = shardInfo.getPath(basePath, shardId);
+      Path destination = target.getPath(basePath, shardId, shardInfo.getExtension());
+      folderLock.readLock().lock();
+      try {
+        Files.createDirectories(destination.getParent());
+        Files.move(source, destination, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        folderLock.readLock().unlock();
+      }
+      shardIndex.computeIfPresent(shardId, (id, info) ->
+          new ShardInfo(info.size, info.rawSize, info.modifiedMillis, info.verified, target, info.compressed));
+      if (!source.getParent().equals(destination.getParent())) {
+        removeEmptyFolders(source);
+      }
+      return true;
+    } finally {
+      shardLock.unlock();
+    }
+  }
+
+  /**
+   * Untracks the shard if its file is gone. Checked under the shard's lock, so a shard part way through a move to a new
+   * layout is never taken for missing.
+   *
+   * @return true if the shard was untracked.
+   */
+  private boolean untrackIfMissing(String shardId) {
+    Lock shardLock = shardLocks.get(shardId);
+    shardLock.lock();
+    try {
+      if (shardIndex.containsKey(shardId) && !shardPath(shardId).toFile().exists()) {
+        untrack(shardId);
+        return true;
+      }
+      return false;
+    } finally {
+      shardLock.unlock();
+    }
+  }
+
+  /**
+   * Saves the index and marks it as saved on close, so the next start up trusts it without checking the shard tree.
+   */
+  @Override
+  public void close() {
+    if (reconcileExecutor != null) {
+      reconcileExecutor.shutdown();
+    }
+    if (migrationExecutor != null) {
+      migrationExecutor.shutdownNow();
+      try {
+        migrationExecutor.awaitTermination(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    saveIndex(true);
+  }
+
+  /**
+   * @return the raw shard, or null if its compressed data is corrupt.
+   */
+  private static byte[] decodeOrNull(byte[] stored) {
+    try {
+      return ShardCodec.decode(stored);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return up to the header length of bytes from the start of the channel.
+   */
+  private static byte[] readHeader(FileChannel fileChannel) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(ShardCodec.HEADER_LENGTH);
+    while (header.hasRemaining() && fileChannel.read(header) >= 0) {
+      // Keep reading until full or end of file.
+    }
+    return Arrays.copyOf(header.array(), header.position());
+  }
+
+  /**
+   * @return the raw size from the header of a compressed shard, or the file size if the header is corrupt.
+   */
+  private long readRawSize(Path file, long size) {
+    try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+      int rawLength = ShardCodec.rawLength(readHeader(fileChannel));
+      return rawLength < 0 ? size : rawLength;
+    } catch (IOException e) {
+      logger.warn("Could not read shard header [{}]. {}", file, e.getMessage());
+      return size;
+    }
+  }
+
+  private boolean isVerifiedUnchanged(String shardId, BasicFileAttributes attributes) {
+    ShardInfo shardInfo = shardIndex.get(shardId);
+    return shardInfo != null && shardInfo.verified && shardInfo.size == attributes.size() &&
+        shardInfo.modifiedMillis == attributes.lastModifiedTime().toMillis();
+  }
+
+  /**
+   * Records the size and modified time the shard was verified at, so later reads can tell if it changed.
+   */
+  private void markVerified(String shardId, BasicFileAttributes attributes) {
+    ShardInfo shardInfo = shardIndex.get(shardId);
+    if (shardInfo != null && shardInfo.size == attributes.size()) {
+      shardIndex.replace(shardId, shardInfo,
+          new ShardInfo(shardInfo.size, shardInfo.rawSize, attributes.lastModifiedTime().toMillis(), true,
+              shardInfo.layout, shardInfo.compressed));
+    }
+  }
+
+  /**
+   * Reserves space for a shard about to be stored. Every reservation must be released once the store ends, whether it
+   * was committed or not.
+   *
+   * @return false if there is not enough space.
+   */
+  private boolean reserve(long bytes) {
+    while (true) {
+      long allocated = allocatedStorageSize.get();
+      if (allocated + bytes > maxStorageSize) {
+        return false;
+      }
+      if (allocatedStorageSize.compareAndSet(allocated, allocated + bytes)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Adds a stored shard to the index. The space stays allocated twice until its reservation is released.
+   */
+  private void commit(String shardId, ShardInfo shardInfo) {
+    track(shardId, shardInfo);
+  }
+
+  private void release(long bytes) {
+    allocatedStorageSize.addAndGet(-bytes);
+  }
+
+  private void track(String shardId, ShardInfo shardInfo) {
+    ShardInfo previous = shardIndex.put(shardId, shardInfo);
+    unsavedChanges.incrementAndGet();
+    long change = shardInfo.size - (previous == null ? 0L : previous.size);
+    currentStorageSize.addAndGet(change);
+    allocatedStorageSize.addAndGet(change);
+  }
+
+  private void untrack(String shardId) {
+    ShardInfo previous = shardIndex.remove(shardId);
+    if (previous != null) {
+      unsavedChanges.incrementAndGet();
+      currentStorageSize.addAndGet(-previous.size);
+      allocatedStorageSize.addAndGet(-previous.size);
     }
-    currentDir.append(File.separator).append(id).append(FILE_EXTENSION);
-    return Paths.get(currentDir.toString());
   }
 
   /**
    * Scans the root folder for shards.
    *
-   * @return List of shard hashes available for reading.
+   * @param removeTempFiles remove shards left partially written by a crash. Only safe when nothing is storing.
+   * @return the shards found by id.
    */
-  public long getStorageSize() {
-    final AtomicLong size = new AtomicLong(0);
+  private Map<String, ShardInfo> walkShards(boolean removeTempFiles) {
+    Map<String, ShardInfo> shards = new HashMap<>();
     if (basePath.toFile().exists()) {
       try {
         Files.walkFileTree(basePath, new SimpleFileVisitor<Path>() {
           @Override
           public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-            if (file.toString().endsWith(FILE_EXTENSION)) {
-              size.getAndAdd(attrs.size());
+            String fileName = file.toString();
+            boolean compressed = fileName.endsWith(COMPRESSED_EXTENSION);
+            if (compressed || fileName.endsWith(FILE_EXTENSION)) {
+              String extension = compressed ? COMPRESSED_EXTENSION : FILE_EXTENSION;
+              String relativePath = basePath.relativize(file).toString();
+              Path relativeStem = Paths.get(relativePath.substring(0, relativePath.length() - extension.length()));
+              boolean found = false;
+              for (String shardId : ShardLayout.candidateIds(relativeStem)) {
+                ShardLayout fileLayout = findLayout(shardId, file, relativeStem, extension);
+                if (fileLayout != null) {
+                  long rawSize = compressed ? readRawSize(file, attrs.size()) : attrs.size();
+                  shards.put(shardId, new ShardInfo(attrs.size(), rawSize, attrs.lastModifiedTime().toMillis(), false,
+                      fileLayout, compressed));
+                  found = true;
+                  break;
+                }
+              }
+              if (!found) {
+                logger.warn("Skipping shard file in unknown layout [{}].", file);
+              }
+            } else if (removeTempFiles && (fileName.endsWith(FILE_EXTENSION + TEMP_EXTENSION) ||
+                fileName.endsWith(COMPRESSED_EXTENSION + TEMP_EXTENSION))) {
+              logger.info("Removing partially written shard [{}].", file);
+              Files.deleteIfExists(file);
             }
             return FileVisitResult.CONTINUE;
           }
+
+          @Override
+          public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+            // Shards removed during the walk are skipped.
+            return FileVisitResult.CONTINUE;
+          }
         });
       } catch (IOException e) {
         logger.error("Could not find stored shards in [{}].", basePath.toString());
       }
     }
-    return size.get();
+    return shards;
+  }
+
+  /**
+   * @return the layout the file is stored in under the id, or null if none matches.
+   */
+  private ShardLayout findLayout(String shardId, Path file, Path relativeStem, String extension) {
+    int levels = relativeStem.getNameCount() - 1;
+    int charsPerLevel = levels > 0 ? relativeStem.getName(0).toString().length() : 1;
+    for (ShardLayout candidate : Arrays.asList(layout, ShardLayout.LEGACY, ShardLayout.fanOut(levels, charsPerLevel))) {
+      if (candidate.getPath(basePath, shardId, extension).equals(file)) {
+        return candidate;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Saves the index once enough has changed since it was last saved. Skipped if another thread is already saving.
+   */
+  private void saveIndexIfDue() {
+    if (unsavedChanges.get() >= INDEX_SAVE_CHANGES && indexSaveLock.tryLock()) {
+      try {
+        saveIndex(false);
+      } finally {
+        indexSaveLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Written to a temp file and renamed over the last index, so a crash never leaves a partial index. The marker is only
+   * left by close, as any later change would make the saved index stale.
+   *
+   * @param closing mark the index as saved on close.
+   */
+  private void saveIndex(boolean closing) {
+    if (!basePath.toFile().exists()) {
+      return;
+    }
+    Path indexPath = basePath.resolve(INDEX_NAME);
+    Path tempPath = basePath.resolve(INDEX_NAME + ".tmp");
+    indexSaveLock.lock();
+    try {
+      removeCleanMarker();
+      unsavedChanges.set(0);
+      try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempPath.toFile())))) {
+        Map<String, ShardInfo> snapshot = new HashMap<>(shardIndex);
+        output.writeInt(INDEX_VERSION);
+        output.writeInt(snapshot.size());
+        for (Map.Entry<String, ShardInfo> entry : snapshot.entrySet()) {
+          output.writeUTF(entry.getKey());
+          output.writeLong(entry.getValue().size);
+          output.writeLong(entry.getValue().rawSize);
+          output.writeLong(entry.getValue().modifiedMillis);
+          output.writeBoolean(entry.getValue().verified);
+          output.writeByte(entry.getValue().layout.getLevels());
+          output.writeByte(entry.getValue().layout.getCharsPerLevel());
+          output.writeBoolean(entry.getValue().compressed);
+        }
+      }
+      Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      if (closing) {
+        Files.createFile(basePath.resolve(INDEX_CLEAN_NAME));
+      }
+      logger.debug("Saved index of {} shards to [{}]", shardIndex.size(), indexPath);
+    } catch (IOException e) {
+      logger.error("Failed to save shard index to [{}]. {}", indexPath, e.getMessage());
+    } finally {
+      indexSaveLock.unlock();
+    }
+  }
+
+  /**
+   * @return true if the index was last saved on close.
+   */
+  private boolean removeCleanMarker() {
+    Path cleanPath = basePath.resolve(INDEX_CLEAN_NAME);
+    try {
+      return Files.deleteIfExists(cleanPath);
+    } catch (IOException e) {
+      logger.error("Failed to remove shard index marker [{}]. {}", cleanPath, e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * The index is kept once loaded and saved over as the storage changes.
+   *
+   * @return true if the index was loaded.
+   */
+  private boolean loadIndex() {
+    Path indexPath = basePath.resolve(INDEX_NAME);
+    if (!indexPath.toFile().exists()) {
+      return false;
+    }
+    try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(indexPath.toFile())))) {
+      if (input.readInt() != INDEX_VERSION) {
+        throw new IOException("Unknown index version.");
+      }
+      int count = input.readInt();
+      Map<ShardLayout, ShardLayout> layouts = new HashMap<>();
+      for (int i = 0; i < count; i++) {
+        String shardId = input.readUTF();
+        long size = input.readLong();
+        long rawSize = input.readLong();
+        long modifiedMillis = input.readLong();
+        boolean verified = input.readBoolean();
+        ShardLayout shardLayout = layouts.computeIfAbsent(ShardLayout.of(input.readByte(), input.readByte()), l -> l);
+        track(shardId, new ShardInfo(size, rawSize, modifiedMillis, verified, shardLayout, input.readBoolean()));
+      }
+      unsavedChanges.set(0);
+      logger.info("Loaded index of {} shards from [{}]", count, indexPath);
+      return true;
+    } catch (IOException e) {
+      logger.warn("Failed to load shard index from [{}]. Walking shards. {}", indexPath, e.getMessage());
+      shardIndex.clear();
+      currentStorageSize.set(0L);
+      allocatedStorageSize.set(0L);
+      return false;
+    }
+  }
+
+  private static class ShardInfo {
+    private final long size;
+    private final long rawSize;
+    private final long modifiedMillis;
+    private volatile boolean verified;
+    private final ShardLayout layout;
+    private final boolean compressed;
+
+    ShardInfo(long size, long rawSize, long modifiedMillis, boolean verified, ShardLayout layout, boolean compressed) {
+      this.size = size;
+      this.rawSize = rawSize;
+      this.modifiedMillis = modifiedMillis;
+      this.verified = verified;
+      this.layout = layout;
+      this.compressed = compressed;
+    }
+
+    String getExtension() {
+      return compressed ? COMPRESSED_EXTENSION : FILE_EXTENSION;
+    }
+
+    Path getPath(Path root, String shardId) {
+      return layout.getPath(root, shardId, getExtension());
+    }
+  }
+
+  private interface ShardWriter {
+    /**
+     * @return bytes written.
+     */
+    long write(FileChannel fileChannel) throws IOException;
   }
 }
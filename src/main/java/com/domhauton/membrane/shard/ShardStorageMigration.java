@@ -0,0 +1,51 @@
+package com.domhauton.membrane.shard;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Set;
+
+/**
+ * Created by dominic on 29/10/17.
+ * <p>
+ * Moves every shard from one storage to another, such as from one file per shard to segment files. Each shard is
+ * removed from the source only once it is stored in the target, so an interrupted migration is finished by running it
+ * again.
+ */
+public final class ShardStorageMigration {
+  private static final Logger logger = LogManager.getLogger();
+
+  private ShardStorageMigration() {
+  }
+
+  /**
+   * @return the number of shards moved.
+   * @throws ShardStorageException if a shard could not be read or stored. Shards already moved stay in the target.
+   */
+  public static int migrate(ShardStorage source, ShardStorage target) throws ShardStorageException {
+    Set<String> shardIds = source.listShardIds();
+    if (shardIds.isEmpty()) {
+      return 0;
+    }
+    logger.info("Migrating {} shards to new shard storage.", shardIds.size());
+    int moved = 0;
+    for (String shardId : shardIds) {
+      if (!target.hasShard(shardId)) {
+        try {
+          target.storeShard(shardId, source.retrieveShard(shardId));
+        } catch (ShardStorageException e) {
+          if (source.hasShard(shardId)) {
+            throw e;
+          }
+          // A corrupt shard is dropped by the source when read. Nothing left to move.
+          logger.warn("Skipping corrupt shard {} during migration.", shardId);
+          continue;
+        }
+      }
+      source.removeShard(shardId);
+      moved++;
+    }
+    logger.info("Migrated {} shards to new shard storage.", moved);
+    return moved;
+  }
+}
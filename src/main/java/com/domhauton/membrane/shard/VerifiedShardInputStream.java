@@ -0,0 +1,137 @@
+package com.domhauton.membrane.shard;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Created by dominic on 31/10/17.
+ * <p>
+ * Hashes a shard as it is streamed and checks the hash against the shard id once the end is read. A corrupt or short
+ * shard is removed from its storage and the final read throws, so a reader must read to the end before trusting the
+ * data. Stored data that cannot be decoded is treated as corrupt as soon as it is read.
+ */
+class VerifiedShardInputStream extends FilterInputStream {
+  private static final Logger logger = LogManager.getLogger();
+
+  private final ShardStorage shardStorage;
+  private final String shardId;
+  private final Hasher hasher;
+  private final long expectedLength;
+  private final Runnable onVerified;
+  private long readLength;
+  private Boolean verified;
+
+  VerifiedShardInputStream(InputStream in, ShardStorage shardStorage, String shardId, HashFunction hashFunction, long expectedLength) {
+    this(in, shardStorage, shardId, hashFunction, expectedLength, () -> {
+    });
+  }
+
+  /**
+   * @param onVerified run once the whole shard is read and matches its id.
+   */
+  VerifiedShardInputStream(InputStream in, ShardStorage shardStorage, String shardId, HashFunction hashFunction,
+                           long expectedLength, Runnable onVerified) {
+    super(in);
+    this.shardStorage = shardStorage;
+    this.shardId = shardId;
+    this.hasher = hashFunction.newHasher();
+    this.expectedLength = expectedLength;
+    this.onVerified = onVerified;
+    this.readLength = 0L;
+    this.verified = null;
+  }
+
+  @Override
+  public int read() throws IOException {
+    int value;
+    try {
+      value = super.read();
+    } catch (CorruptShardException e) {
+      readLength = -1L;
+      verify();
+      throw e;
+    }
+    if (value < 0) {
+      verify();
+    } else {
+      hasher.putByte((byte) value);
+      readLength++;
+    }
+    return value;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    int count;
+    try {
+      count = super.read(b, off, len);
+    } catch (CorruptShardException e) {
+      readLength = -1L;
+      verify();
+      throw e;
+    }
+    if (count < 0) {
+      verify();
+    } else {
+      hasher.putBytes(b, off, count);
+      readLength += count;
+    }
+    return count;
+  }
+
+  /**
+   * Skipped bytes are still read, as the whole shard must be hashed.
+   */
+  @Override
+  public long skip(long n) throws IOException {
+    byte[] buffer = new byte[(int) Math.min(n, 8192)];
+    long skipped = 0L;
+    while (skipped < n) {
+      int count = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+      if (count < 0) {
+        break;
+      }
+      skipped += count;
+    }
+    return skipped;
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  @Override
+  public synchronized void mark(int readlimit) {
+  }
+
+  @Override
+  public synchronized void reset() throws IOException {
+    throw new IOException("Mark not supported.");
+  }
+
+  private void verify() throws IOException {
+    if (verified == null) {
+      verified = readLength == expectedLength && hasher.hash().toString().equalsIgnoreCase(shardId);
+      if (verified) {
+        onVerified.run();
+      } else {
+        logger.error("Shard corrupted. Removing [{}]", shardId);
+        try {
+          shardStorage.removeShard(shardId);
+        } catch (ShardStorageException e) {
+          logger.error("Failed to remove corrupt shard [{}]. {}", shardId, e.getMessage());
+        }
+      }
+    }
+    if (!verified) {
+      throw new IOException("Shard corrupted. " + shardId);
+    }
+  }
+}
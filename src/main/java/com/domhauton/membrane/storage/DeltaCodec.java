@@ -0,0 +1,340 @@
+package com.domhauton.membrane.storage;
+
+import com.domhauton.membrane.shard.ShardStorage;
+import com.domhauton.membrane.shard.ShardStorageException;
+import com.domhauton.membrane.storage.catalogue.metadata.MD5HashLengthPair;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Created by dominic on 28/10/17.
+ * <p>
+ * rsync style deltas between two versions of a chunk. The base is split into blocks indexed by a rolling checksum,
+ * then the new data is scanned a byte at a time for blocks it shares with the base. Shared runs are written as copies
+ * from the base and everything else as literal bytes.
+ */
+public final class DeltaCodec {
+  static final int BLOCK_SIZE = 2048;
+  private static final byte FORMAT_VERSION = 1;
+  private static final byte OP_COPY = 0;
+  private static final byte OP_LITERAL = 1;
+  private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+  private DeltaCodec() {
+  }
+
+  /**
+   * @return a delta that rebuilds the target from the base.
+   */
+  public static byte[] encode(byte[] base, byte[] target) {
+    int blockCount = base.length / BLOCK_SIZE;
+    Map<Integer, Integer> firstBlock = new HashMap<>(blockCount * 2);
+    int[] nextBlock = new int[blockCount];
+    for (int i = blockCount - 1; i >= 0; i--) {
+      int checksum = checksum(base, i * BLOCK_SIZE);
+      nextBlock[i] = firstBlock.getOrDefault(checksum, -1);
+      firstBlock.put(checksum, i);
+    }
+
+    DeltaWriter deltaWriter = new DeltaWriter(target.length);
+    int literalStart = 0;
+    int position = 0;
+    int a = 0;
+    int b = 0;
+    boolean rolling = false;
+    while (blockCount > 0 && position + BLOCK_SIZE <= target.length) {
+      if (!rolling) {
+        a = sumA(target, position);
+        b = sumB(target, position);
+        rolling = true;
+      }
+      int match = findBlock(firstBlock.getOrDefault(toChecksum(a, b), -1), nextBlock, base, target, position);
+      if (match >= 0) {
+        int baseOffset = match * BLOCK_SIZE;
+        int length = BLOCK_SIZE;
+        while (baseOffset + length < base.length && position + length < target.length &&
+            base[baseOffset + length] == target[position + length]) {
+          length++;
+        }
+        deltaWriter.literal(target, literalStart, position - literalStart);
+        deltaWriter.copy(baseOffset, length);
+        position += length;
+        literalStart = position;
+        rolling = false;
+      } else {
+        if (position + BLOCK_SIZE < target.length) {
+          int out = target[position] & 0xff;
+          int in = target[position + BLOCK_SIZE] & 0xff;
+          a += in - out;
+          b += a - BLOCK_SIZE * out;
+        }
+        position++;
+      }
+    }
+    deltaWriter.literal(target, literalStart, target.length - literalStart);
+    return deltaWriter.toByteArray();
+  }
+
+  /**
+   * @return the target rebuilt from the base and the delta.
+   * @throws IllegalArgumentException if the delta is corrupt or was not made against the base.
+   */
+  public static byte[] apply(byte[] base, byte[] delta) {
+    ByteArrayOutputStream target = new ByteArrayOutputStream();
+    try {
+      apply(base, new ByteArrayInputStream(delta), target, Integer.MAX_VALUE);
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Truncated delta. " + e.getMessage());
+    }
+    return target.toByteArray();
+  }
+
+  /**
+   * Streams the rebuilt target, copying literals through a small buffer. Nothing is allocated from the lengths in the
+   * delta, so a corrupt delta cannot cause a large allocation.
+   *
+   * @param maxLength the longest target accepted.
+   * @return the length of the target.
+   * @throws IllegalArgumentException if the delta is corrupt or was not made against the base.
+   * @throws IOException              if the delta could not be read or the target could not be written.
+   */
+  static long apply(byte[] base, InputStream delta, OutputStream target, long maxLength) throws IOException {
+    DataInputStream input = new DataInputStream(delta);
+    if (input.readByte() != FORMAT_VERSION) {
+      throw new IllegalArgumentException("Unknown delta version.");
+    }
+    int targetLength = input.readInt();
+    if (targetLength < 0 || targetLength > maxLength) {
+      throw new IllegalArgumentException("Delta target length invalid. " + targetLength);
+    }
+    byte[] buffer = new byte[COPY_BUFFER_SIZE];
+    long position = 0;
+    int op;
+    while ((op = input.read()) >= 0) {
+      int offset = op == OP_COPY ? input.readInt() : 0;
+      int length = input.readInt();
+      if (length < 0 || length > targetLength - position) {
+        throw new IllegalArgumentException("Delta overruns target.");
+      }
+      if (op == OP_COPY) {
+        if (offset < 0 || offset > base.length - length) {
+          throw new IllegalArgumentException("Delta copy outside of base.");
+        }
+        target.write(base, offset, length);
+      } else if (op == OP_LITERAL) {
+        for (int remaining = length; remaining > 0; ) {
+          int count = Math.min(remaining, buffer.length);
+          input.readFully(buffer, 0, count);
+          target.write(buffer, 0, count);
+          remaining -= count;
+        }
+      } else {
+        throw new IllegalArgumentException("Unknown delta op " + op);
+      }
+      position += length;
+    }
+    if (position != targetLength) {
+      throw new IllegalArgumentException("Delta short of target.");
+    }
+    return position;
+  }
+
+  /**
+   * Retrieves the data of a full or delta entry, applying each delta in the chain to the base shard.
+   *
+   * @throws ShardStorageException if a shard in the chain is missing or corrupt.
+   */
+  public static byte[] retrieve(ShardStorage shardStorage, MD5HashLengthPair md5HashLengthPair) throws ShardStorageException {
+    ByteArrayOutputStream data = new ByteArrayOutputStream(md5HashLengthPair.getLength());
+    try {
+      retrieve(shardStorage, md5HashLengthPair, data);
+    } catch (IOException e) {
+      // Writes to memory, so only a shard can fail, and those failures are thrown as ShardStorageException.
+      throw new IllegalStateException(e);
+    }
+    return data.toByteArray();
+  }
+
+  /**
+   * Streams the data of a full or delta entry. Earlier versions in the chain are held in memory as later deltas copy
+   * from them, but the newest delta is applied straight to the output, so the entry itself is never held whole.
+   *
+   * @throws ShardStorageException if a shard in the chain is missing or corrupt.
+   * @throws IOException           if the output could not be written.
+   */
+  public static void retrieve(ShardStorage shardStorage, MD5HashLengthPair md5HashLengthPair, OutputStream output)
+      throws ShardStorageException, IOException {
+    List<String> shardIds = md5HashLengthPair.getShardIds();
+    byte[] data = shardStorage.retrieveShard(shardIds.get(shardIds.size() - 1));
+    if (shardIds.size() == 1) {
+      if (data.length != md5HashLengthPair.getLength()) {
+        throw new ShardStorageException("Rebuilt data has wrong length. " + md5HashLengthPair.getContentHash());
+      }
+      output.write(data);
+      return;
+    }
+    for (int i = shardIds.size() - 2; i > 0; i--) {
+      ByteArrayOutputStream version = new ByteArrayOutputStream();
+      applyShard(shardStorage, shardIds.get(i), data, version, Integer.MAX_VALUE);
+      data = version.toByteArray();
+    }
+    if (applyShard(shardStorage, shardIds.get(0), data, output, md5HashLengthPair.getLength()) != md5HashLengthPair.getLength()) {
+      throw new ShardStorageException("Rebuilt data has wrong length. " + md5HashLengthPair.getContentHash());
+    }
+  }
+
+  /**
+   * Reads the delta shard to its end, so it is checked against its hash.
+   *
+   * @return the length of the target.
+   * @throws ShardStorageException if the delta shard is missing, corrupt or could not be read.
+   * @throws IOException           if the target could not be written.
+   */
+  private static long applyShard(ShardStorage shardStorage, String deltaShardId, byte[] base, OutputStream target,
+                                 long maxLength) throws ShardStorageException, IOException {
+    try (InputStream delta = new DeltaShardInputStream(shardStorage.openShard(deltaShardId))) {
+      return apply(base, delta, target, maxLength);
+    } catch (IllegalArgumentException e) {
+      throw new ShardStorageException("Corrupt delta shard " + deltaShardId + ". " + e.getMessage());
+    } catch (DeltaShardReadException e) {
+      throw new ShardStorageException("Could not read delta shard " + deltaShardId + ". " + e.getMessage());
+    }
+  }
+
+  /**
+   * Checks each base block with a matching checksum byte for byte, so checksum collisions cannot corrupt data.
+   *
+   * @return the index of a base block equal to the target at the position. -1 if none.
+   */
+  private static int findBlock(int block, int[] nextBlock, byte[] base, byte[] target, int position) {
+    for (; block >= 0; block = nextBlock[block]) {
+      int baseOffset = block * BLOCK_SIZE;
+      int i = 0;
+      while (i < BLOCK_SIZE && base[baseOffset + i] == target[position + i]) {
+        i++;
+      }
+      if (i == BLOCK_SIZE) {
+        return block;
+      }
+    }
+    return -1;
+  }
+
+  private static int checksum(byte[] data, int offset) {
+    return toChecksum(sumA(data, offset), sumB(data, offset));
+  }
+
+  private static int toChecksum(int a, int b) {
+    return (a & 0xffff) | (b << 16);
+  }
+
+  private static int sumA(byte[] data, int offset) {
+    int a = 0;
+    for (int i = 0; i < BLOCK_SIZE; i++) {
+      a += data[offset + i] & 0xff;
+    }
+    return a;
+  }
+
+  private static int sumB(byte[] data, int offset) {
+    int b = 0;
+    for (int i = 0; i < BLOCK_SIZE; i++) {
+      b += (BLOCK_SIZE - i) * (data[offset + i] & 0xff);
+    }
+    return b;
+  }
+
+  private static class DeltaWriter {
+    private final ByteArrayOutputStream bytes;
+    private final DataOutputStream output;
+
+    DeltaWriter(int targetLength) {
+      bytes = new ByteArrayOutputStream();
+      output = new DataOutputStream(bytes);
+      write(() -> {
+        output.writeByte(FORMAT_VERSION);
+        output.writeInt(targetLength);
+      });
+    }
+
+    void copy(int offset, int length) {
+      write(() -> {
+        output.writeByte(OP_COPY);
+        output.writeInt(offset);
+        output.writeInt(length);
+      });
+    }
+
+    void literal(byte[] data, int offset, int length) {
+      if (length > 0) {
+        write(() -> {
+          output.writeByte(OP_LITERAL);
+          output.writeInt(length);
+          output.write(data, offset, length);
+        });
+      }
+    }
+
+    byte[] toByteArray() {
+      return bytes.toByteArray();
+    }
+
+    /**
+     * Writes to memory so never actually fails.
+     */
+    private static void write(IoAction ioAction) {
+      try {
+        ioAction.run();
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+  /**
+   * Tells failures to read the delta shard apart from failures to write the target.
+   */
+  private static class DeltaShardInputStream extends FilterInputStream {
+    DeltaShardInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      try {
+        return super.read();
+      } catch (IOException e) {
+        throw new DeltaShardReadException(e);
+      }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      try {
+        return super.read(b, off, len);
+      } catch (IOException e) {
+        throw new DeltaShardReadException(e);
+      }
+    }
+  }
+
+  private static class DeltaShardReadException extends IOException {
+    DeltaShardReadException(IOException cause) {
+      super(cause.getMessage(), cause);
+    }
+  }
+
+  private interface IoAction {
+    void run() throws IOException;
+  }
+}
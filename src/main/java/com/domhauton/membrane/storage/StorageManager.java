@@ -1,5 +1,6 @@
 package com.domhauton.membrane.storage;
 
+import com.domhauton.membrane.shard.GroupCommitSync;
 import com.domhauton.membrane.shard.ShardStorage;
 import com.domhauton.membrane.shard.ShardStorageException;
 import com.domhauton.membrane.storage.catalogue.CatalogueUtils;
@@ -13,10 +14,15 @@ import org.joda.time.DateTime;
 import org.joda.time.format.DateTimeFormat;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
@@ -29,9 +35,11 @@ public class StorageManager implements BackupLedger, FileEventLogger {
   static final String DEFAULT_CATALOGUE_FOLDER = "catalogue";
   static final String JOURNAL_NAME = "journal.csv";
   private static final String BASE_FILE_MAP_NAME = "file-map.csv";
+  private static final int REBUILD_BUFFER_SIZE = 64 * 1024;
 
   private final Logger logger;
   private final ShardStorage shardStorage;
+  private final GroupCommitSync groupCommitSync;
   private FileCatalogue fileCatalogue;
   private final Set<String> tempProtectedShards;
 
@@ -41,10 +49,19 @@ public class StorageManager implements BackupLedger, FileEventLogger {
   private OutputStreamWriter journalOutput;
 
   public StorageManager(Path basePath, ShardStorage shardStorage) throws StorageManagerException {
+    this(basePath, shardStorage, null);
+  }
+
+  /**
+   * @param groupCommitSync if not null, journal entries are synced to disk in batches after they are written. Entries
+   *                        are durable within the sync latency, without each write waiting for a sync.
+   */
+  public StorageManager(Path basePath, ShardStorage shardStorage, GroupCommitSync groupCommitSync) throws StorageManagerException {
     logger = LogManager.getLogger();
     logger.info("Opening storage manager.");
     this.shardStorage = shardStorage;
-    tempProtectedShards = new HashSet<>();
+    this.groupCommitSync = groupCommitSync;
+    tempProtectedShards = ConcurrentHashMap.newKeySet();
     Path storageManagerPath = Paths.get(basePath.toString() + File.separator + DEFAULT_CATALOGUE_FOLDER);
     journalPath = Paths.get(storageManagerPath.toString() + File.separator + JOURNAL_NAME);
     List<JournalEntry> journalEntries = journalPath.toFile().exists() ? readJournal(journalPath) : new LinkedList<>();
@@ -151,14 +168,24 @@ public class StorageManager implements BackupLedger, FileEventLogger {
       throw new StorageManagerException("Asked to reconstruct onto existing file. Please delete first.");
     }
     try (
-            FileOutputStream fos = new FileOutputStream(destPath.toFile());
-            BufferedOutputStream bus = new BufferedOutputStream(fos)
+            RandomAccessFile raf = new RandomAccessFile(destPath.toFile(), "rw");
+            FileChannel fileChannel = raf.getChannel()
     ) {
       for (MD5HashLengthPair MD5HashLengthPair : fileVersion.getMD5HashLengthPairs()) {
-        logger.info("Rebuilding file [{}] - Shard [{}]. Size: {}", originalPath, MD5HashLengthPair.getMd5Hash(), MD5HashLengthPair.getLength());
-        byte[] data = shardStorage.retrieveShard(MD5HashLengthPair.getMd5Hash());
-        bus.write(data);
+        if (MD5HashLengthPair.isZeros()) {
+          // Skipping ahead leaves a hole on file systems that support sparse files.
+          logger.info("Rebuilding file [{}] - Zero run. Size: {}", originalPath, MD5HashLengthPair.getLength());
+          fileChannel.position(fileChannel.position() + MD5HashLengthPair.getLength());
+        } else if (MD5HashLengthPair.isDelta()) {
+          logger.info("Rebuilding file [{}] - Delta chain {}. Size: {}", originalPath, MD5HashLengthPair.getShardIds(), MD5HashLengthPair.getLength());
+          DeltaCodec.retrieve(shardStorage, MD5HashLengthPair, Channels.newOutputStream(fileChannel));
+        } else {
+          logger.info("Rebuilding file [{}] - Shard [{}]. Size: {}", originalPath, MD5HashLengthPair.getShardId(), MD5HashLengthPair.getLength());
+          copyShard(MD5HashLengthPair, fileChannel);
+        }
       }
+      // Extends the file over a trailing zero run.
+      raf.setLength(fileChannel.position());
       logger.info("Rebuilding file [{}] - SUCCESS.", originalPath);
     } catch (ShardStorageException e) {
       try {
@@ -177,6 +204,50 @@ public class StorageManager implements BackupLedger, FileEventLogger {
 
   }
 
+  /**
+   * Streams the shard into the file through a small buffer, so large shards are never held in memory. Only the packed
+   * range is written for packed shards, but the whole shard is read so it is checked against its hash.
+   *
+   * @throws ShardStorageException If the shard is missing, corrupt or too short.
+   * @throws IOException           If the output file could not be written.
+   */
+  private void copyShard(MD5HashLengthPair MD5HashLengthPair, FileChannel fileChannel) throws ShardStorageException, IOException {
+    long start = MD5HashLengthPair.isPacked() ? MD5HashLengthPair.getPackOffset() : 0L;
+    long end = MD5HashLengthPair.isPacked() ? start + MD5HashLengthPair.getLength() : Long.MAX_VALUE;
+    ByteBuffer buffer = ByteBuffer.allocate(REBUILD_BUFFER_SIZE);
+    long shardPosition = 0L;
+    try (ReadableByteChannel shardChannel = shardStorage.openShardChannel(MD5HashLengthPair.getShardId())) {
+      while (readShard(shardChannel, buffer, MD5HashLengthPair.getShardId())) {
+        buffer.flip();
+        int from = (int) Math.max(0L, start - shardPosition);
+        int to = (int) Math.min(buffer.limit(), Math.max(0L, end - shardPosition));
+        shardPosition += buffer.limit();
+        if (from < to) {
+          buffer.limit(to).position(from);
+          while (buffer.hasRemaining()) {
+            fileChannel.write(buffer);
+          }
+        }
+        buffer.clear();
+      }
+    }
+    if (MD5HashLengthPair.isPacked() && shardPosition < end) {
+      throw new ShardStorageException("Pack shard too short. " + MD5HashLengthPair.getShardId());
+    }
+  }
+
+  /**
+   * @return false once the end of the shard is reached.
+   * @throws ShardStorageException If the shard could not be read or was corrupt.
+   */
+  private static boolean readShard(ReadableByteChannel shardChannel, ByteBuffer buffer, String shardId) throws ShardStorageException {
+    try {
+      return shardChannel.read(buffer) >= 0;
+    } catch (IOException e) {
+      throw new ShardStorageException("Could not read shard " + shardId + ". " + e.getMessage());
+    }
+  }
+
   /**
    * Removes any shards not referenced in the catalogue from the storage.
    */
@@ -363,13 +434,48 @@ public class StorageManager implements BackupLedger, FileEventLogger {
         logger.debug("Open Journal - [{}] Created journal file", journalPath);
       }
       logger.debug("Open Journal - [{}]", journalPath);
-      return new OutputStreamWriter(new FileOutputStream(journalPath.toFile(), true));
+      return new JournalWriter(new FileOutputStream(journalPath.toFile(), true), groupCommitSync);
     } catch (IOException e) {
       logger.error("Open Journal - Could not open journal for writing at {}", journalPath);
       throw new StorageManagerException("Could not open journal for writing. " + journalPath);
     }
   }
 
+  /**
+   * Queues a sync of the journal on every flush, so each entry written by the catalogue becomes durable with the next
+   * batch. Closing waits for a final sync.
+   */
+  private static class JournalWriter extends OutputStreamWriter {
+    private final FileChannel journalChannel;
+    private final GroupCommitSync groupCommitSync;
+
+    JournalWriter(FileOutputStream journalStream, GroupCommitSync groupCommitSync) {
+      super(journalStream);
+      this.journalChannel = journalStream.getChannel();
+      this.groupCommitSync = groupCommitSync;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      super.flush();
+      if (groupCommitSync != null) {
+        groupCommitSync.syncFileLater(journalChannel);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.flush();
+        if (groupCommitSync != null) {
+          groupCommitSync.syncFile(journalChannel);
+        }
+      } finally {
+        super.close();
+      }
+    }
+  }
+
   public List<JournalEntry> getFileHistory(Path path) {
     logger.info("Fetching file history for [{}]", path);
     return fileCatalogue.getFileVersionHistory(path);
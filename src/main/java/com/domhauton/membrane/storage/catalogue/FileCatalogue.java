@@ -216,7 +216,7 @@ public class FileCatalogue {
     Set<String> retShards = baseFileInfoMap.values().stream()
             .map(FileVersion::getMD5HashLengthPairs)
             .flatMap(List::stream)
-            .map(MD5HashLengthPair::getMd5Hash)
+            .flatMap(x -> x.getShardIds().stream())
             .collect(Collectors.toSet());
     Set<String> journalShards = storageJournal.getReferencedShards();
     retShards.addAll(journalShards);
@@ -231,7 +231,7 @@ public class FileCatalogue {
   public List<JournalEntry> getAllRelatedJournalEntries(String shardId) {
     // First extract any base entries with the information
     List<JournalEntry> relatedEntries = baseFileInfoMap.entrySet().stream()
-        .filter(fileVersionEntry -> fileVersionEntry.getValue().getMD5HashList().contains(shardId))
+        .filter(fileVersionEntry -> fileVersionEntry.getValue().getShardIds().contains(shardId))
         .map(fv -> new JournalEntry(fv.getValue().getModificationDateTime(), fv.getValue(), FileOperation.ADD, fv.getKey()))
         .collect(Collectors.toList());
 
@@ -270,17 +270,30 @@ public class FileCatalogue {
             .collect(Collectors.toList());
   }
 
+  /**
+   * Drops one reference to each shard of the entry.
+   *
+   * @return true if the shard holding the data of the entry is no longer referenced.
+   */
+  private static boolean releaseShards(HashMultiset<String> shardCounts, MD5HashLengthPair md5HashLengthPair) {
+    boolean released = shardCounts.remove(md5HashLengthPair.getShardId(), 1) <= 1;
+    md5HashLengthPair.getShardIds().stream()
+        .skip(1)
+        .forEach(x -> shardCounts.remove(x, 1));
+    return released;
+  }
+
   public synchronized long removeOldestJournalEntries(int bytesToRemove) {
     List<String> journalHashList = storageJournal.getJournalEntries().stream()
             .map(JournalEntry::getShardInfo)
             .map(FileVersion::getMD5HashLengthPairs)
             .flatMap(List::stream)
-            .map(MD5HashLengthPair::getMd5Hash)
+            .flatMap(x -> x.getShardIds().stream())
             .collect(Collectors.toList());
     List<String> baseHashList = baseFileInfoMap.values().stream()
             .map(FileVersion::getMD5HashLengthPairs)
             .flatMap(List::stream)
-            .map(MD5HashLengthPair::getMd5Hash)
+            .flatMap(x -> x.getShardIds().stream())
             .collect(Collectors.toList());
 
     HashMultiset<String> shardCounts = HashMultiset.create(journalHashList);
@@ -295,7 +308,8 @@ public class FileCatalogue {
           logger.debug("Removing old journal entry: {}", journalEntry::toString);
           storageJournal.forgetEntry(journalEntry);
           removedByteCount += journalEntry.getShardInfo().getMD5HashLengthPairs().stream()
-                  .filter(x -> shardCounts.remove(x.getMd5Hash(), 1) <= 1)
+                  .filter(x -> !x.isZeros())
+                  .filter(x -> releaseShards(shardCounts, x))
                   .mapToInt(MD5HashLengthPair::getLength)
                   .sum();
         }
@@ -2,7 +2,6 @@ package com.domhauton.membrane.storage.catalogue;
 
 import com.domhauton.membrane.storage.catalogue.metadata.FileOperation;
 import com.domhauton.membrane.storage.catalogue.metadata.FileVersion;
-import com.domhauton.membrane.storage.catalogue.metadata.MD5HashLengthPair;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.joda.time.DateTime;
@@ -48,7 +47,7 @@ class StorageJournal {
 
   synchronized List<JournalEntry> getJournalEntries(String shardId) {
     return journalEntries.stream()
-        .filter(entry -> entry.getShardInfo().getMD5HashList().contains(shardId))
+        .filter(entry -> entry.getShardInfo().getShardIds().contains(shardId))
         .sorted(JournalEntry.getComparator())
         .collect(Collectors.toList());
   }
@@ -88,7 +87,7 @@ class StorageJournal {
             .map(JournalEntry::getShardInfo)
             .map(FileVersion::getMD5HashLengthPairs)
             .flatMap(List::stream)
-            .map(MD5HashLengthPair::getMd5Hash)
+            .flatMap(x -> x.getShardIds().stream())
             .collect(Collectors.toSet());
   }
 
@@ -22,8 +22,13 @@ public class FileVersion {
     return MD5HashLengthPairs;
   }
 
-  public List<String> getMD5HashList() {
-    return getMD5HashLengthPairs().stream().map(MD5HashLengthPair::getMd5Hash).collect(Collectors.toList());
+  /**
+   * @return the ids of the shards holding the data. Zero runs have none. Deltas need their whole chain.
+   */
+  public List<String> getShardIds() {
+    return getMD5HashLengthPairs().stream()
+        .flatMap(x -> x.getShardIds().stream())
+        .collect(Collectors.toList());
   }
 
   public long getTotalSize() {
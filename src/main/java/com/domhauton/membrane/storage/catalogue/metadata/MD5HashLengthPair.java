@@ -2,18 +2,188 @@ package com.domhauton.membrane.storage.catalogue.metadata;
 
 import com.google.common.base.Objects;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
 /**
  * Created by dominic on 03/02/17.
+ * <p>
+ * The journal, the stat cache and ingest checkpoints store an entry as the encoded string from getMd5Hash, which the
+ * constructor decodes again. The encoding is only read here. Each kind of entry is encoded as:
+ * <ul>
+ * <li>SHARD: data stored whole in its own shard. The md5 hash of the shard.</li>
+ * <li>ZEROS: a run of zero bytes with no stored shard, restored as a hole. The ZERO_HASH sentinel.</li>
+ * <li>PACKED: a small file stored inside a pack shard shared with other small files. The pack hash and the offset of
+ * the data in the pack, separated by PACK_SEPARATOR.</li>
+ * <li>DELTA: data stored as a delta against a chunk of a previous version. The base may itself be a delta, so the
+ * entry holds the whole chain: the hash of the data, CONTENT_SEPARATOR, then the id of each shard in the chain
+ * separated by DELTA_SEPARATOR. Newest delta first, ending with the full base shard.</li>
+ * </ul>
  */
 public class MD5HashLengthPair {
+  public static final String ZERO_HASH = "zeros";
+  private static final String PACK_SEPARATOR = "@";
+  private static final String DELTA_SEPARATOR = "^";
+  private static final String CONTENT_SEPARATOR = "~";
+
+  public enum Kind {SHARD, ZEROS, PACKED, DELTA}
+
   private final String md5Hash;
   private final Integer length;
+  private final Kind kind;
+  private final String contentHash;
+  private final List<String> shardIds;
+  private final int packOffset;
 
+  /**
+   * @param md5Hash the encoded entry, see the class doc. A plain md5 hash for a whole shard.
+   */
   public MD5HashLengthPair(String md5Hash, Integer length) {
     this.md5Hash = md5Hash;
     this.length = length;
+    if (ZERO_HASH.equals(md5Hash)) {
+      kind = Kind.ZEROS;
+      contentHash = null;
+      shardIds = Collections.emptyList();
+      packOffset = 0;
+    } else if (md5Hash.contains(DELTA_SEPARATOR)) {
+      int contentEnd = md5Hash.indexOf(CONTENT_SEPARATOR);
+      kind = Kind.DELTA;
+      contentHash = md5Hash.substring(0, contentEnd);
+      shardIds = Collections.unmodifiableList(
+          Arrays.asList(md5Hash.substring(contentEnd + 1).split(Pattern.quote(DELTA_SEPARATOR))));
+      packOffset = 0;
+    } else if (md5Hash.contains(PACK_SEPARATOR)) {
+      int packEnd = md5Hash.indexOf(PACK_SEPARATOR);
+      kind = Kind.PACKED;
+      contentHash = null;
+      shardIds = Collections.singletonList(md5Hash.substring(0, packEnd));
+      packOffset = Integer.parseInt(md5Hash.substring(packEnd + 1));
+    } else {
+      kind = Kind.SHARD;
+      contentHash = md5Hash;
+      shardIds = Collections.singletonList(md5Hash);
+      packOffset = 0;
+    }
+  }
+
+  private MD5HashLengthPair(Kind kind, String contentHash, List<String> shardIds, int packOffset, Integer length) {
+    this.md5Hash = encode(kind, contentHash, shardIds, packOffset);
+    this.length = length;
+    this.kind = kind;
+    this.contentHash = contentHash;
+    this.shardIds = Collections.unmodifiableList(shardIds);
+    this.packOffset = packOffset;
+  }
+
+  private static String encode(Kind kind, String contentHash, List<String> shardIds, int packOffset) {
+    switch (kind) {
+      case ZEROS:
+        return ZERO_HASH;
+      case PACKED:
+        return shardIds.get(0) + PACK_SEPARATOR + packOffset;
+      case DELTA:
+        return contentHash + CONTENT_SEPARATOR + String.join(DELTA_SEPARATOR, shardIds);
+      default:
+        return contentHash;
+    }
+  }
+
+  /**
+   * @return a sentinel entry for a run of zero bytes of the given length.
+   */
+  public static MD5HashLengthPair zeros(int length) {
+    return new MD5HashLengthPair(Kind.ZEROS, null, Collections.emptyList(), 0, length);
+  }
+
+  /**
+   * @return true if this is a run of zero bytes with no stored shard.
+   */
+  public boolean isZeros() {
+    return kind == Kind.ZEROS;
+  }
+
+  /**
+   * @return an entry for data stored at the given offset in a pack shard.
+   */
+  public static MD5HashLengthPair packed(String packHash, int offset, int length) {
+    return new MD5HashLengthPair(Kind.PACKED, null, Collections.singletonList(packHash), offset, length);
+  }
+
+  /**
+   * @return true if the data is stored inside a pack shard.
+   */
+  public boolean isPacked() {
+    return kind == Kind.PACKED;
+  }
+
+  /**
+   * @param contentHash md5 hash of the data.
+   * @param deltaHash   md5 hash of the stored delta.
+   * @param base        entry the delta applies to. Must be a full shard or a delta.
+   * @return an entry for data stored as a delta.
+   */
+  public static MD5HashLengthPair delta(String contentHash, String deltaHash, MD5HashLengthPair base, int length) {
+    List<String> shardIds = new ArrayList<>(base.shardIds.size() + 1);
+    shardIds.add(deltaHash);
+    shardIds.addAll(base.shardIds);
+    return new MD5HashLengthPair(Kind.DELTA, contentHash, shardIds, 0, length);
+  }
+
+  /**
+   * @return true if the data is stored as a delta against an earlier chunk.
+   */
+  public boolean isDelta() {
+    return kind == Kind.DELTA;
+  }
+
+  /**
+   * @return the number of deltas that must be applied to the base shard to rebuild the data. 0 if not a delta.
+   */
+  public int getDeltaChainLength() {
+    return isDelta() ? shardIds.size() - 1 : 0;
+  }
+
+  /**
+   * @return the id of the shard holding the data. The pack hash for packed entries. The newest delta for delta
+   * entries, see getShardIds for every shard needed.
+   */
+  public String getShardId() {
+    return isZeros() ? ZERO_HASH : shardIds.get(0);
+  }
+
+  /**
+   * @return the md5 hash of the data itself. Null for packed entries and zero runs, as it is not known.
+   */
+  public String getContentHash() {
+    return contentHash;
+  }
+
+  /**
+   * @return the ids of every shard needed to rebuild the data, newest delta first and the base shard last. Zero runs
+   * have none.
+   */
+  public List<String> getShardIds() {
+    return shardIds;
+  }
+
+  /**
+   * @return the offset of the data in its pack shard. 0 if not packed.
+   */
+  public int getPackOffset() {
+    return packOffset;
+  }
+
+  public Kind getKind() {
+    return kind;
   }
 
+  /**
+   * @return the encoded entry, see the class doc. Only for storing the entry. Use getShardIds for the shards it needs.
+   */
   public String getMd5Hash() {
     return md5Hash;
   }
@@ -2,10 +2,12 @@ package com.domhauton.membrane.api;
 
 import com.domhauton.membrane.BackupManager;
 import com.domhauton.membrane.api.requests.FileID;
+import com.domhauton.membrane.api.requests.StorageVolumeChange;
 import com.domhauton.membrane.api.requests.WatchFolderChange;
 import com.domhauton.membrane.config.Config;
 import com.domhauton.membrane.config.ConfigException;
 import com.domhauton.membrane.config.ConfigManager;
+import com.domhauton.membrane.config.items.data.StorageVolume;
 import com.domhauton.membrane.config.items.data.WatchFolder;
 import com.domhauton.membrane.storage.StorageManagerException;
 import com.domhauton.membrane.storage.catalogue.JournalEntry;
@@ -294,6 +296,50 @@ class RestfulApiManagerTest {
     verify(httpServerResponse, atLeastOnce()).setStatusCode(400);
   }
 
+  @Test
+  void testSuccessfulStorageVolumeAdd() throws Exception {
+    RoutingContextImpl routingContext = mock(RoutingContextImpl.class, RETURNS_DEEP_STUBS);
+    HttpServerResponse httpServerResponse = routingContext.response();
+
+    StorageVolume storageVolume = new StorageVolume("/tmp/volume", 1024);
+    StorageVolumeChange storageVolumeChange = new StorageVolumeChange(StorageVolumeChange.Type.ADD,
+        StorageVolumeChange.Storage.LOCAL_SHARDS, storageVolume);
+
+    String requestBody = objectMapper.writeValueAsString(storageVolumeChange);
+
+    when(routingContext.getBodyAsString()).thenReturn(requestBody);
+
+    when(routingContext.response().putHeader(anyString(), anyString())).thenReturn(httpServerResponse);
+    when(routingContext.response().setStatusCode(anyInt())).thenReturn(httpServerResponse);
+
+    restfulApiManager.modifyStorageVolume(routingContext);
+
+    verify(backupManager, atLeastOnce()).addStorageVolume(storageVolume, false);
+    verify(httpServerResponse, atLeastOnce()).setStatusCode(200);
+  }
+
+  @Test
+  void testSuccessfulStorageVolumeRemove() throws Exception {
+    RoutingContextImpl routingContext = mock(RoutingContextImpl.class, RETURNS_DEEP_STUBS);
+    HttpServerResponse httpServerResponse = routingContext.response();
+
+    StorageVolume storageVolume = new StorageVolume("/tmp/volume", 1024);
+    StorageVolumeChange storageVolumeChange = new StorageVolumeChange(StorageVolumeChange.Type.REMOVE,
+        StorageVolumeChange.Storage.PEER_BLOCKS, storageVolume);
+
+    String requestBody = objectMapper.writeValueAsString(storageVolumeChange);
+
+    when(routingContext.getBodyAsString()).thenReturn(requestBody);
+
+    when(routingContext.response().putHeader(anyString(), anyString())).thenReturn(httpServerResponse);
+    when(routingContext.response().setStatusCode(anyInt())).thenReturn(httpServerResponse);
+
+    restfulApiManager.modifyStorageVolume(routingContext);
+
+    verify(backupManager, atLeastOnce()).removeStorageVolume("/tmp/volume", true);
+    verify(httpServerResponse, atLeastOnce()).setStatusCode(200);
+  }
+
   @Test
   void testSuccessfulCleanupRequest() throws Exception {
     RoutingContextImpl routingContext = mock(RoutingContextImpl.class, RETURNS_DEEP_STUBS);
@@ -0,0 +1,77 @@
+package com.domhauton.membrane.prospector;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Created by dominic on 21/10/17.
+ */
+class DirectoryTreeTest {
+  private static final Path ROOT = Paths.get("/tmp/membrane-tree");
+  private static final Path CHILD = ROOT.resolve("child");
+  private static final Path GRANDCHILD = CHILD.resolve("grandchild");
+  private static final Path SIBLING = ROOT.resolve("sibling");
+
+  private DirectoryTree directoryTree;
+
+  @BeforeEach
+  void setUp() {
+    directoryTree = new DirectoryTree();
+    directoryTree.addDirectory(ROOT);
+    directoryTree.addDirectory(CHILD);
+    directoryTree.addDirectory(GRANDCHILD);
+    directoryTree.addDirectory(SIBLING);
+  }
+
+  @Test
+  void lookupsMatchAddedDirectories() {
+    Assertions.assertEquals(new HashSet<>(Arrays.asList(ROOT, CHILD, GRANDCHILD, SIBLING)),
+        directoryTree.getWatchedDirectories());
+    Assertions.assertEquals(4, directoryTree.getWatchedCount());
+    Assertions.assertTrue(directoryTree.isWatched(GRANDCHILD));
+    Assertions.assertFalse(directoryTree.isWatched(ROOT.getParent()));
+    Assertions.assertTrue(directoryTree.isKnownDirectory(ROOT.getParent()));
+  }
+
+  @Test
+  void filesOnlyRecordedInWatchedDirectories() {
+    Assertions.assertTrue(directoryTree.addFile(CHILD.resolve("a")));
+    Assertions.assertFalse(directoryTree.addFile(CHILD.resolve("a")));
+    Assertions.assertFalse(directoryTree.addFile(ROOT.getParent().resolve("b")));
+    Assertions.assertTrue(directoryTree.removeFile(CHILD.resolve("a")));
+    Assertions.assertFalse(directoryTree.removeFile(CHILD.resolve("a")));
+  }
+
+  @Test
+  void removingDirectoryRemovesSubtree() {
+    directoryTree.addFile(CHILD.resolve("a"));
+    directoryTree.addFile(GRANDCHILD.resolve("b"));
+    directoryTree.addFile(SIBLING.resolve("c"));
+
+    Assertions.assertEquals(new HashSet<>(Arrays.asList(CHILD.resolve("a"), GRANDCHILD.resolve("b"))),
+        directoryTree.getFilesBelow(CHILD));
+
+    Set<Path> removed = directoryTree.removeDirectory(CHILD);
+    Assertions.assertEquals(new HashSet<>(Arrays.asList(CHILD, GRANDCHILD)), removed);
+    Assertions.assertEquals(new HashSet<>(Arrays.asList(ROOT, SIBLING)), directoryTree.getWatchedDirectories());
+    Assertions.assertEquals(2, directoryTree.getWatchedCount());
+    Assertions.assertFalse(directoryTree.isKnownDirectory(CHILD));
+    Assertions.assertEquals(1, directoryTree.getFilesBelow(ROOT).size());
+  }
+
+  @Test
+  void sweepReplacesFiles() {
+    directoryTree.addFile(SIBLING.resolve("old"));
+    directoryTree.setFiles(SIBLING, Arrays.asList(SIBLING.resolve("new1"), SIBLING.resolve("new2")));
+
+    Assertions.assertEquals(new HashSet<>(Arrays.asList(SIBLING.resolve("new1"), SIBLING.resolve("new2"))),
+        directoryTree.getFilesBelow(SIBLING));
+  }
+}
@@ -1,25 +1,33 @@
 package com.domhauton.membrane.prospector;
 
 import com.domhauton.membrane.config.items.data.WatchFolder;
+import com.domhauton.membrane.prospector.chunking.FixedSizeChunker;
+import com.domhauton.membrane.prospector.metadata.FileIdentity;
 import com.domhauton.membrane.shard.ShardStorage;
 import com.domhauton.membrane.shard.ShardStorageException;
 import com.domhauton.membrane.storage.FileEventLogger;
 import com.domhauton.membrane.storage.FileEventLoggerImpl;
 import com.domhauton.membrane.storage.StorageManager;
 import com.domhauton.membrane.storage.StorageManagerException;
+import com.domhauton.membrane.storage.catalogue.metadata.MD5HashLengthPair;
+import com.google.common.hash.Hashing;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.joda.time.DateTime;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Collections;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
 
 /**
  * Created by dominic on 31/01/17.
@@ -29,6 +37,7 @@ class FileManagerTest {
   private final Logger logger = LogManager.getLogger();
 
   private static final String BASE_DIR = "/tmp";
+  private static final int CHUNK_SIZE = 64 * 1024;
   private FileManager fileManager;
   private FileEventLogger fileEventLoggerTemp;
   private ShardStorage shardStorageMock;
@@ -58,7 +67,7 @@ class FileManagerTest {
     Mockito.verify(storageManager, Mockito.times(ProspectorTestUtils.EXPECTED_SHARD_COUNT))
         .protectShard(Mockito.any());
     Mockito.verify(shardStorageMock, Mockito.times(ProspectorTestUtils.EXPECTED_SHARD_COUNT))
-        .storeShard(Mockito.any(), Mockito.any(byte[].class));
+        .storeShard(Mockito.any(), Mockito.any(ByteBuffer.class));
 
     Assertions.assertEquals(ProspectorTestUtils.CREATED_FILES_COUNT, fileManager.getCurrentlyWatchedFiles().size());
 
@@ -66,6 +75,237 @@ class FileManagerTest {
     Files.delete(Paths.get(dir));
   }
 
+  @Test
+  void testParallelIngestWithSmallBuffer() throws Exception {
+    ProspectorTestUtils.createTestFiles(dir);
+    StorageManager storageManager = Mockito.mock(StorageManager.class);
+
+    fileManager = new FileManager(fileEventLoggerTemp, shardStorageMock, new FixedSizeChunker(1024 * 1024), 3, 4, 3, 8);
+    WatchFolder watchFolder = new WatchFolder(dir, false);
+    fileManager.setFileEventLogger(storageManager);
+    fileManager.addWatchFolder(watchFolder);
+    fileManager.fullFileScanSweep();
+
+    int expectedShards = ProspectorTestUtils.CREATED_FILES_COUNT * ProspectorTestUtils.FILE_SIZE_MB;
+    Mockito.verify(storageManager, Mockito.times(ProspectorTestUtils.CREATED_FILES_COUNT))
+        .addFile(Mockito.any(), Mockito.any(), Mockito.any());
+    Mockito.verify(shardStorageMock, Mockito.times(expectedShards))
+        .storeShard(Mockito.any(), Mockito.any(ByteBuffer.class));
+    Assertions.assertEquals(ProspectorTestUtils.CREATED_FILES_COUNT, fileManager.getCurrentlyWatchedFiles().size());
+    Assertions.assertEquals(0, fileManager.getIngestQueueDepth());
+
+    fileManager.stopScanners();
+    ProspectorTestUtils.removeTestFiles(dir);
+    Files.delete(Paths.get(dir));
+  }
+
+  @Test
+  void statCacheSkipsUnchangedFilesAfterRestart() throws Exception {
+    ProspectorTestUtils.createTestFiles(dir);
+    StorageManager storageManager = Mockito.mock(StorageManager.class);
+    Path statCachePath = Paths.get(dir + ".stat");
+
+    WatchFolder watchFolder = new WatchFolder(dir, false);
+    fileManager.setStatCache(new StatCache(statCachePath, false));
+    fileManager.setFileEventLogger(storageManager);
+    fileManager.addWatchFolder(watchFolder);
+    fileManager.fullFileScanSweep();
+    fileManager.stopScanners();
+
+    ShardStorage restartedShardStorage = Mockito.mock(ShardStorage.class);
+    Mockito.when(restartedShardStorage.hasShard(Mockito.anyString())).thenReturn(true);
+    StorageManager restartedStorageManager = Mockito.mock(StorageManager.class);
+
+    FileManager restartedFileManager = new FileManager(fileEventLoggerTemp, restartedShardStorage, 64);
+    restartedFileManager.setStatCache(new StatCache(statCachePath, false));
+    restartedFileManager.setFileEventLogger(restartedStorageManager);
+    restartedFileManager.addWatchFolder(watchFolder);
+    restartedFileManager.fullFileScanSweep();
+
+    Mockito.verify(restartedShardStorage, Mockito.never())
+        .storeShard(Mockito.any(), Mockito.any(ByteBuffer.class));
+    Mockito.verify(restartedStorageManager, Mockito.times(ProspectorTestUtils.CREATED_FILES_COUNT))
+        .addFile(Mockito.any(), Mockito.any(), Mockito.any());
+    Assertions.assertEquals(ProspectorTestUtils.CREATED_FILES_COUNT, restartedFileManager.getCurrentlyWatchedFiles().size());
+
+    restartedFileManager.stopScanners();
+    ProspectorTestUtils.removeTestFiles(dir);
+    Files.delete(Paths.get(dir));
+    Files.delete(statCachePath);
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void appendedFileOnlyStoresTail() throws Exception {
+    int chunkSize = 64 * 1024;
+    Path file = Paths.get(dir, "appended.log");
+    byte[] data = new byte[chunkSize * 5];
+    new Random(3).nextBytes(data);
+    Files.write(file, Arrays.copyOf(data, chunkSize * 3 + 100));
+    Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - 10000));
+    StorageManager storageManager = Mockito.mock(StorageManager.class);
+    Mockito.when(shardStorageMock.hasShard(Mockito.anyString())).thenReturn(true);
+
+    fileManager = new FileManager(fileEventLoggerTemp, shardStorageMock, new FixedSizeChunker(chunkSize));
+    fileManager.setFileEventLogger(storageManager);
+    fileManager.addWatchFolder(new WatchFolder(dir, false));
+    fileManager.fullFileScanSweep();
+    Mockito.verify(shardStorageMock, Mockito.times(4))
+        .storeShard(Mockito.any(), Mockito.any(ByteBuffer.class));
+
+    Files.write(file, data);
+    fileManager.fullFileScanSweep();
+
+    // Chunks 0-2 are kept. Only the last old chunk and the new data are read.
+    Mockito.verify(shardStorageMock, Mockito.times(6))
+        .storeShard(Mockito.any(), Mockito.any(ByteBuffer.class));
+    ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+    Mockito.verify(storageManager, Mockito.times(2))
+        .addFile(captor.capture(), Mockito.any(), Mockito.any());
+    List<MD5HashLengthPair> expected = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      byte[] chunk = Arrays.copyOfRange(data, i * chunkSize, (i + 1) * chunkSize);
+      expected.add(new MD5HashLengthPair(Hashing.md5().hashBytes(chunk).toString(), chunkSize));
+    }
+    Assertions.assertEquals(expected, captor.getAllValues().get(1));
+
+    fileManager.stopScanners();
+    Files.delete(file);
+    Files.delete(Paths.get(dir));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void renamedFileReusesStoredShards() throws Exception {
+    Path file = Paths.get(dir, "before.dat");
+    Path renamedFile = Paths.get(dir, "after.dat");
+    writeRandomFile(file, CHUNK_SIZE * 2, 4);
+    Mockito.when(shardStorageMock.hasShard(Mockito.anyString())).thenReturn(true);
+    StorageManager storageManager = watchTestFolder();
+    fileManager.fullFileScanSweep();
+    Mockito.verify(shardStorageMock, Mockito.times(2))
+        .storeShard(Mockito.any(), Mockito.any(ByteBuffer.class));
+
+    Files.move(file, renamedFile);
+    fileManager.fullFileScanSweep();
+
+    // The renamed file is journalled with the shards already stored and is never read.
+    Mockito.verify(shardStorageMock, Mockito.times(2))
+        .storeShard(Mockito.any(), Mockito.any(ByteBuffer.class));
+    Mockito.verify(storageManager, Mockito.times(1))
+        .removeFile(Mockito.eq(file), Mockito.any());
+    ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+    Mockito.verify(storageManager, Mockito.times(1))
+        .addFile(captor.capture(), Mockito.any(), Mockito.eq(file));
+    Mockito.verify(storageManager, Mockito.times(1))
+        .addFile(captor.capture(), Mockito.any(), Mockito.eq(renamedFile));
+    Assertions.assertEquals(captor.getAllValues().get(0), captor.getAllValues().get(1));
+    Assertions.assertEquals(Collections.singleton(renamedFile.toString()), fileManager.getCurrentlyWatchedFiles());
+
+    removeTestFolder(renamedFile);
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void interruptedFileResumesFromCheckpoint() throws Exception {
+    Path file = Paths.get(dir, "large.img");
+    Path checkpointPath = Paths.get(dir + ".checkpoints");
+    List<MD5HashLengthPair> expected = chunkHashes(writeRandomFile(file, CHUNK_SIZE * 5, 5));
+    // A previous run stored the first three chunks before stopping.
+    new IngestCheckpoints(checkpointPath).record(file, FileIdentity.read(file), expected.subList(0, 3));
+    Mockito.when(shardStorageMock.hasShard(Mockito.anyString())).thenReturn(true);
+    StorageManager storageManager = watchTestFolder();
+    fileManager.setIngestCheckpoints(new IngestCheckpoints(checkpointPath));
+    fileManager.fullFileScanSweep();
+
+    // Only the chunks after the checkpoint are stored.
+    Mockito.verify(shardStorageMock, Mockito.times(2))
+        .storeShard(Mockito.any(), Mockito.any(ByteBuffer.class));
+    Mockito.verify(storageManager, Mockito.atLeastOnce())
+        .protectShard(expected.get(0).getShardId());
+    ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+    Mockito.verify(storageManager, Mockito.times(1))
+        .addFile(captor.capture(), Mockito.any(), Mockito.eq(file));
+    Assertions.assertEquals(expected, captor.getValue());
+    Assertions.assertFalse(new IngestCheckpoints(checkpointPath).lookup(file, FileIdentity.read(file)).isPresent());
+
+    removeTestFolder(file);
+    Files.deleteIfExists(checkpointPath);
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void smallFilesArePackedIntoOneShard() throws Exception {
+    Path[] files = new Path[4];
+    for (int i = 0; i < files.length; i++) {
+      files[i] = Paths.get(dir, "small-" + i);
+      writeRandomFile(files[i], 1000, 6 + i);
+    }
+    StorageManager storageManager = watchTestFolder();
+    fileManager.setPackFileMaxBytes(4096);
+    fileManager.fullFileScanSweep();
+
+    ArgumentCaptor<ByteBuffer> packCaptor = ArgumentCaptor.forClass(ByteBuffer.class);
+    Mockito.verify(shardStorageMock, Mockito.times(1))
+        .storeShard(Mockito.any(), packCaptor.capture());
+    Assertions.assertEquals(4000, packCaptor.getValue().remaining());
+    ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+    Mockito.verify(storageManager, Mockito.times(4))
+        .addFile(captor.capture(), Mockito.any(), Mockito.any());
+    Set<String> packShards = new HashSet<>();
+    for (Object value : captor.getAllValues()) {
+      List<MD5HashLengthPair> md5HashLengthPairs = (List<MD5HashLengthPair>) value;
+      Assertions.assertEquals(1, md5HashLengthPairs.size());
+      Assertions.assertTrue(md5HashLengthPairs.get(0).isPacked());
+      Assertions.assertEquals(1000, md5HashLengthPairs.get(0).getLength().intValue());
+      packShards.add(md5HashLengthPairs.get(0).getShardId());
+    }
+    String packHash = Hashing.md5().hashBytes(packCaptor.getValue().duplicate()).toString();
+    Assertions.assertEquals(Collections.singleton(packHash), packShards);
+    Assertions.assertEquals(4, fileManager.getCurrentlyWatchedFiles().size());
+
+    removeTestFolder(files);
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void changedChunkStoredAsDelta() throws Exception {
+    Path file = Paths.get(dir, "edited.db");
+    byte[] data = writeRandomFile(file, CHUNK_SIZE * 2, 7);
+    Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - 10000));
+    String firstChunkHash = chunkHashes(data).get(0).getShardId();
+    Mockito.when(shardStorageMock.retrieveShard(firstChunkHash)).thenReturn(Arrays.copyOf(data, CHUNK_SIZE));
+    StorageManager storageManager = watchTestFolder();
+    fileManager.setMaxDeltaChainLength(4);
+    fileManager.fullFileScanSweep();
+    Mockito.verify(shardStorageMock, Mockito.times(2))
+        .storeShard(Mockito.any(), Mockito.any(ByteBuffer.class));
+
+    byte[] edited = data.clone();
+    Arrays.fill(edited, 100, 110, (byte) 0);
+    Files.write(file, edited);
+    fileManager.fullFileScanSweep();
+
+    // The edited chunk is stored as a small delta against the first version. The unchanged chunk is stored whole.
+    ArgumentCaptor<byte[]> deltaCaptor = ArgumentCaptor.forClass(byte[].class);
+    Mockito.verify(shardStorageMock, Mockito.times(1))
+        .storeShard(Mockito.any(), deltaCaptor.capture());
+    Assertions.assertTrue(deltaCaptor.getValue().length * 2 <= CHUNK_SIZE);
+    Mockito.verify(shardStorageMock, Mockito.times(3))
+        .storeShard(Mockito.any(), Mockito.any(ByteBuffer.class));
+    ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+    Mockito.verify(storageManager, Mockito.times(2))
+        .addFile(captor.capture(), Mockito.any(), Mockito.any());
+    List<MD5HashLengthPair> md5HashLengthPairs = captor.getAllValues().get(1);
+    Assertions.assertTrue(md5HashLengthPairs.get(0).isDelta());
+    Assertions.assertEquals(chunkHashes(edited).get(0).getContentHash(), md5HashLengthPairs.get(0).getContentHash());
+    Assertions.assertEquals(Arrays.asList(Hashing.md5().hashBytes(deltaCaptor.getValue()).toString(), firstChunkHash),
+        md5HashLengthPairs.get(0).getShardIds());
+    Assertions.assertEquals(captor.getAllValues().get(0).get(1), md5HashLengthPairs.get(1));
+
+    removeTestFolder(file);
+  }
+
   @Test
   void retryOnStoreShardFailTest() throws Exception {
     ProspectorTestUtils.createTestFiles(dir);
@@ -73,7 +313,7 @@ class FileManagerTest {
 
     Mockito.doThrow(new ShardStorageException("Mock Exception"))
         .when(shardStorageMock)
-            .storeShard(Mockito.anyString(), Mockito.any(byte[].class));
+            .storeShard(Mockito.anyString(), Mockito.any(ByteBuffer.class));
 
     WatchFolder watchFolder = new WatchFolder(dir, false);
     fileManager.setFileEventLogger(storageManager);
@@ -85,7 +325,7 @@ class FileManagerTest {
     Mockito.verify(storageManager, Mockito.times(ProspectorTestUtils.CREATED_FILES_COUNT))
         .protectShard(Mockito.any());
     Mockito.verify(shardStorageMock, Mockito.times(ProspectorTestUtils.CREATED_FILES_COUNT))
-        .storeShard(Mockito.any(), Mockito.any(byte[].class));
+        .storeShard(Mockito.any(), Mockito.any(ByteBuffer.class));
 
     Assertions.assertEquals(0, fileManager.getCurrentlyWatchedFiles().size());
 
@@ -100,7 +340,7 @@ class FileManagerTest {
     Mockito.verify(storageManager, Mockito.times(ProspectorTestUtils.CREATED_FILES_COUNT * 2))
         .protectShard(Mockito.any());
     Mockito.verify(shardStorageMock, Mockito.times(ProspectorTestUtils.CREATED_FILES_COUNT * 2))
-        .storeShard(Mockito.any(), Mockito.any(byte[].class));
+        .storeShard(Mockito.any(), Mockito.any(ByteBuffer.class));
 
     ProspectorTestUtils.removeTestFiles(dir);
 
@@ -115,11 +355,43 @@ class FileManagerTest {
     Mockito.verify(storageManager, Mockito.times(ProspectorTestUtils.CREATED_FILES_COUNT * 2))
         .protectShard(Mockito.any());
     Mockito.verify(shardStorageMock, Mockito.times(ProspectorTestUtils.CREATED_FILES_COUNT * 2))
-        .storeShard(Mockito.any(), Mockito.any(byte[].class));
+        .storeShard(Mockito.any(), Mockito.any(ByteBuffer.class));
 
     Files.delete(Paths.get(dir));
   }
 
+  @Test
+  void unexpectedStoreErrorDoesNotStallIngest() throws Exception {
+    ProspectorTestUtils.createTestFiles(dir);
+    StorageManager storageManager = Mockito.mock(StorageManager.class);
+
+    Mockito.doThrow(new IllegalStateException("Mock Error"))
+        .when(shardStorageMock)
+        .storeShard(Mockito.anyString(), Mockito.any(ByteBuffer.class));
+
+    WatchFolder watchFolder = new WatchFolder(dir, false);
+    fileManager.setFileEventLogger(storageManager);
+    fileManager.addWatchFolder(watchFolder);
+    fileManager.fullFileScanSweep();
+
+    Mockito.verify(storageManager, Mockito.never())
+        .addFile(Mockito.any(), Mockito.any(), Mockito.any());
+    Assertions.assertEquals(0, fileManager.getIngestQueueDepth());
+
+    // Workers survive and ingest the files once storage recovers.
+
+    Mockito.reset(shardStorageMock);
+    fileManager.fullFileScanSweep();
+
+    Mockito.verify(storageManager, Mockito.times(ProspectorTestUtils.CREATED_FILES_COUNT))
+        .addFile(Mockito.any(), Mockito.any(), Mockito.any());
+    Assertions.assertEquals(ProspectorTestUtils.CREATED_FILES_COUNT, fileManager.getCurrentlyWatchedFiles().size());
+
+    fileManager.stopScanners();
+    ProspectorTestUtils.removeTestFiles(dir);
+    Files.delete(Paths.get(dir));
+  }
+
   @Test
   void retryOnStoreHeaderFailTest() throws Exception {
     ProspectorTestUtils.createTestFiles(dir);
@@ -139,7 +411,7 @@ class FileManagerTest {
     Mockito.verify(storageManager, Mockito.times(ProspectorTestUtils.EXPECTED_SHARD_COUNT))
         .protectShard(Mockito.any());
     Mockito.verify(shardStorageMock, Mockito.times(ProspectorTestUtils.EXPECTED_SHARD_COUNT))
-        .storeShard(Mockito.any(), Mockito.any(byte[].class));
+        .storeShard(Mockito.any(), Mockito.any(ByteBuffer.class));
 
     Assertions.assertEquals(0, fileManager.getCurrentlyWatchedFiles().size());
 
@@ -154,7 +426,7 @@ class FileManagerTest {
     Mockito.verify(storageManager, Mockito.times(ProspectorTestUtils.EXPECTED_SHARD_COUNT * 2))
         .protectShard(Mockito.any());
     Mockito.verify(shardStorageMock, Mockito.times(ProspectorTestUtils.EXPECTED_SHARD_COUNT * 2))
-        .storeShard(Mockito.any(), Mockito.any(byte[].class));
+        .storeShard(Mockito.any(), Mockito.any(ByteBuffer.class));
 
     ProspectorTestUtils.removeTestFiles(dir);
 
@@ -169,7 +441,7 @@ class FileManagerTest {
     Mockito.verify(storageManager, Mockito.times(ProspectorTestUtils.EXPECTED_SHARD_COUNT * 2))
         .protectShard(Mockito.any());
     Mockito.verify(shardStorageMock, Mockito.times(ProspectorTestUtils.EXPECTED_SHARD_COUNT * 2))
-        .storeShard(Mockito.any(), Mockito.any(byte[].class));
+        .storeShard(Mockito.any(), Mockito.any(ByteBuffer.class));
 
     Files.delete(Paths.get(dir));
   }
@@ -190,7 +462,7 @@ class FileManagerTest {
     Mockito.verify(storageManager, Mockito.times(ProspectorTestUtils.EXPECTED_SHARD_COUNT))
         .protectShard(Mockito.any());
     Mockito.verify(shardStorageMock, Mockito.times(ProspectorTestUtils.EXPECTED_SHARD_COUNT))
-        .storeShard(Mockito.any(), Mockito.any(byte[].class));
+        .storeShard(Mockito.any(), Mockito.any(ByteBuffer.class));
 
     ProspectorTestUtils.removeTestFiles(embeddedDir);
     Files.delete(Paths.get(embeddedDir));
@@ -219,7 +491,7 @@ class FileManagerTest {
     Mockito.verify(storageManager, Mockito.times(ProspectorTestUtils.EXPECTED_SHARD_COUNT))
         .protectShard(Mockito.any());
     Mockito.verify(shardStorageMock, Mockito.times(ProspectorTestUtils.EXPECTED_SHARD_COUNT))
-        .storeShard(Mockito.any(), Mockito.any(byte[].class));
+        .storeShard(Mockito.any(), Mockito.any(ByteBuffer.class));
     Mockito.verify(storageManager, Mockito.times(1))
             .removeFile(Mockito.any(), Mockito.any());
 
@@ -227,4 +499,39 @@ class FileManagerTest {
     Files.delete(Paths.get(embeddedDir));
     Files.delete(Paths.get(dir));
   }
+
+  /**
+   * Replaces the file manager with one that cuts fixed size chunks and watches the test folder.
+   */
+  private StorageManager watchTestFolder() throws FileManagerException {
+    StorageManager storageManager = Mockito.mock(StorageManager.class);
+    fileManager = new FileManager(fileEventLoggerTemp, shardStorageMock, new FixedSizeChunker(CHUNK_SIZE));
+    fileManager.setFileEventLogger(storageManager);
+    fileManager.addWatchFolder(new WatchFolder(dir, false));
+    return storageManager;
+  }
+
+  private void removeTestFolder(Path... files) throws IOException {
+    fileManager.stopScanners();
+    for (Path file : files) {
+      Files.delete(file);
+    }
+    Files.delete(Paths.get(dir));
+  }
+
+  private static byte[] writeRandomFile(Path file, int length, long seed) throws IOException {
+    byte[] data = new byte[length];
+    new Random(seed).nextBytes(data);
+    Files.write(file, data);
+    return data;
+  }
+
+  private static List<MD5HashLengthPair> chunkHashes(byte[] data) {
+    List<MD5HashLengthPair> md5HashLengthPairs = new ArrayList<>();
+    for (int i = 0; i < data.length; i += CHUNK_SIZE) {
+      byte[] chunk = Arrays.copyOfRange(data, i, Math.min(i + CHUNK_SIZE, data.length));
+      md5HashLengthPairs.add(new MD5HashLengthPair(Hashing.md5().hashBytes(chunk).toString(), chunk.length));
+    }
+    return md5HashLengthPairs;
+  }
 }
\ No newline at end of file
@@ -0,0 +1,67 @@
+package com.domhauton.membrane.prospector;
+
+import com.domhauton.membrane.prospector.metadata.FileIdentity;
+import com.domhauton.membrane.storage.catalogue.metadata.MD5HashLengthPair;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Created by dominic on 26/10/17.
+ */
+class IngestCheckpointsTest {
+  private static final Path FILE = Paths.get("/tmp/membrane-checkpoint/large.img");
+  private static final FileIdentity IDENTITY = new FileIdentity(1L, 42L, 1L << 30, 5000L, 5000L);
+  private static final List<MD5HashLengthPair> SHARDS = Arrays.asList(
+      new MD5HashLengthPair("0cc175b9c0f1b6a831c399e269772661", 4096),
+      MD5HashLengthPair.zeros(8192));
+
+  private Path checkpointPath;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    checkpointPath = Files.createTempFile("membrane-checkpoints", ".dat");
+    Files.delete(checkpointPath);
+  }
+
+  @Test
+  void persistsAcrossRestart() {
+    new IngestCheckpoints(checkpointPath).record(FILE, IDENTITY, SHARDS);
+
+    IngestCheckpoints reloaded = new IngestCheckpoints(checkpointPath);
+    Assertions.assertEquals(SHARDS, reloaded.lookup(FILE, IDENTITY).orElse(null));
+    Assertions.assertEquals(Collections.singleton("0cc175b9c0f1b6a831c399e269772661"), reloaded.getReferencedShards());
+  }
+
+  @Test
+  void changedFileDropsCheckpoint() {
+    IngestCheckpoints ingestCheckpoints = new IngestCheckpoints(checkpointPath);
+    ingestCheckpoints.record(FILE, IDENTITY, SHARDS);
+
+    FileIdentity modified = new FileIdentity(1L, 42L, 1L << 30, 6000L, 6000L);
+    Assertions.assertFalse(ingestCheckpoints.lookup(FILE, modified).isPresent());
+    Assertions.assertEquals(0, ingestCheckpoints.size());
+    Assertions.assertEquals(0, new IngestCheckpoints(checkpointPath).size());
+  }
+
+  @Test
+  void removedOnceFinished() {
+    IngestCheckpoints ingestCheckpoints = new IngestCheckpoints(checkpointPath);
+    ingestCheckpoints.record(FILE, IDENTITY, SHARDS);
+    ingestCheckpoints.remove(FILE);
+    Assertions.assertFalse(new IngestCheckpoints(checkpointPath).lookup(FILE, IDENTITY).isPresent());
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    Files.deleteIfExists(checkpointPath);
+  }
+}
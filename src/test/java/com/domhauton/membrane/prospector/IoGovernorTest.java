@@ -0,0 +1,65 @@
+package com.domhauton.membrane.prospector;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Created by dominic on 23/10/17.
+ */
+class IoGovernorTest {
+  private static final int KB = 1024;
+
+  @Test
+  void unlimitedNeverWaits() throws Exception {
+    IoGovernor ioGovernor = IoGovernor.unlimited();
+    for (int i = 0; i < 1000; i++) {
+      ioGovernor.acquire(64 * KB * KB);
+    }
+    Assertions.assertEquals(0L, ioGovernor.getThrottledMillis());
+  }
+
+  @Test
+  void byteRateLimited() throws Exception {
+    IoGovernor ioGovernor = new IoGovernor(100 * KB, 0L, false);
+    long start = System.currentTimeMillis();
+    ioGovernor.acquire(100 * KB);
+    ioGovernor.acquire(50 * KB);
+    long elapsed = System.currentTimeMillis() - start;
+
+    Assertions.assertTrue(elapsed >= 400, "Expected throttle. Took " + elapsed + "ms");
+    Assertions.assertTrue(ioGovernor.getThrottledMillis() >= 400);
+  }
+
+  @Test
+  void readRateLimited() throws Exception {
+    IoGovernor ioGovernor = new IoGovernor(0L, 10L, false);
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < 15; i++) {
+      ioGovernor.acquire(1);
+    }
+    long elapsed = System.currentTimeMillis() - start;
+
+    Assertions.assertTrue(elapsed >= 400, "Expected throttle. Took " + elapsed + "ms");
+  }
+
+  @Test
+  void scaleDropsUnderLoad() {
+    Assertions.assertEquals(1.0, IoGovernor.scaleFor(0.5, 0.0));
+    Assertions.assertEquals(0.5, IoGovernor.scaleFor(1.5, 0.0), 0.001);
+    Assertions.assertEquals(0.25, IoGovernor.scaleFor(0.1, 20.0), 0.001);
+    Assertions.assertEquals(0.1, IoGovernor.scaleFor(100.0, 100.0), 0.001);
+  }
+
+  @Test
+  void procFilesParsed() {
+    Assertions.assertEquals(1.25, IoGovernor.parseLoadAverage("1.25 0.80 0.50 2/345 6789\n"), 0.001);
+    Assertions.assertEquals(0.0, IoGovernor.parseLoadAverage("garbage"));
+    Assertions.assertEquals(12.5, IoGovernor.parseIoPressure(Arrays.asList(
+        "some avg10=12.50 avg60=3.00 avg300=1.00 total=12345",
+        "full avg10=2.00 avg60=1.00 avg300=0.50 total=2345")), 0.001);
+    Assertions.assertEquals(0.0, IoGovernor.parseIoPressure(Collections.emptyList()));
+  }
+}
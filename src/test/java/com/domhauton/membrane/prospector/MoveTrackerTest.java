@@ -0,0 +1,65 @@
+package com.domhauton.membrane.prospector;
+
+import com.domhauton.membrane.prospector.metadata.FileIdentity;
+import com.domhauton.membrane.prospector.metadata.FileMetadata;
+import com.domhauton.membrane.prospector.metadata.FileMetadataBuilder;
+import com.domhauton.membrane.storage.catalogue.metadata.MD5HashLengthPair;
+import org.joda.time.DateTime;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+
+/**
+ * Created by dominic on 24/10/17.
+ */
+class MoveTrackerTest {
+  private static final long RETENTION_MILLIS = 1000L;
+  private static final Path OLD_PATH = Paths.get("/tmp/membrane-move/old");
+  private static final Path NEW_PATH = Paths.get("/tmp/membrane-move/new");
+  private static final FileIdentity IDENTITY = new FileIdentity(1L, 42L, 100L, 5000L, 5000L);
+  private static final FileIdentity RENAMED_IDENTITY = new FileIdentity(1L, 42L, 100L, 5000L, 9000L);
+
+  private MoveTracker moveTracker;
+  private FileMetadata fileMetadata;
+
+  @BeforeEach
+  void setUp() {
+    moveTracker = new MoveTracker(RETENTION_MILLIS);
+    fileMetadata = new FileMetadataBuilder(new DateTime(5000L))
+        .addShardData(Collections.singletonList(new MD5HashLengthPair("0cc175b9c0f1b6a831c399e269772661", 100)))
+        .build();
+    moveTracker.track(OLD_PATH, IDENTITY, fileMetadata);
+  }
+
+  @Test
+  void renameFoundDespiteChangeTime() {
+    Assertions.assertEquals(fileMetadata, moveTracker.findMoved(NEW_PATH, RENAMED_IDENTITY, 0L).orElse(null));
+    Assertions.assertFalse(moveTracker.findMoved(OLD_PATH, RENAMED_IDENTITY, 0L).isPresent());
+  }
+
+  @Test
+  void modifiedFileNotMatched() {
+    FileIdentity modified = new FileIdentity(1L, 42L, 100L, 6000L, 9000L);
+    Assertions.assertFalse(moveTracker.findMoved(NEW_PATH, modified, 0L).isPresent());
+  }
+
+  @Test
+  void removedSourceExpires() {
+    moveTracker.removed(OLD_PATH, 0L);
+    Assertions.assertTrue(moveTracker.findMoved(NEW_PATH, RENAMED_IDENTITY, RETENTION_MILLIS).isPresent());
+    moveTracker.purge(RETENTION_MILLIS + 1);
+    Assertions.assertFalse(moveTracker.findMoved(NEW_PATH, RENAMED_IDENTITY, RETENTION_MILLIS + 1).isPresent());
+    Assertions.assertEquals(0, moveTracker.size());
+  }
+
+  @Test
+  void identitiesWithoutInodesIgnored() {
+    FileIdentity noInode = new FileIdentity(0L, 0L, 100L, 5000L, 5000L);
+    moveTracker.track(OLD_PATH, noInode, fileMetadata);
+    Assertions.assertFalse(moveTracker.findMoved(NEW_PATH, noInode, 0L).isPresent());
+  }
+}
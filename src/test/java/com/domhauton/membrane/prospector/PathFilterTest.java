@@ -0,0 +1,57 @@
+package com.domhauton.membrane.prospector;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Created by dominic on 25/10/17.
+ */
+class PathFilterTest {
+
+  @Test
+  void emptyMatchesNothing() {
+    PathFilter pathFilter = new PathFilter(Collections.emptyList());
+    Assertions.assertTrue(pathFilter.isEmpty());
+    Assertions.assertFalse(pathFilter.matches(Paths.get("/home/user/file")));
+  }
+
+  @Test
+  void namesMatchAnywhere() {
+    PathFilter pathFilter = new PathFilter(Arrays.asList("node_modules", "*.tmp", "cache-?", "*.{log,bak}"));
+    Assertions.assertTrue(pathFilter.matches(Paths.get("/home/user/project/node_modules")));
+    Assertions.assertTrue(pathFilter.matches(Paths.get("/home/user/scratch.tmp")));
+    Assertions.assertTrue(pathFilter.matches(Paths.get("/home/user/cache-1")));
+    Assertions.assertTrue(pathFilter.matches(Paths.get("/home/user/app.log")));
+    Assertions.assertTrue(pathFilter.matches(Paths.get("/home/user/app.bak")));
+    Assertions.assertFalse(pathFilter.matches(Paths.get("/home/user/node_modules_old")));
+    Assertions.assertFalse(pathFilter.matches(Paths.get("/home/user/tmp")));
+    Assertions.assertFalse(pathFilter.matches(Paths.get("/home/user/cache-10")));
+  }
+
+  @Test
+  void multipleNamesMatchTail() {
+    PathFilter pathFilter = new PathFilter(Arrays.asList(".git/objects", "build/**/*.class"));
+    Assertions.assertTrue(pathFilter.matches(Paths.get("/home/user/project/.git/objects")));
+    Assertions.assertFalse(pathFilter.matches(Paths.get("/home/user/project/.git")));
+    Assertions.assertFalse(pathFilter.matches(Paths.get("/home/user/project/my.git/objects")));
+    Assertions.assertTrue(pathFilter.matches(Paths.get("/home/user/build/com/x/Main.class")));
+    Assertions.assertFalse(pathFilter.matches(Paths.get("/home/user/build/Main.java")));
+  }
+
+  @Test
+  void regexMatchesWholePath() {
+    PathFilter pathFilter = new PathFilter(Collections.singletonList("regex:.*/\\.cache/.*"));
+    Assertions.assertTrue(pathFilter.matches(Paths.get("/home/user/.cache/thumbnails")));
+    Assertions.assertFalse(pathFilter.matches(Paths.get("/home/user/.cache")));
+  }
+
+  @Test
+  void invalidRuleRejected() {
+    Assertions.assertThrows(IllegalArgumentException.class, () -> new PathFilter(Collections.singletonList("regex:(")));
+    Assertions.assertThrows(IllegalArgumentException.class, () -> new PathFilter(Collections.singletonList("*.{log")));
+  }
+}
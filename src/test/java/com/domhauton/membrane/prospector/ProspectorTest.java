@@ -8,6 +8,11 @@ import org.junit.jupiter.api.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
 import static com.domhauton.membrane.prospector.ProspectorTestUtils.*;
 
@@ -180,6 +185,99 @@ class ProspectorTest {
     Files.delete(Paths.get(testRecDir));
   }
 
+  @Test
+  @DisplayName("Match directory names after a wildcard ignoring case")
+  void testWildcardIgnoresCase() throws Exception {
+    String testRecDir = createRandomFolder(testDir);
+    Path photosDir = Files.createDirectory(Paths.get(testRecDir).resolve("Photos"));
+    WatchFolder watchFolder = new WatchFolder(testDir + sep + "*" + sep + "photos", false);
+    Assertions.assertEquals(Collections.singleton(photosDir), prospector.addWatchFolder(watchFolder));
+    Files.delete(photosDir);
+    Files.delete(Paths.get(testRecDir));
+  }
+
+  @Test
+  @DisplayName("Rescan a single folder after overflow")
+  void testOverflowRescan() throws Exception {
+    prospector.addWatchFolder(watchFolderNonRec);
+    createTestFiles(testDir);
+    ProspectorChangeSet pcs = prospector.rescanOverflowedFolder(testPath);
+    Assertions.assertEquals(ProspectorTestUtils.CREATED_FILES_COUNT, pcs.getChangedFiles().size());
+    Assertions.assertEquals(0, pcs.getRemovedFiles().size());
+    removeTestFiles(testDir);
+    pcs = prospector.rescanOverflowedFolder(testPath);
+    Assertions.assertEquals(0, pcs.getChangedFiles().size());
+    Assertions.assertEquals(ProspectorTestUtils.CREATED_FILES_COUNT, pcs.getRemovedFiles().size());
+  }
+
+  @Test
+  @DisplayName("Skip listing an overflowed folder with an unchanged modify time")
+  void testOverflowRescanUnchangedFolder() throws Exception {
+    prospector.addWatchFolder(watchFolderNonRec);
+    Path knownFile = testPath.resolve("known");
+    Files.write(knownFile, new byte[]{1});
+    FileTime oldTime = FileTime.fromMillis(System.currentTimeMillis() - 60000);
+    Files.setLastModifiedTime(testPath, oldTime);
+    prospector.rescanFolder(testPath);
+
+    // Hide a new entry by restoring the folder modify time. The rescan must trust the recorded listing.
+    Path hiddenFile = testPath.resolve("hidden");
+    Files.write(hiddenFile, new byte[]{1});
+    Files.setLastModifiedTime(testPath, oldTime);
+    Assertions.assertEquals(Collections.singleton(knownFile), prospector.rescanOverflowedFolder(testPath).getChangedFiles());
+
+    Files.setLastModifiedTime(testPath, FileTime.fromMillis(System.currentTimeMillis() - 30000));
+    Assertions.assertEquals(2, prospector.rescanOverflowedFolder(testPath).getChangedFiles().size());
+    Files.delete(knownFile);
+    Files.delete(hiddenFile);
+  }
+
+  @Test
+  @DisplayName("Sweep only folders changed since they were listed")
+  void testSweepChangedFolders() throws Exception {
+    prospector.addWatchFolder(watchFolderNonRec);
+    FileTime oldTime = FileTime.fromMillis(System.currentTimeMillis() - 60000);
+    Files.setLastModifiedTime(testPath, oldTime);
+    prospector.rescanFolder(testPath);
+    Assertions.assertTrue(prospector.sweepChangedFolders().getChangedFiles().isEmpty());
+
+    // An entry added without an event changes the folder modify time.
+    Path addedFile = testPath.resolve("added");
+    Files.write(addedFile, new byte[]{1});
+    Files.setLastModifiedTime(testPath, FileTime.fromMillis(System.currentTimeMillis() - 30000));
+    Assertions.assertEquals(Collections.singleton(addedFile), prospector.sweepChangedFolders().getChangedFiles());
+    Assertions.assertTrue(prospector.sweepChangedFolders().getChangedFiles().isEmpty());
+
+    Files.delete(addedFile);
+    Files.setLastModifiedTime(testPath, oldTime);
+    Assertions.assertEquals(Collections.singleton(addedFile), prospector.sweepChangedFolders().getRemovedFiles());
+  }
+
+  @Test
+  @DisplayName("Skip excluded folders and files")
+  void testExcludeRules() throws Exception {
+    Path excludedDir = Files.createDirectory(testPath.resolve("node_modules"));
+    Path includedDir = Files.createDirectory(testPath.resolve("src"));
+    WatchFolder watchFolder = new WatchFolder(testDir, true,
+        Collections.emptyList(), Arrays.asList("node_modules", "*.tmp"));
+    Set<Path> watched = prospector.addWatchFolder(watchFolder);
+    Assertions.assertEquals(new HashSet<>(Arrays.asList(testPath, includedDir)), watched);
+
+    Path keptFile = includedDir.resolve("kept");
+    Path tempFile = includedDir.resolve("scratch.tmp");
+    Files.write(keptFile, new byte[]{1});
+    Files.write(tempFile, new byte[]{1});
+    Files.write(excludedDir.resolve("module"), new byte[]{1});
+    Assertions.assertEquals(Collections.singleton(keptFile), prospector.checkChanges().getChangedFiles());
+    Assertions.assertEquals(Collections.singleton(keptFile), prospector.rescanFolder(includedDir));
+
+    Files.delete(keptFile);
+    Files.delete(tempFile);
+    Files.delete(excludedDir.resolve("module"));
+    Files.delete(excludedDir);
+    Files.delete(includedDir);
+  }
+
   @AfterEach
   void tearDown() throws Exception {
     Files.delete(testPath);
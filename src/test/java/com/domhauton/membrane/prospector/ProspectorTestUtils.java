@@ -21,7 +21,7 @@ abstract class ProspectorTestUtils {
   static final int CREATED_FILES_COUNT = 3;
   static final int EXPECTED_SHARD_COUNT = CREATED_FILES_COUNT * 2;
   static final int MODIFIED_FILES_COUNT = 2;
-  private static final int FILE_SIZE_MB = 65;
+  static final int FILE_SIZE_MB = 65;
 
   static String createRandomFolder(String baseDir) throws Exception {
     String tmpDir = baseDir;
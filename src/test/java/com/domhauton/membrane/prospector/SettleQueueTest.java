@@ -0,0 +1,92 @@
+package com.domhauton.membrane.prospector;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+/**
+ * Created by dominic on 22/10/17.
+ */
+class SettleQueueTest {
+  private static final long SETTLE_MILLIS = 100L;
+
+  private Path file;
+  private SettleQueue settleQueue;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    file = Files.createTempFile("membrane-settle", ".dat");
+    Files.write(file, new byte[]{1, 2, 3});
+    settleQueue = new SettleQueue(SETTLE_MILLIS);
+  }
+
+  @Test
+  void unchangedFileSettlesAfterWindow() throws Exception {
+    settleQueue.offer(changeOf(file), 0L);
+
+    Assertions.assertTrue(settleQueue.pollSettled(SETTLE_MILLIS - 1).getChangedFiles().isEmpty());
+    Assertions.assertEquals(Collections.singleton(file), settleQueue.pollSettled(SETTLE_MILLIS).getChangedFiles());
+    Assertions.assertEquals(0, settleQueue.size());
+  }
+
+  @Test
+  void repeatedEventsCoalesce() throws Exception {
+    settleQueue.offer(changeOf(file), 0L);
+    settleQueue.offer(changeOf(file), 50L);
+    settleQueue.offer(changeOf(file), 90L);
+
+    Assertions.assertTrue(settleQueue.pollSettled(SETTLE_MILLIS + 50L).getChangedFiles().isEmpty());
+    Assertions.assertEquals(Collections.singleton(file),
+        settleQueue.pollSettled(SETTLE_MILLIS + 90L).getChangedFiles());
+  }
+
+  @Test
+  void growingFileIsDeferred() throws Exception {
+    settleQueue.offer(changeOf(file), 0L);
+    Files.write(file, new byte[]{1, 2, 3, 4, 5});
+
+    Assertions.assertTrue(settleQueue.pollSettled(SETTLE_MILLIS).getChangedFiles().isEmpty());
+    Assertions.assertEquals(1, settleQueue.size());
+    // Deferred files wait twice the window.
+    Assertions.assertTrue(settleQueue.pollSettled(SETTLE_MILLIS * 2).getChangedFiles().isEmpty());
+    Assertions.assertEquals(Collections.singleton(file),
+        settleQueue.pollSettled(SETTLE_MILLIS * 3).getChangedFiles());
+  }
+
+  @Test
+  void removalCancelsPendingChange() throws Exception {
+    settleQueue.offer(changeOf(file), 0L);
+    ProspectorChangeSet removal = new ProspectorChangeSet();
+    removal.addRemoval(file);
+    settleQueue.offer(removal, 10L);
+
+    ProspectorChangeSet settled = settleQueue.pollSettled(10L);
+    Assertions.assertEquals(Collections.singleton(file), settled.getRemovedFiles());
+    Assertions.assertTrue(settleQueue.pollSettled(SETTLE_MILLIS * 10).getChangedFiles().isEmpty());
+  }
+
+  @Test
+  void missingFileIsDropped() throws Exception {
+    settleQueue.offer(changeOf(file), 0L);
+    Files.delete(file);
+
+    Assertions.assertTrue(settleQueue.pollSettled(SETTLE_MILLIS).getChangedFiles().isEmpty());
+    Assertions.assertEquals(0, settleQueue.size());
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    Files.deleteIfExists(file);
+  }
+
+  private static ProspectorChangeSet changeOf(Path path) {
+    ProspectorChangeSet changeSet = new ProspectorChangeSet();
+    changeSet.addChange(path);
+    return changeSet;
+  }
+}
@@ -0,0 +1,43 @@
+package com.domhauton.membrane.prospector;
+
+import org.joda.time.DateTime;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.Optional;
+
+/**
+ * Created by dominic on 27/10/17.
+ */
+class SmallFilePackerTest {
+
+  @Test
+  void packCompletesWhenFull() {
+    SmallFilePacker smallFilePacker = new SmallFilePacker(10);
+    Assertions.assertFalse(smallFilePacker.add(newChunk("a", 6), new byte[6]).isPresent());
+    Assertions.assertEquals(1, smallFilePacker.getWaitingFiles());
+
+    Optional<SmallFilePacker.Pack> pack = smallFilePacker.add(newChunk("b", 4), new byte[]{1, 2, 3, 4});
+    Assertions.assertTrue(pack.isPresent());
+    Assertions.assertEquals(10, pack.get().getData().length);
+    Assertions.assertEquals(6, pack.get().getPackedFiles().get(1).getOffset());
+    Assertions.assertEquals(4, pack.get().getPackedFiles().get(1).getLength());
+    Assertions.assertEquals(0, smallFilePacker.getWaitingFiles());
+  }
+
+  @Test
+  void drainTakesPartialPack() {
+    SmallFilePacker smallFilePacker = new SmallFilePacker(10);
+    Assertions.assertFalse(smallFilePacker.drain().isPresent());
+    smallFilePacker.add(newChunk("a", 3), new byte[3]);
+    Assertions.assertEquals(3, smallFilePacker.drain().map(x -> x.getData().length).orElse(0).intValue());
+    Assertions.assertFalse(smallFilePacker.drain().isPresent());
+  }
+
+  private static IngestChunk newChunk(String name, int length) {
+    IngestTask ingestTask = new IngestTask(Paths.get("/tmp/membrane-pack/" + name), new DateTime(0L));
+    return ingestTask.newChunk(ByteBuffer.allocate(length));
+  }
+}
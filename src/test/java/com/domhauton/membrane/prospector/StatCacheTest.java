@@ -0,0 +1,104 @@
+package com.domhauton.membrane.prospector;
+
+import com.domhauton.membrane.prospector.metadata.FileIdentity;
+import com.domhauton.membrane.storage.catalogue.metadata.MD5HashLengthPair;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Created by dominic on 20/10/17.
+ */
+class StatCacheTest {
+  private static final List<MD5HashLengthPair> SHARDS = Arrays.asList(
+      new MD5HashLengthPair("0cc175b9c0f1b6a831c399e269772661", 4096),
+      new MD5HashLengthPair("92eb5ffee6ae2fec3ad71c777531578f", 100));
+
+  private Path file;
+  private Path cachePath;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    file = Files.createTempFile("membrane-stat", ".dat");
+    byte[] data = new byte[4196];
+    new Random(7).nextBytes(data);
+    Files.write(file, data);
+    cachePath = Paths.get(file.toString() + ".cache");
+  }
+
+  @Test
+  void unchangedFileHits() throws Exception {
+    StatCache statCache = new StatCache(cachePath, false);
+    FileIdentity fileIdentity = FileIdentity.read(file);
+    statCache.put(file, fileIdentity, null, SHARDS);
+
+    Assertions.assertEquals(SHARDS, statCache.lookup(file, FileIdentity.read(file)).orElse(null));
+  }
+
+  @Test
+  void persistsAcrossRestart() throws Exception {
+    StatCache statCache = new StatCache(cachePath, false);
+    statCache.put(file, FileIdentity.read(file), null, SHARDS);
+    statCache.save();
+
+    StatCache reloadedCache = new StatCache(cachePath, false);
+    Assertions.assertEquals(1, reloadedCache.size());
+    Assertions.assertEquals(SHARDS, reloadedCache.lookup(file, FileIdentity.read(file)).orElse(null));
+  }
+
+  @Test
+  void touchedFileMissesWithoutSampling() throws Exception {
+    StatCache statCache = new StatCache(cachePath, false);
+    statCache.put(file, FileIdentity.read(file), StatCache.sampleHash(file, Files.size(file)), SHARDS);
+    touch();
+
+    Assertions.assertFalse(statCache.lookup(file, FileIdentity.read(file)).isPresent());
+  }
+
+  @Test
+  void touchedFileHitsWithMatchingSample() throws Exception {
+    StatCache statCache = new StatCache(cachePath, true);
+    statCache.put(file, FileIdentity.read(file), StatCache.sampleHash(file, Files.size(file)), SHARDS);
+    touch();
+
+    Assertions.assertEquals(SHARDS, statCache.lookup(file, FileIdentity.read(file)).orElse(null));
+  }
+
+  @Test
+  void modifiedFileMissesWithSampling() throws Exception {
+    StatCache statCache = new StatCache(cachePath, true);
+    statCache.put(file, FileIdentity.read(file), StatCache.sampleHash(file, Files.size(file)), SHARDS);
+    byte[] data = Files.readAllBytes(file);
+    data[0]++;
+    Files.write(file, data);
+    touch();
+
+    Assertions.assertFalse(statCache.lookup(file, FileIdentity.read(file)).isPresent());
+  }
+
+  @Test
+  void corruptCacheStartsEmpty() throws Exception {
+    Files.write(cachePath, new byte[]{0, 0, 0, 1, 0, 0, 0, 5, 1});
+    Assertions.assertEquals(0, new StatCache(cachePath, false).size());
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    Files.deleteIfExists(file);
+    Files.deleteIfExists(cachePath);
+  }
+
+  private void touch() throws Exception {
+    FileTime lastModified = Files.getLastModifiedTime(file);
+    Files.setLastModifiedTime(file, FileTime.fromMillis(lastModified.toMillis() + 5000));
+  }
+}
@@ -0,0 +1,93 @@
+package com.domhauton.membrane.prospector.chunking;
+
+import com.google.common.hash.Hashing;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Created by dominic on 17/10/17.
+ */
+class GearChunkerTest {
+  private static final int MIN_SIZE = 2 * 1024;
+  private static final int AVG_SIZE = 8 * 1024;
+  private static final int MAX_SIZE = 32 * 1024;
+  private static final int DATA_SIZE = 2 * 1024 * 1024;
+
+  private Chunker chunker;
+  private byte[] data;
+
+  @BeforeEach
+  void setUp() {
+    chunker = new GearChunker(MIN_SIZE, AVG_SIZE, MAX_SIZE);
+    data = new byte[DATA_SIZE];
+    new Random(42).nextBytes(data);
+  }
+
+  @Test
+  void chunksWithinBounds() throws Exception {
+    List<byte[]> chunks = readChunks(data);
+    Assertions.assertEquals(DATA_SIZE, chunks.stream().mapToInt(x -> x.length).sum());
+    for (byte[] chunk : chunks.subList(0, chunks.size() - 1)) {
+      Assertions.assertTrue(chunk.length >= MIN_SIZE);
+      Assertions.assertTrue(chunk.length <= MAX_SIZE);
+    }
+    int averageSize = DATA_SIZE / chunks.size();
+    Assertions.assertTrue(averageSize > AVG_SIZE / 2 && averageSize < AVG_SIZE * 2);
+  }
+
+  @Test
+  void insertionOnlyChangesLocalChunks() throws Exception {
+    byte[] editedData = new byte[DATA_SIZE + 1];
+    System.arraycopy(data, 0, editedData, 0, 1000);
+    editedData[1000] = 7;
+    System.arraycopy(data, 1000, editedData, 1001, DATA_SIZE - 1000);
+
+    Set<String> originalChunks = toHashes(readChunks(data));
+    long newChunks = toHashes(readChunks(editedData)).stream()
+        .filter(x -> !originalChunks.contains(x))
+        .count();
+
+    Assertions.assertTrue(newChunks <= 2, "Expected at most 2 new chunks. Found " + newChunks);
+  }
+
+  @Test
+  void fixedChunkerMatchesOldBehaviour() throws Exception {
+    List<byte[]> chunks = readChunks(data, new FixedSizeChunker(MAX_SIZE));
+    Assertions.assertEquals(DATA_SIZE / MAX_SIZE, chunks.size());
+    chunks.forEach(x -> Assertions.assertEquals(MAX_SIZE, x.length));
+  }
+
+  @Test
+  void invalidSizesRejected() {
+    Assertions.assertThrows(IllegalArgumentException.class, () -> new GearChunker(MAX_SIZE, AVG_SIZE, MIN_SIZE));
+    Assertions.assertThrows(IllegalArgumentException.class, () -> new GearChunker(0, AVG_SIZE, MAX_SIZE));
+  }
+
+  private List<byte[]> readChunks(byte[] input) throws Exception {
+    return readChunks(input, chunker);
+  }
+
+  private List<byte[]> readChunks(byte[] input, Chunker chunker) throws Exception {
+    List<byte[]> chunks = new LinkedList<>();
+    try (ChunkReader chunkReader = new ChunkReader(new ByteArrayInputStream(input), chunker)) {
+      for (byte[] chunk = chunkReader.nextChunk(); chunk != null; chunk = chunkReader.nextChunk()) {
+        chunks.add(chunk);
+      }
+    }
+    return chunks;
+  }
+
+  private Set<String> toHashes(List<byte[]> chunks) {
+    Set<String> retSet = new HashSet<>();
+    chunks.forEach(x -> retSet.add(Hashing.md5().hashBytes(x).toString()));
+    return retSet;
+  }
+}
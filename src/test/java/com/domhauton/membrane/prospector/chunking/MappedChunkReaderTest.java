@@ -0,0 +1,89 @@
+package com.domhauton.membrane.prospector.chunking;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Created by dominic on 19/10/17.
+ */
+class MappedChunkReaderTest {
+  private static final int MIN_SIZE = 2 * 1024;
+  private static final int AVG_SIZE = 8 * 1024;
+  private static final int MAX_SIZE = 32 * 1024;
+  private static final int DATA_SIZE = 2 * 1024 * 1024 + 123;
+
+  private byte[] data;
+  private Path file;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    data = new byte[DATA_SIZE];
+    new Random(42).nextBytes(data);
+    file = Files.createTempFile("membrane-mapped", ".dat");
+    Files.write(file, data);
+  }
+
+  @Test
+  void matchesStreamedChunks() throws Exception {
+    Chunker chunker = new GearChunker(MIN_SIZE, AVG_SIZE, MAX_SIZE);
+    // Small window forces the reader to remap many times.
+    List<byte[]> mappedChunks = readMappedChunks(chunker, MAX_SIZE * 3);
+    List<byte[]> streamedChunks = readStreamedChunks(chunker);
+
+    Assertions.assertEquals(streamedChunks.size(), mappedChunks.size());
+    for (int i = 0; i < streamedChunks.size(); i++) {
+      Assertions.assertArrayEquals(streamedChunks.get(i), mappedChunks.get(i));
+    }
+  }
+
+  @Test
+  void fixedChunksCoverWholeFile() throws Exception {
+    List<byte[]> chunks = readMappedChunks(new FixedSizeChunker(MAX_SIZE), MAX_SIZE);
+    Assertions.assertEquals(DATA_SIZE / MAX_SIZE + 1, chunks.size());
+    Assertions.assertEquals(DATA_SIZE % MAX_SIZE, chunks.get(chunks.size() - 1).length);
+    Assertions.assertEquals(DATA_SIZE, chunks.stream().mapToInt(x -> x.length).sum());
+  }
+
+  @Test
+  void emptyFileHasNoChunks() throws Exception {
+    Files.write(file, new byte[0]);
+    Assertions.assertTrue(readMappedChunks(new FixedSizeChunker(MAX_SIZE), MAX_SIZE).isEmpty());
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    Files.deleteIfExists(file);
+  }
+
+  private List<byte[]> readMappedChunks(Chunker chunker, int windowSize) throws Exception {
+    List<byte[]> chunks = new LinkedList<>();
+    try (MappedChunkReader chunkReader = new MappedChunkReader(file, chunker, 0L, windowSize)) {
+      for (ByteBuffer chunk = chunkReader.nextChunk(); chunk != null; chunk = chunkReader.nextChunk()) {
+        byte[] bytes = new byte[chunk.remaining()];
+        chunk.get(bytes);
+        chunks.add(bytes);
+      }
+    }
+    return chunks;
+  }
+
+  private List<byte[]> readStreamedChunks(Chunker chunker) throws Exception {
+    List<byte[]> chunks = new LinkedList<>();
+    try (ChunkReader chunkReader = new ChunkReader(new ByteArrayInputStream(data), chunker)) {
+      for (byte[] chunk = chunkReader.nextChunk(); chunk != null; chunk = chunkReader.nextChunk()) {
+        chunks.add(chunk);
+      }
+    }
+    return chunks;
+  }
+}
@@ -0,0 +1,116 @@
+package com.domhauton.membrane.shard;
+
+import com.domhauton.membrane.storage.StorageManagerTestUtils;
+import com.google.common.io.ByteStreams;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Created by dominic on 30/10/17.
+ */
+class CachingShardStorageTest {
+  private static final long MAX_STORAGE = 1024 * 1024 * 1024;
+
+  private Path testDir;
+  private Random random;
+  private ShardStorage diskShardStorage;
+  private CachingShardStorage shardStorage;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    testDir = Paths.get(StorageManagerTestUtils.createRandomFolder(StorageManagerTestUtils.BASE_DIR));
+    random = new Random(System.currentTimeMillis());
+    diskShardStorage = new ShardStorageImpl(testDir, MAX_STORAGE);
+    shardStorage = new CachingShardStorage(diskShardStorage, 4 * StorageManagerTestUtils.RAND_SHARD_SIZE);
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    shardStorage.close();
+    StorageManagerTestUtils.deleteDirectoryRecursively(testDir);
+  }
+
+  @Test
+  void cachedAfterSecondMiss() throws Exception {
+    String shardId = StorageManagerTestUtils.addRandShard(random, shardStorage);
+    byte[] expected = diskShardStorage.retrieveShard(shardId);
+
+    Assertions.assertArrayEquals(expected, shardStorage.retrieveShard(shardId));
+    Assertions.assertEquals(0L, shardStorage.getCacheBytes());
+    Assertions.assertArrayEquals(expected, shardStorage.retrieveShard(shardId));
+    Assertions.assertEquals(StorageManagerTestUtils.RAND_SHARD_SIZE, shardStorage.getCacheBytes());
+    Assertions.assertArrayEquals(expected, shardStorage.retrieveShard(shardId));
+
+    Assertions.assertEquals(1L, shardStorage.getHits());
+    Assertions.assertEquals(2L, shardStorage.getMisses());
+  }
+
+  @Test
+  void leastRecentlyReadEvicted() throws Exception {
+    List<String> shardIds = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      shardIds.add(StorageManagerTestUtils.addRandShard(random, shardStorage));
+    }
+    for (String shardId : shardIds) {
+      shardStorage.retrieveShard(shardId);
+      shardStorage.retrieveShard(shardId);
+    }
+    Assertions.assertEquals(1L, shardStorage.getEvictions());
+    Assertions.assertEquals(4 * StorageManagerTestUtils.RAND_SHARD_SIZE, shardStorage.getCacheBytes());
+
+    long misses = shardStorage.getMisses();
+    shardStorage.retrieveShard(shardIds.get(4));
+    Assertions.assertEquals(misses, shardStorage.getMisses());
+    shardStorage.retrieveShard(shardIds.get(0));
+    Assertions.assertEquals(misses + 1, shardStorage.getMisses());
+  }
+
+  @Test
+  void removeInvalidatesCache() throws Exception {
+    String shardId = StorageManagerTestUtils.addRandShard(random, shardStorage);
+    shardStorage.retrieveShard(shardId);
+    shardStorage.retrieveShard(shardId);
+    Assertions.assertEquals(StorageManagerTestUtils.RAND_SHARD_SIZE, shardStorage.removeShard(shardId));
+
+    Assertions.assertEquals(0L, shardStorage.getCacheBytes());
+    Assertions.assertFalse(shardStorage.hasShard(shardId));
+    Assertions.assertThrows(ShardStorageException.class, () -> shardStorage.retrieveShard(shardId));
+  }
+
+  @Test
+  void cachedCopyNotModifiedByCaller() throws Exception {
+    String shardId = StorageManagerTestUtils.addRandShard(random, shardStorage);
+    shardStorage.retrieveShard(shardId);
+    byte[] data = shardStorage.retrieveShard(shardId);
+    data[0]++;
+    Assertions.assertArrayEquals(diskShardStorage.retrieveShard(shardId), shardStorage.retrieveShard(shardId));
+  }
+
+  @Test
+  void streamedFromCache() throws Exception {
+    String shardId = StorageManagerTestUtils.addRandShard(random, shardStorage);
+    byte[] expected = diskShardStorage.retrieveShard(shardId);
+    shardStorage.retrieveShard(shardId);
+    shardStorage.retrieveShard(shardId);
+
+    InputStream first = shardStorage.openShard(shardId);
+    InputStream second = shardStorage.openShard(shardId);
+    Assertions.assertEquals(expected.length, first.available());
+    Assertions.assertEquals(2L, shardStorage.getMisses());
+    Assertions.assertEquals(2L, shardStorage.getHits());
+
+    // Streams read independently and stay readable once the shard is evicted.
+    shardStorage.removeShard(shardId);
+    Assertions.assertArrayEquals(expected, ByteStreams.toByteArray(first));
+    Assertions.assertArrayEquals(expected, ByteStreams.toByteArray(second));
+  }
+}
@@ -0,0 +1,83 @@
+package com.domhauton.membrane.shard;
+
+import com.domhauton.membrane.storage.StorageManagerTestUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by dominic on 03/11/17.
+ */
+class GroupCommitSyncTest {
+  private Path testDir;
+  private GroupCommitSync groupCommitSync;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    testDir = Paths.get(StorageManagerTestUtils.createRandomFolder(StorageManagerTestUtils.BASE_DIR));
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    groupCommitSync.close();
+    StorageManagerTestUtils.deleteDirectoryRecursively(testDir);
+  }
+
+  @Test
+  void concurrentWritersShareBatches() throws Exception {
+    // Each batch waits the whole budget, so 32 writers syncing one at a time would take over 3 seconds.
+    groupCommitSync = new GroupCommitSync(100, TimeUnit.MILLISECONDS);
+    ExecutorService executorService = Executors.newFixedThreadPool(32);
+    List<Callable<Void>> writers = new ArrayList<>();
+    for (int i = 0; i < 32; i++) {
+      Path filePath = testDir.resolve("file-" + i);
+      writers.add(() -> {
+        try (FileChannel fileChannel = FileChannel.open(filePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+          fileChannel.write(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+          groupCommitSync.syncFile(fileChannel);
+        }
+        groupCommitSync.syncDirectory(testDir);
+        return null;
+      });
+    }
+    long startMillis = System.currentTimeMillis();
+    for (Future<Void> result : executorService.invokeAll(writers)) {
+      result.get();
+    }
+    Assertions.assertTrue(System.currentTimeMillis() - startMillis < 2000);
+    executorService.shutdown();
+  }
+
+  @Test
+  void failedSyncReported() throws Exception {
+    groupCommitSync = new GroupCommitSync(1, TimeUnit.MILLISECONDS);
+    FileChannel fileChannel = FileChannel.open(testDir.resolve("file"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    fileChannel.close();
+    Assertions.assertThrows(IOException.class, () -> groupCommitSync.syncFile(fileChannel));
+  }
+
+  @Test
+  void pendingSyncsFinishOnClose() throws Exception {
+    groupCommitSync = new GroupCommitSync(1, TimeUnit.HOURS);
+    try (FileChannel fileChannel = FileChannel.open(testDir.resolve("file"), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+      groupCommitSync.syncFileLater(fileChannel);
+      groupCommitSync.close();
+      Assertions.assertThrows(IOException.class, () -> groupCommitSync.syncFile(fileChannel));
+    }
+  }
+}
@@ -0,0 +1,126 @@
+package com.domhauton.membrane.shard;
+
+import com.domhauton.membrane.storage.StorageManagerTestUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Created by dominic on 04/11/17.
+ */
+class MultiVolumeShardStorageTest {
+  private static final long VOLUME_QUOTA = 1024 * 1024 * 1024;
+
+  private Path testDir;
+  private Random random;
+  private MultiVolumeShardStorage shardStorage;
+  private List<ShardStorageImpl> volumeStorages;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    testDir = Paths.get(StorageManagerTestUtils.createRandomFolder(StorageManagerTestUtils.BASE_DIR));
+    random = new Random(System.currentTimeMillis());
+    shardStorage = new MultiVolumeShardStorage(2);
+    volumeStorages = new ArrayList<>();
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    shardStorage.close();
+    StorageManagerTestUtils.deleteDirectoryRecursively(testDir);
+  }
+
+  @Test
+  void shardsSpreadOverVolumes() throws Exception {
+    for (int i = 0; i < 4; i++) {
+      addVolume(i, VOLUME_QUOTA);
+    }
+    Set<String> shardIds = new HashSet<>();
+    for (int i = 0; i < 80; i++) {
+      shardIds.add(StorageManagerTestUtils.addRandShard(random, shardStorage));
+    }
+
+    Assertions.assertEquals(shardIds, shardStorage.listShardIds());
+    Assertions.assertEquals(80 * StorageManagerTestUtils.RAND_SHARD_SIZE, shardStorage.getStorageSize());
+    for (ShardStorageImpl volumeStorage : volumeStorages) {
+      Assertions.assertFalse(volumeStorage.listShardIds().isEmpty());
+    }
+    for (String shardId : shardIds) {
+      Assertions.assertTrue(shardStorage.hasShard(shardId));
+      Assertions.assertTrue(shardStorage.verifyShard(shardId));
+      Assertions.assertEquals(StorageManagerTestUtils.RAND_SHARD_SIZE, shardStorage.retrieveShard(shardId).length);
+    }
+
+    String removed = shardIds.iterator().next();
+    shardStorage.removeShard(removed);
+    Assertions.assertFalse(shardStorage.hasShard(removed));
+    Assertions.assertThrows(ShardStorageException.class, () -> shardStorage.retrieveShard(removed));
+  }
+
+  @Test
+  void fullVolumeSkipped() throws Exception {
+    addVolume(0, VOLUME_QUOTA);
+    addVolume(1, StorageManagerTestUtils.RAND_SHARD_SIZE - 1);
+    for (int i = 0; i < 20; i++) {
+      StorageManagerTestUtils.addRandShard(random, shardStorage);
+    }
+    Assertions.assertEquals(20, volumeStorages.get(0).listShardIds().size());
+    Assertions.assertTrue(volumeStorages.get(1).listShardIds().isEmpty());
+  }
+
+  @Test
+  void addedVolumeTakesOnlyItsShare() throws Exception {
+    addVolume(0, VOLUME_QUOTA);
+    addVolume(1, VOLUME_QUOTA);
+    for (int i = 0; i < 90; i++) {
+      StorageManagerTestUtils.addRandShard(random, shardStorage);
+    }
+    Set<String> before0 = volumeStorages.get(0).listShardIds();
+    Set<String> before1 = volumeStorages.get(1).listShardIds();
+
+    addVolume(2, VOLUME_QUOTA);
+    shardStorage.rebalance();
+
+    Set<String> moved = volumeStorages.get(2).listShardIds();
+    Assertions.assertFalse(moved.isEmpty());
+    Assertions.assertTrue(moved.size() < 60);
+    // Shards only move to the new volume, never between the old ones.
+    Assertions.assertTrue(before0.containsAll(volumeStorages.get(0).listShardIds()));
+    Assertions.assertTrue(before1.containsAll(volumeStorages.get(1).listShardIds()));
+    Assertions.assertEquals(90, shardStorage.listShardIds().size());
+    Assertions.assertEquals(0, shardStorage.rebalance());
+  }
+
+  @Test
+  void removedVolumeDrained() throws Exception {
+    addVolume(0, VOLUME_QUOTA);
+    addVolume(1, VOLUME_QUOTA);
+    Set<String> shardIds = new HashSet<>();
+    for (int i = 0; i < 20; i++) {
+      shardIds.add(StorageManagerTestUtils.addRandShard(random, shardStorage));
+    }
+    Assertions.assertTrue(shardStorage.removeVolume(testDir.resolve("volume-1")));
+    Assertions.assertFalse(shardStorage.removeVolume(testDir.resolve("volume-9")));
+    shardStorage.rebalance();
+
+    Assertions.assertEquals(1, shardStorage.getVolumeNames().size());
+    Assertions.assertEquals(shardIds, volumeStorages.get(0).listShardIds());
+    Assertions.assertEquals(shardIds, shardStorage.listShardIds());
+  }
+
+  private void addVolume(int index, long quota) throws Exception {
+    Path volumePath = testDir.resolve("volume-" + index);
+    ShardStorageImpl volumeStorage = new ShardStorageImpl(volumePath, quota);
+    volumeStorages.add(volumeStorage);
+    shardStorage.addVolume(volumePath, volumeStorage, quota);
+  }
+}
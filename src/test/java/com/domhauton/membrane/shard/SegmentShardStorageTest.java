@@ -0,0 +1,237 @@
+package com.domhauton.membrane.shard;
+
+import com.domhauton.membrane.storage.StorageManagerTestUtils;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Created by dominic on 29/10/17.
+ */
+class SegmentShardStorageTest {
+  private static final long MAX_STORAGE = 1024 * 1024 * 1024;
+  private static final long SEGMENT_SIZE = 4 * 1024;
+
+  private Path testDir;
+  private Random random;
+  private SegmentShardStorage shardStorage;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    testDir = Paths.get(StorageManagerTestUtils.createRandomFolder(StorageManagerTestUtils.BASE_DIR));
+    random = new Random(System.currentTimeMillis());
+    shardStorage = open();
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    shardStorage.close();
+    StorageManagerTestUtils.deleteDirectoryRecursively(testDir);
+  }
+
+  @Test
+  void testCreateRetrieveAndRemove() throws Exception {
+    String addedShard = StorageManagerTestUtils.addRandShard(random, shardStorage);
+    Assertions.assertTrue(shardStorage.hasShard(addedShard));
+    Assertions.assertEquals(addedShard, Hashing.md5().hashBytes(shardStorage.retrieveShard(addedShard)).toString());
+    Assertions.assertEquals(StorageManagerTestUtils.RAND_SHARD_SIZE, shardStorage.getShardSize(addedShard));
+    Assertions.assertEquals(StorageManagerTestUtils.RAND_SHARD_SIZE, shardStorage.getStorageSize());
+
+    Assertions.assertEquals(StorageManagerTestUtils.RAND_SHARD_SIZE, shardStorage.removeShard(addedShard));
+    Assertions.assertFalse(shardStorage.hasShard(addedShard));
+    Assertions.assertEquals(0L, shardStorage.getStorageSize());
+    Assertions.assertThrows(ShardStorageException.class, () -> shardStorage.retrieveShard(addedShard));
+    Assertions.assertThrows(ShardStorageException.class, () -> shardStorage.removeShard(addedShard));
+  }
+
+  @Test
+  void insufficientStorageTest() throws Exception {
+    shardStorage.close();
+    shardStorage = new SegmentShardStorage(testDir, 257, Hashing.md5(), SEGMENT_SIZE, false);
+    StorageManagerTestUtils.addRandShard(random, shardStorage);
+    StorageManagerTestUtils.addRandShard(random, shardStorage);
+    Assertions.assertThrows(ShardStorageException.class, () -> StorageManagerTestUtils.addRandShard(random, shardStorage));
+    Assertions.assertEquals(2, shardStorage.listShardIds().size());
+  }
+
+  @Test
+  void reopenAfterClose() throws Exception {
+    List<String> shards = addShards(100);
+    shardStorage.removeShard(shards.remove(0));
+    shardStorage.close();
+
+    shardStorage = open();
+    assertStored(shards);
+  }
+
+  @Test
+  void recoverWithoutCloseAndTornRecord() throws Exception {
+    List<String> shards = addShards(100);
+    shardStorage.removeShard(shards.remove(0));
+    // Crash without close. The index is missing the newest records and the last record is half written.
+    Path newestSegment = segmentFiles().get(segmentFiles().size() - 1);
+    long length = newestSegment.toFile().length();
+    String torn = StorageManagerTestUtils.addRandShard(random, shardStorage);
+    try (RandomAccessFile file = new RandomAccessFile(newestSegment.toFile(), "rw")) {
+      file.setLength(length + 20);
+    }
+
+    shardStorage = open();
+    assertStored(shards);
+    Assertions.assertFalse(shardStorage.hasShard(torn));
+    Assertions.assertEquals(length, newestSegment.toFile().length());
+    String added = StorageManagerTestUtils.addRandShard(random, shardStorage);
+    Assertions.assertArrayEquals(shardStorage.retrieveShard(added), open().retrieveShard(added));
+  }
+
+  @Test
+  void recoverSegmentShorterThanIndex() throws Exception {
+    List<String> shards = addShards(10);
+    shardStorage.close();
+    // The segment lost its tail after the index was saved. The last record is cut part way.
+    Path segment = segmentFiles().get(segmentFiles().size() - 1);
+    try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+      file.setLength(file.length() - 20);
+    }
+
+    shardStorage = open();
+    String lost = shards.remove(shards.size() - 1);
+    Assertions.assertFalse(shardStorage.hasShard(lost));
+    assertStored(shards);
+    Assertions.assertEquals(shards.size() * StorageManagerTestUtils.RAND_SHARD_SIZE, shardStorage.getStorageSize());
+    String added = StorageManagerTestUtils.addRandShard(random, shardStorage);
+    shardStorage.close();
+    shardStorage = open();
+    assertStored(shards);
+    Assertions.assertTrue(shardStorage.hasShard(added));
+  }
+
+  @Test
+  void rebuildIndexWhenMissing() throws Exception {
+    List<String> shards = addShards(100);
+    shardStorage.removeShard(shards.remove(5));
+    shardStorage.close();
+    Files.delete(testDir.resolve("segment-index.dat"));
+
+    shardStorage = open();
+    assertStored(shards);
+  }
+
+  @Test
+  void compactionReclaimsRemovedShards() throws Exception {
+    List<String> shards = addShards(200);
+    int segmentsBefore = segmentFiles().size();
+    List<String> removed = shards.subList(0, 150);
+    for (String shardId : removed) {
+      shardStorage.removeShard(shardId);
+    }
+    List<String> kept = new ArrayList<>(shards.subList(150, 200));
+    Assertions.assertTrue(shardStorage.compact() > 0);
+    Assertions.assertTrue(segmentFiles().size() < segmentsBefore);
+    assertStored(kept);
+    Assertions.assertEquals(kept.size() * StorageManagerTestUtils.RAND_SHARD_SIZE, shardStorage.getStorageSize());
+
+    // Removed shards must stay removed when the index is rebuilt from the remaining segments.
+    shardStorage.close();
+    Files.delete(testDir.resolve("segment-index.dat"));
+    shardStorage = open();
+    assertStored(kept);
+    Assertions.assertEquals(kept.size(), shardStorage.listShardIds().size());
+  }
+
+  @Test
+  void corruptedShardTest() throws Exception {
+    String addedShard = StorageManagerTestUtils.addRandShard(random, shardStorage);
+    try (RandomAccessFile file = new RandomAccessFile(segmentFiles().get(0).toFile(), "rw")) {
+      file.seek(file.length() - 10);
+      file.write(' ');
+    }
+    Assertions.assertThrows(ShardStorageException.class, () -> shardStorage.retrieveShard(addedShard));
+    Assertions.assertFalse(shardStorage.hasShard(addedShard));
+  }
+
+  @Test
+  void streamReadSurvivesCompaction() throws Exception {
+    List<String> shards = addShards(200);
+    String streamed = shards.get(199);
+    try (InputStream input = shardStorage.openShard(shards.get(0))) {
+      for (String shardId : shards.subList(0, 150)) {
+        shardStorage.removeShard(shardId);
+      }
+      shardStorage.compact();
+      Assertions.assertEquals(shards.get(0), Hashing.md5().hashBytes(ByteStreams.toByteArray(input)).toString());
+    }
+    try (InputStream input = shardStorage.openShard(streamed)) {
+      Assertions.assertEquals(streamed, Hashing.md5().hashBytes(ByteStreams.toByteArray(input)).toString());
+    }
+  }
+
+  @Test
+  void streamReadCorruptedShard() throws Exception {
+    String addedShard = StorageManagerTestUtils.addRandShard(random, shardStorage);
+    try (RandomAccessFile file = new RandomAccessFile(segmentFiles().get(0).toFile(), "rw")) {
+      file.seek(file.length() - 10);
+      file.write(' ');
+    }
+    try (InputStream input = shardStorage.openShard(addedShard)) {
+      Assertions.assertThrows(IOException.class, () -> ByteStreams.toByteArray(input));
+    }
+    Assertions.assertFalse(shardStorage.hasShard(addedShard));
+  }
+
+  @Test
+  void migrateFromFiles() throws Exception {
+    ShardStorage fileShardStorage = new ShardStorageImpl(testDir, MAX_STORAGE);
+    List<String> shards = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      shards.add(StorageManagerTestUtils.addRandShard(random, fileShardStorage));
+    }
+    shardStorage.storeShard(shards.get(0), fileShardStorage.retrieveShard(shards.get(0)));
+
+    Assertions.assertEquals(10, ShardStorageMigration.migrate(fileShardStorage, shardStorage));
+    Assertions.assertTrue(fileShardStorage.listShardIds().isEmpty());
+    assertStored(shards);
+    Assertions.assertEquals(0, ShardStorageMigration.migrate(fileShardStorage, shardStorage));
+  }
+
+  private SegmentShardStorage open() throws ShardStorageException {
+    return new SegmentShardStorage(testDir, MAX_STORAGE, Hashing.md5(), SEGMENT_SIZE, false);
+  }
+
+  private List<String> addShards(int count) throws Exception {
+    List<String> shards = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      shards.add(StorageManagerTestUtils.addRandShard(random, shardStorage));
+    }
+    return shards;
+  }
+
+  private void assertStored(List<String> shards) throws Exception {
+    for (String shardId : shards) {
+      Assertions.assertEquals(shardId, Hashing.md5().hashBytes(shardStorage.retrieveShard(shardId)).toString());
+    }
+  }
+
+  private List<Path> segmentFiles() throws Exception {
+    try (Stream<Path> files = Files.list(testDir)) {
+      return files.filter(x -> x.getFileName().toString().endsWith(".seg"))
+          .sorted()
+          .collect(Collectors.toList());
+    }
+  }
+}
@@ -0,0 +1,46 @@
+package com.domhauton.membrane.shard;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Created by dominic on 05/11/17.
+ */
+class ShardLayoutTest {
+  private static final Path ROOT = Paths.get("root");
+  private static final String ID = "0123456789abcdef";
+
+  @Test
+  void legacyLayoutSplitsWholeId() {
+    Assertions.assertEquals(Paths.get("root", "01234", "56789", "abcde", "f.mem"),
+        ShardLayout.LEGACY.getPath(ROOT, ID, ".mem"));
+    Assertions.assertEquals(Paths.get("root", "abc.mem"), ShardLayout.LEGACY.getPath(ROOT, "abc", ".mem"));
+  }
+
+  @Test
+  void fanOutLayoutNamesFileAfterId() {
+    Assertions.assertEquals(Paths.get("root", "01", "23", ID + ".mem"),
+        ShardLayout.fanOut(2, 2).getPath(ROOT, ID, ".mem"));
+    Assertions.assertEquals(Paths.get("root", ID + ".mem"), ShardLayout.fanOut(0, 2).getPath(ROOT, ID, ".mem"));
+    // Too short for the second level.
+    Assertions.assertEquals(Paths.get("root", "ab", "abc.mem"), ShardLayout.fanOut(2, 2).getPath(ROOT, "abc", ".mem"));
+  }
+
+  @Test
+  void idsFoundInEitherLayout() {
+    Assertions.assertEquals(ID, ShardLayout.candidateIds(Paths.get("01", "23", ID)).get(0));
+    Assertions.assertEquals(ID, ShardLayout.candidateIds(Paths.get("01234", "56789", "abcde", "f")).get(0));
+    Assertions.assertEquals(ID, ShardLayout.candidateIds(Paths.get(ID)).get(0));
+  }
+
+  @Test
+  void invalidLayoutRejected() {
+    Assertions.assertThrows(IllegalArgumentException.class, () -> ShardLayout.fanOut(-1, 2));
+    Assertions.assertThrows(IllegalArgumentException.class, () -> ShardLayout.fanOut(2, 0));
+    Assertions.assertEquals(ShardLayout.fanOut(2, 2), ShardLayout.of(2, 2));
+    Assertions.assertTrue(ShardLayout.LEGACY == ShardLayout.of(-1, 5));
+  }
+}
@@ -0,0 +1,65 @@
+package com.domhauton.membrane.shard;
+
+import com.domhauton.membrane.storage.StorageManagerTestUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+/**
+ * Created by dominic on 01/11/17.
+ */
+class ShardScrubberTest {
+  private Path testDir;
+  private Random random;
+  private ShardStorageImpl shardStorage;
+
+  @BeforeEach
+  void setUp() throws Exception {
+    testDir = Paths.get(StorageManagerTestUtils.createRandomFolder(StorageManagerTestUtils.BASE_DIR));
+    random = new Random(System.currentTimeMillis());
+    shardStorage = new ShardStorageImpl(testDir, 1024 * 1024 * 1024);
+  }
+
+  @AfterEach
+  void tearDown() throws Exception {
+    StorageManagerTestUtils.deleteDirectoryRecursively(testDir);
+  }
+
+  @Test
+  void corruptShardRemoved() throws Exception {
+    String goodShard = StorageManagerTestUtils.addRandShard(random, shardStorage);
+    String badShard = StorageManagerTestUtils.addRandShard(random, shardStorage);
+    shardStorage.retrieveShard(badShard);
+    Files.write(shardStorage.getPath(testDir.toString(), badShard), " ".getBytes(), StandardOpenOption.APPEND);
+
+    ShardScrubber shardScrubber = new ShardScrubber("test", shardStorage, 0L);
+    Assertions.assertEquals(1, shardScrubber.scrub());
+    Assertions.assertTrue(shardStorage.hasShard(goodShard));
+    Assertions.assertTrue(shardStorage.isVerified(goodShard));
+    Assertions.assertFalse(shardStorage.hasShard(badShard));
+    Assertions.assertEquals(2L, shardScrubber.getShardsScrubbed());
+    Assertions.assertEquals(1L, shardScrubber.getCorruptShards());
+
+    Assertions.assertEquals(0, shardScrubber.scrub());
+    Assertions.assertEquals(3L, shardScrubber.getShardsScrubbed());
+  }
+
+  @Test
+  void readsArePaced() throws Exception {
+    for (int i = 0; i < 4; i++) {
+      StorageManagerTestUtils.addRandShard(random, shardStorage);
+    }
+    // Four shards at two shards per second.
+    ShardScrubber shardScrubber = new ShardScrubber("test", shardStorage, 2 * StorageManagerTestUtils.RAND_SHARD_SIZE);
+    long startMillis = System.currentTimeMillis();
+    shardScrubber.scrub();
+    Assertions.assertTrue(System.currentTimeMillis() - startMillis >= 1900);
+  }
+}
@@ -2,16 +2,31 @@ package com.domhauton.membrane.shard;
 
 import com.domhauton.membrane.storage.StorageManagerTestUtils;
 import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 /**
  * Created by dominic on 01/02/17.
@@ -135,4 +150,372 @@ class ShardStorageTest {
     Assertions.assertEquals(0, shardStorage.listShardIds().size());
     Files.delete(Paths.get(testDir));
   }
-}
\ No newline at end of file
+
+  @Test
+  void indexSavedOnClose() throws Exception {
+    shardStorage = new ShardStorageImpl(Paths.get(testDir), 1024 * 1024 * 1024);
+    String addedFile1 = StorageManagerTestUtils.addRandShard(random, shardStorage);
+    String addedFile2 = StorageManagerTestUtils.addRandShard(random, shardStorage);
+    shardStorage.retrieveShard(addedFile1);
+    shardStorage.close();
+    Path indexPath = Paths.get(testDir, "shard-index.dat");
+    Assertions.assertTrue(indexPath.toFile().exists());
+
+    shardStorage = new ShardStorageImpl(Paths.get(testDir), 1024 * 1024 * 1024);
+    Assertions.assertTrue(indexPath.toFile().exists());
+    Assertions.assertEquals(2, shardStorage.listShardIds().size());
+    Assertions.assertEquals(2 * StorageManagerTestUtils.RAND_SHARD_SIZE, shardStorage.getStorageSize());
+    Assertions.assertTrue(shardStorage.isVerified(addedFile1));
+    Assertions.assertFalse(shardStorage.isVerified(addedFile2));
+
+    shardStorage.removeShard(addedFile1);
+    shardStorage.removeShard(addedFile2);
+    Assertions.assertEquals(0L, shardStorage.getStorageSize());
+    StorageManagerTestUtils.deleteDirectoryRecursively(Paths.get(testDir));
+  }
+
+  @Test
+  void indexSavedByReconcileCheckedAfterCrash() throws Exception {
+    shardStorage = new ShardStorageImpl(Paths.get(testDir), 1024 * 1024 * 1024);
+    String addedFile1 = StorageManagerTestUtils.addRandShard(random, shardStorage);
+    shardStorage.retrieveShard(addedFile1);
+    shardStorage.reconcile();
+    Assertions.assertTrue(Paths.get(testDir, "shard-index.dat").toFile().exists());
+    String addedFile2 = StorageManagerTestUtils.addRandShard(random, shardStorage);
+
+    // Not closed, so the saved index is missing the second shard.
+    shardStorage = new ShardStorageImpl(Paths.get(testDir), 1024 * 1024 * 1024);
+    Assertions.assertEquals(2, shardStorage.listShardIds().size());
+    Assertions.assertEquals(2 * StorageManagerTestUtils.RAND_SHARD_SIZE, shardStorage.getStorageSize());
+    Assertions.assertTrue(shardStorage.isVerified(addedFile1));
+    Assertions.assertFalse(shardStorage.isVerified(addedFile2));
+    StorageManagerTestUtils.deleteDirectoryRecursively(Paths.get(testDir));
+  }
+
+  @Test
+  void reconcileFindsExternalChanges() throws Exception {
+    shardStorage = new ShardStorageImpl(Paths.get(testDir), 1024 * 1024 * 1024);
+    String addedFile1 = StorageManagerTestUtils.addRandShard(random, shardStorage);
+    ShardStorageImpl otherStorage = new ShardStorageImpl(Paths.get(testDir), 1024 * 1024 * 1024);
+    String addedFile2 = StorageManagerTestUtils.addRandShard(random, otherStorage);
+    otherStorage.removeShard(addedFile1);
+    Assertions.assertTrue(shardStorage.hasShard(addedFile1));
+    Assertions.assertFalse(shardStorage.hasShard(addedFile2));
+
+    shardStorage.reconcile();
+    Assertions.assertFalse(shardStorage.hasShard(addedFile1));
+    Assertions.assertTrue(shardStorage.hasShard(addedFile2));
+    Assertions.assertEquals(StorageManagerTestUtils.RAND_SHARD_SIZE, shardStorage.getStorageSize());
+
+    shardStorage.removeShard(addedFile2);
+    StorageManagerTestUtils.deleteDirectoryRecursively(Paths.get(testDir));
+  }
+
+  @Test
+  void streamStoreAndRead() throws Exception {
+    shardStorage = new ShardStorageImpl(Paths.get(testDir), 1024 * 1024 * 1024);
+    byte[] data = new byte[300 * 1024];
+    random.nextBytes(data);
+    String shardId = Hashing.md5().hashBytes(data).toString();
+    shardStorage.storeShard(shardId, Channels.newChannel(new ByteArrayInputStream(data)), data.length);
+    Assertions.assertEquals(data.length, shardStorage.getStorageSize());
+
+    try (InputStream input = shardStorage.openShard(shardId)) {
+      Assertions.assertArrayEquals(data, ByteStreams.toByteArray(input));
+    }
+
+    String shortId = "shortshard";
+    Assertions.assertThrows(ShardStorageException.class,
+        () -> shardStorage.storeShard(shortId, Channels.newChannel(new ByteArrayInputStream(data)), data.length + 1));
+    Assertions.assertFalse(shardStorage.hasShard(shortId));
+    Assertions.assertFalse(shardStorage.getPath(testDir, shortId).toFile().exists());
+
+    shardStorage.removeShard(shardId);
+    StorageManagerTestUtils.deleteDirectoryRecursively(Paths.get(testDir));
+  }
+
+  @Test
+  void streamReadCorruptedShard() throws Exception {
+    shardStorage = new ShardStorageImpl(Paths.get(testDir), 1024 * 1024 * 1024);
+    String addedFile = StorageManagerTestUtils.addRandShard(random, shardStorage);
+    Files.write(shardStorage.getPath(testDir, addedFile), " ".getBytes(), StandardOpenOption.APPEND);
+    try (InputStream input = shardStorage.openShard(addedFile)) {
+      Assertions.assertThrows(IOException.class, () -> ByteStreams.toByteArray(input));
+    }
+    Assertions.assertFalse(shardStorage.hasShard(addedFile));
+    Assertions.assertThrows(ShardStorageException.class, () -> shardStorage.openShard(addedFile));
+    Files.delete(Paths.get(testDir));
+  }
+
+  @Test
+  void verifiedReadSkipsHashUntilChanged() throws Exception {
+    shardStorage = new ShardStorageImpl(Paths.get(testDir), 1024 * 1024 * 1024);
+    String addedFile = StorageManagerTestUtils.addRandShard(random, shardStorage);
+    byte[] original = shardStorage.retrieveShard(addedFile);
+    Assertions.assertTrue(shardStorage.isVerified(addedFile));
+
+    // Same size and modified time. Trusted without hashing.
+    Path shardLocation = shardStorage.getPath(testDir, addedFile);
+    FileTime modifiedTime = Files.getLastModifiedTime(shardLocation);
+    byte[] flipped = original.clone();
+    flipped[0]++;
+    Files.write(shardLocation, flipped);
+    Files.setLastModifiedTime(shardLocation, modifiedTime);
+    Assertions.assertArrayEquals(flipped, shardStorage.retrieveShard(addedFile));
+
+    // A forced check hashes again.
+    Assertions.assertFalse(shardStorage.verifyShard(addedFile));
+    Assertions.assertFalse(shardStorage.hasShard(addedFile));
+    Files.delete(Paths.get(testDir));
+  }
+
+  @Test
+  void changedShardHashedAgain() throws Exception {
+    shardStorage = new ShardStorageImpl(Paths.get(testDir), 1024 * 1024 * 1024);
+    String addedFile = StorageManagerTestUtils.addRandShard(random, shardStorage);
+    byte[] original = shardStorage.retrieveShard(addedFile);
+
+    Path shardLocation = shardStorage.getPath(testDir, addedFile);
+    FileTime modifiedTime = Files.getLastModifiedTime(shardLocation);
+    original[0]++;
+    Files.write(shardLocation, original);
+    Files.setLastModifiedTime(shardLocation, FileTime.fromMillis(modifiedTime.toMillis() + 1000));
+    Assertions.assertThrows(ShardStorageException.class, () -> shardStorage.retrieveShard(addedFile));
+    Assertions.assertFalse(shardStorage.hasShard(addedFile));
+    Files.delete(Paths.get(testDir));
+  }
+
+  @Test
+  void concurrentStoresRespectQuota() throws Exception {
+    shardStorage = new ShardStorageImpl(Paths.get(testDir), 50 * StorageManagerTestUtils.RAND_SHARD_SIZE);
+    ExecutorService executorService = Executors.newFixedThreadPool(8);
+    List<Callable<Boolean>> stores = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      byte[] data = new byte[(int) StorageManagerTestUtils.RAND_SHARD_SIZE];
+      random.nextBytes(data);
+      String shardId = Hashing.md5().hashBytes(data).toString();
+      stores.add(() -> {
+        try {
+          shardStorage.storeShard(shardId, data);
+          return true;
+        } catch (ShardStorageException e) {
+          return false;
+        }
+      });
+    }
+    int stored = 0;
+    for (Future<Boolean> result : executorService.invokeAll(stores)) {
+      stored += result.get() ? 1 : 0;
+    }
+    executorService.shutdown();
+    Assertions.assertTrue(executorService.awaitTermination(10, TimeUnit.SECONDS));
+
+    Assertions.assertEquals(50, stored);
+    Assertions.assertEquals(50, shardStorage.listShardIds().size());
+    Assertions.assertEquals(50 * StorageManagerTestUtils.RAND_SHARD_SIZE, shardStorage.getStorageSize());
+    StorageManagerTestUtils.deleteDirectoryRecursively(Paths.get(testDir));
+  }
+
+  @Test
+  void concurrentStoresOfSameShard() throws Exception {
+    shardStorage = new ShardStorageImpl(Paths.get(testDir), 2 * StorageManagerTestUtils.RAND_SHARD_SIZE);
+    byte[] data = new byte[(int) StorageManagerTestUtils.RAND_SHARD_SIZE];
+    random.nextBytes(data);
+    String shardId = Hashing.md5().hashBytes(data).toString();
+    ExecutorService executorService = Executors.newFixedThreadPool(8);
+    List<Callable<Void>> stores = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      stores.add(() -> {
+        shardStorage.storeShard(shardId, data);
+        return null;
+      });
+    }
+    for (Future<Void> result : executorService.invokeAll(stores)) {
+      result.get();
+    }
+    executorService.shutdown();
+
+    Assertions.assertEquals(StorageManagerTestUtils.RAND_SHARD_SIZE, shardStorage.getStorageSize());
+    Assertions.assertArrayEquals(data, shardStorage.retrieveShard(shardId));
+    shardStorage.removeShard(shardId);
+    Assertions.assertEquals(0L, shardStorage.getStorageSize());
+    StorageManagerTestUtils.addRandShard(random, shardStorage);
+    StorageManagerTestUtils.addRandShard(random, shardStorage);
+    StorageManagerTestUtils.deleteDirectoryRecursively(Paths.get(testDir));
+  }
+
+  @Test
+  void compressedShardsStoredSmaller() throws Exception {
+    shardStorage = new ShardStorageImpl(Paths.get(testDir), 1024 * 1024 * 1024);
+    shardStorage.setCompressShards(true);
+    byte[] text = compressibleData(200 * 1024);
+    String textShard = Hashing.md5().hashBytes(text).toString();
+    shardStorage.storeShard(textShard, text);
+    byte[] noise = new byte[200 * 1024];
+    random.nextBytes(noise);
+    String noiseShard = Hashing.md5().hashBytes(noise).toString();
+    shardStorage.storeShard(noiseShard, noise);
+
+    long textStored = shardStorage.getPath(testDir, textShard).toFile().length();
+    Assertions.assertTrue(textStored < text.length / 2);
+    Assertions.assertEquals(noise.length, shardStorage.getPath(testDir, noiseShard).toFile().length());
+    Assertions.assertEquals(textStored + noise.length, shardStorage.getStorageSize());
+    Assertions.assertEquals(text.length, shardStorage.getShardSize(textShard));
+
+    Assertions.assertArrayEquals(text, shardStorage.retrieveShard(textShard));
+    Assertions.assertArrayEquals(text, shardStorage.retrieveShard(textShard));
+    try (InputStream input = shardStorage.openShard(textShard)) {
+      Assertions.assertArrayEquals(text, ByteStreams.toByteArray(input));
+    }
+    Assertions.assertTrue(shardStorage.verifyShard(textShard));
+
+    // Raw sizes survive both the saved index and a walk of the tree.
+    shardStorage.close();
+    shardStorage = new ShardStorageImpl(Paths.get(testDir), 1024 * 1024 * 1024);
+    Assertions.assertEquals(text.length, shardStorage.getShardSize(textShard));
+    Files.delete(Paths.get(testDir, "shard-index.dat"));
+    shardStorage = new ShardStorageImpl(Paths.get(testDir), 1024 * 1024 * 1024);
+    Assertions.assertEquals(text.length, shardStorage.getShardSize(textShard));
+    Assertions.assertEquals(textStored + noise.length, shardStorage.getStorageSize());
+    StorageManagerTestUtils.deleteDirectoryRecursively(Paths.get(testDir));
+  }
+
+  @Test
+  void corruptCompressedShardRemoved() throws Exception {
+    shardStorage = new ShardStorageImpl(Paths.get(testDir), 1024 * 1024 * 1024);
+    shardStorage.setCompressShards(true);
+    byte[] text = compressibleData(64 * 1024);
+    String textShard = Hashing.md5().hashBytes(text).toString();
+    shardStorage.storeShard(textShard, text);
+    Path shardLocation = shardStorage.getPath(testDir, textShard);
+    byte[] stored = Files.readAllBytes(shardLocation);
+    stored[stored.length / 2]++;
+    Files.write(shardLocation, stored);
+
+    try (InputStream input = shardStorage.openShard(textShard)) {
+      Assertions.assertThrows(IOException.class, () -> ByteStreams.toByteArray(input));
+    }
+    Assertions.assertFalse(shardStorage.hasShard(textShard));
+    Assertions.assertEquals(0L, shardStorage.getStorageSize());
+
+    // Blocks before the corrupt one stream out before the read fails.
+    byte[] longText = compressibleData(300 * 1024);
+    String longShard = Hashing.md5().hashBytes(longText).toString();
+    shardStorage.storeShard(longShard, longText);
+    shardLocation = shardStorage.getPath(testDir, longShard);
+    stored = Files.readAllBytes(shardLocation);
+    stored[stored.length - 10]++;
+    Files.write(shardLocation, stored);
+
+    try (InputStream input = shardStorage.openShard(longShard)) {
+      byte[] firstBlock = new byte[64 * 1024];
+      ByteStreams.readFully(input, firstBlock);
+      Assertions.assertArrayEquals(Arrays.copyOf(longText, firstBlock.length), firstBlock);
+      Assertions.assertThrows(IOException.class, () -> ByteStreams.toByteArray(input));
+    }
+    Assertions.assertFalse(shardStorage.hasShard(longShard));
+    StorageManagerTestUtils.deleteDirectoryRecursively(Paths.get(testDir));
+  }
+
+  @Test
+  void rawShardStartingWithCodecHeaderKept() throws Exception {
+    shardStorage = new ShardStorageImpl(Paths.get(testDir), 1024 * 1024 * 1024);
+    shardStorage.setCompressShards(true);
+    byte[] data = new byte[64 * 1024];
+    random.nextBytes(data);
+    byte[] header = {'M', 'E', 'M', 'Z', 1, 0, 0, 1, 0};
+    System.arraycopy(header, 0, data, 0, header.length);
+    String shardId = Hashing.md5().hashBytes(data).toString();
+    shardStorage.storeShard(shardId, data);
+
+    Assertions.assertArrayEquals(data, shardStorage.retrieveShard(shardId));
+    try (InputStream input = shardStorage.openShard(shardId)) {
+      Assertions.assertArrayEquals(data, ByteStreams.toByteArray(input));
+    }
+
+    // Still raw after loading the saved index and after a walk of the tree.
+    shardStorage.close();
+    shardStorage = new ShardStorageImpl(Paths.get(testDir), 1024 * 1024 * 1024);
+    Assertions.assertArrayEquals(data, shardStorage.retrieveShard(shardId));
+    Files.delete(Paths.get(testDir, "shard-index.dat"));
+    shardStorage = new ShardStorageImpl(Paths.get(testDir), 1024 * 1024 * 1024);
+    Assertions.assertArrayEquals(data, shardStorage.retrieveShard(shardId));
+    Assertions.assertEquals(data.length, shardStorage.getShardSize(shardId));
+    StorageManagerTestUtils.deleteDirectoryRecursively(Paths.get(testDir));
+  }
+
+  @Test
+  void durableStoresLeaveNoTempFiles() throws Exception {
+    GroupCommitSync groupCommitSync = new GroupCommitSync(5, TimeUnit.MILLISECONDS);
+    shardStorage = new ShardStorageImpl(Paths.get(testDir), 1024 * 1024 * 1024);
+    shardStorage.setGroupCommitSync(groupCommitSync);
+    String shardId = StorageManagerTestUtils.addRandShard(random, shardStorage);
+    Path shardLocation = shardStorage.getPath(testDir, shardId);
+    Assertions.assertTrue(shardLocation.toFile().exists());
+    Assertions.assertFalse(shardLocation.resolveSibling(shardLocation.getFileName() + ".tmp").toFile().exists());
+    Assertions.assertTrue(shardStorage.verifyShard(shardId));
+    groupCommitSync.close();
+
+    // A shard left partially written by a crash is removed and never indexed.
+    Path tempLocation = shardLocation.resolveSibling("0123456789abcdef.mem.tmp");
+    Files.write(tempLocation, new byte[]{1, 2, 3});
+    shardStorage = new ShardStorageImpl(Paths.get(testDir), 1024 * 1024 * 1024);
+    Assertions.assertFalse(tempLocation.toFile().exists());
+    Assertions.assertEquals(1, shardStorage.listShardIds().size());
+    StorageManagerTestUtils.deleteDirectoryRecursively(Paths.get(testDir));
+  }
+
+  @Test
+  void layoutMigratedWhileReadable() throws Exception {
+    shardStorage = new ShardStorageImpl(Paths.get(testDir), 1024 * 1024 * 1024, Hashing.sha512());
+    List<String> legacyShards = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      legacyShards.add(StorageManagerTestUtils.addRandBlock(random, shardStorage));
+    }
+    shardStorage.close();
+
+    ShardLayout fanOut = ShardLayout.fanOut(2, 2);
+    shardStorage = new ShardStorageImpl(Paths.get(testDir), 1024 * 1024 * 1024, Hashing.sha512());
+    shardStorage.setLayout(fanOut);
+    String newShard = StorageManagerTestUtils.addRandBlock(random, shardStorage);
+    Assertions.assertEquals(fanOut.getPath(Paths.get(testDir), newShard, ".mem"), shardStorage.getPath(testDir, newShard));
+    Assertions.assertEquals(ShardLayout.LEGACY.getPath(Paths.get(testDir), legacyShards.get(0), ".mem"),
+        shardStorage.getPath(testDir, legacyShards.get(0)));
+
+    // Stopped part way, as if the daemon was stopped.
+    Thread.currentThread().interrupt();
+    Assertions.assertEquals(0, shardStorage.migrateLayout(0));
+    Assertions.assertTrue(Thread.interrupted());
+    Assertions.assertEquals(10, shardStorage.migrateLayout(0));
+    Assertions.assertEquals(0, shardStorage.migrateLayout(0));
+    for (String shardId : legacyShards) {
+      Assertions.assertEquals(fanOut.getPath(Paths.get(testDir), shardId, ".mem"), shardStorage.getPath(testDir, shardId));
+      Assertions.assertTrue(shardStorage.verifyShard(shardId));
+    }
+    // Only the two levels of fan-out are left under the root.
+    try (Stream<Path> files = Files.walk(Paths.get(testDir))) {
+      Assertions.assertTrue(files.allMatch(file -> Paths.get(testDir).relativize(file).getNameCount() <= 3));
+    }
+
+    // Layouts survive both the saved index and a walk of the tree.
+    shardStorage.close();
+    shardStorage = new ShardStorageImpl(Paths.get(testDir), 1024 * 1024 * 1024, Hashing.sha512());
+    shardStorage.setLayout(fanOut);
+    Assertions.assertEquals(0, shardStorage.migrateLayout(0));
+    Files.delete(Paths.get(testDir, "shard-index.dat"));
+    shardStorage = new ShardStorageImpl(Paths.get(testDir), 1024 * 1024 * 1024, Hashing.sha512());
+    shardStorage.setLayout(fanOut);
+    Assertions.assertEquals(11, shardStorage.listShardIds().size());
+    Assertions.assertEquals(0, shardStorage.migrateLayout(0));
+    Assertions.assertArrayEquals(shardStorage.retrieveShard(newShard), shardStorage.retrieveShard(newShard));
+    StorageManagerTestUtils.deleteDirectoryRecursively(Paths.get(testDir));
+  }
+
+  private byte[] compressibleData(int length) {
+    StringBuilder text = new StringBuilder();
+    while (text.length() < length) {
+      text.append("line ").append(random.nextInt(100)).append(" of a text heavy file.\n");
+    }
+    return text.substring(0, length).getBytes();
+  }
+}
@@ -0,0 +1,82 @@
+package com.domhauton.membrane.storage;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Created by dominic on 28/10/17.
+ */
+class DeltaCodecTest {
+  private static final int LENGTH = 256 * 1024;
+
+  private Random random;
+  private byte[] base;
+
+  @BeforeEach
+  void setUp() {
+    random = new Random(42);
+    base = new byte[LENGTH];
+    random.nextBytes(base);
+  }
+
+  @Test
+  void smallEditGivesSmallDelta() {
+    byte[] target = Arrays.copyOf(base, LENGTH);
+    for (int i = 0; i < 10; i++) {
+      target[1000 + i] = (byte) i;
+    }
+    byte[] delta = DeltaCodec.encode(base, target);
+    Assertions.assertTrue(delta.length < 2 * DeltaCodec.BLOCK_SIZE, "Delta too large: " + delta.length);
+    Assertions.assertArrayEquals(target, DeltaCodec.apply(base, delta));
+  }
+
+  @Test
+  void insertionShiftsMatches() {
+    byte[] inserted = new byte[333];
+    random.nextBytes(inserted);
+    byte[] target = new byte[LENGTH + inserted.length];
+    System.arraycopy(base, 0, target, 0, 5000);
+    System.arraycopy(inserted, 0, target, 5000, inserted.length);
+    System.arraycopy(base, 5000, target, 5000 + inserted.length, LENGTH - 5000);
+
+    byte[] delta = DeltaCodec.encode(base, target);
+    Assertions.assertTrue(delta.length < 3 * DeltaCodec.BLOCK_SIZE, "Delta too large: " + delta.length);
+    Assertions.assertArrayEquals(target, DeltaCodec.apply(base, delta));
+  }
+
+  @Test
+  void unrelatedDataRoundTrips() {
+    byte[] target = new byte[LENGTH / 2 + 7];
+    random.nextBytes(target);
+    byte[] delta = DeltaCodec.encode(base, target);
+    Assertions.assertTrue(delta.length > target.length);
+    Assertions.assertArrayEquals(target, DeltaCodec.apply(base, delta));
+    Assertions.assertArrayEquals(target, DeltaCodec.apply(new byte[0], DeltaCodec.encode(new byte[0], target)));
+  }
+
+  @Test
+  void corruptDeltaRejected() {
+    byte[] delta = DeltaCodec.encode(base, Arrays.copyOf(base, LENGTH - 1));
+    Assertions.assertThrows(IllegalArgumentException.class, () -> DeltaCodec.apply(new byte[10], delta));
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> DeltaCodec.apply(base, Arrays.copyOf(delta, delta.length - 1)));
+  }
+
+  @Test
+  void streamedApplyBoundsTarget() throws Exception {
+    byte[] target = Arrays.copyOf(base, LENGTH + 100);
+    target[5000]++;
+    byte[] delta = DeltaCodec.encode(base, target);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    Assertions.assertEquals(target.length, DeltaCodec.apply(base, new ByteArrayInputStream(delta), output, target.length));
+    Assertions.assertArrayEquals(target, output.toByteArray());
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> DeltaCodec.apply(base, new ByteArrayInputStream(delta), new ByteArrayOutputStream(), LENGTH));
+  }
+}
@@ -112,6 +112,98 @@ class StorageManagerTest {
     storageManager.collectGarbage();
   }
 
+  @Test
+  void testRetrievalZeroRuns() throws Exception {
+    int len = 256;
+    byte[] data = new byte[len];
+    random.nextBytes(data);
+    String hash = Hashing.md5().hashBytes(data).toString();
+    shardStorage.storeShard(hash, data);
+    storageManager.protectShard(hash);
+
+    List<MD5HashLengthPair> md5HashLengthPairs = Arrays.asList(
+        MD5HashLengthPair.zeros(128), new MD5HashLengthPair(hash, len), MD5HashLengthPair.zeros(64));
+    storageManager.addFile(md5HashLengthPairs, new DateTime(100L), srcFile);
+    Assertions.assertEquals(Collections.singleton(hash), storageManager.getAllRequiredShards());
+
+    storageManager.rebuildFile(srcFile, tgtFile);
+
+    byte[] expected = new byte[128 + len + 64];
+    System.arraycopy(data, 0, expected, 128, len);
+    Assertions.assertArrayEquals(expected, Files.readAllBytes(tgtFile));
+
+    Files.delete(tgtFile);
+  }
+
+  @Test
+  void testRetrievalPacked() throws Exception {
+    byte[] pack = new byte[300];
+    random.nextBytes(pack);
+    String packHash = Hashing.md5().hashBytes(pack).toString();
+    shardStorage.storeShard(packHash, pack);
+    storageManager.protectShard(packHash);
+
+    Path otherSrcFile = Paths.get(testDir + File.separator + "other.txt");
+    storageManager.addFile(Collections.singletonList(MD5HashLengthPair.packed(packHash, 0, 100)), new DateTime(100L), srcFile);
+    storageManager.addFile(Collections.singletonList(MD5HashLengthPair.packed(packHash, 100, 200)), new DateTime(100L), otherSrcFile);
+    Assertions.assertEquals(Collections.singleton(packHash), storageManager.getAllRequiredShards());
+    Assertions.assertEquals(2, storageManager.getAllRelatedJournalEntries(packHash).size());
+
+    storageManager.rebuildFile(otherSrcFile, tgtFile);
+    Assertions.assertArrayEquals(Arrays.copyOfRange(pack, 100, 300), Files.readAllBytes(tgtFile));
+    Files.delete(tgtFile);
+
+    storageManager.removeFile(srcFile, new DateTime(200L));
+    storageManager.clearProtectedShards();
+    storageManager.collectGarbage();
+    Assertions.assertTrue(shardStorage.hasShard(packHash));
+    storageManager.removeFile(otherSrcFile, new DateTime(200L));
+    storageManager.cleanStorage(new DateTime(250L));
+    Assertions.assertFalse(shardStorage.hasShard(packHash));
+  }
+
+  @Test
+  void testRetrievalDeltaChain() throws Exception {
+    byte[] base = new byte[16 * 1024];
+    random.nextBytes(base);
+    byte[] edited = Arrays.copyOf(base, base.length);
+    edited[100] ^= 1;
+    byte[] editedTwice = Arrays.copyOf(edited, edited.length);
+    editedTwice[9000] ^= 1;
+
+    String baseHash = Hashing.md5().hashBytes(base).toString();
+    byte[] delta1 = DeltaCodec.encode(base, edited);
+    byte[] delta2 = DeltaCodec.encode(edited, editedTwice);
+    String delta1Hash = Hashing.md5().hashBytes(delta1).toString();
+    String delta2Hash = Hashing.md5().hashBytes(delta2).toString();
+    for (String hash : Arrays.asList(baseHash, delta1Hash, delta2Hash)) {
+      storageManager.protectShard(hash);
+    }
+    shardStorage.storeShard(baseHash, base);
+    shardStorage.storeShard(delta1Hash, delta1);
+    shardStorage.storeShard(delta2Hash, delta2);
+
+    MD5HashLengthPair basePair = new MD5HashLengthPair(baseHash, base.length);
+    MD5HashLengthPair delta1Pair = MD5HashLengthPair.delta(Hashing.md5().hashBytes(edited).toString(), delta1Hash, basePair, edited.length);
+    MD5HashLengthPair delta2Pair = MD5HashLengthPair.delta(Hashing.md5().hashBytes(editedTwice).toString(), delta2Hash, delta1Pair, editedTwice.length);
+    Assertions.assertEquals(2, delta2Pair.getDeltaChainLength());
+    Assertions.assertEquals(Arrays.asList(delta2Hash, delta1Hash, baseHash), delta2Pair.getShardIds());
+
+    storageManager.addFile(Collections.singletonList(basePair), new DateTime(100L), srcFile);
+    storageManager.addFile(Collections.singletonList(delta2Pair), new DateTime(200L), srcFile);
+    storageManager.clearProtectedShards();
+    storageManager.collectGarbage();
+    Assertions.assertTrue(shardStorage.hasShard(delta1Hash));
+
+    storageManager.rebuildFile(srcFile, tgtFile);
+    Assertions.assertArrayEquals(editedTwice, Files.readAllBytes(tgtFile));
+    Files.delete(tgtFile);
+
+    shardStorage.removeShard(delta1Hash);
+    Assertions.assertThrows(StorageManagerException.class, () -> storageManager.rebuildFile(srcFile, tgtFile));
+    Assertions.assertFalse(tgtFile.toFile().exists());
+  }
+
   @Test
   void testJournalStorageTest() throws Exception {
     int len = 256;
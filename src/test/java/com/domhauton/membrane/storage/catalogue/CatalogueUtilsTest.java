@@ -1,9 +1,15 @@
 package com.domhauton.membrane.storage.catalogue;
 
+import com.domhauton.membrane.storage.catalogue.metadata.FileVersion;
+import com.domhauton.membrane.storage.catalogue.metadata.MD5HashLengthPair;
+import org.joda.time.DateTime;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -41,4 +47,32 @@ class CatalogueUtilsTest {
 
     Assertions.assertEquals(sample, decoded);
   }
+
+  @Test
+  void entryKindsSurviveSerialisation() throws Exception {
+    Path path = Paths.get("/tmp/foo");
+    MD5HashLengthPair shard = new MD5HashLengthPair("0cc175b9c0f1b6a831c399e269772661", 4096);
+    MD5HashLengthPair delta = MD5HashLengthPair.delta("4a8a08f09d37b73795649038408b5f33", "8277e0910d750195b448797616e091ad",
+        MD5HashLengthPair.delta("e1671797c52e15f763380b45e841ec32", "8fa14cdd754f91cc6554c9e71929cce7", shard, 4096), 4096);
+    List<MD5HashLengthPair> md5HashLengthPairs = Arrays.asList(
+        shard,
+        MD5HashLengthPair.zeros(8192),
+        MD5HashLengthPair.packed("92eb5ffee6ae2fec3ad71c777531578f", 100, 20),
+        delta);
+    String entry = CatalogueUtils.serializeEntry(path, new DateTime(100L), md5HashLengthPairs);
+    List<MD5HashLengthPair> decoded = CatalogueUtils.generateInputMap(Collections.singletonList(entry))
+        .get(path).getMD5HashLengthPairs();
+
+    Assertions.assertEquals(md5HashLengthPairs, decoded);
+    Assertions.assertEquals(MD5HashLengthPair.Kind.SHARD, decoded.get(0).getKind());
+    Assertions.assertEquals(MD5HashLengthPair.Kind.ZEROS, decoded.get(1).getKind());
+    Assertions.assertEquals(MD5HashLengthPair.Kind.PACKED, decoded.get(2).getKind());
+    Assertions.assertEquals(100, decoded.get(2).getPackOffset());
+    Assertions.assertEquals(MD5HashLengthPair.Kind.DELTA, decoded.get(3).getKind());
+    Assertions.assertEquals("4a8a08f09d37b73795649038408b5f33", decoded.get(3).getContentHash());
+    Assertions.assertEquals(2, decoded.get(3).getDeltaChainLength());
+    Assertions.assertEquals(Arrays.asList(shard.getShardId(), "92eb5ffee6ae2fec3ad71c777531578f",
+        "8277e0910d750195b448797616e091ad", "8fa14cdd754f91cc6554c9e71929cce7", shard.getShardId()),
+        new FileVersion(decoded, new DateTime(100L)).getShardIds());
+  }
 }
\ No newline at end of file